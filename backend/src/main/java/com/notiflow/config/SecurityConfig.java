@@ -35,6 +35,8 @@ public class SecurityConfig {
                         .requestMatchers("/auth/**", "/actuator/health").permitAll()
                         .requestMatchers(HttpMethod.GET, "/messages/*/track").permitAll()
                         .requestMatchers(HttpMethod.POST, "/messages/process-scheduled").permitAll()
+                        .requestMatchers(HttpMethod.POST, "/messages/search-index/rebuild").permitAll()
+                        .requestMatchers(HttpMethod.POST, "/messages/inbox/rebuild").permitAll()
                         .anyRequest().authenticated()
                 )
                 .addFilterBefore(requestIdFilter, UsernamePasswordAuthenticationFilter.class)
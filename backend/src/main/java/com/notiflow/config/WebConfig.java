@@ -28,7 +28,7 @@ public class WebConfig implements WebMvcConfigurer {
                 .allowedOrigins(allowedOrigins.toArray(String[]::new))
                 .allowedMethods("GET", "POST", "PUT", "DELETE", "OPTIONS")
                 .allowedHeaders("*")
-                .exposedHeaders("X-Request-Id")
+                .exposedHeaders("X-Request-Id", "X-Next-Cursor")
                 .allowCredentials(false)
                 .maxAge(3600);
     }
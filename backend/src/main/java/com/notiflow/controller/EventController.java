@@ -32,11 +32,18 @@ public class EventController {
             @RequestParam(value = "type", required = false) String type,
             @RequestParam(value = "studentId", required = false) String studentId,
             @RequestParam(value = "page", defaultValue = "1") int page,
-            @RequestParam(value = "pageSize", defaultValue = "100") int pageSize
+            @RequestParam(value = "pageSize", defaultValue = "100") int pageSize,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
         CurrentUser user = CurrentUser.fromContext()
                 .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
-        return ResponseEntity.ok(eventService.listForUser(user, fromIso, toIso, type, page, pageSize, studentId));
+        EventService.EventPage result = eventService.listForUser(user, fromIso, toIso, type, page, pageSize, studentId, cursor);
+        // el cuerpo sigue siendo una lista para no romper clientes; el cursor viaja en un header
+        var response = ResponseEntity.ok();
+        if (result.nextCursor() != null) {
+            response.header("X-Next-Cursor", result.nextCursor());
+        }
+        return response.body(result.items());
     }
 
     @PostMapping
@@ -31,7 +31,8 @@ public class GroupController {
             @RequestParam(value = "year", required = false) String year,
             @RequestParam(value = "q", required = false) String query,
             @RequestParam(value = "page", defaultValue = "1") int page,
-            @RequestParam(value = "pageSize", defaultValue = "50") int pageSize
+            @RequestParam(value = "pageSize", defaultValue = "50") int pageSize,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
         CurrentUser user = CurrentUser.fromContext()
                 .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
@@ -40,11 +41,11 @@ public class GroupController {
         // Si es superadmin (schoolId=global) y no se especifica colegio, listamos todo
         if ("global".equalsIgnoreCase(user.schoolId()) && (schoolIdParam == null || schoolIdParam.isBlank())) {
             accessControlService.check(user, "groups.list", "global", Optional.empty());
-            return ResponseEntity.ok(groupService.listAll(year, query, page, pageSize));
+            return ResponseEntity.ok(groupService.listAll(year, query, page, pageSize, cursor));
         }
 
         accessControlService.check(user, "groups.list", requestedSchool, Optional.empty());
-        return ResponseEntity.ok(groupService.listBySchool(requestedSchool, year, query, page, pageSize));
+        return ResponseEntity.ok(groupService.listBySchool(requestedSchool, year, query, page, pageSize, cursor));
     }
 
     @PostMapping
@@ -1,9 +1,15 @@
 package com.notiflow.controller;
 
+import com.notiflow.dto.AttachmentUploadResponse;
 import com.notiflow.dto.MessageDto;
 import com.notiflow.dto.MessageListResponse;
 import com.notiflow.dto.MessageRequest;
+import com.notiflow.dto.ReindexResponse;
+import com.notiflow.dto.ScheduledRunResponse;
+import com.notiflow.dto.UnreadCountResponse;
 import com.notiflow.service.AccessControlService;
+import com.notiflow.service.AttachmentUploadService;
+import com.notiflow.service.EmailOpenBuffer;
 import com.notiflow.service.MessageService;
 import com.notiflow.util.CurrentUser;
 import jakarta.validation.Valid;
@@ -11,6 +17,7 @@ import org.springframework.beans.factory.annotation.Value;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.multipart.MultipartFile;
 
 import java.security.Principal;
 import java.util.Optional;
@@ -21,15 +28,21 @@ public class MessageController {
 
     private final MessageService messageService;
     private final AccessControlService accessControlService;
+    private final AttachmentUploadService attachmentUploadService;
+    private final EmailOpenBuffer emailOpenBuffer;
     private final String cronSecret;
 
     public MessageController(
             MessageService messageService,
             AccessControlService accessControlService,
+            AttachmentUploadService attachmentUploadService,
+            EmailOpenBuffer emailOpenBuffer,
             @Value("${app.cron.secret:}") String cronSecret
     ) {
         this.messageService = messageService;
         this.accessControlService = accessControlService;
+        this.attachmentUploadService = attachmentUploadService;
+        this.emailOpenBuffer = emailOpenBuffer;
         this.cronSecret = cronSecret;
     }
 
@@ -40,7 +53,8 @@ public class MessageController {
             @RequestParam(value = "pageSize", defaultValue = "20") int pageSize,
             @RequestParam(value = "q", required = false) String query,
             @RequestParam(value = "self", defaultValue = "false") boolean self,
-            @RequestParam(value = "studentId", required = false) String studentId
+            @RequestParam(value = "studentId", required = false) String studentId,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
         CurrentUser user = CurrentUser.fromContext()
                 .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
@@ -56,7 +70,8 @@ public class MessageController {
                     query,
                     page,
                     pageSize,
-                    null
+                    null,
+                    cursor
             ));
         }
         if ("student".equals(role) || "guardian".equals(role)) {
@@ -69,7 +84,8 @@ public class MessageController {
                     query,
                     page,
                     pageSize,
-                    studentId
+                    studentId,
+                    cursor
             ));
         }
         // Permite mensajes.list o mensajes.list.self (filtrando por remitente)
@@ -86,7 +102,19 @@ public class MessageController {
             recipientFilter = user.email();
         }
         boolean isGlobal = user.isGlobalAdmin() || user.isSuperAdmin();
-        return ResponseEntity.ok(messageService.list(user.schoolId(), isGlobal, year, senderFilter, recipientFilter, query, page, pageSize, null));
+        return ResponseEntity.ok(messageService.list(user.schoolId(), isGlobal, year, senderFilter, recipientFilter, query, page, pageSize, null, cursor));
+    }
+
+    @GetMapping("/unread-count")
+    public ResponseEntity<UnreadCountResponse> unreadCount(
+            @RequestParam(value = "studentId", required = false) String studentId
+    ) {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        if (user.email() == null || user.email().isBlank()) {
+            throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "Email requerido");
+        }
+        return ResponseEntity.ok(new UnreadCountResponse(messageService.unreadCount(user.email(), studentId)));
     }
 
     @PostMapping
@@ -102,6 +130,19 @@ public class MessageController {
         return ResponseEntity.ok(created);
     }
 
+    // Subida de adjuntos por separado: el mensaje luego solo lleva el uploadId
+    @PostMapping(value = "/attachments", consumes = org.springframework.http.MediaType.MULTIPART_FORM_DATA_VALUE)
+    public ResponseEntity<AttachmentUploadResponse> uploadAttachment(
+            @RequestParam("file") MultipartFile file,
+            @RequestParam(value = "schoolId", required = false) String schoolId
+    ) {
+        CurrentUser user = CurrentUser.fromContext()
+                .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+        String targetSchool = schoolId != null && !schoolId.isBlank() ? schoolId : user.schoolId();
+        accessControlService.check(user, "messages.create", targetSchool, Optional.empty());
+        return ResponseEntity.ok(attachmentUploadService.upload(targetSchool, file));
+    }
+
     @GetMapping("/{id}")
     public ResponseEntity<MessageDto> getOne(@PathVariable("id") String id) {
         CurrentUser user = CurrentUser.fromContext()
@@ -160,9 +201,10 @@ public class MessageController {
     }
 
     @PostMapping("/process-scheduled")
-    public ResponseEntity<java.util.Map<String, Integer>> processScheduled(
+    public ResponseEntity<ScheduledRunResponse> processScheduled(
             @RequestHeader(value = "X-Cron-Secret", required = false) String headerSecret,
-            @RequestParam(value = "cronKey", required = false) String paramSecret
+            @RequestParam(value = "cronKey", required = false) String paramSecret,
+            @RequestParam(value = "continuation", required = false) String continuation
     ) {
         boolean cronAllowed = cronSecret != null && !cronSecret.isBlank()
                 && ((headerSecret != null && headerSecret.equals(cronSecret)) || (paramSecret != null && paramSecret.equals(cronSecret)));
@@ -177,8 +219,43 @@ public class MessageController {
                 throw new org.springframework.web.server.ResponseStatusException(HttpStatus.FORBIDDEN, "Solo superadmin");
             }
         }
-        int processed = messageService.processScheduled();
-        return ResponseEntity.ok(java.util.Map.of("processed", processed));
+        return ResponseEntity.ok(messageService.processScheduled(continuation));
+    }
+
+    @PostMapping("/search-index/rebuild")
+    public ResponseEntity<ReindexResponse> rebuildSearchIndex(
+            @RequestHeader(value = "X-Cron-Secret", required = false) String headerSecret,
+            @RequestParam(value = "cronKey", required = false) String paramSecret,
+            @RequestParam(value = "continuation", required = false) String continuation
+    ) {
+        boolean cronAllowed = cronSecret != null && !cronSecret.isBlank()
+                && ((headerSecret != null && headerSecret.equals(cronSecret)) || (paramSecret != null && paramSecret.equals(cronSecret)));
+        if (!cronAllowed) {
+            CurrentUser user = CurrentUser.fromContext()
+                    .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+            if (!user.isSuperAdmin() && !user.isGlobalAdmin()) {
+                throw new org.springframework.web.server.ResponseStatusException(HttpStatus.FORBIDDEN, "Solo superadmin");
+            }
+        }
+        return ResponseEntity.ok(messageService.rebuildSearchIndex(continuation));
+    }
+
+    @PostMapping("/inbox/rebuild")
+    public ResponseEntity<ReindexResponse> rebuildInboxes(
+            @RequestHeader(value = "X-Cron-Secret", required = false) String headerSecret,
+            @RequestParam(value = "cronKey", required = false) String paramSecret,
+            @RequestParam(value = "continuation", required = false) String continuation
+    ) {
+        boolean cronAllowed = cronSecret != null && !cronSecret.isBlank()
+                && ((headerSecret != null && headerSecret.equals(cronSecret)) || (paramSecret != null && paramSecret.equals(cronSecret)));
+        if (!cronAllowed) {
+            CurrentUser user = CurrentUser.fromContext()
+                    .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
+            if (!user.isSuperAdmin() && !user.isGlobalAdmin()) {
+                throw new org.springframework.web.server.ResponseStatusException(HttpStatus.FORBIDDEN, "Solo superadmin");
+            }
+        }
+        return ResponseEntity.ok(messageService.rebuildInboxes(continuation));
     }
 
     // Tracking de apertura de correo: píxel 1x1, sin auth
@@ -188,7 +265,8 @@ public class MessageController {
             @RequestParam("recipient") String recipient,
             @RequestParam(value = "schoolId", required = false) String schoolId
     ) {
-        messageService.markEmailOpened(messageId, recipient, schoolId);
+        // se encola y se responde de inmediato; el buffer escribe las aperturas en lote
+        emailOpenBuffer.record(messageId, recipient, schoolId);
         // Píxel transparente 1x1
         byte[] pixel = new byte[]{
                 (byte) 0x89, 0x50, 0x4E, 0x47, 0x0D, 0x0A, 0x1A, 0x0A,
@@ -26,11 +26,12 @@ public class PhoneDirectoryController {
             @RequestParam(value = "year", required = false) String year,
             @RequestParam(value = "q", required = false) String query,
             @RequestParam(value = "page", defaultValue = "1") int page,
-            @RequestParam(value = "pageSize", defaultValue = "50") int pageSize
+            @RequestParam(value = "pageSize", defaultValue = "50") int pageSize,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
         CurrentUser user = CurrentUser.fromContext()
                 .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
-        PhoneDirectoryListResponse result = phoneDirectoryService.list(user, schoolId, year, query, page, pageSize);
+        PhoneDirectoryListResponse result = phoneDirectoryService.list(user, schoolId, year, query, page, pageSize, cursor);
         return ResponseEntity.ok(result);
     }
 }
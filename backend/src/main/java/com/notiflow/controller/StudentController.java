@@ -39,7 +39,8 @@ public class StudentController {
             @RequestParam(value = "year", required = false) String year,
             @RequestParam(value = "q", required = false) String query,
             @RequestParam(value = "page", defaultValue = "1") int page,
-            @RequestParam(value = "pageSize", defaultValue = "50") int pageSize
+            @RequestParam(value = "pageSize", defaultValue = "50") int pageSize,
+            @RequestParam(value = "cursor", required = false) String cursor
     ) {
         CurrentUser user = CurrentUser.fromContext()
                 .orElseThrow(() -> new org.springframework.web.server.ResponseStatusException(HttpStatus.UNAUTHORIZED));
@@ -48,7 +49,7 @@ public class StudentController {
         // Superadmin (schoolId=global) puede ver todos los colegios si no se especifica schoolId
         if ("global".equalsIgnoreCase(user.schoolId()) && (targetSchool == null || targetSchool.isBlank() || "global".equalsIgnoreCase(targetSchool))) {
             accessControlService.check(user, "students.list", "global", Optional.empty());
-            StudentListResponse data = studentService.listAll(year, query, page, pageSize);
+            StudentListResponse data = studentService.listAll(year, query, page, pageSize, cursor);
             return ResponseEntity.ok(data);
         }
 
@@ -59,7 +60,7 @@ public class StudentController {
             accessControlService.check(user, "students.create", targetSchool, Optional.empty());
         }
 
-        StudentListResponse data = studentService.list(targetSchool, year, query, page, pageSize);
+        StudentListResponse data = studentService.list(targetSchool, year, query, page, pageSize, cursor);
         return ResponseEntity.ok(data);
     }
 
@@ -1,10 +1,15 @@
 package com.notiflow.dto;
 
+/**
+ * Adjunto de un mensaje: en línea como {@code base64} o como {@code uploadId} devuelto por
+ * POST /messages/attachments.
+ */
 public record AttachmentRequest(
         String fileName,
         String mimeType,
         String base64,
         Boolean inline,
-        String cid
+        String cid,
+        String uploadId
 ) {
 }
@@ -0,0 +1,9 @@
+package com.notiflow.dto;
+
+public record AttachmentUploadResponse(
+        String uploadId,
+        String fileName,
+        String mimeType,
+        long sizeBytes
+) {
+}
@@ -0,0 +1,28 @@
+package com.notiflow.dto;
+
+import java.util.List;
+
+/**
+ * Audiencia como operación de conjuntos sobre grupos del colegio y año: unión de {@code groupIds},
+ * intersección con cada grupo de {@code intersectGroupIds} y resta de los miembros de
+ * {@code excludeGroupIds}. Después de expandir alumnos a sus correos se dejan solo los destinatarios
+ * de todos los {@code segments} pedidos: students, guardians, staff o app (con la App instalada).
+ */
+public record AudienceQuery(
+        List<String> groupIds,
+        List<String> excludeGroupIds,
+        List<String> intersectGroupIds,
+        List<String> segments
+) {
+
+    /**
+     * Sin restas, intersecciones ni segmentos equivale a mandar a los grupos completos.
+     */
+    public boolean isPlainUnion() {
+        return isEmpty(excludeGroupIds) && isEmpty(intersectGroupIds) && isEmpty(segments);
+    }
+
+    private static boolean isEmpty(List<String> values) {
+        return values == null || values.stream().allMatch(v -> v == null || v.isBlank());
+    }
+}
@@ -7,6 +7,7 @@ public record GroupListResponse(
         long total,
         int page,
         int pageSize,
-        boolean hasMore
+        boolean hasMore,
+        String nextCursor
 ) {
 }
@@ -14,6 +14,7 @@ public record MessageRequest(
         List<AttachmentRequest> attachments,
         List<String> groupIds,
         List<String> studentIds,
-        String scheduleAt
+        String scheduleAt,
+        AudienceQuery audience
 ) {
 }
@@ -0,0 +1,11 @@
+package com.notiflow.dto;
+
+/**
+ * Resultado de un tramo de reindexación. {@code continuation} es null al terminar; si no, se
+ * envía de vuelta en la siguiente llamada.
+ */
+public record ReindexResponse(
+        int updated,
+        String continuation
+) {
+}
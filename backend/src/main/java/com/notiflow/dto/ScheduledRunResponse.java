@@ -0,0 +1,11 @@
+package com.notiflow.dto;
+
+/**
+ * Resultado de una pasada del scheduler. {@code continuation} es null si no quedan programados
+ * vencidos; si no, se envía de vuelta en la siguiente llamada.
+ */
+public record ScheduledRunResponse(
+        int processed,
+        String continuation
+) {
+}
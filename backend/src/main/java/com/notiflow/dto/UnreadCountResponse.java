@@ -0,0 +1,9 @@
+package com.notiflow.dto;
+
+/**
+ * Mensajes sin leer del usuario, desde los contadores de su bandeja.
+ */
+public record UnreadCountResponse(
+        long unread
+) {
+}
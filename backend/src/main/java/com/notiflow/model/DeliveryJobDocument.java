@@ -0,0 +1,124 @@
+package com.notiflow.model;
+
+import java.time.Instant;
+
+/**
+ * Trabajo de envío persistido en tenants/{schoolId}/deliveryJobs/{messageId}.
+ * Cualquier instancia puede reclamarlo mientras el lease esté vencido.
+ */
+public class DeliveryJobDocument {
+
+    private String id;
+    private String messageId;
+    private String schoolId;
+    private DeliveryJobStatus status;
+    private Integer attempts;
+    // instancia que tiene el lease y hasta cuándo
+    private String leaseOwner;
+    private Instant leaseExpiresAt;
+    private Instant heartbeatAt;
+    private String lastError;
+    private Instant createdAt;
+    private Instant updatedAt;
+    // al cerrar (DONE/FAILED): la política TTL de Firestore borra el documento después de esta fecha
+    private Instant expireAt;
+
+    public DeliveryJobDocument() {
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    public void setId(String id) {
+        this.id = id;
+    }
+
+    public String getMessageId() {
+        return messageId;
+    }
+
+    public void setMessageId(String messageId) {
+        this.messageId = messageId;
+    }
+
+    public String getSchoolId() {
+        return schoolId;
+    }
+
+    public void setSchoolId(String schoolId) {
+        this.schoolId = schoolId;
+    }
+
+    public DeliveryJobStatus getStatus() {
+        return status;
+    }
+
+    public void setStatus(DeliveryJobStatus status) {
+        this.status = status;
+    }
+
+    public Integer getAttempts() {
+        return attempts;
+    }
+
+    public void setAttempts(Integer attempts) {
+        this.attempts = attempts;
+    }
+
+    public String getLeaseOwner() {
+        return leaseOwner;
+    }
+
+    public void setLeaseOwner(String leaseOwner) {
+        this.leaseOwner = leaseOwner;
+    }
+
+    public Instant getLeaseExpiresAt() {
+        return leaseExpiresAt;
+    }
+
+    public void setLeaseExpiresAt(Instant leaseExpiresAt) {
+        this.leaseExpiresAt = leaseExpiresAt;
+    }
+
+    public Instant getHeartbeatAt() {
+        return heartbeatAt;
+    }
+
+    public void setHeartbeatAt(Instant heartbeatAt) {
+        this.heartbeatAt = heartbeatAt;
+    }
+
+    public String getLastError() {
+        return lastError;
+    }
+
+    public void setLastError(String lastError) {
+        this.lastError = lastError;
+    }
+
+    public Instant getCreatedAt() {
+        return createdAt;
+    }
+
+    public void setCreatedAt(Instant createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    public Instant getUpdatedAt() {
+        return updatedAt;
+    }
+
+    public void setUpdatedAt(Instant updatedAt) {
+        this.updatedAt = updatedAt;
+    }
+
+    public Instant getExpireAt() {
+        return expireAt;
+    }
+
+    public void setExpireAt(Instant expireAt) {
+        this.expireAt = expireAt;
+    }
+}
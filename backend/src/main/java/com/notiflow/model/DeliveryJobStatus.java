@@ -0,0 +1,8 @@
+package com.notiflow.model;
+
+public enum DeliveryJobStatus {
+    PENDING,
+    RUNNING,
+    DONE,
+    FAILED
+}
@@ -14,6 +14,16 @@ public class GroupDocument {
     private Instant createdAt;
     private Boolean system;
     private String systemType;
+    // topic FCM del grupo; solo se asigna cuando todos los dispositivos de los miembros quedaron suscritos
+    private String pushTopic;
+    // solo grupos de sistema: miembros mantenidos por escritura; dirty pide reconstruirlos al listar
+    private Boolean membersDirty;
+    private Long membersVersion;
+    // cantidad de alumnos/usuarios que respaldan los miembros, para detectar desalineación contra un count()
+    private Long sourceCount;
+    // miembros en memberShards/{n} (ver GroupMemberStore); null si siguen en memberIds
+    private Integer memberShards;
+    private Long memberCount;
 
     public GroupDocument() {}
 
@@ -98,4 +108,52 @@ public class GroupDocument {
     public void setSystemType(String systemType) {
         this.systemType = systemType;
     }
+
+    public String getPushTopic() {
+        return pushTopic;
+    }
+
+    public void setPushTopic(String pushTopic) {
+        this.pushTopic = pushTopic;
+    }
+
+    public Boolean getMembersDirty() {
+        return membersDirty;
+    }
+
+    public void setMembersDirty(Boolean membersDirty) {
+        this.membersDirty = membersDirty;
+    }
+
+    public Long getMembersVersion() {
+        return membersVersion;
+    }
+
+    public void setMembersVersion(Long membersVersion) {
+        this.membersVersion = membersVersion;
+    }
+
+    public Long getSourceCount() {
+        return sourceCount;
+    }
+
+    public void setSourceCount(Long sourceCount) {
+        this.sourceCount = sourceCount;
+    }
+
+    public Integer getMemberShards() {
+        return memberShards;
+    }
+
+    public void setMemberShards(Integer memberShards) {
+        this.memberShards = memberShards;
+    }
+
+    public Long getMemberCount() {
+        return memberCount;
+    }
+
+    public void setMemberCount(Long memberCount) {
+        this.memberCount = memberCount;
+    }
 }
@@ -36,6 +36,19 @@ public class MessageDocument {
     private java.util.List<com.notiflow.dto.RecipientDetail> recipientsDetails;
     // indicador de mensaje masivo a toda la comunidad
     private Boolean broadcast;
+    // topics FCM de los grupos destino; si está presente el push se envía por topic y no por token
+    private List<String> pushTopics;
+    private Instant pushTopicsSentAt;
+    // contadores mantenidos con FieldValue.increment; el estado agregado se deriva de ellos
+    private Integer recipientCount;
+    private Long emailReadCount;
+    private Long appReadCount;
+    // tokens y prefijos normalizados para la búsqueda (array-contains); ver SearchUtils.indexTokens
+    private List<String> searchTokens;
+    // true si searchTokens no alcanzó a cubrir todo el mensaje; la búsqueda entonces recorre
+    private Boolean searchTokensTruncated;
+    // true cuando ya se escribieron las entradas de bandeja de todos los destinatarios (InboxStore)
+    private Boolean inboxed;
 
     public MessageDocument() {
     }
@@ -247,4 +260,68 @@ public class MessageDocument {
     public void setBroadcast(Boolean broadcast) {
         this.broadcast = broadcast;
     }
+
+    public List<String> getPushTopics() {
+        return pushTopics;
+    }
+
+    public void setPushTopics(List<String> pushTopics) {
+        this.pushTopics = pushTopics;
+    }
+
+    public Instant getPushTopicsSentAt() {
+        return pushTopicsSentAt;
+    }
+
+    public void setPushTopicsSentAt(Instant pushTopicsSentAt) {
+        this.pushTopicsSentAt = pushTopicsSentAt;
+    }
+
+    public Integer getRecipientCount() {
+        return recipientCount;
+    }
+
+    public void setRecipientCount(Integer recipientCount) {
+        this.recipientCount = recipientCount;
+    }
+
+    public Long getEmailReadCount() {
+        return emailReadCount;
+    }
+
+    public void setEmailReadCount(Long emailReadCount) {
+        this.emailReadCount = emailReadCount;
+    }
+
+    public Long getAppReadCount() {
+        return appReadCount;
+    }
+
+    public void setAppReadCount(Long appReadCount) {
+        this.appReadCount = appReadCount;
+    }
+
+    public List<String> getSearchTokens() {
+        return searchTokens;
+    }
+
+    public void setSearchTokens(List<String> searchTokens) {
+        this.searchTokens = searchTokens;
+    }
+
+    public Boolean getSearchTokensTruncated() {
+        return searchTokensTruncated;
+    }
+
+    public void setSearchTokensTruncated(Boolean searchTokensTruncated) {
+        this.searchTokensTruncated = searchTokensTruncated;
+    }
+
+    public Boolean getInboxed() {
+        return inboxed;
+    }
+
+    public void setInboxed(Boolean inboxed) {
+        this.inboxed = inboxed;
+    }
 }
@@ -3,6 +3,8 @@ package com.notiflow.model;
 public enum MessageStatus {
     DRAFT,
     SCHEDULED,
+    // programado ya reclamado por el scheduler y entregado al outbox de envíos
+    DISPATCHING,
     SENT,
     FAILED,
     PENDING,
@@ -21,6 +21,8 @@ public class StudentDocument {
     private String guardianLastName;
     private List<com.notiflow.dto.GuardianContact> guardians;
     private List<String> guardianEmails;
+    // campos de búsqueda ya normalizados; null en documentos anteriores (se normaliza al vuelo)
+    private String searchText;
     private Instant createdAt;
     private Instant updatedAt;
 
@@ -61,6 +63,8 @@ public class StudentDocument {
     public void setGuardians(List<com.notiflow.dto.GuardianContact> guardians) { this.guardians = guardians; }
     public List<String> getGuardianEmails() { return guardianEmails; }
     public void setGuardianEmails(List<String> guardianEmails) { this.guardianEmails = guardianEmails; }
+    public String getSearchText() { return searchText; }
+    public void setSearchText(String searchText) { this.searchText = searchText; }
     public Instant getCreatedAt() { return createdAt; }
     public void setCreatedAt(Instant createdAt) { this.createdAt = createdAt; }
     public Instant getUpdatedAt() { return updatedAt; }
@@ -0,0 +1,146 @@
+package com.notiflow.service;
+
+import com.google.cloud.WriteChannel;
+import com.google.cloud.storage.Blob;
+import com.google.cloud.storage.BlobId;
+import com.google.cloud.storage.BlobInfo;
+import com.google.cloud.storage.Storage;
+import com.notiflow.dto.AttachmentRequest;
+import com.notiflow.dto.AttachmentUploadResponse;
+import com.notiflow.model.AttachmentMetadata;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.multipart.MultipartFile;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subida de adjuntos fuera del JSON del mensaje: el archivo se copia por bloques desde la request
+ * a GCS y el cliente recibe un {@code uploadId} que luego referencia en {@link AttachmentRequest}.
+ */
+@Service
+public class AttachmentUploadService {
+
+    static final long MAX_ATTACHMENT_BYTES = 10L * 1024 * 1024; // 10MB
+    private static final int CHUNK_BYTES = 256 * 1024;
+    private static final String UPLOADS_PREFIX = "uploads/";
+    private static final Logger log = LoggerFactory.getLogger(AttachmentUploadService.class);
+
+    private final Storage storage;
+    private final String bucketName;
+
+    public AttachmentUploadService(Storage storage, @Value("${ATTACHMENTS_BUCKET:}") String bucketName) {
+        this.storage = storage;
+        this.bucketName = bucketName;
+    }
+
+    public boolean isEnabled() {
+        return bucketName != null && !bucketName.isBlank();
+    }
+
+    public AttachmentUploadResponse upload(String schoolId, MultipartFile file) {
+        if (!isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Bucket de adjuntos no configurado");
+        }
+        if (file == null || file.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "El adjunto no contiene datos");
+        }
+        if (file.getSize() > MAX_ATTACHMENT_BYTES) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto excede el límite de 10MB: " + file.getOriginalFilename());
+        }
+        String fileName = file.getOriginalFilename() != null && !file.getOriginalFilename().isBlank()
+                ? file.getOriginalFilename()
+                : "adjunto";
+        String mimeType = file.getContentType() != null ? file.getContentType() : "application/octet-stream";
+        String cleanName = fileName.replaceAll("[^a-zA-Z0-9._-]", "_");
+        String objectName = UPLOADS_PREFIX + tenant(schoolId) + "/" + UUID.randomUUID() + "/" + cleanName;
+        BlobInfo blobInfo = BlobInfo.newBuilder(BlobId.of(bucketName, objectName))
+                .setContentType(mimeType)
+                .build();
+
+        long written = 0;
+        boolean completed = false;
+        try (InputStream in = file.getInputStream(); WriteChannel writer = storage.writer(blobInfo)) {
+            writer.setChunkSize(CHUNK_BYTES);
+            byte[] buffer = new byte[CHUNK_BYTES];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                written += read;
+                // el tamaño declarado puede mentir; se corta al pasar el límite real
+                if (written > MAX_ATTACHMENT_BYTES) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto excede el límite de 10MB: " + fileName);
+                }
+                ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, read);
+                while (chunk.hasRemaining()) {
+                    writer.write(chunk);
+                }
+            }
+            completed = true;
+        } catch (IOException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_GATEWAY, "No se pudo subir el adjunto", e);
+        } finally {
+            if (!completed) {
+                deleteQuietly(objectName);
+            }
+        }
+        return new AttachmentUploadResponse(objectName, fileName, mimeType, written);
+    }
+
+    /**
+     * Convierte un adjunto subido previamente en la metadata del mensaje. Solo acepta uploads del
+     * mismo colegio, así un id ajeno no sirve para adjuntar archivos de otro tenant.
+     */
+    public AttachmentMetadata resolve(AttachmentRequest request, String schoolId) {
+        if (!isEnabled()) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Bucket de adjuntos no configurado");
+        }
+        String uploadId = request.uploadId().trim();
+        if (!uploadId.startsWith(UPLOADS_PREFIX + tenant(schoolId) + "/") || uploadId.contains("..")) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto inválido: " + request.fileName());
+        }
+        Blob blob = storage.get(BlobId.of(bucketName, uploadId));
+        if (blob == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto no encontrado: " + request.fileName());
+        }
+        long size = blob.getSize() != null ? blob.getSize() : 0L;
+        if (size > MAX_ATTACHMENT_BYTES) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Adjunto excede el límite de 10MB: " + request.fileName());
+        }
+        String fileName = request.fileName() != null && !request.fileName().isBlank()
+                ? request.fileName()
+                : uploadId.substring(uploadId.lastIndexOf('/') + 1);
+        String mimeType = request.mimeType() != null
+                ? request.mimeType()
+                : (blob.getContentType() != null ? blob.getContentType() : "application/octet-stream");
+        java.net.URL signed = storage.signUrl(BlobInfo.newBuilder(bucketName, uploadId).build(), 60, TimeUnit.DAYS);
+        return new AttachmentMetadata(
+                fileName,
+                mimeType,
+                size,
+                signed != null ? signed.toString() : null,
+                request.inline(),
+                request.cid(),
+                uploadId
+        );
+    }
+
+    private void deleteQuietly(String objectName) {
+        try {
+            storage.delete(BlobId.of(bucketName, objectName));
+        } catch (Exception e) {
+            log.warn("No se pudo eliminar upload incompleto {}: {}", objectName, e.getMessage());
+        }
+    }
+
+    private static String tenant(String schoolId) {
+        return schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+    }
+}
@@ -0,0 +1,324 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.notiflow.dto.AudienceQuery;
+import com.notiflow.model.GroupDocument;
+import com.notiflow.model.StudentDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Service;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Motor de audiencias por colegio y año. Cada alumno (por id) y cada correo de la foto de
+ * {@link RecipientRoster} recibe un ordinal denso y cada grupo queda como un BitSet de esos
+ * ordinales, así uniones, restas ("todo 3° menos el 3°B") e intersecciones ("apoderados con la App")
+ * son operaciones de bits en vez de búsquedas en listas. Solo se leen los grupos pedidos, por
+ * referencia y de cualquier año; quedan en el índice hasta que se escribe un grupo del colegio. La foto
+ * de alumnos y usuarios ya se mantiene con sus escrituras.
+ */
+@Service
+public class AudienceIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(AudienceIndex.class);
+
+    public static final String SEGMENT_STUDENTS = "students";
+    public static final String SEGMENT_GUARDIANS = "guardians";
+    public static final String SEGMENT_STAFF = "staff";
+    public static final String SEGMENT_APP = "app";
+
+    private record Key(String schoolId, String year) {}
+
+    /**
+     * Correos destinatarios y alumnos (por id) alcanzados por la audiencia.
+     */
+    public record Result(List<String> recipients, List<String> studentIds) {}
+
+    private final Firestore firestore;
+    private final GroupMemberStore groupMemberStore;
+    private final RecipientRoster recipientRoster;
+    private final StudentService studentService;
+    private final DeviceTokenService deviceTokenService;
+    private final long ttlMs;
+    private final Map<Key, Index> indexes = new ConcurrentHashMap<>();
+
+    public AudienceIndex(
+            Firestore firestore,
+            GroupMemberStore groupMemberStore,
+            RecipientRoster recipientRoster,
+            StudentService studentService,
+            DeviceTokenService deviceTokenService,
+            @Value("${app.roster.ttl-minutes:10}") long ttlMinutes
+    ) {
+        this.firestore = firestore;
+        this.groupMemberStore = groupMemberStore;
+        this.recipientRoster = recipientRoster;
+        this.studentService = studentService;
+        this.deviceTokenService = deviceTokenService;
+        this.ttlMs = Duration.ofMinutes(Math.max(1, ttlMinutes)).toMillis();
+    }
+
+    public Result resolve(String schoolId, String year, AudienceQuery query) throws InterruptedException, ExecutionException {
+        String tenant = schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+        Index index = index(tenant, year == null ? "" : year.trim());
+        Set<String> requested = new LinkedHashSet<>(values(query.groupIds()));
+        requested.addAll(values(query.intersectGroupIds()));
+        requested.addAll(values(query.excludeGroupIds()));
+        loadGroups(index, tenant, requested);
+
+        BitSet members = new BitSet();
+        for (String gid : values(query.groupIds())) {
+            members.or(index.group(gid));
+        }
+        for (String gid : values(query.intersectGroupIds())) {
+            members.and(index.group(gid));
+        }
+        // la resta va por miembro, antes de expandir: un apoderado con otro hijo incluido sigue en la audiencia
+        for (String gid : values(query.excludeGroupIds())) {
+            members.andNot(index.group(gid));
+        }
+
+        BitSet recipients = index.expand(members);
+        boolean appOnly = false;
+        for (String segment : values(query.segments())) {
+            String normalized = segment.toLowerCase();
+            if (SEGMENT_APP.equals(normalized)) {
+                appOnly = true;
+                continue;
+            }
+            recipients.and(index.segment(normalized));
+        }
+
+        List<String> emails = index.keys(recipients);
+        if (appOnly && !emails.isEmpty()) {
+            // instalada = con al menos un token registrado; se consulta solo para los que quedaron
+            Map<String, List<String>> tokens = deviceTokenService.tokensByRecipient(emails, tenant);
+            emails = emails.stream().filter(tokens::containsKey).toList();
+        }
+        return new Result(emails, index.keys(index.students(members)));
+    }
+
+    /**
+     * Descarta los índices del colegio; se llama en cada escritura de grupos.
+     */
+    public void invalidate(String schoolId) {
+        String tenant = schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+        indexes.keySet().removeIf(key -> key.schoolId().equals(tenant));
+    }
+
+    private Index index(String tenant, String year) throws InterruptedException, ExecutionException {
+        RecipientRoster.Snapshot roster = recipientRoster.snapshot(tenant, year);
+        Key key = new Key(tenant, year);
+        Index current = indexes.get(key);
+        // la foto se reutiliza mientras no cambien alumnos ni usuarios: misma instancia, mismo índice
+        if (current != null && current.roster == roster && System.currentTimeMillis() - current.loadedAt < ttlMs) {
+            return current;
+        }
+        Index built = new Index(roster);
+        indexes.put(key, built);
+        return built;
+    }
+
+    /**
+     * Lee con un getAll los grupos pedidos que el índice aún no tiene. No se filtra por año: un grupo
+     * de otro año (o sin año) es tan válido como en el envío sin operaciones de conjuntos.
+     */
+    private void loadGroups(Index index, String tenant, Set<String> groupIds) throws InterruptedException, ExecutionException {
+        List<String> missing = groupIds.stream().filter(gid -> !index.hasGroup(gid)).toList();
+        if (missing.isEmpty()) return;
+        DocumentReference[] refs = missing.stream()
+                .map(gid -> firestore.collection("tenants").document(tenant).collection("groups").document(gid))
+                .toArray(DocumentReference[]::new);
+        Map<DocumentReference, GroupDocument> groups = new LinkedHashMap<>();
+        for (DocumentSnapshot doc : firestore.getAll(refs).get()) {
+            if (!doc.exists()) continue;
+            GroupDocument g = doc.toObject(GroupDocument.class);
+            if (g == null) continue;
+            g.setId(doc.getId());
+            groups.put(doc.getReference(), g);
+        }
+        if (groups.isEmpty()) return;
+        Map<String, List<String>> members = groupMemberStore.loadAll(groups);
+        Map<String, List<String>> byGroup = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (Map.Entry<DocumentReference, GroupDocument> entry : groups.entrySet()) {
+            List<String> groupMembers = members.getOrDefault(entry.getKey().getPath(), List.of());
+            byGroup.put(entry.getValue().getId(), groupMembers);
+            for (String member : groupMembers) {
+                if (member == null || member.isBlank() || member.contains("@")) continue;
+                if (index.roster.recipientsOf(member.trim()) == null) unknown.add(member.trim());
+            }
+        }
+        // alumnos que no están en la foto del año (grupos de otro año): se leen en una sola pasada
+        Map<String, StudentDocument> students = unknown.isEmpty() ? Map.of() : studentService.findByIds(unknown);
+        index.addGroups(byGroup, students);
+        log.debug("Índice de audiencias {}: {} grupos leídos, {} alumnos fuera de la foto", tenant, byGroup.size(), students.size());
+    }
+
+    private static List<String> values(List<String> values) {
+        if (values == null) return List.of();
+        List<String> result = new ArrayList<>();
+        for (String value : values) {
+            if (value != null && !value.isBlank()) {
+                result.add(value.trim());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Los grupos se agregan a medida que se piden; los ordinales solo crecen, así que un BitSet ya
+     * entregado sigue siendo válido. Todo acceso va sincronizado y los BitSet se clonan antes de operar.
+     */
+    private static final class Index {
+        private final RecipientRoster.Snapshot roster;
+        private final long loadedAt = System.currentTimeMillis();
+        private final Map<String, Integer> ordinals = new HashMap<>();
+        private final List<String> keys = new ArrayList<>();
+        // por ordinal de alumno, los ordinales de sus correos; null para correos
+        private final List<int[]> expansions = new ArrayList<>();
+        private final Map<String, BitSet> groups = new HashMap<>();
+        private final BitSet studentIds = new BitSet();
+        private final Map<String, BitSet> segments = new HashMap<>();
+
+        private Index(RecipientRoster.Snapshot roster) {
+            this.roster = roster;
+            for (String segment : List.of(SEGMENT_STUDENTS, SEGMENT_GUARDIANS, SEGMENT_STAFF)) {
+                segments.put(segment, new BitSet());
+            }
+        }
+
+        synchronized boolean hasGroup(String groupId) {
+            return groups.containsKey(groupId);
+        }
+
+        synchronized void addGroups(Map<String, List<String>> membersByGroup, Map<String, StudentDocument> students) {
+            for (Map.Entry<String, List<String>> entry : membersByGroup.entrySet()) {
+                BitSet bits = new BitSet();
+                for (String member : entry.getValue()) {
+                    int ordinal = member(member, students);
+                    if (ordinal >= 0) bits.set(ordinal);
+                }
+                groups.put(entry.getKey(), bits);
+            }
+        }
+
+        private int member(String raw, Map<String, StudentDocument> students) {
+            if (raw == null || raw.isBlank()) return -1;
+            String value = raw.trim();
+            if (value.contains("@")) return email(value.toLowerCase());
+            Integer known = ordinals.get(value);
+            if (known != null) return known;
+            List<String> recipients = roster.recipientsOf(value);
+            int[] expansion;
+            if (recipients != null) {
+                expansion = new int[recipients.size()];
+                for (int i = 0; i < expansion.length; i++) {
+                    expansion[i] = email(recipients.get(i));
+                }
+            } else {
+                // fuera de la foto: sus correos salen del documento; un id que no existe no es audiencia
+                StudentDocument student = students.get(value);
+                if (student == null) return -1;
+                List<Integer> ordinalsOf = new ArrayList<>();
+                if (student.getEmail() != null && !student.getEmail().isBlank()) {
+                    int ordinal = email(student.getEmail().trim().toLowerCase());
+                    segments.get(SEGMENT_STUDENTS).set(ordinal);
+                    ordinalsOf.add(ordinal);
+                }
+                for (String guardian : StudentService.guardianEmails(student)) {
+                    int ordinal = email(guardian);
+                    segments.get(SEGMENT_GUARDIANS).set(ordinal);
+                    ordinalsOf.add(ordinal);
+                }
+                expansion = ordinalsOf.stream().mapToInt(Integer::intValue).toArray();
+            }
+            int ordinal = add(value, expansion);
+            studentIds.set(ordinal);
+            return ordinal;
+        }
+
+        private int email(String email) {
+            Integer known = ordinals.get(email);
+            if (known != null) return known;
+            int ordinal = add(email, null);
+            if (roster.isStudent(email)) segments.get(SEGMENT_STUDENTS).set(ordinal);
+            if (roster.isGuardian(email)) segments.get(SEGMENT_GUARDIANS).set(ordinal);
+            if (roster.isStaff(email)) segments.get(SEGMENT_STAFF).set(ordinal);
+            return ordinal;
+        }
+
+        private int add(String key, int[] expansion) {
+            int ordinal = keys.size();
+            keys.add(key);
+            expansions.add(expansion);
+            ordinals.put(key, ordinal);
+            return ordinal;
+        }
+
+        synchronized BitSet group(String groupId) {
+            BitSet bits = groups.get(groupId);
+            if (bits == null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Grupo no encontrado para la audiencia: " + groupId);
+            }
+            return bits;
+        }
+
+        synchronized BitSet segment(String segment) {
+            BitSet bits = segments.get(segment);
+            if (bits == null) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Segmento de audiencia desconocido: " + segment);
+            }
+            // los segmentos crecen al agregar grupos: se entrega una copia
+            return (BitSet) bits.clone();
+        }
+
+        synchronized BitSet students(BitSet members) {
+            BitSet students = (BitSet) members.clone();
+            students.and(studentIds);
+            return students;
+        }
+
+        /**
+         * Cambia cada alumno por sus correos; los correos quedan tal cual.
+         */
+        synchronized BitSet expand(BitSet members) {
+            BitSet recipients = new BitSet(keys.size());
+            for (int i = members.nextSetBit(0); i >= 0; i = members.nextSetBit(i + 1)) {
+                int[] expansion = expansions.get(i);
+                if (expansion == null) {
+                    recipients.set(i);
+                    continue;
+                }
+                for (int ordinal : expansion) {
+                    recipients.set(ordinal);
+                }
+            }
+            return recipients;
+        }
+
+        synchronized List<String> keys(BitSet bits) {
+            List<String> result = new ArrayList<>(bits.cardinality());
+            for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+                result.add(keys.get(i));
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package com.notiflow.service;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.Transaction;
+import com.notiflow.model.DeliveryJobDocument;
+import com.notiflow.model.DeliveryJobStatus;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Outbox persistente de envíos. Los trabajos viven en tenants/{schoolId}/deliveryJobs
+ * y se reclaman con un lease; si la instancia dueña muere, el lease vence y otra lo retoma.
+ * Los cerrados quedan con expireAt para la política TTL de Firestore sobre deliveryJobs.
+ */
+@Service
+public class DeliveryJobStore {
+
+    private static final Logger log = LoggerFactory.getLogger(DeliveryJobStore.class);
+    private final Firestore firestore;
+    private final Duration retention;
+
+    public DeliveryJobStore(
+            Firestore firestore,
+            @Value("${app.messages.delivery-job-retention-days:7}") long retentionDays
+    ) {
+        this.firestore = firestore;
+        this.retention = Duration.ofDays(Math.max(1, retentionDays));
+    }
+
+    /**
+     * Crea el trabajo ya reclamado por {@code owner}, para que la instancia que recibe el mensaje
+     * lo procese sin una segunda escritura.
+     */
+    public DeliveryJobDocument enqueueClaimed(String messageId, String schoolId, String owner, Duration lease) {
+        DeliveryJobDocument job = claimedJob(messageId, schoolId, owner, lease);
+        try {
+            jobRef(job.getSchoolId(), messageId).set(job).get();
+            return job;
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("No se pudo encolar envío de mensaje", e);
+        }
+    }
+
+    /**
+     * Igual que {@link #enqueueClaimed(String, String, String, Duration)} pero dentro de una
+     * transacción, para que el cambio de estado del mensaje y el trabajo se escriban juntos.
+     */
+    public DeliveryJobDocument enqueueClaimed(Transaction tx, String messageId, String schoolId, String owner, Duration lease) {
+        DeliveryJobDocument job = claimedJob(messageId, schoolId, owner, lease);
+        tx.set(jobRef(job.getSchoolId(), messageId), job);
+        return job;
+    }
+
+    private DeliveryJobDocument claimedJob(String messageId, String schoolId, String owner, Duration lease) {
+        Instant now = Instant.now();
+        DeliveryJobDocument job = new DeliveryJobDocument();
+        job.setId(messageId);
+        job.setMessageId(messageId);
+        job.setSchoolId(safeTenant(schoolId));
+        job.setStatus(DeliveryJobStatus.RUNNING);
+        job.setAttempts(1);
+        job.setLeaseOwner(owner);
+        job.setLeaseExpiresAt(now.plus(lease));
+        job.setHeartbeatAt(now);
+        job.setCreatedAt(now);
+        job.setUpdatedAt(now);
+        return job;
+    }
+
+    /**
+     * Trabajos abiertos cuyo lease ya venció (PENDING nuevos o RUNNING de instancias caídas).
+     */
+    public List<DeliveryJobDocument> findClaimable(int limit) {
+        if (limit <= 0) return List.of();
+        try {
+            Instant now = Instant.now();
+            List<QueryDocumentSnapshot> docs = firestore.collectionGroup("deliveryJobs")
+                    .whereIn("status", List.of(DeliveryJobStatus.PENDING, DeliveryJobStatus.RUNNING))
+                    .whereLessThanOrEqualTo("leaseExpiresAt", Timestamp.ofTimeSecondsAndNanos(now.getEpochSecond(), now.getNano()))
+                    .limit(limit)
+                    .get()
+                    .get()
+                    .getDocuments();
+            List<DeliveryJobDocument> result = new ArrayList<>();
+            for (QueryDocumentSnapshot doc : docs) {
+                DeliveryJobDocument job = doc.toObject(DeliveryJobDocument.class);
+                if (job == null) continue;
+                job.setId(doc.getId());
+                result.add(job);
+            }
+            return result;
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("No se pudieron consultar trabajos de envío: {}", e.getMessage());
+            return List.of();
+        }
+    }
+
+    /**
+     * Reclama el trabajo en una transacción; solo gana una instancia por lease vencido.
+     */
+    public Optional<DeliveryJobDocument> claim(DeliveryJobDocument candidate, String owner, Duration lease) {
+        DocumentReference ref = jobRef(candidate.getSchoolId(), candidate.getId());
+        try {
+            DeliveryJobDocument claimed = firestore.runTransaction(tx -> {
+                DocumentSnapshot snap = tx.get(ref).get();
+                DeliveryJobDocument job = snap.exists() ? snap.toObject(DeliveryJobDocument.class) : null;
+                if (job == null) return null;
+                Instant now = Instant.now();
+                boolean open = job.getStatus() == DeliveryJobStatus.PENDING || job.getStatus() == DeliveryJobStatus.RUNNING;
+                boolean leaseFree = job.getLeaseExpiresAt() == null || !job.getLeaseExpiresAt().isAfter(now);
+                if (!open || !leaseFree) return null;
+                job.setId(snap.getId());
+                job.setStatus(DeliveryJobStatus.RUNNING);
+                job.setAttempts(job.getAttempts() == null ? 1 : job.getAttempts() + 1);
+                job.setLeaseOwner(owner);
+                job.setLeaseExpiresAt(now.plus(lease));
+                job.setHeartbeatAt(now);
+                job.setUpdatedAt(now);
+                tx.set(ref, job);
+                return job;
+            }).get();
+            return Optional.ofNullable(claimed);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("No se pudo reclamar trabajo de envío {}: {}", candidate.getId(), e.getMessage());
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * Extiende el lease si seguimos siendo dueños. Devuelve false si otra instancia lo tomó.
+     */
+    public boolean heartbeat(DeliveryJobDocument job, String owner, Duration lease) {
+        return mutateIfOwner(job, owner, current -> {
+            Instant now = Instant.now();
+            current.setLeaseExpiresAt(now.plus(lease));
+            current.setHeartbeatAt(now);
+            current.setUpdatedAt(now);
+        });
+    }
+
+    public void complete(DeliveryJobDocument job, String owner) {
+        mutateIfOwner(job, owner, current -> {
+            Instant now = Instant.now();
+            current.setStatus(DeliveryJobStatus.DONE);
+            current.setLeaseExpiresAt(null);
+            current.setUpdatedAt(now);
+            current.setExpireAt(now.plus(retention));
+        });
+    }
+
+    /**
+     * Devuelve el trabajo a la cola (sin consumir intento) para que otro worker lo tome.
+     */
+    public void release(DeliveryJobDocument job, String owner) {
+        mutateIfOwner(job, owner, current -> {
+            Instant now = Instant.now();
+            current.setStatus(DeliveryJobStatus.PENDING);
+            current.setAttempts(Math.max(0, (current.getAttempts() == null ? 1 : current.getAttempts()) - 1));
+            current.setLeaseOwner(null);
+            current.setLeaseExpiresAt(now);
+            current.setUpdatedAt(now);
+        });
+    }
+
+    /**
+     * Registra un intento fallido. Reintenta con backoff hasta {@code maxAttempts}; devuelve true
+     * si el trabajo quedó definitivamente en FAILED.
+     */
+    public boolean fail(DeliveryJobDocument job, String owner, String error, int maxAttempts) {
+        boolean[] exhausted = {false};
+        mutateIfOwner(job, owner, current -> {
+            Instant now = Instant.now();
+            int attempts = current.getAttempts() == null ? 1 : current.getAttempts();
+            current.setLastError(error);
+            current.setLeaseOwner(null);
+            current.setUpdatedAt(now);
+            if (attempts >= maxAttempts) {
+                current.setStatus(DeliveryJobStatus.FAILED);
+                current.setLeaseExpiresAt(null);
+                current.setExpireAt(now.plus(retention));
+                exhausted[0] = true;
+            } else {
+                current.setStatus(DeliveryJobStatus.PENDING);
+                current.setLeaseExpiresAt(now.plusSeconds(30L * attempts));
+            }
+        });
+        return exhausted[0];
+    }
+
+    private boolean mutateIfOwner(DeliveryJobDocument job, String owner, java.util.function.Consumer<DeliveryJobDocument> mutation) {
+        DocumentReference ref = jobRef(job.getSchoolId(), job.getId());
+        try {
+            Boolean applied = firestore.runTransaction(tx -> {
+                DocumentSnapshot snap = tx.get(ref).get();
+                DeliveryJobDocument current = snap.exists() ? snap.toObject(DeliveryJobDocument.class) : null;
+                if (current == null || owner == null || !owner.equals(current.getLeaseOwner())) {
+                    return false;
+                }
+                current.setId(snap.getId());
+                mutation.accept(current);
+                tx.set(ref, current);
+                return true;
+            }).get();
+            return Boolean.TRUE.equals(applied);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("No se pudo actualizar trabajo de envío {}: {}", job.getId(), e.getMessage());
+            return false;
+        }
+    }
+
+    private DocumentReference jobRef(String schoolId, String jobId) {
+        return firestore.collection("tenants").document(safeTenant(schoolId)).collection("deliveryJobs").document(jobId);
+    }
+
+    private String safeTenant(String tenantId) {
+        return tenantId == null || tenantId.isBlank() ? "global" : tenantId;
+    }
+}
@@ -1,15 +1,29 @@
 package com.notiflow.service;
 
 import com.google.api.core.ApiFuture;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
 import com.notiflow.model.DeviceToken;
+import com.notiflow.util.BatchLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -17,10 +31,20 @@ import java.util.stream.Collectors;
 
 @Service
 public class DeviceTokenService {
+    private static final Logger log = LoggerFactory.getLogger(DeviceTokenService.class);
+    private static final int SWEEP_PAGE_SIZE = 500;
     private final Firestore firestore;
+    private final PushTopicService pushTopicService;
+    private final Duration staleAfter;
 
-    public DeviceTokenService(Firestore firestore) {
+    public DeviceTokenService(
+            Firestore firestore,
+            @Lazy PushTopicService pushTopicService,
+            @Value("${app.fcm.token-stale-days:90}") long staleDays
+    ) {
         this.firestore = firestore;
+        this.pushTopicService = pushTopicService;
+        this.staleAfter = Duration.ofDays(Math.max(1, staleDays));
     }
 
     public void register(String email, String token, String platform, String schoolId) {
@@ -33,7 +57,9 @@ public class DeviceTokenService {
             ApiFuture<QuerySnapshot> existing = firestore.collectionGroup("deviceTokens")
                     .whereEqualTo("token", token)
                     .get();
+            List<DeviceToken> previous = new ArrayList<>();
             for (QueryDocumentSnapshot doc : existing.get().getDocuments()) {
+                previous.add(doc.toObject(DeviceToken.class));
                 doc.getReference().delete();
             }
             DeviceToken dt = new DeviceToken(
@@ -45,6 +71,9 @@ public class DeviceTokenService {
                     tenant
             );
             tenantDeviceTokens(tenant).document(dt.getId()).set(dt);
+            // el dispositivo puede venir de otra cuenta: se sale de los topics anteriores y entra a los nuevos
+            pushTopicService.onTokensRemoved(previous);
+            pushTopicService.onTokenRegistered(dt.getEmail(), token, tenant);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("No se pudo registrar token de dispositivo", e);
@@ -57,43 +86,47 @@ public class DeviceTokenService {
             ApiFuture<QuerySnapshot> existing = firestore.collectionGroup("deviceTokens")
                     .whereEqualTo("token", token)
                     .get();
+            List<DeviceToken> removed = new ArrayList<>();
             for (QueryDocumentSnapshot doc : existing.get().getDocuments()) {
+                removed.add(doc.toObject(DeviceToken.class));
                 doc.getReference().delete();
             }
+            pushTopicService.onTokensRemoved(removed);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("No se pudo eliminar token", e);
         }
     }
 
-    public List<String> tokensForRecipients(List<String> recipients, String schoolId) {
+    /**
+     * Tokens agrupados por correo (normalizado) del destinatario, para registrar el resultado por persona.
+     */
+    public Map<String, List<String>> tokensByRecipient(List<String> recipients, String schoolId) {
         try {
-            if (recipients == null || recipients.isEmpty()) return List.of();
+            if (recipients == null || recipients.isEmpty()) return Map.of();
             List<String> emails = recipients.stream()
                     .filter(e -> e != null && !e.isBlank())
                     .map(String::trim)
                     .map(String::toLowerCase)
                     .distinct()
                     .toList();
-            if (emails.isEmpty()) return List.of();
+            if (emails.isEmpty()) return Map.of();
 
-            final int inBatchSize = 30; // Firestore IN max comparison values
-            Set<String> tokens = new HashSet<>();
-            for (int i = 0; i < emails.size(); i += inBatchSize) {
-                List<String> batch = emails.subList(i, Math.min(i + inBatchSize, emails.size()));
-                com.google.cloud.firestore.Query base = firestore.collectionGroup("deviceTokens")
-                        .whereIn("email", batch);
-                if (schoolId != null && !schoolId.isBlank()) {
-                    base = base.whereEqualTo("schoolId", schoolId);
-                }
-                ApiFuture<QuerySnapshot> snap = base.get();
-                for (QueryDocumentSnapshot doc : snap.get().getDocuments()) {
+            com.google.cloud.firestore.Query base = firestore.collectionGroup("deviceTokens");
+            if (schoolId != null && !schoolId.isBlank()) {
+                base = base.whereEqualTo("schoolId", schoolId);
+            }
+            // lotes de 30 correos (límite de IN) lanzados en paralelo
+            Map<String, Set<String>> tokens = new HashMap<>();
+            for (List<QueryDocumentSnapshot> docs : BatchLoader.whereIn(base, "email").loadAll(emails).values()) {
+                for (QueryDocumentSnapshot doc : docs) {
                     DeviceToken dt = doc.toObject(DeviceToken.class);
-                    if (dt == null || dt.getToken() == null || dt.getToken().isBlank()) continue;
-                    tokens.add(dt.getToken());
+                    if (dt == null || dt.getToken() == null || dt.getToken().isBlank() || dt.getEmail() == null) continue;
+                    tokens.computeIfAbsent(dt.getEmail().trim().toLowerCase(), k -> new HashSet<>()).add(dt.getToken());
                 }
             }
-            return tokens.stream().toList();
+            return tokens.entrySet().stream()
+                    .collect(Collectors.toMap(Map.Entry::getKey, e -> List.copyOf(e.getValue())));
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -102,6 +135,80 @@ public class DeviceTokenService {
         }
     }
 
+    /**
+     * Borra los tokens que FCM reportó como inválidos (app desinstalada, token de otro proyecto).
+     */
+    public int deleteTokens(Collection<String> tokens) {
+        List<String> targets = tokens == null ? List.of() : tokens.stream()
+                .filter(t -> t != null && !t.isBlank())
+                .distinct()
+                .toList();
+        if (targets.isEmpty()) return 0;
+        try {
+            List<DocumentReference> refs = new ArrayList<>();
+            List<DeviceToken> removed = new ArrayList<>();
+            for (List<QueryDocumentSnapshot> docs : BatchLoader.whereIn(firestore.collectionGroup("deviceTokens"), "token").loadAll(targets).values()) {
+                for (QueryDocumentSnapshot doc : docs) {
+                    refs.add(doc.getReference());
+                    removed.add(doc.toObject(DeviceToken.class));
+                }
+            }
+            deleteAll(refs);
+            pushTopicService.onTokensRemoved(removed);
+            log.info("Eliminados {} tokens de dispositivo inválidos", refs.size());
+            return refs.size();
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("No se pudieron eliminar tokens inválidos: {}", e.getMessage());
+            return 0;
+        }
+    }
+
+    /**
+     * Elimina tokens que no se re-registran hace más de {@code app.fcm.token-stale-days}. La app
+     * registra el token en cada inicio de sesión, así que createdAt es la última vez que se vio.
+     */
+    @Scheduled(fixedDelayString = "${app.fcm.token-sweep-ms:21600000}", initialDelayString = "${app.fcm.token-sweep-ms:21600000}")
+    public void sweepStaleTokens() {
+        Instant cutoff = Instant.now().minus(staleAfter);
+        int removed = 0;
+        try {
+            while (true) {
+                List<QueryDocumentSnapshot> docs = firestore.collectionGroup("deviceTokens")
+                        .whereLessThan("createdAt", Timestamp.ofTimeSecondsAndNanos(cutoff.getEpochSecond(), cutoff.getNano()))
+                        .limit(SWEEP_PAGE_SIZE)
+                        .get()
+                        .get()
+                        .getDocuments();
+                if (docs.isEmpty()) break;
+                deleteAll(docs.stream().map(QueryDocumentSnapshot::getReference).toList());
+                // igual que al desregistrar: el token sale de los topics de sus grupos
+                pushTopicService.onTokensRemoved(docs.stream().map(doc -> doc.toObject(DeviceToken.class)).toList());
+                removed += docs.size();
+                if (docs.size() < SWEEP_PAGE_SIZE) break;
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("Error limpiando tokens vencidos: {}", e.getMessage());
+        }
+        if (removed > 0) {
+            log.info("Eliminados {} tokens de dispositivo sin renovar desde {}", removed, cutoff);
+        }
+    }
+
+    private void deleteAll(List<DocumentReference> refs) throws InterruptedException, ExecutionException {
+        // un WriteBatch admite hasta 500 operaciones
+        for (int i = 0; i < refs.size(); i += SWEEP_PAGE_SIZE) {
+            WriteBatch batch = firestore.batch();
+            refs.subList(i, Math.min(i + SWEEP_PAGE_SIZE, refs.size())).forEach(batch::delete);
+            batch.commit().get();
+        }
+    }
+
     private com.google.cloud.firestore.CollectionReference tenantDeviceTokens(String tenantId) {
         String safe = tenantId == null || tenantId.isBlank() ? "global" : tenantId;
         return firestore.collection("tenants").document(safe).collection("deviceTokens");
@@ -0,0 +1,128 @@
+package com.notiflow.service;
+
+import com.notiflow.util.TimeBucketedDedup;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Buffer de aperturas de correo (píxel de tracking). El endpoint solo encola y responde; cada pocos
+ * segundos las aperturas se agrupan por mensaje y se escriben en una sola actualización por
+ * documento. La cantidad pendiente está acotada: si se llena, las aperturas nuevas se descartan.
+ */
+@Service
+public class EmailOpenBuffer {
+
+    private static final Logger log = LoggerFactory.getLogger(EmailOpenBuffer.class);
+    private static final Duration TRACK_DEDUP_WINDOW = Duration.ofMinutes(10);
+    private static final int TRACK_DEDUP_BUCKETS = 10;
+
+    private record MessageKey(String messageId, String schoolId) {}
+
+    private final MessageService messageService;
+    private final int maxPending;
+    // solo se modifica dentro de compute/remove del mapa, que son atómicos por clave
+    private final Map<MessageKey, Set<String>> pending = new ConcurrentHashMap<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicLong dropped = new AtomicLong();
+    private final TimeBucketedDedup trackDedup;
+
+    public EmailOpenBuffer(
+            MessageService messageService,
+            MeterRegistry meterRegistry,
+            @Value("${app.tracking.max-pending:50000}") int maxPending,
+            @Value("${app.tracking.dedup-max-entries:400000}") int dedupMaxEntries
+    ) {
+        this.messageService = messageService;
+        this.maxPending = Math.max(100, maxPending);
+        this.trackDedup = new TimeBucketedDedup(TRACK_DEDUP_WINDOW, TRACK_DEDUP_BUCKETS, Math.max(10_000, dedupMaxEntries));
+        FunctionCounter.builder("notiflow.tracking.dedup", trackDedup, TimeBucketedDedup::hits)
+                .tag("result", "hit")
+                .description("Aperturas repetidas dentro de la ventana")
+                .register(meterRegistry);
+        FunctionCounter.builder("notiflow.tracking.dedup", trackDedup, TimeBucketedDedup::misses)
+                .tag("result", "miss")
+                .register(meterRegistry);
+        FunctionCounter.builder("notiflow.tracking.dedup", trackDedup, TimeBucketedDedup::overflows)
+                .tag("result", "overflow")
+                .description("Aperturas que no cupieron en el bucket actual y pasaron sin dedup")
+                .register(meterRegistry);
+        Gauge.builder("notiflow.tracking.dedup.entries", trackDedup, TimeBucketedDedup::size)
+                .register(meterRegistry);
+        Gauge.builder("notiflow.tracking.pending", pendingCount, AtomicInteger::get)
+                .register(meterRegistry);
+        FunctionCounter.builder("notiflow.tracking.dropped", dropped, AtomicLong::get)
+                .register(meterRegistry);
+    }
+
+    public void record(String messageId, String recipientEmail, String schoolIdHint) {
+        if (recipientEmail == null || recipientEmail.isBlank()) {
+            return;
+        }
+        String normalizedRecipient = recipientEmail.trim().toLowerCase();
+        // antes del dedup: una apertura descartada no debe quedar como vista y perderse en la ventana
+        if (pendingCount.get() >= maxPending) {
+            long total = dropped.incrementAndGet();
+            if (total == 1 || total % 1000 == 0) {
+                log.warn("Buffer de aperturas lleno ({} pendientes); descartadas {}", maxPending, total);
+            }
+            return;
+        }
+        if (shouldSkipTrackUpdate(messageId, normalizedRecipient)) {
+            return;
+        }
+        MessageKey key = new MessageKey(messageId, schoolIdHint == null || schoolIdHint.isBlank() ? null : schoolIdHint);
+        pending.compute(key, (k, recipients) -> {
+            Set<String> set = recipients != null ? recipients : new HashSet<>();
+            if (set.add(normalizedRecipient)) {
+                pendingCount.incrementAndGet();
+            }
+            return set;
+        });
+    }
+
+    @Scheduled(fixedDelayString = "${app.tracking.flush-ms:3000}", initialDelayString = "${app.tracking.flush-ms:3000}")
+    void flush() {
+        if (pending.isEmpty()) return;
+        List<MessageKey> keys = new ArrayList<>(pending.keySet());
+        for (MessageKey key : keys) {
+            Set<String> recipients = pending.remove(key);
+            if (recipients == null || recipients.isEmpty()) continue;
+            pendingCount.addAndGet(-recipients.size());
+            try {
+                messageService.markEmailOpened(key.messageId(), key.schoolId(), recipients);
+            } catch (Exception e) {
+                // el tracking es best-effort: no se reencola para no crecer sin límite ante un error persistente
+                log.warn("No se pudieron registrar {} aperturas del mensaje {}: {}", recipients.size(), key.messageId(), e.getMessage());
+            }
+        }
+    }
+
+    @PreDestroy
+    void flushOnShutdown() {
+        flush();
+    }
+
+    private boolean shouldSkipTrackUpdate(String messageId, String normalizedRecipient) {
+        if (messageId == null || messageId.isBlank() || normalizedRecipient == null || normalizedRecipient.isBlank()) {
+            return true;
+        }
+        return !trackDedup.firstSeen(messageId, normalizedRecipient, System.currentTimeMillis());
+    }
+}
@@ -1,27 +1,44 @@
 package com.notiflow.service;
 
-import com.notiflow.dto.AttachmentRequest;
+import com.notiflow.util.CompiledTemplate;
 import com.sendgrid.Method;
 import com.sendgrid.Request;
 import com.sendgrid.Response;
 import com.sendgrid.SendGrid;
 import com.sendgrid.helpers.mail.Mail;
-import com.sendgrid.helpers.mail.objects.Attachments;
 import com.sendgrid.helpers.mail.objects.Content;
 import com.sendgrid.helpers.mail.objects.Email;
+import com.sendgrid.helpers.mail.objects.Personalization;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import software.amazon.awssdk.auth.credentials.AwsBasicCredentials;
 import software.amazon.awssdk.auth.credentials.AwsCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.DefaultCredentialsProvider;
 import software.amazon.awssdk.auth.credentials.StaticCredentialsProvider;
 import software.amazon.awssdk.core.SdkBytes;
+import software.amazon.awssdk.core.exception.SdkClientException;
+import software.amazon.awssdk.core.exception.SdkServiceException;
 import software.amazon.awssdk.regions.Region;
 import software.amazon.awssdk.services.ses.SesClient;
+import software.amazon.awssdk.services.ses.model.BulkEmailDestination;
+import software.amazon.awssdk.services.ses.model.BulkEmailDestinationStatus;
+import software.amazon.awssdk.services.ses.model.BulkEmailStatus;
+import software.amazon.awssdk.services.ses.model.CreateTemplateRequest;
+import software.amazon.awssdk.services.ses.model.AlreadyExistsException;
+import software.amazon.awssdk.services.ses.model.DeleteTemplateRequest;
+import software.amazon.awssdk.services.ses.model.Destination;
+import software.amazon.awssdk.services.ses.model.ListTemplatesRequest;
+import software.amazon.awssdk.services.ses.model.ListTemplatesResponse;
 import software.amazon.awssdk.services.ses.model.RawMessage;
+import software.amazon.awssdk.services.ses.model.SendBulkTemplatedEmailRequest;
+import software.amazon.awssdk.services.ses.model.SendBulkTemplatedEmailResponse;
 import software.amazon.awssdk.services.ses.model.SendRawEmailRequest;
+import software.amazon.awssdk.services.ses.model.Template;
+import software.amazon.awssdk.services.ses.model.TemplateDoesNotExistException;
+import software.amazon.awssdk.services.ses.model.TemplateMetadata;
 
 import jakarta.mail.Message;
 import jakarta.mail.Session;
@@ -31,23 +48,44 @@ import jakarta.mail.internet.MimeMessage;
 import jakarta.mail.internet.MimeMultipart;
 import java.io.ByteArrayOutputStream;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
-import java.util.Base64;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 @Service
 public class EmailService {
 
     private static final Logger log = LoggerFactory.getLogger(EmailService.class);
+    // marcadores del HTML de mensajes que se sustituyen por destinatario en envíos masivos
+    public static final String RECIPIENT_SLOT = "%%NOTIFLOW_RECIPIENT%%";
+    public static final String TRACKING_SLOT = "%%NOTIFLOW_TRACKING_URL%%";
+    // límites de cada proveedor por llamada
+    private static final int SENDGRID_MAX_PERSONALIZATIONS = 1000;
+    private static final int SES_MAX_BULK_DESTINATIONS = 50;
+    // plantillas SES de envíos masivos: una por contenido, la limpieza borra las viejas
+    private static final String SES_TEMPLATE_PREFIX = "notiflow-bulk-";
+    private static final com.fasterxml.jackson.databind.ObjectMapper JSON = new com.fasterxml.jackson.databind.ObjectMapper();
     private final SesClient sesClient;
     private final SendGrid sendGridClient;
     private final boolean sendGridEnabled;
     private final boolean sesEnabled;
     private final String senderEmail;
     private final String frontendBaseUrl;
+    private final Duration sesTemplateTtl;
+    // plantillas que esta instancia ya creó o vio creadas; evita un CreateTemplate por lote
+    private final Set<String> sesTemplates = ConcurrentHashMap.newKeySet();
 
     public EmailService(
             @Value("${AWS_SES_ACCESS_KEY:}") String accessKey,
@@ -55,9 +93,11 @@ public class EmailService {
             @Value("${AWS_SES_REGION:}") String awsRegion,
             @Value("${SENDGRID_API_KEY:}") String sendGridApiKey,
             @Value("${app.mail.from:no-reply@notiflow.local}") String senderEmail,
-            @Value("${app.frontend-url:https://hectorguzman.github.io/notiflow}") String frontendBaseUrl
+            @Value("${app.frontend-url:https://hectorguzman.github.io/notiflow}") String frontendBaseUrl,
+            @Value("${app.mail.ses-template-ttl-hours:24}") long sesTemplateTtlHours
     ) {
         this.senderEmail = senderEmail;
+        this.sesTemplateTtl = Duration.ofHours(Math.max(1, sesTemplateTtlHours));
         this.frontendBaseUrl = frontendBaseUrl != null && frontendBaseUrl.endsWith("/")
                 ? frontendBaseUrl.substring(0, frontendBaseUrl.length() - 1)
                 : frontendBaseUrl;
@@ -118,7 +158,7 @@ public class EmailService {
         return sendPlainEmail(to, "Recupera tu contraseña", text);
     }
 
-    public boolean sendMessageEmail(String to, String subject, String htmlBody, String textBody, List<AttachmentRequest> attachments) {
+    public boolean sendMessageEmail(String to, String subject, String htmlBody, String textBody, List<PreparedAttachment> attachments) {
         if (sendGridEnabled && sendGridClient != null) {
             return sendWithSendGrid(to, subject, htmlBody, textBody, attachments);
         }
@@ -135,6 +175,332 @@ public class EmailService {
         }
     }
 
+    /**
+     * Destinatario de un envío masivo: las claves de {@code substitutions} son marcadores presentes
+     * en el HTML (p.ej. {@code %%RECIPIENT%%}) y se reemplazan solo para este destinatario.
+     */
+    public record BulkRecipient(String email, Map<String, String> substitutions) {
+    }
+
+    /**
+     * Resultado por destinatario de un envío masivo. RETRY es un fallo pasajero del proveedor
+     * (límite de tasa, 5xx o red) y vale la pena reintentar; REJECTED no cambiaría al reintentar.
+     */
+    public enum BulkOutcome {
+        SENT,
+        REJECTED,
+        RETRY
+    }
+
+    private record BulkResponse(int status, String body) {
+    }
+
+    /**
+     * Envía el mismo mensaje a muchos destinatarios usando la API masiva del proveedor. La plantilla
+     * ya viene compilada con los marcadores de cada destinatario:
+     * personalizations de SendGrid (hasta 1000 por request) o SendBulkTemplatedEmail de SES
+     * (hasta 50 por llamada). SES no admite adjuntos en envíos con plantilla, así que con adjuntos
+     * se envía uno a uno. Devuelve el resultado por correo.
+     */
+    public Map<String, BulkOutcome> sendBulkMessageEmail(
+            List<BulkRecipient> recipients,
+            String subject,
+            CompiledTemplate htmlTemplate,
+            String textBody,
+            List<PreparedAttachment> attachments
+    ) {
+        Map<String, BulkOutcome> results = new LinkedHashMap<>();
+        if (recipients == null || recipients.isEmpty()) return results;
+        if (sendGridEnabled && sendGridClient != null) {
+            for (int i = 0; i < recipients.size(); i += SENDGRID_MAX_PERSONALIZATIONS) {
+                List<BulkRecipient> chunk = recipients.subList(i, Math.min(i + SENDGRID_MAX_PERSONALIZATIONS, recipients.size()));
+                sendBulkWithSendGrid(chunk, subject, htmlTemplate.source(), textBody, attachments, results);
+            }
+            return results;
+        }
+        if (!sesEnabled || sesClient == null) {
+            log.warn("Email no configurado; se omite envío masivo a {} destinatarios", recipients.size());
+            recipients.forEach(r -> results.put(r.email(), BulkOutcome.REJECTED));
+            return results;
+        }
+        boolean hasAttachments = attachments != null && attachments.stream().anyMatch(Objects::nonNull);
+        if (hasAttachments) {
+            for (BulkRecipient r : recipients) {
+                boolean sent = sendMessageEmail(r.email(), subject, htmlTemplate.render(r.substitutions()), textBody, attachments);
+                results.put(r.email(), sent ? BulkOutcome.SENT : BulkOutcome.REJECTED);
+            }
+            return results;
+        }
+        sendBulkWithSes(recipients, subject, htmlTemplate.source(), textBody, results);
+        return results;
+    }
+
+    /**
+     * Un 400 de SendGrid que apunta a personalizations (p.ej. un correo mal formado) rechaza el
+     * request completo, así que el lote se parte en mitades hasta aislar a esos destinatarios.
+     * Otros 4xx (credenciales, tamaño) fallan igual con cualquier lote y lo rechazan entero; un
+     * 429, 5xx o error de red lo deja en RETRY para que el outbox reintente el trabajo.
+     */
+    private void sendBulkWithSendGrid(
+            List<BulkRecipient> recipients,
+            String subject,
+            String htmlTemplate,
+            String textBody,
+            List<PreparedAttachment> attachments,
+            Map<String, BulkOutcome> results
+    ) {
+        BulkResponse response = sendBulkRequest(recipients, subject, htmlTemplate, textBody, attachments);
+        int status = response.status();
+        BulkOutcome outcome;
+        if (status >= 200 && status < 300) {
+            outcome = BulkOutcome.SENT;
+        } else if (status == 429 || status >= 500 || status < 0) {
+            outcome = BulkOutcome.RETRY;
+        } else if (status == 400 && rejectsRecipients(response.body()) && recipients.size() > 1) {
+            int half = recipients.size() / 2;
+            sendBulkWithSendGrid(recipients.subList(0, half), subject, htmlTemplate, textBody, attachments, results);
+            sendBulkWithSendGrid(recipients.subList(half, recipients.size()), subject, htmlTemplate, textBody, attachments, results);
+            return;
+        } else {
+            outcome = BulkOutcome.REJECTED;
+        }
+        recipients.forEach(r -> results.put(r.email(), outcome));
+    }
+
+    // errores de SendGrid con "field": "personalizations.N...." son de un destinatario puntual
+    private static boolean rejectsRecipients(String body) {
+        if (body == null || body.isBlank()) return false;
+        try {
+            for (com.fasterxml.jackson.databind.JsonNode error : JSON.readTree(body).path("errors")) {
+                if (error.path("field").asText("").startsWith("personalizations")) return true;
+            }
+        } catch (Exception e) {
+            // cuerpo no JSON: no se sabe a quién rechazó
+        }
+        return false;
+    }
+
+    // código HTTP y cuerpo de la respuesta; código -1 si no hubo respuesta
+    private BulkResponse sendBulkRequest(
+            List<BulkRecipient> recipients,
+            String subject,
+            String htmlTemplate,
+            String textBody,
+            List<PreparedAttachment> attachments
+    ) {
+        try {
+            Mail mail = new Mail();
+            mail.setFrom(new Email(senderEmail, "Notiflow"));
+            mail.setSubject(subject);
+            String plain = textBody != null && !textBody.isBlank()
+                    ? textBody
+                    : (htmlTemplate != null ? stripHtml(htmlTemplate) : "");
+            mail.addContent(new Content("text/plain", plain));
+            if (htmlTemplate != null && !htmlTemplate.isBlank()) {
+                mail.addContent(new Content("text/html", htmlTemplate));
+            }
+            for (BulkRecipient r : recipients) {
+                Personalization personalization = new Personalization();
+                personalization.addTo(new Email(r.email()));
+                if (r.substitutions() != null) {
+                    r.substitutions().forEach((key, value) -> personalization.addSubstitution(key, value == null ? "" : value));
+                }
+                mail.addPersonalization(personalization);
+            }
+            addSendGridAttachments(mail, attachments);
+            Request request = new Request();
+            request.setMethod(Method.POST);
+            request.setEndpoint("mail/send");
+            request.setBody(mail.build());
+            Response response = sendGridClient.api(request);
+            int status = response.getStatusCode();
+            if (status < 200 || status >= 300) {
+                log.error("SendGrid error masivo {} con {} destinatarios: {}", status, recipients.size(), response.getBody());
+            }
+            return new BulkResponse(status, response.getBody());
+        } catch (Exception e) {
+            log.error("No se pudo enviar lote SendGrid de {} destinatarios: {}", recipients.size(), e.getMessage());
+            return new BulkResponse(-1, null);
+        }
+    }
+
+    private void sendBulkWithSes(
+            List<BulkRecipient> recipients,
+            String subject,
+            String htmlTemplate,
+            String textBody,
+            Map<String, BulkOutcome> results
+    ) {
+        // SES usa handlebars: se neutralizan los {{ }} del contenido (las llaves sueltas del CSS quedan
+        // intactas) y los marcadores pasan a {{variables}}
+        Map<String, String> variables = new LinkedHashMap<>();
+        for (BulkRecipient r : recipients) {
+            if (r.substitutions() == null) continue;
+            for (String key : r.substitutions().keySet()) {
+                variables.computeIfAbsent(key, this::sesVariableName);
+            }
+        }
+        String html = escapeHandlebarsText(htmlTemplate);
+        for (Map.Entry<String, String> v : variables.entrySet()) {
+            html = html.replace(v.getKey(), "{{" + v.getValue() + "}}");
+        }
+        String plain = textBody != null && !textBody.isBlank() ? textBody : stripHtml(htmlTemplate);
+        Template template = Template.builder()
+                .templateName(sesTemplateName(subject, html, plain))
+                .subjectPart(escapeHandlebarsText(subject))
+                .htmlPart(html)
+                .textPart(escapeHandlebarsText(plain))
+                .build();
+        try {
+            ensureSesTemplate(template);
+        } catch (Exception e) {
+            log.error("No se pudo crear plantilla SES para envío masivo: {}", e.getMessage());
+            BulkOutcome outcome = sesOutcome(e);
+            recipients.forEach(r -> results.put(r.email(), outcome));
+            return;
+        }
+        try {
+            Map<String, String> defaults = new LinkedHashMap<>();
+            variables.values().forEach(name -> defaults.put(name, ""));
+            String defaultData = JSON.writeValueAsString(defaults);
+            String source = new InternetAddress(senderEmail, "Notiflow").toString();
+            for (int i = 0; i < recipients.size(); i += SES_MAX_BULK_DESTINATIONS) {
+                List<BulkRecipient> chunk = recipients.subList(i, Math.min(i + SES_MAX_BULK_DESTINATIONS, recipients.size()));
+                List<BulkEmailDestination> destinations = new ArrayList<>();
+                for (BulkRecipient r : chunk) {
+                    Map<String, String> data = new LinkedHashMap<>();
+                    if (r.substitutions() != null) {
+                        r.substitutions().forEach((key, value) -> data.put(variables.get(key), value == null ? "" : value));
+                    }
+                    destinations.add(BulkEmailDestination.builder()
+                            .destination(Destination.builder().toAddresses(r.email()).build())
+                            .replacementTemplateData(JSON.writeValueAsString(data))
+                            .build());
+                }
+                SendBulkTemplatedEmailRequest request = SendBulkTemplatedEmailRequest.builder()
+                        .source(source)
+                        .template(template.templateName())
+                        .defaultTemplateData(defaultData)
+                        .destinations(destinations)
+                        .build();
+                try {
+                    SendBulkTemplatedEmailResponse response;
+                    try {
+                        response = sesClient.sendBulkTemplatedEmail(request);
+                    } catch (TemplateDoesNotExistException e) {
+                        // la limpieza la borró durante un envío largo: se vuelve a crear una vez
+                        sesTemplates.remove(template.templateName());
+                        ensureSesTemplate(template);
+                        response = sesClient.sendBulkTemplatedEmail(request);
+                    }
+                    List<BulkEmailDestinationStatus> statuses = response.status();
+                    for (int j = 0; j < chunk.size(); j++) {
+                        BulkEmailStatus status = statuses != null && j < statuses.size() ? statuses.get(j).status() : null;
+                        BulkOutcome outcome = status == BulkEmailStatus.SUCCESS ? BulkOutcome.SENT
+                                : status == BulkEmailStatus.ACCOUNT_THROTTLED || status == BulkEmailStatus.TRANSIENT_FAILURE ? BulkOutcome.RETRY
+                                : BulkOutcome.REJECTED;
+                        if (outcome != BulkOutcome.SENT && status != null) {
+                            log.warn("SES rechazó {}: {}", chunk.get(j).email(), statuses.get(j).error());
+                        }
+                        results.put(chunk.get(j).email(), outcome);
+                    }
+                } catch (Exception e) {
+                    log.error("SES sendBulkTemplatedEmail error: {}", e.getMessage());
+                    BulkOutcome outcome = sesOutcome(e);
+                    chunk.forEach(r -> results.put(r.email(), outcome));
+                }
+            }
+        } catch (Exception e) {
+            log.error("No se pudo preparar envío masivo SES: {}", e.getMessage());
+            recipients.forEach(r -> results.putIfAbsent(r.email(), BulkOutcome.REJECTED));
+        }
+    }
+
+    // límite de tasa, 5xx o error de red de SES: pasajeros
+    private static BulkOutcome sesOutcome(Exception e) {
+        if (e instanceof SdkClientException) return BulkOutcome.RETRY;
+        if (e instanceof SdkServiceException service && (service.isThrottlingException() || service.statusCode() >= 500)) {
+            return BulkOutcome.RETRY;
+        }
+        return BulkOutcome.REJECTED;
+    }
+
+    /**
+     * Crea la plantilla si esta instancia no la conoce; si otra instancia (o un lote anterior antes de
+     * reiniciar) ya la creó, se reutiliza. No se borra al terminar: la quita {@link #sweepBulkTemplates()}.
+     */
+    private void ensureSesTemplate(Template template) {
+        if (sesTemplates.contains(template.templateName())) return;
+        try {
+            sesClient.createTemplate(CreateTemplateRequest.builder().template(template).build());
+        } catch (AlreadyExistsException e) {
+            // mismo nombre = mismo contenido
+        }
+        sesTemplates.add(template.templateName());
+    }
+
+    // el nombre sale del contenido, así todos los lotes y reintentos de un mensaje usan la misma plantilla
+    private static String sesTemplateName(String subject, String html, String text) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (String part : new String[]{subject, html, text}) {
+                digest.update((part == null ? "" : part).getBytes(StandardCharsets.UTF_8));
+                digest.update((byte) 0);
+            }
+            // SES admite nombres de hasta 64 caracteres
+            return SES_TEMPLATE_PREFIX + HexFormat.of().formatHex(digest.digest(), 0, 20);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("No SHA-256 available for SES template name", e);
+        }
+    }
+
+    /**
+     * Borra las plantillas de envíos masivos creadas hace más de {@code app.mail.ses-template-ttl-hours},
+     * incluidas las que dejó una instancia que se cayó a mitad de un envío.
+     */
+    @Scheduled(fixedDelayString = "${app.mail.ses-template-sweep-ms:3600000}", initialDelayString = "${app.mail.ses-template-sweep-ms:3600000}")
+    public void sweepBulkTemplates() {
+        if (!sesEnabled || sesClient == null) return;
+        Instant cutoff = Instant.now().minus(sesTemplateTtl);
+        int removed = 0;
+        try {
+            String nextToken = null;
+            do {
+                ListTemplatesResponse page = sesClient.listTemplates(ListTemplatesRequest.builder()
+                        .maxItems(100)
+                        .nextToken(nextToken)
+                        .build());
+                for (TemplateMetadata meta : page.templatesMetadata()) {
+                    if (meta.name() == null || !meta.name().startsWith(SES_TEMPLATE_PREFIX)) continue;
+                    if (meta.createdTimestamp() == null || meta.createdTimestamp().isAfter(cutoff)) continue;
+                    sesClient.deleteTemplate(DeleteTemplateRequest.builder().templateName(meta.name()).build());
+                    sesTemplates.remove(meta.name());
+                    removed++;
+                }
+                nextToken = page.nextToken();
+            } while (nextToken != null && !nextToken.isBlank());
+        } catch (Exception e) {
+            log.warn("Error limpiando plantillas SES: {}", e.getMessage());
+        }
+        if (removed > 0) {
+            log.info("Eliminadas {} plantillas SES de envíos masivos anteriores a {}", removed, cutoff);
+        }
+    }
+
+    private String sesVariableName(String marker) {
+        return marker.replaceAll("[^A-Za-z0-9]", "").toLowerCase();
+    }
+
+    private String escapeHandlebarsText(String value) {
+        if (value == null) return "";
+        String escaped = value;
+        // "{{{" deja otro "{{" tras el primer reemplazo; se repite hasta que no quede ninguno
+        while (escaped.contains("{{") || escaped.contains("}}")) {
+            escaped = escaped.replace("{{", "{ {").replace("}}", "} }");
+        }
+        return escaped;
+    }
+
     private String stripHtml(String html) {
         if (html == null) return "";
         return html.replaceAll("<[^>]*>", "").replace("&nbsp;", " ");
@@ -208,7 +574,7 @@ public class EmailService {
             String subject,
             String htmlBody,
             String textBody,
-            List<AttachmentRequest> attachments
+            List<PreparedAttachment> attachments
     ) throws Exception {
         if (sendGridEnabled && sendGridClient != null) {
             throw new IllegalStateException("SendGrid habilitado; usa sendWithSendGrid");
@@ -233,23 +599,11 @@ public class EmailService {
         altWrapper.setContent(alternative);
         related.addBodyPart(altWrapper);
 
-        // Inline attachments
+        // Adjuntos: las partes reutilizan los bytes ya codificados del adjunto preparado
         if (attachments != null) {
-            for (AttachmentRequest att : attachments) {
-                if (att == null || att.base64() == null || att.fileName() == null) continue;
-                byte[] data = Base64.getDecoder().decode(att.base64());
-                MimeBodyPart part = new MimeBodyPart();
-                part.setFileName(att.fileName());
-                part.setContent(data, att.mimeType() != null ? att.mimeType() : "application/octet-stream");
-                if (Boolean.TRUE.equals(att.inline())) {
-                    part.setDisposition(jakarta.mail.Part.INLINE);
-                    if (att.cid() != null) {
-                        part.setHeader("Content-ID", "<" + att.cid() + ">");
-                    }
-                } else {
-                    part.setDisposition(jakarta.mail.Part.ATTACHMENT);
-                }
-                related.addBodyPart(part);
+            for (PreparedAttachment att : attachments) {
+                if (att == null || att.fileName() == null) continue;
+                related.addBodyPart(att.toMimePart());
             }
         }
 
@@ -290,7 +644,7 @@ public class EmailService {
             String subject,
             String htmlBody,
             String textBody,
-            List<AttachmentRequest> attachments
+            List<PreparedAttachment> attachments
     ) {
         if (!sendGridEnabled || sendGridClient == null) {
             log.warn("SendGrid no configurado; se omite envío a {}", to);
@@ -307,24 +661,7 @@ public class EmailService {
             if (htmlBody != null && !htmlBody.isBlank()) {
                 mail.addContent(new Content("text/html", htmlBody));
             }
-            if (attachments != null) {
-                for (AttachmentRequest att : attachments) {
-                    if (att == null || att.base64() == null || att.fileName() == null) continue;
-                    Attachments sgAtt = new Attachments();
-                    sgAtt.setContent(att.base64());
-                    sgAtt.setType(att.mimeType() != null ? att.mimeType() : "application/octet-stream");
-                    sgAtt.setFilename(att.fileName());
-                    if (Boolean.TRUE.equals(att.inline())) {
-                        sgAtt.setDisposition("inline");
-                        if (att.cid() != null) {
-                            sgAtt.setContentId(att.cid());
-                        }
-                    } else {
-                        sgAtt.setDisposition("attachment");
-                    }
-                    mail.addAttachments(sgAtt);
-                }
-            }
+            addSendGridAttachments(mail, attachments);
             Request request = new Request();
             request.setMethod(Method.POST);
             request.setEndpoint("mail/send");
@@ -341,4 +678,12 @@ public class EmailService {
             return false;
         }
     }
+
+    private void addSendGridAttachments(Mail mail, List<PreparedAttachment> attachments) {
+        if (attachments == null) return;
+        for (PreparedAttachment att : attachments) {
+            if (att == null || att.fileName() == null) continue;
+            mail.addAttachments(att.toSendGrid());
+        }
+    }
 }
@@ -0,0 +1,193 @@
+package com.notiflow.service;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.notiflow.util.BatchLoader;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Ubica documentos de tenant (tenants/{schoolId}/{colección}/{id}) a partir de su id, para no
+ * resolverlo con un collectionGroup por cada lectura. Orden de búsqueda: caché local acotada,
+ * documento en locators/{colección}:{id} y, solo si falla, la consulta collectionGroup por "id".
+ */
+@Service
+public class EntityLocator {
+
+    private static final Logger log = LoggerFactory.getLogger(EntityLocator.class);
+    private final Firestore firestore;
+    private final Map<String, String> cache;
+
+    public EntityLocator(Firestore firestore, @Value("${app.locator.cache-size:50000}") int cacheSize) {
+        this.firestore = firestore;
+        int capacity = Math.max(100, cacheSize);
+        this.cache = java.util.Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * Lee el documento. Un locator que apunta a un documento borrado o movido se descarta y se
+     * vuelve a resolver con la consulta.
+     */
+    public Optional<DocumentSnapshot> find(String collection, String id) throws InterruptedException, ExecutionException {
+        if (id == null || id.isBlank()) return Optional.empty();
+        String key = key(collection, id);
+        String path = cache.get(key);
+        if (path == null) {
+            path = readLocator(key);
+            if (path != null) {
+                cache.put(key, path);
+            }
+        }
+        if (path != null) {
+            DocumentSnapshot snap = firestore.document(path).get().get();
+            if (snap.exists()) {
+                return Optional.of(snap);
+            }
+            forget(collection, id);
+        }
+        List<QueryDocumentSnapshot> docs = firestore.collectionGroup(collection)
+                .whereEqualTo("id", id)
+                .limit(1)
+                .get()
+                .get()
+                .getDocuments();
+        if (docs.isEmpty()) return Optional.empty();
+        QueryDocumentSnapshot doc = docs.get(0);
+        remember(collection, id, doc.getReference());
+        return Optional.of(doc);
+    }
+
+    /**
+     * Varios documentos de una vez: los de ruta conocida en caché con getAll y el resto con
+     * consultas whereIn por "id" lanzadas en paralelo. Los ids que no existen no aparecen.
+     */
+    public Map<String, DocumentSnapshot> findAll(String collection, Collection<String> ids) throws InterruptedException, ExecutionException {
+        Map<String, DocumentSnapshot> result = new HashMap<>();
+        Map<String, String> pathById = new HashMap<>();
+        List<String> unknown = new ArrayList<>();
+        for (String id : new LinkedHashSet<>(ids)) {
+            if (id == null || id.isBlank()) continue;
+            String path = cache.get(key(collection, id));
+            if (path != null) {
+                pathById.put(id, path);
+            } else {
+                unknown.add(id);
+            }
+        }
+        // las consultas por id y el getAll salen en paralelo
+        BatchLoader<String, List<QueryDocumentSnapshot>> byId = BatchLoader.whereIn(firestore.collectionGroup(collection), "id");
+        Map<String, ApiFuture<List<QueryDocumentSnapshot>>> queried = new HashMap<>();
+        for (String id : unknown) {
+            queried.put(id, byId.load(id));
+        }
+        byId.dispatch();
+        Map<String, DocumentSnapshot> byPath = BatchLoader.documents(firestore).loadAll(pathById.values());
+        for (Map.Entry<String, String> entry : pathById.entrySet()) {
+            DocumentSnapshot snap = byPath.get(entry.getValue());
+            if (snap != null) {
+                result.put(entry.getKey(), snap);
+            } else {
+                // ruta vencida: se vuelve a buscar por consulta
+                forget(collection, entry.getKey());
+                queried.put(entry.getKey(), byId.load(entry.getKey()));
+            }
+        }
+        byId.dispatch();
+        for (Map.Entry<String, ApiFuture<List<QueryDocumentSnapshot>>> entry : queried.entrySet()) {
+            List<QueryDocumentSnapshot> docs = entry.getValue().get();
+            if (docs == null || docs.isEmpty()) continue;
+            QueryDocumentSnapshot doc = docs.get(0);
+            remember(collection, entry.getKey(), doc.getReference());
+            result.put(entry.getKey(), doc);
+        }
+        return result;
+    }
+
+    /**
+     * Solo la referencia, sin leer el documento: sirve cuando el llamador igual va a leer una
+     * proyección o escribir por ruta de campo.
+     */
+    public Optional<DocumentReference> locate(String collection, String id) throws InterruptedException, ExecutionException {
+        if (id == null || id.isBlank()) return Optional.empty();
+        String key = key(collection, id);
+        String path = cache.get(key);
+        if (path == null) {
+            path = readLocator(key);
+            if (path != null) {
+                cache.put(key, path);
+            }
+        }
+        if (path != null) {
+            return Optional.of(firestore.document(path));
+        }
+        List<QueryDocumentSnapshot> docs = firestore.collectionGroup(collection)
+                .whereEqualTo("id", id)
+                .select("id")
+                .limit(1)
+                .get()
+                .get()
+                .getDocuments();
+        if (docs.isEmpty()) return Optional.empty();
+        DocumentReference ref = docs.get(0).getReference();
+        remember(collection, id, ref);
+        return Optional.of(ref);
+    }
+
+    /**
+     * Registra dónde quedó un documento recién creado o movido. La escritura del locator no bloquea.
+     */
+    public void remember(DocumentReference ref) {
+        if (ref == null) return;
+        remember(ref.getParent().getId(), ref.getId(), ref);
+    }
+
+    public void remember(String collection, String id, DocumentReference ref) {
+        if (ref == null || id == null || id.isBlank()) return;
+        String key = key(collection, id);
+        String path = ref.getPath();
+        if (path.equals(cache.put(key, path))) return;
+        firestore.collection("locators").document(key).set(Map.of("path", path));
+    }
+
+    public void forget(String collection, String id) {
+        if (id == null || id.isBlank()) return;
+        String key = key(collection, id);
+        cache.remove(key);
+        firestore.collection("locators").document(key).delete();
+    }
+
+    private String readLocator(String key) throws InterruptedException, ExecutionException {
+        try {
+            DocumentSnapshot snap = firestore.collection("locators").document(key).get().get();
+            return snap.exists() ? snap.getString("path") : null;
+        } catch (ExecutionException e) {
+            // sin locator se sigue con la consulta
+            log.warn("No se pudo leer locator {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    private static String key(String collection, String id) {
+        return collection + ":" + id.replace('/', '_');
+    }
+}
@@ -2,6 +2,8 @@ package com.notiflow.service;
 
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
@@ -12,6 +14,7 @@ import com.notiflow.model.EventDocument;
 import com.notiflow.model.StudentDocument;
 import com.notiflow.model.UserDocument;
 import com.notiflow.util.CurrentUser;
+import com.notiflow.util.PageCursor;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 
@@ -22,26 +25,40 @@ import java.util.List;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
+import java.util.function.Predicate;
 import java.util.stream.Collectors;
 
 @Service
 public class EventService {
 
+    // documentos leídos como máximo por página cuando el filtro de audiencia descarta eventos
+    private static final int MAX_PAGE_READS = 1000;
+    // con page > 1 y filtro, tope de lecturas contando los eventos visibles de las páginas anteriores
+    private static final int MAX_OFFSET_READS = 5000;
+    private static final Predicate<EventDto> ALL_EVENTS = ev -> true;
+
     private final Firestore firestore;
     private final GroupService groupService;
     private final TeacherPermissionService teacherPermissionService;
     private final UserService userService;
     private final StudentService studentService;
+    private final EntityLocator entityLocator;
 
-    public EventService(Firestore firestore, GroupService groupService, TeacherPermissionService teacherPermissionService, UserService userService, StudentService studentService) {
+    public EventService(Firestore firestore, GroupService groupService, TeacherPermissionService teacherPermissionService, UserService userService, StudentService studentService, EntityLocator entityLocator) {
         this.firestore = firestore;
         this.groupService = groupService;
         this.teacherPermissionService = teacherPermissionService;
         this.userService = userService;
         this.studentService = studentService;
+        this.entityLocator = entityLocator;
     }
 
-    public List<EventDto> listForUser(CurrentUser user, String fromIso, String toIso, String type, int page, int pageSize, String studentId) {
+    /**
+     * Página de eventos; {@code nextCursor} es null cuando no hay más (o cuando se usó el fallback sin orden).
+     */
+    public record EventPage(List<EventDto> items, String nextCursor) {}
+
+    public EventPage listForUser(CurrentUser user, String fromIso, String toIso, String type, int page, int pageSize, String studentId, String cursorToken) {
         int safePage = Math.max(1, page);
         int safeSize = Math.min(Math.max(1, pageSize), 200);
         Query query = firestore.collectionGroup("events");
@@ -55,7 +72,7 @@ public class EventService {
         if (shouldRestrictToAudience(user) && studentId != null && !studentId.isBlank() && studentService != null) {
             selectedStudent = studentService.findById(studentId).orElse(null);
             if (selectedStudent == null || !isLinkedToStudent(selectedStudent, user.email())) {
-                return List.of();
+                return new EventPage(List.of(), null);
             }
         }
         List<String> allowedGroups = isTeacher
@@ -81,66 +98,34 @@ public class EventService {
             query = query.whereLessThanOrEqualTo("startDateTime", to);
         }
 
+        // se decodifica fuera del try: un cursor inválido es 400, no un motivo para el fallback
+        PageCursor cursor = PageCursor.decode(cursorToken, "events");
         try {
-            ApiFuture<QuerySnapshot> future = query
+            Query sorted = query
                     .orderBy("startDateTime", Query.Direction.ASCENDING)
-                    .offset((safePage - 1) * safeSize)
-                    .limit(safeSize)
-                    .get();
-            List<QueryDocumentSnapshot> docs = future.get().getDocuments();
-            List<EventDto> all = docs.stream().map(doc -> {
-                EventDocument ev = doc.toObject(EventDocument.class);
-                ev.setId(doc.getId());
-                return toDto(ev);
-            }).collect(Collectors.toList());
-
-            if (isTeacher) {
-                final String email = user.email();
-                final String uid = teacherUserId;
-                return all.stream()
-                        .filter(ev -> isTeacherEvent(ev, email, uid, allowedGroups))
-                        .collect(Collectors.toList());
+                    .orderBy(FieldPath.documentId(), Query.Direction.ASCENDING);
+            Predicate<EventDto> visible = visibility(user, studentId, teacherUserId, allowedGroups);
+            int skip = (safePage - 1) * safeSize;
+            if (cursor != null) {
+                return visiblePage(cursor.applyTo(sorted, firestore), sorted, 0, safeSize, visible, MAX_PAGE_READS);
             }
-
-            // Filtrado por audiencia para guardian/student u otros roles sin permiso explícito
-            if (shouldRestrictToAudience(user)) {
-                AudienceContext ctx = resolveAudienceContext(user, studentId);
-                return all.stream()
-                        .filter(ev -> isAudience(ctx.audienceKeys, ctx.groupIds, ev))
-                        .collect(Collectors.toList());
+            if (visible == ALL_EVENTS) {
+                return visiblePage(sorted.offset(skip), sorted, 0, safeSize, visible, MAX_PAGE_READS);
             }
-
-            return all;
+            // con filtro el offset de Firestore contaría eventos ocultos: se saltan eventos visibles
+            return visiblePage(sorted, sorted, skip, safeSize, visible, MAX_OFFSET_READS);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error listando eventos", e);
         } catch (Exception ex) {
-            // si hay errores de índice, hacer fallback sin orderBy
+            // si hay errores de índice, hacer fallback sin orderBy (sin orden no hay cursor)
             try {
                 ApiFuture<QuerySnapshot> future = query
                         .offset((safePage - 1) * safeSize)
                         .limit(safeSize)
                         .get();
                 List<QueryDocumentSnapshot> docs = future.get().getDocuments();
-                List<EventDto> all = docs.stream().map(doc -> {
-                    EventDocument ev = doc.toObject(EventDocument.class);
-                    ev.setId(doc.getId());
-                    return toDto(ev);
-                }).collect(Collectors.toList());
-                if (isTeacher) {
-                    final String email = user.email();
-                    final String uid = teacherUserId;
-                    return all.stream()
-                            .filter(ev -> isTeacherEvent(ev, email, uid, allowedGroups))
-                            .collect(Collectors.toList());
-                }
-                if (shouldRestrictToAudience(user)) {
-                    AudienceContext ctx = resolveAudienceContext(user, studentId);
-                    return all.stream()
-                            .filter(ev -> isAudience(ctx.audienceKeys, ctx.groupIds, ev))
-                            .collect(Collectors.toList());
-                }
-                return all;
+                return new EventPage(visibleEvents(docs, user, studentId, teacherUserId, allowedGroups), null);
             } catch (InterruptedException | ExecutionException e2) {
                 Thread.currentThread().interrupt();
                 throw new RuntimeException("Error listando eventos", e2);
@@ -148,6 +133,76 @@ public class EventService {
         }
     }
 
+    /**
+     * Lee desde {@code first}, salta {@code skip} eventos visibles y junta {@code size}, leyendo a lo
+     * más {@code maxReads} documentos. Con la página llena el cursor apunta al último evento devuelto;
+     * si se cortó por el tope, al último documento leído, para no volver a revisar los descartados.
+     */
+    private EventPage visiblePage(Query first, Query sorted, int skip, int size, Predicate<EventDto> visible, int maxReads)
+            throws InterruptedException, ExecutionException {
+        List<EventDto> items = new ArrayList<>();
+        DocumentSnapshot lastReturned = null;
+        DocumentSnapshot lastRead = null;
+        int reads = 0;
+        int skipped = 0;
+        Query next = first;
+        while (reads < maxReads) {
+            int batch = Math.min(Math.max(size + 1, Math.min(skip - skipped, 200)), maxReads - reads);
+            List<QueryDocumentSnapshot> docs = next.limit(batch).get().get().getDocuments();
+            for (int i = 0; i < docs.size(); i++) {
+                QueryDocumentSnapshot doc = docs.get(i);
+                reads++;
+                lastRead = doc;
+                EventDto ev = toDto(doc);
+                if (!visible.test(ev)) continue;
+                if (skipped < skip) {
+                    skipped++;
+                    continue;
+                }
+                items.add(ev);
+                lastReturned = doc;
+                if (items.size() == size) {
+                    boolean more = i < docs.size() - 1 || docs.size() == batch;
+                    return new EventPage(items, more ? PageCursor.of(lastReturned, "startDateTime") : null);
+                }
+            }
+            if (docs.size() < batch) {
+                return new EventPage(items, null);
+            }
+            next = sorted.startAfter(lastRead);
+        }
+        return new EventPage(items, PageCursor.of(lastRead, "startDateTime"));
+    }
+
+    private List<EventDto> visibleEvents(List<QueryDocumentSnapshot> docs, CurrentUser user, String studentId, String teacherUserId, List<String> allowedGroups) {
+        return docs.stream()
+                .map(this::toDto)
+                .filter(visibility(user, studentId, teacherUserId, allowedGroups))
+                .collect(Collectors.toList());
+    }
+
+    private Predicate<EventDto> visibility(CurrentUser user, String studentId, String teacherUserId, List<String> allowedGroups) {
+        String role = user.role() != null ? user.role().toUpperCase() : "";
+        if (role.equals("TEACHER")) {
+            final String email = user.email();
+            return ev -> isTeacherEvent(ev, email, teacherUserId, allowedGroups);
+        }
+
+        // Filtrado por audiencia para guardian/student u otros roles sin permiso explícito
+        if (shouldRestrictToAudience(user)) {
+            AudienceContext ctx = resolveAudienceContext(user, studentId);
+            return ev -> isAudience(ctx, ev);
+        }
+
+        return ALL_EVENTS;
+    }
+
+    private EventDto toDto(DocumentSnapshot doc) {
+        EventDocument ev = doc.toObject(EventDocument.class);
+        ev.setId(doc.getId());
+        return toDto(ev);
+    }
+
     public void delete(String eventId, CurrentUser user) {
         if (eventId == null || eventId.isBlank()) {
             throw new org.springframework.web.server.ResponseStatusException(HttpStatus.BAD_REQUEST, "ID requerido");
@@ -155,17 +210,12 @@ public class EventService {
         String role = user.role() != null ? user.role().toUpperCase() : "";
         try {
             EventDocument ev = null;
-            QueryDocumentSnapshot docSnapshot = null;
-
-            // 1) Buscar por campo "id" en collectionGroup (evita problemas de documentId en group)
-            QuerySnapshot snapshot = firestore
-                    .collectionGroup("events")
-                    .whereEqualTo("id", eventId)
-                    .limit(1)
-                    .get()
-                    .get();
-            if (!snapshot.isEmpty()) {
-                docSnapshot = snapshot.getDocuments().get(0);
+            DocumentSnapshot docSnapshot = null;
+
+            // 1) Ubicar por id (locator o collectionGroup por campo "id", evita problemas de documentId en group)
+            var located = entityLocator.find("events", eventId);
+            if (located.isPresent()) {
+                docSnapshot = located.get();
                 ev = docSnapshot.toObject(EventDocument.class);
                 if (ev != null) {
                     ev.setId(docSnapshot.getId());
@@ -211,6 +261,7 @@ public class EventService {
             } else {
                 throw new org.springframework.web.server.ResponseStatusException(HttpStatus.NOT_FOUND, "Evento no encontrado");
             }
+            entityLocator.forget("events", eventId);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error eliminando evento", e);
@@ -223,57 +274,57 @@ public class EventService {
         return role.equals("GUARDIAN") || role.equals("STUDENT");
     }
 
-    private boolean isAudience(List<String> audienceKeys, List<String> groupIds, EventDto ev) {
-        if (audienceKeys == null || audienceKeys.isEmpty()) return false;
-        if (ev.audienceUserIds() != null && !ev.audienceUserIds().isEmpty()) {
-            for (String key : audienceKeys) {
-                if (key == null || key.isBlank()) continue;
-                for (String aud : ev.audienceUserIds()) {
-                    if (matchesAudienceKey(aud, key)) return true;
-                }
+    private boolean isAudience(AudienceContext ctx, EventDto ev) {
+        if (ctx.audienceKeys.isEmpty()) return false;
+        if (ev.audienceUserIds() != null) {
+            for (String aud : ev.audienceUserIds()) {
+                String key = audienceKey(aud);
+                if (key != null && ctx.audienceKeys.contains(key)) return true;
             }
         }
-        if (ev.audienceGroupIds() != null && !ev.audienceGroupIds().isEmpty()) {
+        if (ev.audienceGroupIds() != null) {
             for (String gid : ev.audienceGroupIds()) {
-                if (groupIds.contains(gid)) return true;
+                if (ctx.groupIds.contains(gid)) return true;
             }
         }
         // si no hay audiencia definida, no lo mostramos
         return false;
     }
 
-    private boolean matchesAudienceKey(String aud, String key) {
-        if (aud == null || key == null) return false;
-        String a = aud.trim();
-        String k = key.trim();
-        if (a.isEmpty() || k.isEmpty()) return false;
-        boolean emailLike = a.contains("@") || k.contains("@");
-        return emailLike ? a.equalsIgnoreCase(k) : a.equals(k);
+    /**
+     * Clave comparable de un destinatario: los correos no distinguen mayúsculas, los ids sí.
+     */
+    private static String audienceKey(String raw) {
+        if (raw == null) return null;
+        String value = raw.trim();
+        if (value.isEmpty()) return null;
+        return value.contains("@") ? value.toLowerCase() : value;
     }
 
-    private record AudienceContext(List<String> audienceKeys, List<String> groupIds) {}
+    // claves normalizadas con audienceKey, para revisar cada destinatario del evento con un contains
+    private record AudienceContext(java.util.Set<String> audienceKeys, java.util.Set<String> groupIds) {}
 
     private AudienceContext resolveAudienceContext(CurrentUser user, String studentId) {
         if (user == null || user.email() == null || user.email().isBlank()) {
-            return new AudienceContext(List.of(), List.of());
+            return new AudienceContext(java.util.Set.of(), java.util.Set.of());
         }
         String email = user.email().trim().toLowerCase();
         if (studentId != null && !studentId.isBlank()) {
             StudentDocument student = studentService != null ? studentService.findById(studentId).orElse(null) : null;
             if (student == null) {
-                return new AudienceContext(List.of(), List.of());
+                return new AudienceContext(java.util.Set.of(), java.util.Set.of());
             }
             if (!isLinkedToStudent(student, email)) {
-                return new AudienceContext(List.of(), List.of());
+                return new AudienceContext(java.util.Set.of(), java.util.Set.of());
             }
             java.util.Set<String> keys = new java.util.HashSet<>();
-            keys.add(student.getId());
+            keys.add(audienceKey(student.getId()));
             if (student.getEmail() != null && !student.getEmail().isBlank()) {
                 keys.add(student.getEmail().trim().toLowerCase());
             }
             keys.add(email);
             List<String> groups = resolveGroupIdsForKeys(keys, student.getSchoolId());
-            return new AudienceContext(new ArrayList<>(keys), groups);
+            return new AudienceContext(keys, new java.util.HashSet<>(groups));
         }
         java.util.Set<String> keys = new java.util.HashSet<>();
         keys.add(email);
@@ -282,7 +333,7 @@ public class EventService {
             for (StudentDocument s : linked) {
                 if (s == null) continue;
                 if (s.getId() != null && !s.getId().isBlank()) {
-                    keys.add(s.getId());
+                    keys.add(audienceKey(s.getId()));
                 }
                 if (s.getEmail() != null && !s.getEmail().isBlank()) {
                     keys.add(s.getEmail().trim().toLowerCase());
@@ -290,7 +341,7 @@ public class EventService {
             }
         }
         List<String> groups = resolveGroupIdsForKeys(keys, user.schoolId());
-        return new AudienceContext(new ArrayList<>(keys), groups);
+        return new AudienceContext(keys, new java.util.HashSet<>(groups));
     }
 
     private boolean isLinkedToStudent(StudentDocument student, String email) {
@@ -307,13 +358,8 @@ public class EventService {
 
     private List<String> resolveGroupIdsForKeys(java.util.Set<String> keys, String schoolId) {
         if (keys == null || keys.isEmpty()) return List.of();
-        java.util.Set<String> groups = new java.util.HashSet<>();
         String targetSchool = (schoolId == null || schoolId.isBlank()) ? "global" : schoolId;
-        for (String key : keys) {
-            if (key == null || key.isBlank()) continue;
-            groups.addAll(groupService.findGroupsForMember(key, targetSchool));
-        }
-        return new ArrayList<>(groups);
+        return new ArrayList<>(groupService.findGroupsForMembers(keys, targetSchool));
     }
 
     public EventDto create(EventRequest request, CurrentUser user) {
@@ -370,6 +416,7 @@ public class EventService {
         try {
             DocumentReference ref = tenantEvents(schoolId).document(ev.getId());
             ref.set(ev).get();
+            entityLocator.remember(ref);
             return toDto(ev);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -0,0 +1,306 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteBatch;
+import com.notiflow.model.GroupDocument;
+import com.notiflow.util.BatchLoader;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Consumer;
+
+/**
+ * Miembros de un grupo repartidos en documentos {@code memberShards/{n}} bajo el grupo, cada miembro
+ * en el shard que indica su hash. El grupo guarda solo cuántos shards tiene, el total de miembros y
+ * una versión, así su documento no crece con los miembros y agregar o quitar uno reescribe solo su
+ * shard. Los grupos con {@code memberIds} en el mismo documento se leen igual y pasan a shards en la
+ * próxima escritura. Las altas y bajas se reflejan también en {@link GroupMembershipIndex}.
+ */
+@Service
+public class GroupMemberStore {
+
+    public static final String COLLECTION = "memberShards";
+    // ~40 bytes por correo: 5000 miembros son ~200 KB por shard, lejos del límite de 1 MB
+    private static final int SHARD_CAPACITY = 5000;
+    // con altas incrementales un shard puede llegar al doble antes de repartir en más shards
+    private static final int MAX_SHARD_FILL = SHARD_CAPACITY * 2;
+
+    /**
+     * Miembros antes y después de una escritura. En {@link #apply} solo cubre los shards tocados.
+     */
+    public record Change(List<String> previous, List<String> members) {}
+
+    private final Firestore firestore;
+    private final GroupMembershipIndex membershipIndex;
+
+    public GroupMemberStore(Firestore firestore, GroupMembershipIndex membershipIndex) {
+        this.firestore = firestore;
+        this.membershipIndex = membershipIndex;
+    }
+
+    public List<String> load(DocumentReference groupRef, GroupDocument g) throws InterruptedException, ExecutionException {
+        if (g.getMemberShards() == null) return inline(g);
+        List<String> members = new ArrayList<>();
+        for (DocumentSnapshot snap : firestore.getAll(shardRefs(groupRef, g.getMemberShards())).get()) {
+            members.addAll(shardMembers(snap));
+        }
+        return members;
+    }
+
+    /**
+     * {@link #load} para una página de grupos: todos los shards se piden en los mismos getAll.
+     * El resultado va por ruta del grupo.
+     */
+    public Map<String, List<String>> loadAll(Map<DocumentReference, GroupDocument> groups) throws InterruptedException, ExecutionException {
+        Map<String, List<String>> result = new HashMap<>();
+        List<String> shardPaths = new ArrayList<>();
+        for (Map.Entry<DocumentReference, GroupDocument> entry : groups.entrySet()) {
+            GroupDocument g = entry.getValue();
+            if (g.getMemberShards() == null) {
+                result.put(entry.getKey().getPath(), inline(g));
+                continue;
+            }
+            for (DocumentReference ref : shardRefs(entry.getKey(), g.getMemberShards())) {
+                shardPaths.add(ref.getPath());
+            }
+        }
+        if (shardPaths.isEmpty()) return result;
+        Map<String, DocumentSnapshot> shards = BatchLoader.documents(firestore).loadAll(shardPaths);
+        for (Map.Entry<DocumentReference, GroupDocument> entry : groups.entrySet()) {
+            GroupDocument g = entry.getValue();
+            if (g.getMemberShards() == null) continue;
+            List<String> members = new ArrayList<>();
+            for (DocumentReference ref : shardRefs(entry.getKey(), g.getMemberShards())) {
+                members.addAll(shardMembers(shards.get(ref.getPath())));
+            }
+            result.put(entry.getKey().getPath(), members);
+        }
+        return result;
+    }
+
+    /**
+     * Entrega los miembros shard por shard, sin juntar el grupo completo en memoria.
+     */
+    public void forEachChunk(DocumentReference groupRef, GroupDocument g, Consumer<List<String>> consumer) throws InterruptedException, ExecutionException {
+        if (g.getMemberShards() == null) {
+            List<String> members = inline(g);
+            if (!members.isEmpty()) consumer.accept(members);
+            return;
+        }
+        for (DocumentReference ref : shardRefs(groupRef, g.getMemberShards())) {
+            List<String> members = shardMembers(ref.get().get());
+            if (!members.isEmpty()) consumer.accept(members);
+        }
+    }
+
+    /**
+     * Guarda el grupo con el conjunto completo de miembros. Solo se reescriben los shards cuyo
+     * contenido cambia; el grupo queda sin {@code memberIds} en el documento, pero el objeto en
+     * memoria vuelve con los miembros cargados.
+     */
+    public Change write(DocumentReference groupRef, GroupDocument g, Collection<String> members) throws InterruptedException, ExecutionException {
+        List<String> next = distinct(members);
+        Integer previousShards = g.getMemberShards();
+        List<List<String>> previousLists = new ArrayList<>();
+        List<String> previous;
+        if (previousShards == null) {
+            previous = inline(g);
+        } else {
+            previous = new ArrayList<>();
+            for (DocumentSnapshot snap : firestore.getAll(shardRefs(groupRef, previousShards)).get()) {
+                List<String> shard = shardMembers(snap);
+                previousLists.add(shard);
+                previous.addAll(shard);
+            }
+        }
+        int shards = shardCountFor(next.size());
+        List<List<String>> nextLists = partition(next, shards);
+        boolean sameLayout = previousShards != null && previousShards == shards;
+
+        WriteBatch batch = firestore.batch();
+        for (int i = 0; i < shards; i++) {
+            if (sameLayout && new HashSet<>(previousLists.get(i)).equals(new HashSet<>(nextLists.get(i)))) continue;
+            batch.set(shardRef(groupRef, i), shardFields(groupRef, g, nextLists.get(i)));
+        }
+        if (previousShards != null) {
+            for (int i = shards; i < previousShards; i++) {
+                batch.delete(shardRef(groupRef, i));
+            }
+        }
+        g.setMemberIds(null);
+        g.setMemberShards(shards);
+        g.setMemberCount((long) next.size());
+        g.setMembersVersion((g.getMembersVersion() == null ? 0 : g.getMembersVersion()) + 1);
+        batch.set(groupRef, g);
+        batch.commit().get();
+        membershipIndex.record(g.getSchoolId(), groupRef.getId(), previous, next);
+        g.setMemberIds(next);
+        return new Change(previous, next);
+    }
+
+    /**
+     * Agrega y quita miembros dentro de una transacción que ya leyó el grupo: lee solo los shards
+     * tocados y deja en {@code groupFields} (que se escribe aquí con un update) el total y la versión.
+     * Un grupo con miembros en línea o con shards demasiado llenos se reparte completo.
+     */
+    public Change apply(Transaction tx, DocumentReference groupRef, GroupDocument g, Set<String> added, Set<String> removed, Map<String, Object> groupFields)
+            throws InterruptedException, ExecutionException {
+        Integer currentShards = g.getMemberShards();
+        List<String> previous;
+        List<String> next;
+        if (currentShards != null) {
+            Set<Integer> touched = new TreeSet<>();
+            for (String member : added) touched.add(shardOf(member, currentShards));
+            for (String member : removed) touched.add(shardOf(member, currentShards));
+            List<Integer> indexes = new ArrayList<>(touched);
+            List<DocumentSnapshot> snaps = indexes.isEmpty()
+                    ? List.of()
+                    : tx.getAll(indexes.stream().map(i -> shardRef(groupRef, i)).toArray(DocumentReference[]::new)).get();
+            Map<Integer, List<String>> before = new HashMap<>();
+            for (int k = 0; k < indexes.size(); k++) {
+                before.put(indexes.get(k), shardMembers(snaps.get(k)));
+            }
+            Map<Integer, List<String>> after = new HashMap<>();
+            long delta = 0;
+            for (Integer i : indexes) {
+                LinkedHashSet<String> shard = new LinkedHashSet<>(before.get(i));
+                for (String member : added) {
+                    if (shardOf(member, currentShards) == i) shard.add(member);
+                }
+                shard.removeAll(removed);
+                after.put(i, List.copyOf(shard));
+                delta += shard.size() - before.get(i).size();
+            }
+            long count = (g.getMemberCount() == null ? 0 : g.getMemberCount()) + delta;
+            boolean overfull = after.values().stream().anyMatch(shard -> shard.size() > MAX_SHARD_FILL);
+            if (!overfull) {
+                previous = new ArrayList<>();
+                next = new ArrayList<>();
+                for (Integer i : indexes) {
+                    previous.addAll(before.get(i));
+                    next.addAll(after.get(i));
+                    tx.set(shardRef(groupRef, i), shardFields(groupRef, g, after.get(i)));
+                }
+                groupFields.put("memberCount", count);
+                groupFields.put("membersVersion", (g.getMembersVersion() == null ? 0 : g.getMembersVersion()) + 1);
+                tx.update(groupRef, groupFields);
+                membershipIndex.record(tx, g.getSchoolId(), groupRef.getId(), previous, next);
+                return new Change(previous, next);
+            }
+            // shard lleno: se leen los demás y se reparte todo en más shards
+            previous = new ArrayList<>();
+            for (int i = 0; i < currentShards; i++) {
+                previous.addAll(before.containsKey(i) ? before.get(i) : shardMembers(tx.get(shardRef(groupRef, i)).get()));
+            }
+        } else {
+            previous = inline(g);
+        }
+        LinkedHashSet<String> all = new LinkedHashSet<>(previous);
+        all.addAll(added);
+        all.removeAll(removed);
+        next = List.copyOf(all);
+        int shards = shardCountFor(next.size());
+        List<List<String>> lists = partition(next, shards);
+        for (int i = 0; i < shards; i++) {
+            tx.set(shardRef(groupRef, i), shardFields(groupRef, g, lists.get(i)));
+        }
+        if (currentShards != null) {
+            for (int i = shards; i < currentShards; i++) {
+                tx.delete(shardRef(groupRef, i));
+            }
+        }
+        groupFields.put("memberIds", FieldValue.delete());
+        groupFields.put("memberShards", shards);
+        groupFields.put("memberCount", (long) next.size());
+        groupFields.put("membersVersion", (g.getMembersVersion() == null ? 0 : g.getMembersVersion()) + 1);
+        tx.update(groupRef, groupFields);
+        membershipIndex.record(tx, g.getSchoolId(), groupRef.getId(), previous, next);
+        return new Change(previous, next);
+    }
+
+    /**
+     * Agrega al batch el borrado de los shards; el documento del grupo lo borra el llamador.
+     */
+    public void delete(WriteBatch batch, DocumentReference groupRef, GroupDocument g) {
+        if (g.getMemberShards() == null) return;
+        for (DocumentReference ref : shardRefs(groupRef, g.getMemberShards())) {
+            batch.delete(ref);
+        }
+    }
+
+    static int shardCountFor(int members) {
+        int needed = Math.max(1, (members + SHARD_CAPACITY - 1) / SHARD_CAPACITY);
+        // potencia de dos, para que crecer reparta parejo
+        return Integer.bitCount(needed) == 1 ? needed : Integer.highestOneBit(needed) << 1;
+    }
+
+    static int shardOf(String member, int shards) {
+        return Math.floorMod(member.hashCode(), shards);
+    }
+
+    private static List<List<String>> partition(List<String> members, int shards) {
+        List<List<String>> lists = new ArrayList<>(shards);
+        for (int i = 0; i < shards; i++) {
+            lists.add(new ArrayList<>());
+        }
+        for (String member : members) {
+            lists.get(shardOf(member, shards)).add(member);
+        }
+        return lists;
+    }
+
+    private static List<String> distinct(Collection<String> members) {
+        if (members == null) return List.of();
+        LinkedHashSet<String> result = new LinkedHashSet<>();
+        for (String member : members) {
+            if (member != null && !member.isBlank()) {
+                result.add(member);
+            }
+        }
+        return List.copyOf(result);
+    }
+
+    private static List<String> inline(GroupDocument g) {
+        return g.getMemberIds() == null ? List.of() : g.getMemberIds();
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> shardMembers(DocumentSnapshot snap) {
+        if (snap == null || !snap.exists()) return List.of();
+        Object value = snap.get("memberIds");
+        return value instanceof List<?> list ? (List<String>) list : List.of();
+    }
+
+    private static Map<String, Object> shardFields(DocumentReference groupRef, GroupDocument g, List<String> members) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("groupId", groupRef.getId());
+        fields.put("schoolId", g.getSchoolId());
+        fields.put("memberIds", members);
+        return fields;
+    }
+
+    private static DocumentReference shardRef(DocumentReference groupRef, int index) {
+        return groupRef.collection(COLLECTION).document(String.valueOf(index));
+    }
+
+    private static DocumentReference[] shardRefs(DocumentReference groupRef, int shards) {
+        DocumentReference[] refs = new DocumentReference[shards];
+        for (int i = 0; i < shards; i++) {
+            refs[i] = shardRef(groupRef, i);
+        }
+        return refs;
+    }
+}
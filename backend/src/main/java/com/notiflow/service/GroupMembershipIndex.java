@@ -0,0 +1,240 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteBatch;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Índice inverso miembro → grupos por colegio, en tenants/{schoolId}/memberGroups/{miembro} con el
+ * arreglo {@code groupIds}. Lo mantiene {@link GroupMemberStore} con cada cambio de miembros, así los
+ * grupos de un apoderado o alumno salen de un getAll de sus claves en vez de una consulta por clave.
+ * Las lecturas pasan por una caché local acotada que se actualiza con las escrituras de esta instancia
+ * y vence cada {@code app.roster.ttl-minutes} para recoger las de otras.
+ */
+@Service
+public class GroupMembershipIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(GroupMembershipIndex.class);
+    public static final String COLLECTION = "memberGroups";
+    // documento que marca un colegio ya indexado; no choca con correos ni ids de alumno
+    private static final String BUILT_MARKER = "_index";
+    private static final int BATCH_LIMIT = 400;
+
+    private record Entry(Set<String> groupIds, long loadedAt) {}
+
+    private final Firestore firestore;
+    private final long ttlMs;
+    private final Map<String, Entry> cache;
+    private final Set<String> builtTenants = ConcurrentHashMap.newKeySet();
+
+    public GroupMembershipIndex(
+            Firestore firestore,
+            @Value("${app.roster.ttl-minutes:10}") long ttlMinutes,
+            @Value("${app.groups.member-index-cache-size:50000}") int cacheSize
+    ) {
+        this.firestore = firestore;
+        this.ttlMs = Duration.ofMinutes(Math.max(1, ttlMinutes)).toMillis();
+        int capacity = Math.max(100, cacheSize);
+        this.cache = java.util.Collections.synchronizedMap(new LinkedHashMap<>(1024, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > capacity;
+            }
+        });
+    }
+
+    /**
+     * Grupos del colegio que contienen alguna de las claves; las que no están en caché se leen en un
+     * solo getAll.
+     */
+    public Set<String> groupsFor(String schoolId, Collection<String> keys) throws InterruptedException, ExecutionException {
+        String tenant = tenant(schoolId);
+        Set<String> result = new LinkedHashSet<>();
+        List<String> missing = new ArrayList<>();
+        long now = System.currentTimeMillis();
+        for (String key : keys) {
+            if (!isIndexable(key)) continue;
+            Entry entry = cache.get(cacheKey(tenant, key));
+            if (entry != null && now - entry.loadedAt() < ttlMs) {
+                result.addAll(entry.groupIds());
+            } else {
+                missing.add(key);
+            }
+        }
+        if (missing.isEmpty()) return result;
+        DocumentReference[] refs = missing.stream().map(key -> memberRef(tenant, key)).toArray(DocumentReference[]::new);
+        List<DocumentSnapshot> snaps = firestore.getAll(refs).get();
+        for (int i = 0; i < snaps.size(); i++) {
+            Set<String> groupIds = groupIds(snaps.get(i));
+            cache.put(cacheKey(tenant, missing.get(i)), new Entry(groupIds, now));
+            result.addAll(groupIds);
+        }
+        return result;
+    }
+
+    /**
+     * Si el colegio ya tiene índice; la marca se recuerda en memoria después de verla una vez.
+     */
+    public boolean isBuilt(String schoolId) throws InterruptedException, ExecutionException {
+        String tenant = tenant(schoolId);
+        if (builtTenants.contains(tenant)) return true;
+        if (memberRef(tenant, BUILT_MARKER).get().get().exists()) {
+            builtTenants.add(tenant);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reescribe el índice completo del colegio a partir de los miembros de cada grupo y deja la marca.
+     */
+    public void rebuild(String schoolId, Map<String, List<String>> membersByGroup) throws InterruptedException, ExecutionException {
+        String tenant = tenant(schoolId);
+        Map<String, Set<String>> byMember = new HashMap<>();
+        for (Map.Entry<String, List<String>> entry : membersByGroup.entrySet()) {
+            for (String member : entry.getValue()) {
+                if (!isIndexable(member)) continue;
+                byMember.computeIfAbsent(member, k -> new LinkedHashSet<>()).add(entry.getKey());
+            }
+        }
+        WriteBatch batch = firestore.batch();
+        int pending = 0;
+        for (Map.Entry<String, Set<String>> entry : byMember.entrySet()) {
+            batch.set(memberRef(tenant, entry.getKey()), fields(tenant, new ArrayList<>(entry.getValue())));
+            if (++pending == BATCH_LIMIT) {
+                batch.commit().get();
+                batch = firestore.batch();
+                pending = 0;
+            }
+        }
+        batch.set(memberRef(tenant, BUILT_MARKER), Map.<String, Object>of("schoolId", tenant, "builtAt", System.currentTimeMillis()));
+        batch.commit().get();
+        builtTenants.add(tenant);
+        long now = System.currentTimeMillis();
+        byMember.forEach((member, groupIds) -> cache.put(cacheKey(tenant, member), new Entry(Set.copyOf(groupIds), now)));
+        log.info("Índice de grupos por miembro de {}: {} miembros en {} grupos", tenant, byMember.size(), membersByGroup.size());
+    }
+
+    /**
+     * Registra altas y bajas de un grupo en lotes propios; el índice se deriva de los shards, así que
+     * no necesita ir en el mismo batch que ellos.
+     */
+    public void record(String schoolId, String groupId, Collection<String> previous, Collection<String> members)
+            throws InterruptedException, ExecutionException {
+        String tenant = tenant(schoolId);
+        Set<String> before = new HashSet<>(previous);
+        Set<String> after = new HashSet<>(members);
+        List<String> touched = new ArrayList<>();
+        WriteBatch batch = firestore.batch();
+        int pending = 0;
+        for (String member : after) {
+            if (before.contains(member) || !isIndexable(member)) continue;
+            batch.set(memberRef(tenant, member), fields(tenant, FieldValue.arrayUnion(groupId)), SetOptions.merge());
+            touched.add(member);
+            if (++pending == BATCH_LIMIT) {
+                batch.commit().get();
+                batch = firestore.batch();
+                pending = 0;
+            }
+        }
+        for (String member : before) {
+            if (after.contains(member) || !isIndexable(member)) continue;
+            batch.set(memberRef(tenant, member), fields(tenant, FieldValue.arrayRemove(groupId)), SetOptions.merge());
+            touched.add(member);
+            if (++pending == BATCH_LIMIT) {
+                batch.commit().get();
+                batch = firestore.batch();
+                pending = 0;
+            }
+        }
+        if (pending > 0) {
+            batch.commit().get();
+        }
+        forget(tenant, touched);
+    }
+
+    /**
+     * {@link #record} dentro de una transacción que ya hizo sus lecturas; la caché de esas claves se
+     * descarta con {@link #forget(String, Collection)} después del commit.
+     */
+    public void record(Transaction tx, String schoolId, String groupId, Collection<String> previous, Collection<String> members) {
+        String tenant = tenant(schoolId);
+        Set<String> before = new HashSet<>(previous);
+        Set<String> after = new HashSet<>(members);
+        for (String member : after) {
+            if (before.contains(member) || !isIndexable(member)) continue;
+            tx.set(memberRef(tenant, member), fields(tenant, FieldValue.arrayUnion(groupId)), SetOptions.merge());
+        }
+        for (String member : before) {
+            if (after.contains(member) || !isIndexable(member)) continue;
+            tx.set(memberRef(tenant, member), fields(tenant, FieldValue.arrayRemove(groupId)), SetOptions.merge());
+        }
+    }
+
+    public void forget(String schoolId, Collection<String> members) {
+        String tenant = tenant(schoolId);
+        for (String member : members) {
+            if (member != null) cache.remove(cacheKey(tenant, member));
+        }
+    }
+
+    private DocumentReference memberRef(String tenant, String member) {
+        return firestore.collection("tenants").document(tenant).collection(COLLECTION).document(member);
+    }
+
+    // groupIds es la lista completa o un arrayUnion / arrayRemove
+    private static Map<String, Object> fields(String tenant, Object groupIds) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("schoolId", tenant);
+        fields.put("groupIds", groupIds);
+        return fields;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Set<String> groupIds(DocumentSnapshot snap) {
+        if (snap == null || !snap.exists()) return Set.of();
+        Object value = snap.get("groupIds");
+        if (!(value instanceof List<?> list)) return Set.of();
+        Set<String> result = new HashSet<>();
+        for (Object id : list) {
+            if (id instanceof String s && !s.isBlank()) result.add(s);
+        }
+        return result;
+    }
+
+    // ids de documento de Firestore: sin "/", ni "." / "..", ni la forma reservada __x__
+    private static boolean isIndexable(String member) {
+        if (member == null || member.isBlank() || member.contains("/")) return false;
+        if (member.equals(".") || member.equals("..") || member.equals(BUILT_MARKER)) return false;
+        return !(member.startsWith("__") && member.endsWith("__"));
+    }
+
+    private static String tenant(String schoolId) {
+        return schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+    }
+
+    private static String cacheKey(String tenant, String member) {
+        return tenant + "|" + member;
+    }
+}
@@ -2,28 +2,42 @@ package com.notiflow.service;
 
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.FirestoreException;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.AggregateQuery;
 import com.google.cloud.firestore.AggregateQuerySnapshot;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
 import com.notiflow.dto.GroupDto;
 import com.notiflow.dto.GroupListResponse;
 import com.notiflow.dto.GroupRequest;
 import com.notiflow.model.GroupDocument;
-import com.notiflow.util.SearchUtils;
+import com.notiflow.model.StudentDocument;
+import com.notiflow.model.UserDocument;
+import com.notiflow.util.PageCursor;
+import com.notiflow.util.SearchQuery;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.stereotype.Service;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.Year;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
 import java.util.Set;
+import java.util.TreeSet;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
 
@@ -33,43 +47,100 @@ public class GroupService {
     private final Firestore firestore;
     private final StudentService studentService;
     private final UserService userService;
+    private final PushTopicService pushTopicService;
+    private final EntityLocator entityLocator;
+    private final RosterIndex rosterIndex;
+    private final GroupMemberStore groupMemberStore;
+    private final GroupMembershipIndex membershipIndex;
+    private final AudienceIndex audienceIndex;
+    private final long driftCheckMs;
+    // última revisión de conteos por colegio|año, para no hacer count() en cada listado
+    private final Map<String, Long> driftCheckedAt = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(GroupService.class);
     private static final int MAX_SEARCH_SCAN = 5000;
     public static final String SYSTEM_ALL_STUDENTS = "ALL_STUDENTS";
     public static final String SYSTEM_ALL_COMMUNITY = "ALL_COMMUNITY";
     public static final String SYSTEM_STAFF = "STAFF";
-
-    public GroupService(Firestore firestore, StudentService studentService, UserService userService) {
+    private static final List<String> SYSTEM_TYPES = List.of(SYSTEM_ALL_STUDENTS, SYSTEM_ALL_COMMUNITY, SYSTEM_STAFF);
+
+    private record SystemKey(String schoolId, String year) {}
+
+    private record SystemChange(String pushTopic, List<String> previous, List<String> members) {}
+
+    public GroupService(
+            Firestore firestore,
+            StudentService studentService,
+            UserService userService,
+            @Lazy PushTopicService pushTopicService,
+            EntityLocator entityLocator,
+            RosterIndex rosterIndex,
+            GroupMemberStore groupMemberStore,
+            GroupMembershipIndex membershipIndex,
+            AudienceIndex audienceIndex,
+            @Value("${app.groups.drift-check-minutes:10}") long driftCheckMinutes
+    ) {
         this.firestore = firestore;
         this.studentService = studentService;
         this.userService = userService;
+        this.pushTopicService = pushTopicService;
+        this.entityLocator = entityLocator;
+        this.rosterIndex = rosterIndex;
+        this.groupMemberStore = groupMemberStore;
+        this.membershipIndex = membershipIndex;
+        this.audienceIndex = audienceIndex;
+        this.driftCheckMs = Duration.ofMinutes(Math.max(1, driftCheckMinutes)).toMillis();
     }
 
-    public List<String> findGroupsForMember(String email, String schoolId) {
-        if (email == null || email.isBlank()) return List.of();
+    /**
+     * Grupos del colegio que contienen alguna de las claves (ids de alumno o correos), desde el
+     * índice inverso por miembro. La primera consulta de un colegio sin índice lo arma completo.
+     */
+    public Set<String> findGroupsForMembers(java.util.Collection<String> keys, String schoolId) {
+        if (keys == null || keys.isEmpty()) return Set.of();
         try {
-            var query = firestore.collectionGroup("groups")
-                    .whereEqualTo("schoolId", schoolId)
-                    .whereArrayContains("memberIds", email);
-            ApiFuture<QuerySnapshot> future = query.limit(50).get();
-            return future.get().getDocuments().stream().map(QueryDocumentSnapshot::getId).collect(Collectors.toList());
-        } catch (Exception e) {
-            return List.of();
+            if (!membershipIndex.isBuilt(schoolId)) {
+                rebuildMembershipIndex(schoolId);
+            }
+            return membershipIndex.groupsFor(schoolId, keys);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("No se pudieron leer los grupos por miembro de {}: {}", schoolId, e.getMessage());
+            return Set.of();
         }
     }
 
-    public GroupListResponse listBySchool(String schoolId, String year, String query, int page, int pageSize) {
+    private void rebuildMembershipIndex(String schoolId) throws InterruptedException, ExecutionException {
+        Map<DocumentReference, GroupDocument> groups = new java.util.LinkedHashMap<>();
+        // collectionGroup para incluir grupos legacy fuera de tenants/{schoolId}/groups
+        for (QueryDocumentSnapshot doc : firestore.collectionGroup("groups")
+                .whereEqualTo("schoolId", schoolId)
+                .get().get().getDocuments()) {
+            GroupDocument g = doc.toObject(GroupDocument.class);
+            if (g != null) groups.put(doc.getReference(), g);
+        }
+        Map<String, List<String>> members = groupMemberStore.loadAll(groups);
+        Map<String, List<String>> byGroup = new HashMap<>();
+        for (DocumentReference ref : groups.keySet()) {
+            byGroup.put(ref.getId(), members.getOrDefault(ref.getPath(), List.of()));
+        }
+        membershipIndex.rebuild(schoolId, byGroup);
+    }
+
+    public GroupListResponse listBySchool(String schoolId, String year, String query, int page, int pageSize, String cursor) {
         ensureDefaultGroups(schoolId, year);
         var baseCollection = tenantGroups(schoolId);
         var filtered = (year != null && !year.isBlank())
                 ? baseCollection.whereEqualTo("year", year)
                 : baseCollection;
-        return fetch(filtered, query, page, pageSize);
+        return fetch(filtered, query, page, pageSize, cursor);
     }
 
     public int rebuildCourseGroups(String schoolId, String year) {
         if (schoolId == null || schoolId.isBlank()) return 0;
         String resolvedYear = (year == null || year.isBlank()) ? String.valueOf(Year.now().getValue()) : year;
-        ensureDefaultGroups(schoolId, resolvedYear);
+        rebuildSystemGroups(schoolId, resolvedYear);
         List<com.notiflow.model.StudentDocument> students = studentService.listAllBySchoolAndYear(schoolId, resolvedYear);
         java.util.Map<String, java.util.Set<String>> byCourse = new java.util.HashMap<>();
 
@@ -99,15 +170,15 @@ public class GroupService {
         return updated;
     }
 
-    public GroupListResponse listAll(String year, String query, int page, int pageSize) {
+    public GroupListResponse listAll(String year, String query, int page, int pageSize, String cursor) {
         var baseCollection = firestore.collectionGroup("groups");
         var filtered = (year != null && !year.isBlank())
                 ? baseCollection.whereEqualTo("year", year)
                 : baseCollection;
-        return fetch(filtered, query, page, pageSize);
+        return fetch(filtered, query, page, pageSize, cursor);
     }
 
-    private GroupListResponse fetch(com.google.cloud.firestore.Query baseQuery, String query, int page, int size) {
+    private GroupListResponse fetch(com.google.cloud.firestore.Query baseQuery, String query, int page, int size, String cursorToken) {
         int safePage = Math.max(1, page);
         int safeSize = Math.min(Math.max(1, size), 100);
         String normalizedQuery = query == null ? "" : query.trim().toLowerCase();
@@ -116,39 +187,34 @@ public class GroupService {
 
         try {
             if (hasSearch) {
+                SearchQuery searchQuery = SearchQuery.of(normalizedQuery);
                 ApiFuture<QuerySnapshot> future = baseQuery.limit(MAX_SEARCH_SCAN).get();
                 List<QueryDocumentSnapshot> docs = future.get().getDocuments();
-                List<GroupDto> filtered = docs.stream()
-                        .map(doc -> {
-                            GroupDocument g = doc.toObject(GroupDocument.class);
-                            if (g == null) return null;
-                            g.setId(doc.getId());
-                            return new GroupDto(g.getId(), g.getName(), g.getDescription(), g.getMemberIds(), g.getSchoolId(), g.getYear(), g.getCreatedAt(), g.getSystem(), g.getSystemType());
-                        })
-                        .filter(g -> g != null && matchesQuery(g, normalizedQuery))
+                List<QueryDocumentSnapshot> filtered = docs.stream()
+                        .filter(doc -> matchesQuery(doc, searchQuery))
                         .collect(Collectors.toList());
                 boolean reachedLimit = docs.size() == MAX_SEARCH_SCAN;
                 int from = Math.min((safePage - 1) * safeSize, filtered.size());
                 int to = Math.min(from + safeSize, filtered.size());
-                List<GroupDto> pageItems = filtered.subList(from, to);
+                // los miembros se cargan solo para la página
+                List<GroupDto> pageItems = toDtos(filtered.subList(from, to));
                 boolean hasMore = reachedLimit || to < filtered.size();
                 long total = filtered.size() + (reachedLimit ? 1 : 0);
-                return new GroupListResponse(pageItems, total, safePage, safeSize, hasMore);
+                return new GroupListResponse(pageItems, total, safePage, safeSize, hasMore, null);
             } else {
-                long total = count(sortedQuery);
-                ApiFuture<QuerySnapshot> future = sortedQuery
-                        .offset((safePage - 1) * safeSize)
-                        .limit(safeSize)
-                        .get();
-                List<QueryDocumentSnapshot> docs = future.get().getDocuments();
-                List<GroupDto> items = docs.stream().map(doc -> {
-                    GroupDocument g = doc.toObject(GroupDocument.class);
-                    if (g == null) return null;
-                    g.setId(doc.getId());
-                    return new GroupDto(g.getId(), g.getName(), g.getDescription(), g.getMemberIds(), g.getSchoolId(), g.getYear(), g.getCreatedAt(), g.getSystem(), g.getSystemType());
-                }).filter(Objects::nonNull).collect(Collectors.toList());
-                boolean hasMore = (long) safePage * safeSize < total;
-                return new GroupListResponse(items, total, safePage, safeSize, hasMore);
+                PageCursor cursor = PageCursor.decode(cursorToken, "groups");
+                long total = cursor != null ? -1 : count(sortedQuery);
+                com.google.cloud.firestore.Query pageQuery = cursor != null
+                        ? cursor.applyTo(sortedQuery, firestore)
+                        : sortedQuery.offset((safePage - 1) * safeSize);
+                List<QueryDocumentSnapshot> docs = pageQuery.limit(safeSize + 1).get().get().getDocuments();
+                boolean hasMore = docs.size() > safeSize;
+                if (hasMore) {
+                    docs = docs.subList(0, safeSize);
+                }
+                String nextCursor = hasMore ? PageCursor.of(docs.get(docs.size() - 1), "createdAt") : null;
+                List<GroupDto> items = toDtos(docs);
+                return new GroupListResponse(items, total, safePage, safeSize, hasMore, nextCursor);
             }
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
@@ -158,13 +224,36 @@ public class GroupService {
         }
     }
 
-    private boolean matchesQuery(GroupDto g, String q) {
-        return SearchUtils.matchesQuery(q, g.name(), g.description(), g.schoolId(), g.year());
+    private boolean matchesQuery(QueryDocumentSnapshot doc, SearchQuery q) {
+        return q.matches(doc.getString("name"), doc.getString("description"), doc.getString("schoolId"), doc.getString("year"));
+    }
+
+    private List<GroupDto> toDtos(List<QueryDocumentSnapshot> docs) throws InterruptedException, ExecutionException {
+        Map<DocumentReference, GroupDocument> groups = new java.util.LinkedHashMap<>();
+        for (QueryDocumentSnapshot doc : docs) {
+            GroupDocument g = doc.toObject(GroupDocument.class);
+            if (g == null) continue;
+            g.setId(doc.getId());
+            groups.put(doc.getReference(), g);
+        }
+        Map<String, List<String>> members = groupMemberStore.loadAll(groups);
+        List<GroupDto> items = new ArrayList<>();
+        for (Map.Entry<DocumentReference, GroupDocument> entry : groups.entrySet()) {
+            GroupDocument g = entry.getValue();
+            g.setMemberIds(members.getOrDefault(entry.getKey().getPath(), List.of()));
+            items.add(toDto(g));
+        }
+        return items;
+    }
+
+    private GroupDto toDto(GroupDocument g) {
+        return new GroupDto(g.getId(), g.getName(), g.getDescription(), g.getMemberIds(), g.getSchoolId(), g.getYear(), g.getCreatedAt(), g.getSystem(), g.getSystemType());
     }
 
     private com.google.cloud.firestore.Query applyOrderSafely(com.google.cloud.firestore.Query base) {
         try {
-            return base.orderBy("createdAt", com.google.cloud.firestore.Query.Direction.DESCENDING);
+            return base.orderBy("createdAt", com.google.cloud.firestore.Query.Direction.DESCENDING)
+                    .orderBy(com.google.cloud.firestore.FieldPath.documentId(), com.google.cloud.firestore.Query.Direction.DESCENDING);
         } catch (RuntimeException ex) {
             if (isMissingIndex(ex)) {
                 return base;
@@ -211,7 +300,6 @@ public class GroupService {
             g.setId(UUID.randomUUID().toString());
             g.setName(request.name());
             g.setDescription(request.description());
-            g.setMemberIds(request.memberIds());
             g.setSchoolId(schoolId);
             g.setYear(request.year() != null && !request.year().isBlank()
                     ? request.year()
@@ -221,9 +309,12 @@ public class GroupService {
             g.setSystemType(null);
 
             DocumentReference ref = tenantGroups(schoolId).document(g.getId());
-            ref.set(g).get();
+            groupMemberStore.write(ref, g, request.memberIds());
+            audienceIndex.invalidate(schoolId);
+            entityLocator.remember(ref);
+            pushTopicService.onGroupSaved(ref, schoolId, g.getId(), null, List.of(), g.getMemberIds());
 
-            return new GroupDto(g.getId(), g.getName(), g.getDescription(), g.getMemberIds(), g.getSchoolId(), g.getYear(), g.getCreatedAt(), g.getSystem(), g.getSystemType());
+            return toDto(g);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -237,18 +328,10 @@ public class GroupService {
             DocumentReference ref = tenantGroups(schoolId).document(id);
             var snap = ref.get().get();
             if (!snap.exists()) {
-                QueryDocumentSnapshot cg = firestore.collectionGroup("groups")
-                        .whereEqualTo("id", id)
-                        .limit(1)
-                        .get()
-                        .get()
-                        .getDocuments()
-                        .stream()
-                        .findFirst()
-                        .orElse(null);
-                if (cg != null) {
-                    ref = cg.getReference();
-                    snap = cg;
+                var located = entityLocator.find("groups", id).orElse(null);
+                if (located != null) {
+                    ref = located.getReference();
+                    snap = located;
                 }
             }
             if (!snap.exists()) {
@@ -270,20 +353,35 @@ public class GroupService {
 
             existing.setName(request.name());
             existing.setDescription(request.description());
-            existing.setMemberIds(request.memberIds());
             existing.setSchoolId(targetSchoolId);
             existing.setYear(request.year() != null && !request.year().isBlank()
                     ? request.year()
                     : existing.getYear());
             existing.setSystem(Boolean.FALSE.equals(existing.getSystem()) ? existing.getSystem() : existing.getSystem());
 
+            List<String> previousMembers;
             if (originalSchoolId != null && !originalSchoolId.equalsIgnoreCase(targetSchoolId)) {
-                tenantGroups(targetSchoolId).document(id).set(existing).get();
-                ref.delete().get();
+                previousMembers = groupMemberStore.load(ref, existing);
+                WriteBatch cleanup = firestore.batch();
+                groupMemberStore.delete(cleanup, ref, existing);
+                cleanup.delete(ref);
+                // el topic depende del colegio; el nuevo se arma desde cero, igual que sus shards
+                existing.setPushTopic(null);
+                existing.setMemberShards(null);
+                existing.setMemberIds(null);
+                DocumentReference moved = tenantGroups(targetSchoolId).document(id);
+                groupMemberStore.write(moved, existing, request.memberIds());
+                cleanup.commit().get();
+                membershipIndex.record(originalSchoolId, id, previousMembers, List.of());
+                audienceIndex.invalidate(originalSchoolId);
+                ref = moved;
+                entityLocator.remember(ref);
             } else {
-                ref.set(existing).get();
+                previousMembers = groupMemberStore.write(ref, existing, request.memberIds()).previous();
             }
-            return new GroupDto(existing.getId(), existing.getName(), existing.getDescription(), existing.getMemberIds(), existing.getSchoolId(), existing.getYear(), existing.getCreatedAt(), existing.getSystem(), existing.getSystemType());
+            audienceIndex.invalidate(targetSchoolId);
+            pushTopicService.onGroupSaved(ref, targetSchoolId, id, existing.getPushTopic(), previousMembers, existing.getMemberIds());
+            return toDto(existing);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -297,20 +395,13 @@ public class GroupService {
             DocumentReference ref = tenantGroups(schoolId).document(id);
             var snap = ref.get().get();
             if (!snap.exists()) {
-                // fallback: collectionGroup por si el grupo está en otro tenant o legacy
-                QueryDocumentSnapshot cg = firestore.collectionGroup("groups")
-                        .whereEqualTo("id", id)
-                        .whereEqualTo("schoolId", schoolId)
-                        .limit(1)
-                        .get()
-                        .get()
-                        .getDocuments()
-                        .stream()
-                        .findFirst()
+                // fallback: el grupo puede estar en otro tenant o legacy, pero debe ser de este colegio
+                var located = entityLocator.find("groups", id)
+                        .filter(doc -> Objects.equals(schoolId, doc.getString("schoolId")))
                         .orElse(null);
-                if (cg != null) {
-                    ref = cg.getReference();
-                    snap = cg;
+                if (located != null) {
+                    ref = located.getReference();
+                    snap = located;
                 }
             }
             if (snap == null || !snap.exists()) {
@@ -323,7 +414,14 @@ public class GroupService {
             if (!isGlobalAdmin && existing.getSchoolId() != null && !existing.getSchoolId().equalsIgnoreCase(schoolId)) {
                 throw new IllegalArgumentException("No puedes borrar grupos de otro colegio");
             }
-            ref.delete().get();
+            List<String> members = groupMemberStore.load(ref, existing);
+            WriteBatch batch = firestore.batch();
+            groupMemberStore.delete(batch, ref, existing);
+            batch.delete(ref);
+            batch.commit().get();
+            membershipIndex.record(existing.getSchoolId(), ref.getId(), members, List.of());
+            audienceIndex.invalidate(existing.getSchoolId());
+            entityLocator.forget("groups", id);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -334,45 +432,95 @@ public class GroupService {
 
     public Optional<GroupDocument> findById(String id, String schoolId) {
         try {
-            DocumentReference ref = tenantGroups(schoolId).document(id);
-            var snap = ref.get().get();
-            if (snap.exists()) {
-                GroupDocument g = snap.toObject(GroupDocument.class);
-                if (g != null) {
-                    g.setId(id);
-                    return Optional.of(g);
-                }
+            DocumentSnapshot snap = locate(id, schoolId);
+            GroupDocument g = snap == null ? null : snap.toObject(GroupDocument.class);
+            if (g == null) return Optional.empty();
+            g.setId(snap.getId());
+            g.setMemberIds(groupMemberStore.load(snap.getReference(), g));
+            return Optional.of(g);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("Error consultando grupo", e);
+        }
+    }
+
+    /**
+     * Como {@link #findById}, pero entrega los miembros de a un shard a {@code consumer} en vez de
+     * dejarlos en el grupo devuelto (que queda sin memberIds).
+     */
+    public Optional<GroupDocument> streamMembers(String id, String schoolId, java.util.function.Consumer<List<String>> consumer) {
+        try {
+            DocumentSnapshot snap = locate(id, schoolId);
+            GroupDocument g = snap == null ? null : snap.toObject(GroupDocument.class);
+            if (g == null) return Optional.empty();
+            g.setId(snap.getId());
+            groupMemberStore.forEachChunk(snap.getReference(), g, consumer);
+            g.setMemberIds(null);
+            return Optional.of(g);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
             }
-            QueryDocumentSnapshot cg = firestore.collectionGroup("groups")
-                    .whereEqualTo("id", id)
-                    .limit(1)
-                    .get()
-                    .get()
-                    .getDocuments()
-                    .stream()
-                    .findFirst()
-                    .orElse(null);
-            if (cg != null) {
-                GroupDocument g = cg.toObject(GroupDocument.class);
-                if (g != null) {
-                    g.setId(cg.getId());
-                    return Optional.of(g);
+            throw new RuntimeException("Error consultando grupo", e);
+        }
+    }
+
+    private DocumentSnapshot locate(String id, String schoolId) throws InterruptedException, ExecutionException {
+        var snap = tenantGroups(schoolId).document(id).get().get();
+        if (snap.exists()) return snap;
+        return entityLocator.find("groups", id).orElse(null);
+    }
+
+    /**
+     * Deja listos los grupos de sistema del colegio y año. Sus miembros se mantienen con cada
+     * escritura de alumnos y usuarios, así que normalmente solo se leen los tres documentos; se
+     * reconstruyen completos si falta alguno, si quedaron marcados como sucios o si los conteos de
+     * alumnos/usuarios (revisados cada {@code app.groups.drift-check-minutes}) no calzan.
+     */
+    public void ensureDefaultGroups(String schoolId, String year) {
+        if (schoolId == null || schoolId.isBlank()) return;
+        String resolvedYear = (year == null || year.isBlank()) ? String.valueOf(Year.now().getValue()) : year;
+        try {
+            DocumentReference[] refs = SYSTEM_TYPES.stream()
+                    .map(type -> tenantGroups(schoolId).document(systemId(type, resolvedYear)))
+                    .toArray(DocumentReference[]::new);
+            Map<String, GroupDocument> byType = new HashMap<>();
+            boolean rebuild = false;
+            for (DocumentSnapshot snap : firestore.getAll(refs).get()) {
+                GroupDocument g = snap.exists() ? snap.toObject(GroupDocument.class) : null;
+                if (g == null || Boolean.TRUE.equals(g.getMembersDirty())) {
+                    rebuild = true;
+                    break;
                 }
+                byType.put(g.getSystemType(), g);
+            }
+            if (!rebuild && driftCheckDue(schoolId, resolvedYear)) {
+                rebuild = hasDrifted(schoolId, resolvedYear, byType);
+            }
+            if (rebuild) {
+                rebuildSystemGroups(schoolId, resolvedYear);
             }
-            return Optional.empty();
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
             }
-            throw new RuntimeException("Error consultando grupo", e);
+            throw new RuntimeException("Error asegurando grupos por defecto", e);
         }
     }
 
-    public List<GroupDto> ensureDefaultGroups(String schoolId, String year) {
+    /**
+     * Reconstruye los grupos de sistema leyendo todos los alumnos del año y usuarios del colegio.
+     */
+    public List<GroupDto> rebuildSystemGroups(String schoolId, String year) {
         if (schoolId == null || schoolId.isBlank()) return List.of();
         String resolvedYear = (year == null || year.isBlank()) ? String.valueOf(Year.now().getValue()) : year;
         List<GroupDto> created = new ArrayList<>();
 
+        // se cuenta antes de leer: si entra un alumno entremedio, la próxima revisión lo detecta
+        long studentCount = studentService.countBySchoolAndYear(schoolId, resolvedYear);
+        long userCount = userService.countBySchool(schoolId);
         List<String> studentRecipients = studentService.collectRecipientEmails(schoolId, resolvedYear);
         List<String> userRecipients = userService.collectEmailsBySchool(schoolId);
 
@@ -383,7 +531,8 @@ public class GroupService {
                 studentRecipients,
                 schoolId,
                 resolvedYear,
-                SYSTEM_ALL_STUDENTS
+                SYSTEM_ALL_STUDENTS,
+                studentCount
         ));
 
         Set<String> community = new HashSet<>(studentRecipients);
@@ -395,7 +544,8 @@ public class GroupService {
                 new ArrayList<>(community),
                 schoolId,
                 resolvedYear,
-                SYSTEM_ALL_COMMUNITY
+                SYSTEM_ALL_COMMUNITY,
+                studentCount + userCount
         ));
 
         created.add(upsertSystemGroup(
@@ -405,13 +555,15 @@ public class GroupService {
                 userRecipients,
                 schoolId,
                 resolvedYear,
-                SYSTEM_STAFF
+                SYSTEM_STAFF,
+                userCount
         ));
+        driftCheckedAt.put(schoolId + "|" + resolvedYear, System.currentTimeMillis());
 
         return created.stream().filter(Objects::nonNull).toList();
     }
 
-    private GroupDto upsertSystemGroup(String id, String name, String description, List<String> members, String schoolId, String year, String systemType) {
+    private GroupDto upsertSystemGroup(String id, String name, String description, List<String> members, String schoolId, String year, String systemType, long sourceCount) {
         try {
             DocumentReference ref = tenantGroups(schoolId).document(id);
             var snap = ref.get().get();
@@ -422,20 +574,27 @@ public class GroupService {
             g.setDescription(description);
             g.setSchoolId(schoolId);
             g.setYear(year);
-            g.setMemberIds(members == null ? List.of() : members.stream()
+            List<String> normalized = members == null ? List.of() : members.stream()
                     .filter(Objects::nonNull)
                     .map(String::trim)
                     .filter(s -> !s.isBlank())
                     .map(String::toLowerCase)
                     .distinct()
-                    .toList());
+                    .toList();
             if (g.getCreatedAt() == null) {
                 g.setCreatedAt(Instant.now());
             }
             g.setSystem(true);
             g.setSystemType(systemType);
-            ref.set(g).get();
-            return new GroupDto(g.getId(), g.getName(), g.getDescription(), g.getMemberIds(), g.getSchoolId(), g.getYear(), g.getCreatedAt(), g.getSystem(), g.getSystemType());
+            g.setMembersDirty(false);
+            g.setSourceCount(sourceCount);
+            List<String> previousMembers = groupMemberStore.write(ref, g, normalized).previous();
+            audienceIndex.invalidate(schoolId);
+            if (!snap.exists()) {
+                entityLocator.remember(ref);
+            }
+            pushTopicService.onGroupSaved(ref, schoolId, id, g.getPushTopic(), previousMembers, g.getMemberIds());
+            return toDto(g);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -444,6 +603,213 @@ public class GroupService {
         }
     }
 
+    /**
+     * Aplica a ALL_STUDENTS y ALL_COMMUNITY el alta, edición o baja de un alumno ({@code previous}
+     * null si es nuevo, {@code current} null si se borró). Se llama después de actualizar
+     * {@link RosterIndex}, que es donde se revisa si un apoderado quitado sigue en otro alumno.
+     */
+    public void onStudentChanged(StudentDocument previous, StudentDocument current) {
+        SystemKey before = previous == null ? null : studentKey(previous);
+        SystemKey after = current == null ? null : studentKey(current);
+        Set<String> beforeEmails = previous == null ? Set.of() : StudentService.guardianEmails(previous);
+        Set<String> afterEmails = current == null ? Set.of() : StudentService.guardianEmails(current);
+        if (Objects.equals(before, after)) {
+            if (after == null) return;
+            applyStudentDelta(after, minus(afterEmails, beforeEmails), minus(beforeEmails, afterEmails), 0);
+            return;
+        }
+        if (before != null) {
+            applyStudentDelta(before, Set.of(), beforeEmails, -1);
+        }
+        if (after != null) {
+            applyStudentDelta(after, afterEmails, Set.of(), 1);
+        }
+    }
+
+    /**
+     * Aplica a STAFF y ALL_COMMUNITY de todos los años del colegio el alta, edición o baja de un usuario.
+     */
+    public void onUserChanged(UserDocument previous, UserDocument current) {
+        String beforeSchool = previous == null ? null : blankToNull(previous.getSchoolId());
+        String afterSchool = current == null ? null : blankToNull(current.getSchoolId());
+        String beforeEmail = previous == null ? null : blankToNull(normalizeGroupMember(previous.getEmail()));
+        String afterEmail = current == null ? null : blankToNull(normalizeGroupMember(current.getEmail()));
+        if (Objects.equals(beforeSchool, afterSchool)) {
+            if (afterSchool == null || Objects.equals(beforeEmail, afterEmail)) return;
+            applyUserDelta(afterSchool, afterEmail, beforeEmail, 0);
+            return;
+        }
+        if (beforeSchool != null) {
+            applyUserDelta(beforeSchool, null, beforeEmail, -1);
+        }
+        if (afterSchool != null) {
+            applyUserDelta(afterSchool, afterEmail, null, 1);
+        }
+    }
+
+    /**
+     * Marca los grupos de sistema del colegio para reconstruirlos en el próximo listado, para
+     * escrituras masivas (importación) o cuando no se pudo aplicar un cambio.
+     */
+    public void markSystemGroupsDirty(String schoolId) {
+        if (schoolId == null || schoolId.isBlank()) return;
+        // la importación escribe grupos de curso directamente
+        audienceIndex.invalidate(schoolId);
+        try {
+            List<QueryDocumentSnapshot> docs = tenantGroups(schoolId).whereEqualTo("system", true).get().get().getDocuments();
+            if (docs.isEmpty()) return;
+            WriteBatch batch = firestore.batch();
+            for (QueryDocumentSnapshot doc : docs) {
+                batch.update(doc.getReference(), "membersDirty", true);
+            }
+            batch.commit().get();
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("No se pudieron marcar los grupos de sistema de {} para reconstruir: {}", schoolId, e.getMessage());
+        }
+    }
+
+    private void applyStudentDelta(SystemKey key, Set<String> added, Set<String> removed, long countDelta) {
+        if (added.isEmpty() && removed.isEmpty() && countDelta == 0) return;
+        try {
+            Set<String> gone = new HashSet<>(removed);
+            if (!gone.isEmpty()) {
+                // un apoderado sigue en el grupo mientras tenga otro alumno en el año
+                gone.removeAll(guardianEmails(key));
+            }
+            Set<String> goneFromCommunity = new HashSet<>();
+            for (String email : gone) {
+                if (!isStaff(key.schoolId(), email)) {
+                    goneFromCommunity.add(email);
+                }
+            }
+            applySystemDelta(key, SYSTEM_ALL_STUDENTS, added, gone, countDelta);
+            applySystemDelta(key, SYSTEM_ALL_COMMUNITY, added, goneFromCommunity, countDelta);
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("No se pudieron actualizar grupos de sistema de {} / {}: {}", key.schoolId(), key.year(), e.getMessage());
+            markSystemGroupsDirty(key.schoolId());
+        }
+    }
+
+    private void applyUserDelta(String schoolId, String added, String removed, long countDelta) {
+        try {
+            Set<String> years = new TreeSet<>();
+            for (QueryDocumentSnapshot doc : tenantGroups(schoolId).whereEqualTo("system", true).get().get().getDocuments()) {
+                String year = doc.getString("year");
+                if (year != null && !year.isBlank()) {
+                    years.add(year);
+                }
+            }
+            Set<String> adds = added == null ? Set.of() : Set.of(added);
+            Set<String> gone = removed == null ? Set.of() : Set.of(removed);
+            for (String year : years) {
+                SystemKey key = new SystemKey(schoolId, year);
+                applySystemDelta(key, SYSTEM_STAFF, adds, gone, countDelta);
+                Set<String> goneFromCommunity = gone.isEmpty() || guardianEmails(key).contains(removed) ? Set.of() : gone;
+                applySystemDelta(key, SYSTEM_ALL_COMMUNITY, adds, goneFromCommunity, countDelta);
+            }
+        } catch (Exception e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("No se pudieron actualizar grupos de sistema de {}: {}", schoolId, e.getMessage());
+            markSystemGroupsDirty(schoolId);
+        }
+    }
+
+    private void applySystemDelta(SystemKey key, String systemType, Set<String> added, Set<String> removed, long countDelta)
+            throws InterruptedException, ExecutionException {
+        if (added.isEmpty() && removed.isEmpty() && countDelta == 0) return;
+        DocumentReference ref = tenantGroups(key.schoolId()).document(systemId(systemType, key.year()));
+        SystemChange change = firestore.runTransaction(tx -> {
+            DocumentSnapshot snap = tx.get(ref).get();
+            // sin documento o ya sucio: el próximo listado lo arma completo
+            if (!snap.exists()) return null;
+            GroupDocument g = snap.toObject(GroupDocument.class);
+            if (g == null || Boolean.TRUE.equals(g.getMembersDirty())) return null;
+            Map<String, Object> fields = new HashMap<>();
+            // un grupo sin conteo queda sin conteo: la revisión de desalineación lo reconstruye
+            fields.put("sourceCount", g.getSourceCount() == null ? null : g.getSourceCount() + countDelta);
+            GroupMemberStore.Change applied = groupMemberStore.apply(tx, ref, g, added, removed, fields);
+            return new SystemChange(g.getPushTopic(), applied.previous(), applied.members());
+        }).get();
+        if (change != null) {
+            // el índice inverso se escribió en la transacción; su caché se descarta recién ahora
+            membershipIndex.forget(key.schoolId(), added);
+            membershipIndex.forget(key.schoolId(), removed);
+            audienceIndex.invalidate(key.schoolId());
+        }
+        if (change != null && !change.previous().equals(change.members())) {
+            pushTopicService.onGroupSaved(ref, key.schoolId(), ref.getId(), change.pushTopic(), change.previous(), change.members());
+        }
+    }
+
+    private boolean driftCheckDue(String schoolId, String year) {
+        String key = schoolId + "|" + year;
+        long now = System.currentTimeMillis();
+        Long last = driftCheckedAt.get(key);
+        if (last != null && now - last < driftCheckMs) return false;
+        driftCheckedAt.put(key, now);
+        return true;
+    }
+
+    private boolean hasDrifted(String schoolId, String year, Map<String, GroupDocument> byType) {
+        GroupDocument students = byType.get(SYSTEM_ALL_STUDENTS);
+        GroupDocument staff = byType.get(SYSTEM_STAFF);
+        if (students == null || staff == null || students.getSourceCount() == null || staff.getSourceCount() == null) {
+            return true;
+        }
+        try {
+            long studentCount = studentService.countBySchoolAndYear(schoolId, year);
+            long userCount = userService.countBySchool(schoolId);
+            boolean drifted = studentCount != students.getSourceCount() || userCount != staff.getSourceCount();
+            if (drifted) {
+                log.info("Grupos de sistema de {} / {} desalineados ({} alumnos vs {}, {} usuarios vs {}), se reconstruyen",
+                        schoolId, year, studentCount, students.getSourceCount(), userCount, staff.getSourceCount());
+            }
+            return drifted;
+        } catch (RuntimeException e) {
+            log.warn("No se pudo revisar conteos de grupos de sistema de {} / {}: {}", schoolId, year, e.getMessage());
+            return false;
+        }
+    }
+
+    private Set<String> guardianEmails(SystemKey key) throws InterruptedException, ExecutionException {
+        Set<String> emails = new HashSet<>();
+        for (StudentDocument s : rosterIndex.snapshot(key.schoolId(), key.year()).students()) {
+            emails.addAll(StudentService.guardianEmails(s));
+        }
+        return emails;
+    }
+
+    private boolean isStaff(String schoolId, String email) {
+        return userService.findByEmail(email)
+                .filter(u -> schoolId.equals(u.getSchoolId()))
+                .isPresent();
+    }
+
+    private static SystemKey studentKey(StudentDocument s) {
+        String year = blankToNull(s.getYear());
+        if (year == null) return null;
+        String schoolId = blankToNull(s.getSchoolId());
+        return new SystemKey(schoolId == null ? "global" : schoolId, year);
+    }
+
+    private static String blankToNull(String value) {
+        return value == null || value.isBlank() ? null : value.trim();
+    }
+
+    private static Set<String> minus(Set<String> from, Set<String> other) {
+        Set<String> result = new HashSet<>(from);
+        result.removeAll(other);
+        return result;
+    }
+
     private void upsertCourseGroup(String course, List<String> members, String schoolId, String year) {
         try {
             String id = slug(schoolId + "-" + course + "-" + year);
@@ -456,13 +822,13 @@ public class GroupService {
             g.setDescription(course);
             g.setSchoolId(schoolId);
             g.setYear(year);
-            g.setMemberIds(members == null ? List.of() : members.stream()
+            List<String> normalized = members == null ? List.of() : members.stream()
                     .filter(Objects::nonNull)
                     .map(String::trim)
                     .filter(s -> !s.isBlank())
                     .map(this::normalizeGroupMember)
                     .distinct()
-                    .toList());
+                    .toList();
             if (g.getCreatedAt() == null) {
                 g.setCreatedAt(Instant.now());
             }
@@ -472,7 +838,12 @@ public class GroupService {
             if (g.getSystemType() == null) {
                 g.setSystemType(null);
             }
-            ref.set(g).get();
+            List<String> previousMembers = groupMemberStore.write(ref, g, normalized).previous();
+            audienceIndex.invalidate(schoolId);
+            if (!snap.exists()) {
+                entityLocator.remember(ref);
+            }
+            pushTopicService.onGroupSaved(ref, schoolId, id, g.getPushTopic(), previousMembers, g.getMemberIds());
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -0,0 +1,308 @@
+package com.notiflow.service;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteBatch;
+import com.google.cloud.firestore.WriteResult;
+import com.notiflow.model.MessageDocument;
+import com.notiflow.model.MessageStatus;
+import org.springframework.stereotype.Service;
+
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Bandeja por destinatario escrita al enviar: tenants/{schoolId}/inboxes/{correo} guarda los no
+ * leídos (total y por alumno) y {@code inboxEntries/{messageId}} una entrada compacta por mensaje con
+ * fecha, motivo, extracto, alumnos y si ya se leyó. El feed de un apoderado o alumno es una sola
+ * consulta collectionGroup ordenada sobre sus entradas, con cursor y conteo exactos, en vez de leer
+ * los mensajes y filtrarlos en memoria.
+ */
+@Service
+public class InboxStore {
+
+    public static final String INBOXES = "inboxes";
+    public static final String ENTRIES = "inboxEntries";
+    // entradas de mensajes sin alumnos: aparecen en el feed de cualquiera de los hijos
+    public static final String ANY_STUDENT = "*";
+    private static final int SNIPPET_LENGTH = 140;
+    // dos escrituras por destinatario (entrada y contador) dentro del límite de 500 por batch
+    private static final int RECIPIENTS_PER_BATCH = 240;
+
+    private final Firestore firestore;
+    private final RecipientRoster recipientRoster;
+
+    public InboxStore(Firestore firestore, RecipientRoster recipientRoster) {
+        this.firestore = firestore;
+        this.recipientRoster = recipientRoster;
+    }
+
+    /**
+     * Escribe la entrada de cada destinatario y suma sus no leídos. Los batches se envían a la vez.
+     * Con {@code skipExisting} (reconstrucción) no se repiten entradas ya escritas ni sus contadores.
+     * Cada entrada lleva solo los alumnos vinculados a ese destinatario, no todos los del mensaje.
+     */
+    public int fanOut(DocumentReference messageRef, MessageDocument msg, boolean skipExisting) throws InterruptedException, ExecutionException {
+        String tenant = tenantOf(messageRef);
+        List<String> recipients = recipients(msg);
+        if (tenant == null || recipients.isEmpty()) return 0;
+        Map<String, List<String>> studentsByRecipient = studentsByRecipient(tenant, msg);
+        Map<String, Object> base = new HashMap<>();
+        base.put("messageId", messageRef.getId());
+        base.put("schoolId", tenant);
+        base.put("year", msg.getYear());
+        base.put("createdAt", timestamp(msg.getCreatedAt()));
+        base.put("reason", msg.getReason());
+        base.put("senderName", msg.getSenderName());
+        base.put("snippet", snippet(msg.getContent()));
+
+        List<ApiFuture<List<WriteResult>>> commits = new ArrayList<>();
+        int written = 0;
+        for (int i = 0; i < recipients.size(); i += RECIPIENTS_PER_BATCH) {
+            List<String> chunk = recipients.subList(i, Math.min(i + RECIPIENTS_PER_BATCH, recipients.size()));
+            Set<String> existing = skipExisting ? existingEntries(tenant, messageRef.getId(), chunk) : Set.of();
+            WriteBatch batch = firestore.batch();
+            int pending = 0;
+            for (String recipient : chunk) {
+                if (existing.contains(recipient)) continue;
+                boolean read = isRead(msg, recipient);
+                List<String> students = studentsByRecipient.getOrDefault(recipient, List.of(ANY_STUDENT));
+                Map<String, Object> entry = new HashMap<>(base);
+                entry.put("recipient", recipient);
+                entry.put("read", read);
+                entry.put("students", students);
+                batch.set(entryRef(tenant, recipient, messageRef.getId()), entry);
+                batch.set(inboxRef(tenant, recipient), counters(recipient, tenant, students, read ? 0 : 1), SetOptions.merge());
+                pending++;
+            }
+            if (pending > 0) {
+                commits.add(batch.commit());
+                written += pending;
+            }
+        }
+        ApiFutures.allAsList(commits).get();
+        return written;
+    }
+
+    /**
+     * Marca leída la entrada del destinatario dentro de la transacción y descuenta sus no leídos.
+     * Hace una lectura: se llama después de las lecturas del llamador y antes de sus escrituras.
+     */
+    public void markRead(Transaction tx, DocumentReference messageRef, String recipient) throws InterruptedException, ExecutionException {
+        String tenant = tenantOf(messageRef);
+        String key = normalize(recipient);
+        if (tenant == null || key == null) return;
+        DocumentReference entryRef = entryRef(tenant, key, messageRef.getId());
+        DocumentSnapshot entry = tx.get(entryRef).get();
+        if (!entry.exists() || Boolean.TRUE.equals(entry.getBoolean("read"))) return;
+        tx.update(entryRef, "read", true);
+        tx.set(inboxRef(tenant, key), counters(key, tenant, students(entry), -1), SetOptions.merge());
+    }
+
+    /**
+     * Borra las entradas del mensaje y descuenta las que seguían sin leer.
+     */
+    public void remove(DocumentReference messageRef, MessageDocument msg) throws InterruptedException, ExecutionException {
+        String tenant = tenantOf(messageRef);
+        List<String> recipients = recipients(msg);
+        if (tenant == null || recipients.isEmpty()) return;
+        List<ApiFuture<List<WriteResult>>> commits = new ArrayList<>();
+        for (int i = 0; i < recipients.size(); i += RECIPIENTS_PER_BATCH) {
+            List<String> chunk = recipients.subList(i, Math.min(i + RECIPIENTS_PER_BATCH, recipients.size()));
+            DocumentReference[] refs = chunk.stream()
+                    .map(r -> entryRef(tenant, r, messageRef.getId()))
+                    .toArray(DocumentReference[]::new);
+            WriteBatch batch = firestore.batch();
+            int pending = 0;
+            for (DocumentSnapshot entry : firestore.getAll(refs).get()) {
+                if (!entry.exists()) continue;
+                batch.delete(entry.getReference());
+                if (!Boolean.TRUE.equals(entry.getBoolean("read"))) {
+                    String recipient = entry.getString("recipient");
+                    batch.set(inboxRef(tenant, recipient), counters(recipient, tenant, students(entry), -1), SetOptions.merge());
+                }
+                pending++;
+            }
+            if (pending > 0) commits.add(batch.commit());
+        }
+        ApiFutures.allAsList(commits).get();
+    }
+
+    /**
+     * Entradas del destinatario, más recientes primero. {@code schoolId}, {@code year} y
+     * {@code studentId} son filtros opcionales; el del alumno deja también los mensajes sin alumnos.
+     */
+    public Query feed(String recipient, String schoolId, String year, String studentId) {
+        Query query = firestore.collectionGroup(ENTRIES).whereEqualTo("recipient", normalize(recipient));
+        if (schoolId != null && !schoolId.isBlank()) {
+            query = query.whereEqualTo("schoolId", schoolId);
+        }
+        if (year != null && !year.isBlank()) {
+            query = query.whereEqualTo("year", year);
+        }
+        if (studentId != null && !studentId.isBlank()) {
+            query = query.whereArrayContainsAny("students", List.of(studentId.trim(), ANY_STUDENT));
+        }
+        return query
+                .orderBy("createdAt", Query.Direction.DESCENDING)
+                .orderBy(FieldPath.documentId(), Query.Direction.DESCENDING);
+    }
+
+    /**
+     * No leídos del destinatario en todos sus colegios, o solo los del alumno si viene.
+     */
+    public long unreadCount(String recipient, String schoolId, String studentId) throws InterruptedException, ExecutionException {
+        String key = normalize(recipient);
+        if (key == null) return 0;
+        Query query = firestore.collectionGroup(INBOXES).whereEqualTo("recipient", key);
+        if (schoolId != null && !schoolId.isBlank()) {
+            query = query.whereEqualTo("schoolId", schoolId);
+        }
+        long total = 0;
+        for (QueryDocumentSnapshot inbox : query.get().get().getDocuments()) {
+            if (studentId == null || studentId.isBlank()) {
+                total += longValue(inbox.get("unread"));
+            } else {
+                total += longValue(inbox.get(FieldPath.of("unreadByStudent", studentId.trim())));
+                total += longValue(inbox.get(FieldPath.of("unreadByStudent", ANY_STUDENT)));
+            }
+        }
+        return Math.max(0, total);
+    }
+
+    /**
+     * Ruta del mensaje al que apunta una entrada.
+     */
+    public static String messagePath(DocumentSnapshot entry) {
+        return "tenants/" + entry.getString("schoolId") + "/messages/" + entry.getString("messageId");
+    }
+
+    /**
+     * Invierte la foto del colegio y año (alumno → correos) sobre los alumnos del mensaje. Un
+     * destinatario sin alumnos vinculados no aparece y queda con {@link #ANY_STUDENT}.
+     */
+    private Map<String, List<String>> studentsByRecipient(String tenant, MessageDocument msg) throws InterruptedException, ExecutionException {
+        List<String> students = students(msg);
+        Map<String, List<String>> result = new HashMap<>();
+        if (students.isEmpty()) return result;
+        RecipientRoster.Snapshot roster = recipientRoster.snapshot(tenant, msg.getYear());
+        for (String student : students) {
+            List<String> emails = roster.recipientsOf(student);
+            if (emails == null) continue;
+            for (String email : emails) {
+                result.computeIfAbsent(email, k -> new ArrayList<>()).add(student);
+            }
+        }
+        return result;
+    }
+
+    private Set<String> existingEntries(String tenant, String messageId, List<String> recipients) throws InterruptedException, ExecutionException {
+        DocumentReference[] refs = recipients.stream()
+                .map(r -> entryRef(tenant, r, messageId))
+                .toArray(DocumentReference[]::new);
+        Set<String> existing = new LinkedHashSet<>();
+        for (DocumentSnapshot snap : firestore.getAll(refs).get()) {
+            if (snap.exists()) existing.add(snap.getString("recipient"));
+        }
+        return existing;
+    }
+
+    private static Map<String, Object> counters(String recipient, String tenant, List<String> students, long delta) {
+        Map<String, Object> fields = new HashMap<>();
+        fields.put("recipient", recipient);
+        fields.put("schoolId", tenant);
+        if (delta != 0) {
+            fields.put("unread", FieldValue.increment(delta));
+            Map<String, Object> byStudent = new HashMap<>();
+            for (String student : students) {
+                byStudent.put(student, FieldValue.increment(delta));
+            }
+            fields.put("unreadByStudent", byStudent);
+        }
+        return fields;
+    }
+
+    private DocumentReference inboxRef(String tenant, String recipient) {
+        return firestore.collection("tenants").document(tenant).collection(INBOXES).document(recipient);
+    }
+
+    private DocumentReference entryRef(String tenant, String recipient, String messageId) {
+        return inboxRef(tenant, recipient).collection(ENTRIES).document(messageId);
+    }
+
+    private static boolean isRead(MessageDocument msg, String recipient) {
+        if (msg.getAppReadBy() != null && msg.getAppReadBy().contains(recipient)) return true;
+        Map<String, MessageStatus> statuses = msg.getAppStatuses();
+        return statuses != null && statuses.get(recipient) == MessageStatus.READ;
+    }
+
+    private static List<String> recipients(MessageDocument msg) {
+        Set<String> result = new LinkedHashSet<>();
+        if (msg.getRecipients() != null) {
+            for (String recipient : msg.getRecipients()) {
+                String key = normalize(recipient);
+                if (key != null) result.add(key);
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    private static List<String> students(MessageDocument msg) {
+        Set<String> result = new LinkedHashSet<>();
+        if (msg.getStudentIds() != null) {
+            for (String id : msg.getStudentIds()) {
+                if (id != null && !id.isBlank()) result.add(id.trim());
+            }
+        }
+        return new ArrayList<>(result);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> students(DocumentSnapshot entry) {
+        Object value = entry.get("students");
+        return value instanceof List<?> list ? (List<String>) list : List.of(ANY_STUDENT);
+    }
+
+    // los correos son ids de documento: sin "/" no hay problema, uno con "/" no puede ser destinatario
+    private static String normalize(String recipient) {
+        if (recipient == null) return null;
+        String value = recipient.trim().toLowerCase();
+        return value.isEmpty() || value.contains("/") ? null : value;
+    }
+
+    private static String snippet(String content) {
+        if (content == null) return "";
+        String plain = content.replace("**", "").replaceAll("\\s+", " ").trim();
+        return plain.length() <= SNIPPET_LENGTH ? plain : plain.substring(0, SNIPPET_LENGTH).trim() + "…";
+    }
+
+    private static Timestamp timestamp(Instant instant) {
+        Instant value = instant == null ? Instant.now() : instant;
+        return Timestamp.ofTimeSecondsAndNanos(value.getEpochSecond(), value.getNano());
+    }
+
+    private static long longValue(Object value) {
+        return value instanceof Number n ? n.longValue() : 0;
+    }
+
+    private static String tenantOf(DocumentReference messageRef) {
+        DocumentReference tenant = messageRef.getParent().getParent();
+        return tenant == null ? null : tenant.getId();
+    }
+}
@@ -2,59 +2,83 @@ package com.notiflow.service;
 
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldValue;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.AggregateQuery;
 import com.google.cloud.firestore.AggregateQuerySnapshot;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
+import com.google.cloud.firestore.WriteBatch;
 import com.google.cloud.storage.BlobInfo;
 import com.google.cloud.storage.Storage;
 import com.notiflow.dto.AttachmentRequest;
+import com.notiflow.dto.AudienceQuery;
 import com.notiflow.dto.GuardianContact;
 import com.notiflow.dto.MessageListResponse;
 import com.notiflow.dto.MessageDto;
 import com.notiflow.dto.MessageRequest;
 import com.notiflow.dto.RecipientDetail;
+import com.notiflow.dto.ReindexResponse;
+import com.notiflow.dto.ScheduledRunResponse;
 import com.notiflow.model.AttachmentMetadata;
+import com.notiflow.model.DeliveryJobDocument;
 import com.notiflow.model.GroupDocument;
 import com.notiflow.service.GroupService;
 import com.notiflow.model.MessageDocument;
 import com.notiflow.model.MessageStatus;
 import com.notiflow.model.StudentDocument;
 import com.notiflow.service.SchoolService;
+import com.notiflow.util.BatchLoader;
+import com.notiflow.util.CompiledTemplate;
 import com.notiflow.util.CurrentUser;
+import com.notiflow.util.PageCursor;
+import com.notiflow.util.SearchQuery;
 import com.notiflow.util.SearchUtils;
 import com.notiflow.model.UserDocument;
 import com.notiflow.model.UserRole;
 import jakarta.annotation.PreDestroy;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
-import com.google.auth.oauth2.GoogleCredentials;
-import com.google.auth.oauth2.ServiceAccountCredentials;
 
+import java.time.Duration;
 import java.time.Instant;
 import java.time.Year;
+import java.util.Comparator;
 import java.util.List;
+import java.util.NavigableMap;
 import java.util.Objects;
+import java.util.TreeMap;
 import java.util.UUID;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.stream.Collectors;
 import java.util.concurrent.TimeUnit;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicInteger;
-import java.nio.charset.StandardCharsets;
 
 @Service
 public class MessageService {
 
     private static final int MAX_ATTACHMENT_BYTES = 10 * 1024 * 1024; // 10MB
     private static final int MAX_SEARCH_SCAN = 5000;
+    // tope de lecturas por página al seguir un cursor de búsqueda
+    private static final int MAX_SEARCH_READS = 1000;
+    // tope de searchTokens por mensaje (cada token es una entrada de índice en Firestore); los
+    // mensajes que lo superan quedan con searchTokensTruncated y la búsqueda los recorre aparte
+    private static final int MAX_SEARCH_TOKENS = 1000;
+    // orden del listado: más recientes primero y, a igual fecha, por ruta descendente
+    private static final Comparator<DocumentSnapshot> LISTING_ORDER = Comparator
+            .comparing((DocumentSnapshot doc) -> doc.getTimestamp("createdAt"), Comparator.nullsLast(Comparator.<com.google.cloud.Timestamp>reverseOrder()))
+            .thenComparing(doc -> doc.getReference().getPath(), Comparator.<String>reverseOrder());
+    private static final int REINDEX_CHUNK = 200;
     private final Firestore firestore;
     private final EmailService emailService;
     private final Storage storage;
@@ -66,14 +90,31 @@ public class MessageService {
     private final StudentService studentService;
     private final UserService userService;
     private final String trackingBaseUrl;
-    private final String fcmServerKey;
-    private final String fcmCredentialsJson;
-    private final String fcmProjectId;
-    private GoogleCredentials fcmCredentials;
-    private final Map<String, Long> trackDedupCache = new ConcurrentHashMap<>();
-    private final ExecutorService immediateDeliveryExecutor;
-    private static final long TRACK_DEDUP_WINDOW_MS = TimeUnit.MINUTES.toMillis(10);
-    private static final int TRACK_DEDUP_MAX_ENTRIES = 200_000;
+    private final PushNotificationService pushNotificationService;
+    private final AttachmentUploadService attachmentUploadService;
+    private final EntityLocator entityLocator;
+    private final RecipientRoster recipientRoster;
+    private final AudienceIndex audienceIndex;
+    private final InboxStore inboxStore;
+    // feeds desde la bandeja: se activa después de POST /messages/inbox/rebuild, antes quedarían vacíos
+    private final boolean inboxFeedEnabled;
+    private final DeliveryJobStore deliveryJobStore;
+    private final ThreadPoolExecutor deliveryExecutor;
+    // trabajos en curso en esta instancia (para heartbeat del lease)
+    private final Map<String, DeliveryJobDocument> activeDeliveryJobs = new ConcurrentHashMap<>();
+    // trabajos cuyo heartbeat no pudo extender el lease: el worker deja de enviar en el próximo lote
+    private final Set<String> lostDeliveryLeases = ConcurrentHashMap.newKeySet();
+    private final String deliveryWorkerId = UUID.randomUUID().toString();
+    private final Duration deliveryLease;
+    // espera al apagar: un intervalo de heartbeat, así el lease no vence mientras se espera
+    private final long deliveryShutdownWaitMs;
+    private final int deliveryMaxAttempts;
+    private final int scheduledChunkSize;
+    private final long scheduledTimeBudgetMs;
+    // correos por llamada masiva al proveedor; el avance se persiste tras cada lote
+    private static final int EMAIL_BATCH_SIZE = 500;
+    private static final java.util.regex.Pattern BOLD_PATTERN = java.util.regex.Pattern.compile("\\*\\*(.+?)\\*\\*");
+    private static final java.util.regex.Pattern LINK_PATTERN = java.util.regex.Pattern.compile("(https?://[^\\s<]+)", java.util.regex.Pattern.CASE_INSENSITIVE);
 
     public MessageService(
             Firestore firestore,
@@ -85,12 +126,23 @@ public class MessageService {
             GroupService groupService,
             StudentService studentService,
             UserService userService,
+            DeliveryJobStore deliveryJobStore,
+            PushNotificationService pushNotificationService,
+            AttachmentUploadService attachmentUploadService,
+            EntityLocator entityLocator,
+            RecipientRoster recipientRoster,
+            AudienceIndex audienceIndex,
+            InboxStore inboxStore,
             @org.springframework.beans.factory.annotation.Value("${app.tracking-base-url:https://api.notiflow.app}") String trackingBaseUrl,
             @org.springframework.beans.factory.annotation.Value("${ATTACHMENTS_BUCKET:}") String attachmentsBucket,
-            @org.springframework.beans.factory.annotation.Value("${app.fcm.server-key:}") String fcmServerKey,
-            @org.springframework.beans.factory.annotation.Value("${app.fcm.credentials-json:}") String fcmCredentialsJson,
-            @org.springframework.beans.factory.annotation.Value("${app.fcm.project-id:}") String fcmProjectId,
-            @org.springframework.beans.factory.annotation.Value("${app.messages.delivery-threads:4}") int deliveryThreads
+            @org.springframework.beans.factory.annotation.Value("${app.messages.delivery-threads:4}") int deliveryThreads,
+            @org.springframework.beans.factory.annotation.Value("${app.messages.delivery-max-threads:16}") int deliveryMaxThreads,
+            @org.springframework.beans.factory.annotation.Value("${app.messages.delivery-lease-seconds:120}") long deliveryLeaseSeconds,
+            @org.springframework.beans.factory.annotation.Value("${app.messages.delivery-max-attempts:3}") int deliveryMaxAttempts,
+            @org.springframework.beans.factory.annotation.Value("${app.messages.outbox-heartbeat-ms:30000}") long heartbeatMs,
+            @org.springframework.beans.factory.annotation.Value("${app.messages.scheduled-chunk-size:50}") int scheduledChunkSize,
+            @org.springframework.beans.factory.annotation.Value("${app.messages.scheduled-time-budget-ms:20000}") long scheduledTimeBudgetMs,
+            @org.springframework.beans.factory.annotation.Value("${app.messages.inbox-feed:false}") boolean inboxFeedEnabled
     ) {
         this.firestore = firestore;
         this.emailService = emailService;
@@ -102,14 +154,25 @@ public class MessageService {
         this.studentService = studentService;
         this.userService = userService;
         this.trackingBaseUrl = trackingBaseUrl != null && !trackingBaseUrl.isBlank() ? trackingBaseUrl : "https://api.notiflow.app";
-        this.fcmServerKey = fcmServerKey;
-        this.fcmCredentialsJson = fcmCredentialsJson;
-        this.fcmProjectId = fcmProjectId;
-        this.fcmCredentials = parseCredentials(fcmCredentialsJson);
+        this.pushNotificationService = pushNotificationService;
+        this.attachmentUploadService = attachmentUploadService;
+        this.entityLocator = entityLocator;
+        this.recipientRoster = recipientRoster;
+        this.audienceIndex = audienceIndex;
+        this.inboxStore = inboxStore;
+        this.inboxFeedEnabled = inboxFeedEnabled;
         this.teacherPermissionService = teacherPermissionService;
-        int poolSize = Math.max(1, deliveryThreads);
+        this.deliveryJobStore = deliveryJobStore;
+        this.deliveryLease = Duration.ofSeconds(Math.max(30, deliveryLeaseSeconds));
+        this.deliveryShutdownWaitMs = Math.max(1000, Math.min(heartbeatMs, deliveryLease.toMillis() / 2));
+        this.deliveryMaxAttempts = Math.max(1, deliveryMaxAttempts);
+        this.scheduledChunkSize = Math.min(Math.max(1, scheduledChunkSize), 500);
+        this.scheduledTimeBudgetMs = Math.max(1000, scheduledTimeBudgetMs);
+        int coreSize = Math.max(1, deliveryThreads);
+        int maxSize = Math.max(coreSize, deliveryMaxThreads);
         AtomicInteger threadCounter = new AtomicInteger(1);
-        this.immediateDeliveryExecutor = Executors.newFixedThreadPool(poolSize, runnable -> {
+        // Sin cola interna: si no hay hilo libre el trabajo queda en el outbox y lo toma el poller
+        this.deliveryExecutor = new ThreadPoolExecutor(coreSize, maxSize, 60, TimeUnit.SECONDS, new SynchronousQueue<>(), runnable -> {
             Thread t = new Thread(runnable);
             t.setName("message-delivery-" + threadCounter.getAndIncrement());
             t.setDaemon(true);
@@ -117,7 +180,7 @@ public class MessageService {
         });
     }
 
-    public MessageListResponse list(String schoolId, boolean isGlobal, String year, String senderEmailFilter, String recipientEmailFilter, String query, int page, int pageSize, String studentIdFilter) {
+    public MessageListResponse list(String schoolId, boolean isGlobal, String year, String senderEmailFilter, String recipientEmailFilter, String query, int page, int pageSize, String studentIdFilter, String cursor) {
         try {
             int safePage = Math.max(1, page);
             int safeSize = Math.min(Math.max(1, pageSize), 100);
@@ -128,15 +191,24 @@ public class MessageService {
             if (useStudentFilter && studentService != null) {
                 scopedStudent = studentService.findById(studentIdFilter).orElse(null);
                 if (scopedStudent == null || !isLinkedToStudent(scopedStudent, recipientEmailFilter)) {
-                    return new MessageListResponse(List.of(), 0, safePage, safeSize, false);
+                    return new MessageListResponse(List.of(), 0, safePage, safeSize, false, null);
                 }
             }
+            String scopeSchool = null;
             if (useStudentFilter || !isGlobal || (schoolId != null && !schoolId.isBlank())) {
                 String targetSchool = (schoolId == null || schoolId.isBlank()) ? "global" : schoolId;
                 if (useStudentFilter && scopedStudent != null && scopedStudent.getSchoolId() != null && !scopedStudent.getSchoolId().isBlank()) {
                     targetSchool = scopedStudent.getSchoolId();
                 }
                 base = base.whereEqualTo("schoolId", targetSchool);
+                scopeSchool = targetSchool;
+            }
+            // feed de un destinatario sin búsqueda: se pagina su bandeja, ya filtrada por alumno.
+            // Sin app.messages.inbox-feed se sigue con la consulta de mensajes por destinatario
+            if (inboxFeedEnabled && recipientEmailFilter != null && !recipientEmailFilter.isBlank()
+                    && (senderEmailFilter == null || senderEmailFilter.isBlank())
+                    && (query == null || query.isBlank())) {
+                return inboxFeed(recipientEmailFilter, scopeSchool, year, useStudentFilter ? studentIdFilter : null, safePage, safeSize, cursor);
             }
             if (year != null && !year.isBlank()) {
                 base = base.whereEqualTo("year", year);
@@ -144,21 +216,25 @@ public class MessageService {
             if (senderEmailFilter != null && !senderEmailFilter.isBlank()) {
                 base = base.whereEqualTo("senderEmail", senderEmailFilter.toLowerCase());
             }
+            boolean recipientScoped = false;
             if (!useStudentFilter && recipientEmailFilter != null && !recipientEmailFilter.isBlank()) {
                 base = base.whereArrayContains("recipients", recipientEmailFilter.toLowerCase());
+                recipientScoped = true;
             }
-            MessageListResponse baseResponse = fetch(base, query, safePage, safeSize);
+            // Firestore admite un solo array-contains por consulta: filtrado por destinatario se busca en memoria
+            MessageListResponse baseResponse = fetch(base, query, safePage, safeSize, cursor, !recipientScoped);
             if (studentIdFilter == null || studentIdFilter.isBlank() || recipientEmailFilter == null || recipientEmailFilter.isBlank()) {
                 return baseResponse;
             }
             StudentAudienceContext ctx = resolveStudentAudience(studentIdFilter, recipientEmailFilter);
             if (ctx.audienceKeys.isEmpty() && ctx.groupIds.isEmpty()) {
-                return new MessageListResponse(List.of(), 0, safePage, safeSize, false);
+                return new MessageListResponse(List.of(), 0, safePage, safeSize, false, null);
             }
             List<MessageDto> filtered = baseResponse.items().stream()
                     .filter(m -> matchesStudentAudience(m, ctx))
                     .collect(Collectors.toList());
-            return new MessageListResponse(filtered, filtered.size(), safePage, safeSize, false);
+            // la página puede quedar corta tras filtrar; el cursor sigue apuntando al último documento leído
+            return new MessageListResponse(filtered, filtered.size(), safePage, safeSize, baseResponse.nextCursor() != null, baseResponse.nextCursor());
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -167,14 +243,70 @@ public class MessageService {
         }
     }
 
+    /**
+     * Página de la bandeja del destinatario: la consulta de entradas da orden, cursor y total, y los
+     * mensajes de la página se leen en un solo getAll.
+     */
+    private MessageListResponse inboxFeed(String recipient, String schoolId, String year, String studentId, int page, int size, String cursorToken)
+            throws ExecutionException, InterruptedException {
+        com.google.cloud.firestore.Query sorted = inboxStore.feed(recipient, schoolId, year, studentId);
+        PageCursor cursor = PageCursor.decode(cursorToken, InboxStore.ENTRIES);
+        long total = cursor != null ? -1 : count(sorted);
+        com.google.cloud.firestore.Query pageQuery = cursor != null
+                ? cursor.applyTo(sorted, firestore)
+                : sorted.offset((page - 1) * size);
+        List<QueryDocumentSnapshot> entries = pageQuery.limit(size + 1).get().get().getDocuments();
+        boolean hasMore = entries.size() > size;
+        if (hasMore) {
+            entries = entries.subList(0, size);
+        }
+        String nextCursor = hasMore ? PageCursor.of(entries.get(entries.size() - 1), "createdAt") : null;
+        Map<String, DocumentSnapshot> messages = BatchLoader.documents(firestore)
+                .loadAll(entries.stream().map(InboxStore::messagePath).toList());
+        CurrentUser current = CurrentUser.fromContext().orElse(null);
+        List<MessageDto> items = new ArrayList<>();
+        for (QueryDocumentSnapshot entry : entries) {
+            DocumentSnapshot doc = messages.get(InboxStore.messagePath(entry));
+            MessageDocument msg = doc == null ? null : doc.toObject(MessageDocument.class);
+            if (msg == null) continue;
+            msg.setId(doc.getId());
+            items.add(toDto(msg, current));
+        }
+        return new MessageListResponse(items, total, page, size, hasMore, nextCursor);
+    }
+
+    /**
+     * No leídos del destinatario, desde los contadores de su bandeja. Con alumno, solo los de ese
+     * alumno en su colegio. Antes de activar la bandeja los contadores no cubren los mensajes viejos.
+     */
+    public long unreadCount(String recipient, String studentId) {
+        if (!inboxFeedEnabled) {
+            throw new ResponseStatusException(org.springframework.http.HttpStatus.SERVICE_UNAVAILABLE, "Bandeja de mensajes no habilitada");
+        }
+        try {
+            if (studentId == null || studentId.isBlank()) {
+                return inboxStore.unreadCount(recipient, null, null);
+            }
+            StudentDocument student = studentService.findById(studentId).orElse(null);
+            if (student == null || !isLinkedToStudent(student, recipient)) {
+                return 0;
+            }
+            return inboxStore.unreadCount(recipient, student.getSchoolId(), studentId);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("Error contando mensajes no leídos", e);
+        }
+    }
+
     public MessageDto getById(String id) {
         try {
-            DocumentReference ref = findMessageRef(id, null);
-            if (ref == null) {
+            var snap = entityLocator.find("messages", id).orElse(null);
+            if (snap == null) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Mensaje no encontrado");
             }
-            var snap = ref.get().get();
-            MessageDocument msg = snap.exists() ? snap.toObject(MessageDocument.class) : null;
+            MessageDocument msg = snap.toObject(MessageDocument.class);
             if (msg == null) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR, "Mensaje inválido");
             }
@@ -188,15 +320,23 @@ public class MessageService {
         }
     }
 
-    private MessageListResponse fetch(com.google.cloud.firestore.Query baseQuery, String search, int page, int size) throws ExecutionException, InterruptedException {
+    private MessageListResponse fetch(com.google.cloud.firestore.Query baseQuery, String search, int page, int size, String cursorToken, boolean indexable) throws ExecutionException, InterruptedException {
         String normalized = search == null ? "" : search.trim().toLowerCase();
         boolean hasSearch = !normalized.isBlank();
         int safePage = Math.max(1, page);
         int safeSize = Math.min(Math.max(1, size), 100);
         CurrentUser current = CurrentUser.fromContext().orElse(null);
-        com.google.cloud.firestore.Query sorted = baseQuery.orderBy("createdAt", com.google.cloud.firestore.Query.Direction.DESCENDING);
+        com.google.cloud.firestore.Query sorted = baseQuery
+                .orderBy("createdAt", com.google.cloud.firestore.Query.Direction.DESCENDING)
+                .orderBy(com.google.cloud.firestore.FieldPath.documentId(), com.google.cloud.firestore.Query.Direction.DESCENDING);
+        String indexTerm = hasSearch && indexable ? SearchUtils.indexTerm(normalized) : null;
+        PageCursor cursor = hasSearch && indexTerm == null ? null : PageCursor.decode(cursorToken, "messages");
 
+        if (indexTerm != null) {
+            return searchIndexed(baseQuery, SearchQuery.of(normalized), indexTerm, safePage, safeSize, cursor, current);
+        }
         if (hasSearch) {
+            SearchQuery searchQuery = SearchQuery.of(normalized);
             ApiFuture<QuerySnapshot> future = sorted.limit(MAX_SEARCH_SCAN).get();
             List<QueryDocumentSnapshot> docs = future.get().getDocuments();
             List<MessageDto> filtered = docs.stream()
@@ -207,7 +347,7 @@ public class MessageService {
                         return toDto(msg, current);
                     })
                     .filter(Objects::nonNull)
-                    .filter(dto -> matchesQuery(dto, normalized))
+                    .filter(dto -> matchesQuery(dto, searchQuery))
                     .collect(Collectors.toList());
             boolean reachedLimit = docs.size() == MAX_SEARCH_SCAN;
             int from = Math.min((safePage - 1) * safeSize, filtered.size());
@@ -215,14 +355,19 @@ public class MessageService {
             List<MessageDto> pageItems = filtered.subList(from, to);
             boolean hasMore = reachedLimit || to < filtered.size();
             long total = filtered.size() + (reachedLimit ? 1 : 0);
-            return new MessageListResponse(pageItems, total, safePage, safeSize, hasMore);
+            return new MessageListResponse(pageItems, total, safePage, safeSize, hasMore, null);
         } else {
-            long total = count(sorted);
-            ApiFuture<QuerySnapshot> query = sorted
-                    .offset((safePage - 1) * safeSize)
-                    .limit(safeSize)
-                    .get();
-            List<QueryDocumentSnapshot> docs = query.get().getDocuments();
+            // con cursor no se cuenta ni se salta nada: se lee la página y uno extra para saber si hay más
+            long total = cursor != null ? -1 : count(sorted);
+            com.google.cloud.firestore.Query pageQuery = cursor != null
+                    ? cursor.applyTo(sorted, firestore)
+                    : sorted.offset((safePage - 1) * safeSize);
+            List<QueryDocumentSnapshot> docs = pageQuery.limit(safeSize + 1).get().get().getDocuments();
+            boolean hasMore = docs.size() > safeSize;
+            if (hasMore) {
+                docs = docs.subList(0, safeSize);
+            }
+            String nextCursor = hasMore ? PageCursor.of(docs.get(docs.size() - 1), "createdAt") : null;
             List<MessageDto> items = docs.stream()
                     .map(doc -> {
                         MessageDocument msg = doc.toObject(MessageDocument.class);
@@ -232,43 +377,226 @@ public class MessageService {
                     })
                     .filter(Objects::nonNull)
                     .collect(Collectors.toList());
-            boolean hasMore = (long) safePage * safeSize < total;
-            return new MessageListResponse(items, total, safePage, safeSize, hasMore);
+            return new MessageListResponse(items, total, safePage, safeSize, hasMore, nextCursor);
         }
     }
 
-    private boolean matchesQuery(MessageDto dto, String q) {
+    private record SearchScan(List<MessageDto> matches, List<DocumentSnapshot> matchedDocs, DocumentSnapshot last, boolean exhausted) {}
+
+    /**
+     * Búsqueda sobre searchTokens: Firestore filtra por el término más selectivo y el resto se
+     * verifica en memoria, así que se leen aprox. los resultados y no toda la colección. El orden es
+     * el del listado (más recientes primero).
+     * El término del índice calza solo como comienzo de palabra ("mar" encuentra "María" pero no
+     * "Omar" ni el medio de un correo); los demás términos se buscan dentro del texto, como en el
+     * recorrido. Sin recorrer todo no se sabe cuántos calzan: el total es exacto solo si se agotó
+     * la consulta y si no vuelve -1.
+     * Los mensajes con searchTokensTruncated (contenido que no cupo en el índice) se recorren en una
+     * segunda consulta con el mismo orden y se mezclan con los del índice.
+     */
+    private MessageListResponse searchIndexed(com.google.cloud.firestore.Query baseQuery, SearchQuery searchQuery, String indexTerm, int page, int size, PageCursor cursor, CurrentUser current) throws ExecutionException, InterruptedException {
+        com.google.cloud.firestore.Query sorted = baseQuery
+                .whereArrayContains("searchTokens", indexTerm)
+                .orderBy("createdAt", com.google.cloud.firestore.Query.Direction.DESCENDING)
+                .orderBy(com.google.cloud.firestore.FieldPath.documentId(), com.google.cloud.firestore.Query.Direction.DESCENDING);
+        com.google.cloud.firestore.Query truncated = baseQuery
+                .whereEqualTo("searchTokensTruncated", true)
+                .orderBy("createdAt", com.google.cloud.firestore.Query.Direction.DESCENDING)
+                .orderBy(com.google.cloud.firestore.FieldPath.documentId(), com.google.cloud.firestore.Query.Direction.DESCENDING);
+        int upTo = cursor != null ? size : page * size;
+        int maxReads = cursor != null ? MAX_SEARCH_READS : MAX_SEARCH_SCAN;
+        List<SearchScan> scans = List.of(
+                scanIndexed(cursor != null ? cursor.applyTo(sorted, firestore) : sorted, sorted, searchQuery, upTo + 1, maxReads, current),
+                scanIndexed(cursor != null ? cursor.applyTo(truncated, firestore) : truncated, truncated, searchQuery, upTo + 1, maxReads, current));
+
+        // un mensaje recortado puede venir por ambas consultas: la clave es la ruta
+        NavigableMap<DocumentSnapshot, MessageDto> merged = new TreeMap<>(LISTING_ORDER);
+        DocumentSnapshot bound = null;
+        for (SearchScan scan : scans) {
+            for (int i = 0; i < scan.matches().size(); i++) {
+                merged.putIfAbsent(scan.matchedDocs().get(i), scan.matches().get(i));
+            }
+            if (!scan.exhausted() && scan.last() != null && (bound == null || LISTING_ORDER.compare(scan.last(), bound) < 0)) {
+                bound = scan.last();
+            }
+        }
+        // después del último leído de una consulta sin agotar puede faltar algo: se corta ahí
+        if (bound != null) {
+            merged = merged.headMap(bound, true);
+        }
+        List<DocumentSnapshot> docs = new ArrayList<>(merged.keySet());
+        List<MessageDto> matches = new ArrayList<>(merged.values());
+        boolean full = matches.size() > upTo;
+        // si se agotó el tope de lecturas sin llenar la página, el cursor sigue desde el corte
+        String nextCursor = full
+                ? PageCursor.of(docs.get(upTo - 1), "createdAt")
+                : bound == null ? null : PageCursor.of(bound, "createdAt");
+        int from = cursor != null ? 0 : Math.min((page - 1) * size, matches.size());
+        int to = Math.min(upTo, matches.size());
+        // count(sorted) contaría también los que no pasan los demás términos
+        long total = cursor == null && bound == null ? matches.size() : -1;
+        return new MessageListResponse(matches.subList(from, to), total, page, size, nextCursor != null, nextCursor);
+    }
+
+    private SearchScan scanIndexed(com.google.cloud.firestore.Query first, com.google.cloud.firestore.Query sorted, SearchQuery searchQuery, int wanted, int maxReads, CurrentUser current) throws ExecutionException, InterruptedException {
+        List<MessageDto> matches = new ArrayList<>();
+        List<DocumentSnapshot> matchedDocs = new ArrayList<>();
+        DocumentSnapshot last = null;
+        int reads = 0;
+        com.google.cloud.firestore.Query next = first;
+        while (reads < maxReads) {
+            int batch = Math.min(Math.max(wanted * 2, 20), Math.min(200, maxReads - reads));
+            List<QueryDocumentSnapshot> docs = next.limit(batch).get().get().getDocuments();
+            for (QueryDocumentSnapshot doc : docs) {
+                reads++;
+                last = doc;
+                MessageDocument msg = doc.toObject(MessageDocument.class);
+                if (msg == null) continue;
+                msg.setId(doc.getId());
+                MessageDto dto = toDto(msg, current);
+                if (!matchesQuery(dto, searchQuery)) continue;
+                matches.add(dto);
+                matchedDocs.add(doc);
+                if (matches.size() >= wanted) {
+                    return new SearchScan(matches, matchedDocs, last, false);
+                }
+            }
+            if (docs.size() < batch) {
+                return new SearchScan(matches, matchedDocs, last, true);
+            }
+            next = sorted.startAfter(last);
+        }
+        return new SearchScan(matches, matchedDocs, last, false);
+    }
+
+    /**
+     * Deja en el mensaje searchTokens y, si no cupieron todos, searchTokensTruncated.
+     */
+    private void applySearchTokens(MessageDocument msg) {
+        // los destinatarios no se indexan: un envío a todo el colegio llenaría el tope. Remitente y
+        // motivo van primero, así que solo un contenido muy largo deja el mensaje recortado
+        List<String> tokens = SearchUtils.indexTokens(MAX_SEARCH_TOKENS + 1, msg.getSenderName(), msg.getSenderEmail(), msg.getReason(), msg.getContent());
+        boolean truncated = tokens.size() > MAX_SEARCH_TOKENS;
+        msg.setSearchTokens(truncated ? new ArrayList<>(tokens.subList(0, MAX_SEARCH_TOKENS)) : tokens);
+        msg.setSearchTokensTruncated(truncated ? Boolean.TRUE : null);
+    }
+
+    // con MAX_SEARCH_TOKENS justos pudo quedar recortado antes de existir la marca; los marcados
+    // se recalculan porque antes también se indexaban los destinatarios
+    private static boolean needsReindex(DocumentSnapshot doc) {
+        if (!doc.contains("searchTokens") || Boolean.TRUE.equals(doc.getBoolean("searchTokensTruncated"))) return true;
+        return doc.get("searchTokens") instanceof List<?> tokens
+                && tokens.size() >= MAX_SEARCH_TOKENS
+                && !doc.contains("searchTokensTruncated");
+    }
+
+    /**
+     * Completa searchTokens en mensajes creados antes del índice (y marca los que no caben), por
+     * tramos de REINDEX_CHUNK.
+     * Devuelve continuation mientras queden documentos por revisar.
+     */
+    public ReindexResponse rebuildSearchIndex(String continuation) {
+        try {
+            com.google.cloud.firestore.Query query = firestore.collectionGroup("messages")
+                    .orderBy(com.google.cloud.firestore.FieldPath.documentId());
+            PageCursor cursor = PageCursor.decode(continuation, "messages");
+            if (cursor != null) {
+                query = cursor.applyTo(query, firestore);
+            }
+            List<QueryDocumentSnapshot> docs = query.limit(REINDEX_CHUNK).get().get().getDocuments();
+            WriteBatch batch = firestore.batch();
+            int updated = 0;
+            for (QueryDocumentSnapshot doc : docs) {
+                if (!needsReindex(doc)) continue;
+                MessageDocument msg = doc.toObject(MessageDocument.class);
+                if (msg == null) continue;
+                applySearchTokens(msg);
+                batch.update(doc.getReference(), "searchTokens", msg.getSearchTokens(),
+                        "searchTokensTruncated", msg.getSearchTokensTruncated() != null ? msg.getSearchTokensTruncated() : FieldValue.delete());
+                updated++;
+            }
+            if (updated > 0) {
+                batch.commit().get();
+            }
+            String next = docs.size() < REINDEX_CHUNK ? null : PageCursor.of(docs.get(docs.size() - 1), null);
+            return new ReindexResponse(updated, next);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("Error reindexando mensajes", e);
+        }
+    }
+
+    /**
+     * Escribe las bandejas de mensajes creados antes de ellas (sin {@code inboxed}), por tramos de
+     * REINDEX_CHUNK. Las entradas ya escritas no se repiten, así que un tramo cortado se puede reintentar.
+     */
+    public ReindexResponse rebuildInboxes(String continuation) {
+        try {
+            com.google.cloud.firestore.Query query = firestore.collectionGroup("messages")
+                    .orderBy(com.google.cloud.firestore.FieldPath.documentId());
+            PageCursor cursor = PageCursor.decode(continuation, "messages");
+            if (cursor != null) {
+                query = cursor.applyTo(query, firestore);
+            }
+            List<QueryDocumentSnapshot> docs = query.limit(REINDEX_CHUNK).get().get().getDocuments();
+            WriteBatch batch = firestore.batch();
+            int updated = 0;
+            for (QueryDocumentSnapshot doc : docs) {
+                if (Boolean.TRUE.equals(doc.getBoolean("inboxed"))) continue;
+                MessageDocument msg = doc.toObject(MessageDocument.class);
+                if (msg == null) continue;
+                inboxStore.fanOut(doc.getReference(), msg, true);
+                batch.update(doc.getReference(), "inboxed", true);
+                updated++;
+            }
+            if (updated > 0) {
+                batch.commit().get();
+            }
+            String next = docs.size() < REINDEX_CHUNK ? null : PageCursor.of(docs.get(docs.size() - 1), null);
+            return new ReindexResponse(updated, next);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("Error reconstruyendo bandejas", e);
+        }
+    }
+
+    private boolean matchesQuery(MessageDto dto, SearchQuery q) {
         String recipients = dto.recipients() == null ? "" : String.join(" ", dto.recipients());
-        return SearchUtils.matchesQuery(q, dto.content(), dto.senderName(), dto.senderEmail(), dto.reason(), recipients);
+        return q.matches(dto.content(), dto.senderName(), dto.senderEmail(), dto.reason(), recipients);
     }
 
-    private record StudentAudienceContext(List<String> audienceKeys, List<String> groupIds, String studentId) {}
+    // claves normalizadas con audienceKey: se revisa cada destinatario del mensaje con un contains
+    private record StudentAudienceContext(java.util.Set<String> audienceKeys, java.util.Set<String> groupIds, String studentId) {}
 
     private StudentAudienceContext resolveStudentAudience(String studentId, String guardianEmail) {
         String normalizedStudentId = studentId == null ? "" : studentId.trim();
         if (studentService == null || normalizedStudentId.isBlank()) {
-            return new StudentAudienceContext(List.of(), List.of(), normalizedStudentId);
+            return new StudentAudienceContext(java.util.Set.of(), java.util.Set.of(), normalizedStudentId);
         }
         StudentDocument student = studentService.findById(normalizedStudentId).orElse(null);
         if (student == null) {
-            return new StudentAudienceContext(List.of(), List.of(), normalizedStudentId);
+            return new StudentAudienceContext(java.util.Set.of(), java.util.Set.of(), normalizedStudentId);
         }
         String normalizedGuardian = guardianEmail == null ? "" : guardianEmail.trim().toLowerCase();
         if (!isLinkedToStudent(student, normalizedGuardian)) {
-            return new StudentAudienceContext(List.of(), List.of(), normalizedStudentId);
+            return new StudentAudienceContext(java.util.Set.of(), java.util.Set.of(), normalizedStudentId);
         }
         java.util.Set<String> keys = new java.util.HashSet<>();
         if (student.getId() != null && !student.getId().isBlank()) {
-            keys.add(student.getId());
+            keys.add(audienceKey(student.getId()));
         }
         if (student.getEmail() != null && !student.getEmail().isBlank()) {
-            keys.add(student.getEmail().trim().toLowerCase());
+            keys.add(audienceKey(student.getEmail()));
         }
         if (!normalizedGuardian.isBlank()) {
             keys.add(normalizedGuardian);
         }
         List<String> groups = resolveGroupIdsForKeys(keys, student.getSchoolId());
-        return new StudentAudienceContext(new ArrayList<>(keys), groups, normalizedStudentId);
+        return new StudentAudienceContext(keys, new java.util.HashSet<>(groups), normalizedStudentId);
     }
 
     private boolean isLinkedToStudent(StudentDocument student, String email) {
@@ -285,13 +613,8 @@ public class MessageService {
 
     private List<String> resolveGroupIdsForKeys(java.util.Set<String> keys, String schoolId) {
         if (keys == null || keys.isEmpty()) return List.of();
-        java.util.Set<String> groups = new java.util.HashSet<>();
         String targetSchool = (schoolId == null || schoolId.isBlank()) ? "global" : schoolId;
-        for (String key : keys) {
-            if (key == null || key.isBlank()) continue;
-            groups.addAll(groupService.findGroupsForMember(key, targetSchool));
-        }
-        return new ArrayList<>(groups);
+        return new ArrayList<>(groupService.findGroupsForMembers(keys, targetSchool));
     }
 
     private boolean matchesStudentAudience(MessageDto msg, StudentAudienceContext ctx) {
@@ -299,49 +622,45 @@ public class MessageService {
         List<String> msgStudentIds = msg.studentIds() == null ? List.of() : msg.studentIds();
         String targetStudentId = ctx.studentId;
         if (targetStudentId != null && !targetStudentId.isBlank() && !msgStudentIds.isEmpty()) {
-            for (String sid : msgStudentIds) {
-                if (sid != null && sid.equals(targetStudentId)) {
-                    return true;
-                }
-            }
-            return false;
+            return msgStudentIds.contains(targetStudentId);
         }
-        List<String> msgGroups = msg.groupIds() == null ? List.of() : msg.groupIds();
-        if (!ctx.groupIds.isEmpty() && !msgGroups.isEmpty()) {
-            for (String gid : msgGroups) {
+        if (!ctx.groupIds.isEmpty() && msg.groupIds() != null) {
+            for (String gid : msg.groupIds()) {
                 if (ctx.groupIds.contains(gid)) return true;
             }
         }
-        List<String> recipients = msg.recipients() == null ? List.of() : msg.recipients();
-        if (!ctx.audienceKeys.isEmpty() && !recipients.isEmpty()) {
-            for (String key : ctx.audienceKeys) {
-                if (key == null || key.isBlank()) continue;
-                for (String r : recipients) {
-                    if (r == null || r.isBlank()) continue;
-                    if (matchesAudienceKey(r, key)) return true;
-                }
+        if (!ctx.audienceKeys.isEmpty() && msg.recipients() != null) {
+            for (String r : msg.recipients()) {
+                String key = audienceKey(r);
+                if (key != null && ctx.audienceKeys.contains(key)) return true;
             }
         }
         return false;
     }
 
-    private boolean matchesAudienceKey(String raw, String key) {
-        if (raw == null || key == null) return false;
-        String a = raw.trim();
-        String k = key.trim();
-        if (a.isEmpty() || k.isEmpty()) return false;
-        boolean emailLike = a.contains("@") || k.contains("@");
-        return emailLike ? a.equalsIgnoreCase(k) : a.equals(k);
+    /**
+     * Clave comparable de un destinatario: los correos no distinguen mayúsculas, los ids sí.
+     */
+    private static String audienceKey(String raw) {
+        if (raw == null) return null;
+        String value = raw.trim();
+        if (value.isEmpty()) return null;
+        return value.contains("@") ? value.toLowerCase() : value;
     }
 
-    private List<String> resolveGroupMemberRecipients(String member, java.util.Set<String> studentIdsCollector) {
+    private List<String> resolveGroupMemberRecipients(String member, java.util.Set<String> studentIdsCollector, RecipientRoster.Snapshot roster, Map<String, StudentDocument> loaded) {
         if (member == null || member.isBlank()) return List.of();
         String normalized = member.trim();
         if (normalized.contains("@")) {
             return List.of(normalized.toLowerCase());
         }
+        List<String> known = roster != null ? roster.recipientsOf(normalized) : null;
+        if (known != null) {
+            studentIdsCollector.add(normalized);
+            return known;
+        }
 
-        StudentDocument student = studentService.findById(normalized).orElse(null);
+        StudentDocument student = loaded.get(normalized);
         if (student == null) {
             return List.of();
         }
@@ -370,6 +689,38 @@ public class MessageService {
         return new ArrayList<>(emails);
     }
 
+    /**
+     * Alumnos del grupo que no están en la foto (otro año o colegio), leídos en una sola pasada.
+     */
+    private Map<String, StudentDocument> loadUnknownMembers(List<String> members, RecipientRoster.Snapshot roster) {
+        List<String> unknown = new ArrayList<>();
+        for (String member : members) {
+            if (member == null || member.isBlank() || member.contains("@")) continue;
+            String id = member.trim();
+            if (roster == null || roster.recipientsOf(id) == null) {
+                unknown.add(id);
+            }
+        }
+        return unknown.isEmpty() ? Map.of() : studentService.findByIds(unknown);
+    }
+
+    /**
+     * Foto de destinatarios del colegio y año; null si no se pudo armar, y entonces cada destinatario
+     * se resuelve con sus consultas.
+     */
+    private RecipientRoster.Snapshot recipientRoster(String schoolId, String year) {
+        try {
+            return recipientRoster.snapshot(schoolId, year);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                    .warn("No se pudo armar la foto de destinatarios de {}: {}", schoolId, e.getMessage());
+            return null;
+        }
+    }
+
     private long count(com.google.cloud.firestore.Query q) throws ExecutionException, InterruptedException {
         AggregateQuery countQuery = q.count();
         AggregateQuerySnapshot snapshot = countQuery.get().get();
@@ -382,15 +733,13 @@ public class MessageService {
     }
 
     private DocumentReference findMessageRef(String messageId, String schoolId) throws ExecutionException, InterruptedException {
-        com.google.cloud.firestore.Query q = firestore.collectionGroup("messages")
-                .whereEqualTo("id", messageId)
-                .limit(1);
-        if (schoolId != null && !schoolId.isBlank()) {
-            q = q.whereEqualTo("schoolId", schoolId);
+        // solo interesa la referencia: no se lee el documento (recipients y mapas de estado)
+        DocumentReference ref = entityLocator.locate("messages", messageId).orElse(null);
+        if (ref == null) return null;
+        if (schoolId != null && !schoolId.isBlank() && !schoolId.equals(ref.getParent().getParent().getId())) {
+            return null;
         }
-        List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
-        if (docs.isEmpty()) return null;
-        return docs.get(0).getReference();
+        return ref;
     }
 
     public void delete(String id) {
@@ -399,7 +748,12 @@ public class MessageService {
             if (ref == null) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Mensaje no encontrado");
             }
+            MessageDocument msg = ref.get().get().toObject(MessageDocument.class);
             ref.delete().get();
+            if (msg != null) {
+                inboxStore.remove(ref, msg);
+            }
+            entityLocator.forget("messages", id);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -422,6 +776,18 @@ public class MessageService {
                     ? request.channels()
                     : List.of("email");
             List<String> groupIds = request.groupIds() == null ? List.of() : request.groupIds().stream().filter(g -> g != null && !g.isBlank()).map(String::trim).toList();
+            AudienceQuery audience = request.audience();
+            if (audience != null) {
+                List<String> merged = new ArrayList<>(groupIds);
+                if (audience.groupIds() != null) {
+                    audience.groupIds().stream().filter(g -> g != null && !g.isBlank()).map(String::trim).forEach(merged::add);
+                }
+                groupIds = merged.stream().distinct().toList();
+                // una unión simple sigue el camino de siempre (topics, broadcast, grupos en el mensaje)
+                audience = audience.isPlainUnion()
+                        ? null
+                        : new AudienceQuery(groupIds, audience.excludeGroupIds(), audience.intersectGroupIds(), audience.segments());
+            }
             List<String> studentIds = request.studentIds() == null
                     ? List.of()
                     : request.studentIds().stream()
@@ -438,11 +804,16 @@ public class MessageService {
             // Restricción por profesor: solo grupos permitidos
             if (current != null && "teacher".equalsIgnoreCase(current.role())) {
                 List<String> allowed = teacherPermissionService.getAllowedGroups(schoolId, senderId);
-                if (!groupIds.isEmpty()) {
+                // restar grupos o filtrar por segmento solo achica la audiencia; intersectar no debe abrir otros grupos
+                List<String> sendingGroups = new ArrayList<>(groupIds);
+                if (audience != null && audience.intersectGroupIds() != null) {
+                    audience.intersectGroupIds().stream().filter(g -> g != null && !g.isBlank()).map(String::trim).forEach(sendingGroups::add);
+                }
+                if (!sendingGroups.isEmpty()) {
                     if (allowed.isEmpty()) {
                         throw new ResponseStatusException(org.springframework.http.HttpStatus.FORBIDDEN, "No tienes permisos de envío a grupos");
                     }
-                    boolean subset = groupIds.stream().allMatch(allowed::contains);
+                    boolean subset = sendingGroups.stream().allMatch(allowed::contains);
                     if (!subset) {
                         throw new ResponseStatusException(org.springframework.http.HttpStatus.FORBIDDEN, "No puedes enviar a grupos fuera de tus permisos");
                     }
@@ -473,19 +844,48 @@ public class MessageService {
 
             // Si se usan grupos del sistema, enriquecemos destinatarios y marcamos broadcast
             boolean broadcast = false;
-            if (groupIds != null && !groupIds.isEmpty()) {
+            // el push va por topic solo si la audiencia son grupos completos con topic ya sincronizado
+            List<String> pushTopics = new ArrayList<>();
+            boolean topicAudience = normalizedRecipients.isEmpty() && studentIds.isEmpty()
+                    && !groupIds.isEmpty() && groupIds.size() <= PushNotificationService.MAX_CONDITION_TOPICS;
+            RecipientRoster.Snapshot roster = recipientRoster(schoolId, resolvedYear);
+            if (audience != null) {
+                // restas, intersecciones y segmentos se resuelven con el índice de audiencias del colegio
+                AudienceIndex.Result resolved = audienceIndex.resolve(schoolId, resolvedYear, audience);
+                List<String> expanded = new ArrayList<>(normalizedRecipients);
+                expanded.addAll(resolved.recipients());
+                normalizedRecipients = expanded.stream()
+                        .filter(Objects::nonNull)
+                        .map(String::trim)
+                        .filter(s -> !s.isBlank())
+                        .map(String::toLowerCase)
+                        .distinct()
+                        .toList();
+                java.util.Set<String> expandedStudentIds = new java.util.LinkedHashSet<>(studentIds);
+                expandedStudentIds.addAll(resolved.studentIds());
+                studentIds = expandedStudentIds.stream().toList();
+                // la audiencia ya no es "el grupo completo": ni topic ni coincidencia por grupo al leer
+                topicAudience = false;
+                groupIds = List.of();
+            } else if (groupIds != null && !groupIds.isEmpty()) {
                 List<String> expanded = new ArrayList<>(normalizedRecipients);
                 java.util.Set<String> expandedStudentIds = new java.util.HashSet<>(studentIds);
                 for (String gid : groupIds) {
                     if (gid == null || gid.isBlank()) continue;
                     try {
-                        var gOpt = groupService.findById(gid, schoolId);
+                        // de a un shard: los miembros no se juntan todos antes de resolverlos
+                        var gOpt = groupService.streamMembers(gid, schoolId, chunk -> {
+                            Map<String, StudentDocument> loaded = loadUnknownMembers(chunk, roster);
+                            for (String member : chunk) {
+                                expanded.addAll(resolveGroupMemberRecipients(member, expandedStudentIds, roster, loaded));
+                            }
+                        });
                         if (gOpt.isPresent()) {
                             GroupDocument g = gOpt.get();
-                            if (g.getMemberIds() != null) {
-                                for (String member : g.getMemberIds()) {
-                                    expanded.addAll(resolveGroupMemberRecipients(member, expandedStudentIds));
-                                }
+                            if (g.getPushTopic() != null && g.getPushTopic().equals(PushTopicService.topicFor(schoolId, gid))) {
+                                pushTopics.add(g.getPushTopic());
+                            } else {
+                                topicAudience = false;
                             }
                             if (Boolean.TRUE.equals(g.getSystem()) &&
                                     (GroupService.SYSTEM_ALL_STUDENTS.equalsIgnoreCase(g.getSystemType())
@@ -493,9 +893,12 @@ public class MessageService {
                                             || GroupService.SYSTEM_STAFF.equalsIgnoreCase(g.getSystemType()))) {
                                 broadcast = true;
                             }
+                        } else {
+                            topicAudience = false;
                         }
                     } catch (Exception ignore) {
                         // si no se puede leer el grupo seguimos con los destinatarios actuales
+                        topicAudience = false;
                     }
                 }
                 normalizedRecipients = expanded.stream()
@@ -511,24 +914,28 @@ public class MessageService {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "No hay destinatarios válidos");
             }
             msg.setRecipients(normalizedRecipients);
+            msg.setRecipientCount(normalizedRecipients.size());
             msg.setChannels(channels);
             msg.setSchoolId(schoolId);
             msg.setReason(request.reason());
             msg.setYear(resolvedYear);
             msg.setGroupIds(groupIds);
             msg.setStudentIds(studentIds);
+            if (topicAudience && channels.contains("app")) {
+                msg.setPushTopics(pushTopics);
+            }
             if (!broadcast && (groupIds.contains(allStudentsGroupId)
                     || groupIds.contains(allCommunityGroupId)
                     || groupIds.contains(staffGroupId))) {
                 broadcast = true;
             }
-            Map<String, String> recipientNames = resolveRecipientNames(normalizedRecipients);
+            Map<String, String> recipientNames = resolveRecipientNames(normalizedRecipients, roster);
             msg.setRecipientNames(recipientNames);
             msg.setRecipientsDetails(buildRecipientDetails(normalizedRecipients, recipientNames));
             msg.setAppReadBy(new ArrayList<>());
             Map<String, MessageStatus> perRecipientEmail = new HashMap<>();
             if (channels.contains("app") && !normalizedRecipients.isEmpty()) {
-                List<String> studentOnly = studentRecipientEmails(normalizedRecipients);
+                List<String> studentOnly = studentRecipientEmails(normalizedRecipients, roster);
                 if (!studentOnly.isEmpty()) {
                     Map<String, MessageStatus> perRecipient = new HashMap<>();
                     for (String r : studentOnly) {
@@ -553,12 +960,21 @@ public class MessageService {
                 }
             }
             msg.setEmailStatuses(perRecipientEmail.isEmpty() ? null : perRecipientEmail);
-            List<AttachmentRequest> attachments = request.attachments() == null
+            List<AttachmentRequest> requestedAttachments = request.attachments() == null
                     ? List.of()
                     : request.attachments().stream().filter(Objects::nonNull).toList();
-            validateAttachments(attachments);
+            List<PreparedAttachment> attachments = prepareAttachments(requestedAttachments.stream()
+                    .filter(att -> att.uploadId() == null || att.uploadId().isBlank())
+                    .toList());
+            List<AttachmentMetadata> uploadedAttachments = new ArrayList<>();
+            for (AttachmentRequest att : requestedAttachments) {
+                if (att.uploadId() != null && !att.uploadId().isBlank()) {
+                    uploadedAttachments.add(attachmentUploadService.resolve(att, schoolId));
+                }
+            }
 
-            List<AttachmentMetadata> storedAttachments = storeAttachments(msg.getId(), schoolId, resolvedYear, attachments);
+            List<AttachmentMetadata> storedAttachments = new ArrayList<>(storeAttachments(msg.getId(), schoolId, resolvedYear, attachments));
+            storedAttachments.addAll(uploadedAttachments);
             msg.setAttachments(storedAttachments);
 
             Instant now = Instant.now();
@@ -578,6 +994,7 @@ public class MessageService {
                 // si falla no bloqueamos el envío
             }
 
+            applySearchTokens(msg);
             msg.setCreatedAt(now);
             if (isScheduled) {
                 msg.setScheduledAt(scheduledAt);
@@ -590,6 +1007,8 @@ public class MessageService {
                 }
                 DocumentReference ref = tenantMessages(schoolId).document(msg.getId());
                 ref.set(msg).get();
+                entityLocator.remember(ref);
+                fanOutInbox(ref, msg);
                 return toDto(msg, CurrentUser.fromContext().orElse(null));
             }
 
@@ -601,9 +1020,13 @@ public class MessageService {
             if (channels.contains("app")) {
                 msg.setAppStatus(MessageStatus.PENDING);
             }
-            tenantMessages(schoolId).document(msg.getId()).set(msg).get();
+            DocumentReference ref = tenantMessages(schoolId).document(msg.getId());
+            ref.set(msg).get();
+            entityLocator.remember(ref);
+            fanOutInbox(ref, msg);
             MessageDto response = toDto(msg, CurrentUser.fromContext().orElse(null));
-            dispatchImmediateDelivery(msg, attachments, channels, schoolLogo, schoolName, schoolId);
+            // los adjuntos subidos aparte no están en memoria: el worker los lee desde GCS
+            dispatchImmediateDelivery(msg, uploadedAttachments.isEmpty() ? attachments : null, channels, schoolLogo, schoolName, schoolId);
             return response;
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
@@ -613,61 +1036,191 @@ public class MessageService {
         }
     }
 
+    /**
+     * Entradas de bandeja de los destinatarios. Si fallan, el mensaje queda sin {@code inboxed} y lo
+     * completa la reconstrucción de bandejas; el envío sigue igual.
+     */
+    private void fanOutInbox(DocumentReference ref, MessageDocument msg) throws InterruptedException {
+        try {
+            inboxStore.fanOut(ref, msg, false);
+            ref.update("inboxed", true).get();
+            msg.setInboxed(true);
+        } catch (ExecutionException ex) {
+            org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                    .warn("No se pudieron escribir las bandejas del mensaje {}: {}", msg.getId(), ex.getMessage());
+        }
+    }
+
     @PreDestroy
     void shutdownDeliveryExecutor() {
-        immediateDeliveryExecutor.shutdown();
+        // Los trabajos en curso tienen un intervalo de heartbeat para terminar; los que siguen
+        // se devuelven al outbox para que otra instancia los tome sin esperar a que venza el lease.
+        deliveryExecutor.shutdown();
+        boolean interrupted = false;
+        try {
+            if (deliveryExecutor.awaitTermination(deliveryShutdownWaitMs, TimeUnit.MILLISECONDS)) {
+                return;
+            }
+        } catch (InterruptedException e) {
+            // se marca al final: con la interrupción puesta las transacciones de release fallarían
+            interrupted = true;
+        }
+        // se liberan antes de interrumpir: así el fail() del worker ya no es dueño y no gasta un intento
+        for (DeliveryJobDocument job : List.copyOf(activeDeliveryJobs.values())) {
+            try {
+                deliveryJobStore.release(job, deliveryWorkerId);
+                org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                        .info("Envío {} devuelto al outbox al apagar", job.getId());
+            } catch (Exception e) {
+                org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                        .warn("No se pudo liberar el envío {} al apagar: {}", job.getId(), e.getMessage());
+            }
+        }
+        deliveryExecutor.shutdownNow();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
     }
 
     private void dispatchImmediateDelivery(
             MessageDocument msg,
-            List<AttachmentRequest> attachments,
+            List<PreparedAttachment> attachments,
             List<String> channels,
             String schoolLogo,
             String schoolName,
             String schoolId
     ) {
+        DeliveryJobDocument job;
         try {
-            immediateDeliveryExecutor.submit(() -> {
-                try {
-                    deliverNow(msg, attachments, channels, schoolLogo, schoolName, schoolId);
-                } catch (Exception ex) {
-                    org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                            .error("Error en worker de envío de mensaje {}: {}", msg.getId(), ex.getMessage());
-                    markDeliveryFailed(msg, channels, schoolId);
-                }
-            });
-        } catch (RejectedExecutionException ex) {
+            job = deliveryJobStore.enqueueClaimed(msg.getId(), schoolId, deliveryWorkerId, deliveryLease);
+        } catch (RuntimeException ex) {
             org.slf4j.LoggerFactory.getLogger(MessageService.class)
                     .error("No se pudo encolar envío de mensaje {}: {}", msg.getId(), ex.getMessage());
             markDeliveryFailed(msg, channels, schoolId);
+            return;
+        }
+        try {
+            deliveryExecutor.execute(() -> runDeliveryJob(job, msg, attachments, new SchoolBranding(schoolLogo, schoolName)));
+        } catch (RejectedExecutionException ex) {
+            // sin hilos libres: se libera el lease y el poller lo retomará
+            org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                    .info("Workers ocupados; envío de mensaje {} queda en el outbox", msg.getId());
+            deliveryJobStore.release(job, deliveryWorkerId);
         }
     }
 
+    @Scheduled(fixedDelayString = "${app.messages.outbox-poll-ms:5000}", initialDelayString = "${app.messages.outbox-poll-ms:5000}")
+    void pollDeliveryOutbox() {
+        if (deliveryExecutor.isShutdown()) return;
+        int free = deliveryExecutor.getMaximumPoolSize() - deliveryExecutor.getActiveCount();
+        if (free <= 0) return;
+        for (DeliveryJobDocument candidate : deliveryJobStore.findClaimable(free)) {
+            var claimed = deliveryJobStore.claim(candidate, deliveryWorkerId, deliveryLease);
+            if (claimed.isEmpty()) continue;
+            DeliveryJobDocument job = claimed.get();
+            try {
+                deliveryExecutor.execute(() -> runDeliveryJob(job, null, null, null));
+            } catch (RejectedExecutionException ex) {
+                deliveryJobStore.release(job, deliveryWorkerId);
+                return;
+            }
+        }
+    }
+
+    @Scheduled(fixedDelayString = "${app.messages.outbox-heartbeat-ms:30000}")
+    void heartbeatDeliveryJobs() {
+        for (DeliveryJobDocument job : activeDeliveryJobs.values()) {
+            if (!deliveryJobStore.heartbeat(job, deliveryWorkerId, deliveryLease)) {
+                lostDeliveryLeases.add(job.getId());
+                org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                        .warn("Se perdió el lease del envío {}; el worker se detiene", job.getId());
+            }
+        }
+    }
+
+    /**
+     * Ejecuta un trabajo del outbox. Si {@code msg} es null (recuperación) se relee el mensaje y
+     * los adjuntos desde Firestore/GCS; deliverNow omite a quienes ya figuran como SENT.
+     */
+    private void runDeliveryJob(DeliveryJobDocument job, MessageDocument msg, List<PreparedAttachment> attachments, SchoolBranding branding) {
+        lostDeliveryLeases.remove(job.getId());
+        activeDeliveryJobs.put(job.getId(), job);
+        MessageDocument current = msg;
+        List<String> channels = List.of();
+        try {
+            if (current == null) {
+                var snap = tenantMessages(job.getSchoolId()).document(job.getMessageId()).get().get();
+                current = snap.exists() ? snap.toObject(MessageDocument.class) : null;
+                if (current == null) {
+                    deliveryJobStore.complete(job, deliveryWorkerId);
+                    return;
+                }
+                current.setId(snap.getId());
+            }
+            if (current.getStatus() != MessageStatus.PENDING && current.getStatus() != MessageStatus.DISPATCHING) {
+                // ya se terminó (p.ej. el worker anterior cayó justo antes de cerrar el trabajo)
+                deliveryJobStore.complete(job, deliveryWorkerId);
+                return;
+            }
+            channels = current.getChannels() != null ? current.getChannels() : List.of();
+            List<PreparedAttachment> resolvedAttachments = attachments != null
+                    ? attachments
+                    : buildAttachmentsFromMetadata(current.getAttachments());
+            SchoolBranding resolvedBranding = branding != null ? branding : resolveSchoolBranding(job.getSchoolId());
+            deliverNow(current, resolvedAttachments, channels, resolvedBranding.logoUrl(), resolvedBranding.name(), job.getSchoolId(),
+                    () -> lostDeliveryLeases.contains(job.getId()));
+            deliveryJobStore.complete(job, deliveryWorkerId);
+        } catch (Exception ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                    .error("Error en worker de envío de mensaje {}: {}", job.getMessageId(), ex.getMessage());
+            boolean exhausted = deliveryJobStore.fail(job, deliveryWorkerId, ex.getMessage(), deliveryMaxAttempts);
+            if (exhausted && current != null) {
+                markDeliveryFailed(current, channels, job.getSchoolId());
+            }
+        } finally {
+            activeDeliveryJobs.remove(job.getId());
+            lostDeliveryLeases.remove(job.getId());
+        }
+    }
+
+    private record SchoolBranding(String logoUrl, String name) {}
+
+    private SchoolBranding resolveSchoolBranding(String schoolId) {
+        try {
+            if (schoolId != null && !schoolId.isBlank()) {
+                var school = schoolService.getById(schoolId);
+                if (school != null) {
+                    return new SchoolBranding(school.getLogoUrl(), school.getName());
+                }
+            }
+        } catch (Exception ignore) {
+            // si falla no bloqueamos el envío
+        }
+        return new SchoolBranding(null, null);
+    }
+
     private void markDeliveryFailed(MessageDocument msg, List<String> channels, String schoolId) {
+        MessageStatusUpdate update = new MessageStatusUpdate()
+                .set("status", MessageStatus.FAILED)
+                .set("scheduledAt", null);
         msg.setStatus(MessageStatus.FAILED);
+        msg.setScheduledAt(null);
         if (channels.contains("email")) {
             msg.setEmailStatus(MessageStatus.FAILED);
+            update.set("emailStatus", MessageStatus.FAILED);
         }
         if (channels.contains("app")) {
             msg.setAppStatus(MessageStatus.FAILED);
+            update.set("appStatus", MessageStatus.FAILED);
         }
-        if (msg.getEmailStatuses() != null && !msg.getEmailStatuses().isEmpty()) {
-            Map<String, MessageStatus> failed = new HashMap<>(msg.getEmailStatuses());
-            for (String key : failed.keySet()) {
-                failed.put(key, MessageStatus.FAILED);
-            }
-            msg.setEmailStatuses(failed);
-        }
-        if (msg.getAppStatuses() != null && !msg.getAppStatuses().isEmpty()) {
-            Map<String, MessageStatus> failed = new HashMap<>(msg.getAppStatuses());
-            for (String key : failed.keySet()) {
-                failed.put(key, MessageStatus.FAILED);
-            }
-            msg.setAppStatuses(failed);
-        }
-        msg.setScheduledAt(null);
+        // quienes ya recibieron o leyeron conservan su estado; solo se escriben los que cambian
+        update.recipients("emailStatuses", failPending(msg.getEmailStatuses()));
+        update.recipients("appStatuses", failPending(msg.getAppStatuses()));
         try {
-            tenantMessages(schoolId).document(msg.getId()).set(msg).get();
+            update.applyTo(tenantMessages(schoolId).document(msg.getId())).get();
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -677,6 +1230,18 @@ public class MessageService {
         }
     }
 
+    private Map<String, MessageStatus> failPending(Map<String, MessageStatus> statuses) {
+        Map<String, MessageStatus> failed = new HashMap<>();
+        if (statuses == null) return failed;
+        statuses.forEach((key, value) -> {
+            if (value != MessageStatus.SENT && value != MessageStatus.READ && value != MessageStatus.FAILED) {
+                failed.put(key, MessageStatus.FAILED);
+            }
+        });
+        statuses.putAll(failed);
+        return failed;
+    }
+
     private String resolveSenderName(String name, String email) {
         String cleanName = name == null ? "" : name.trim();
         String cleanEmail = email == null ? "" : email.trim().toLowerCase();
@@ -715,51 +1280,75 @@ public class MessageService {
         return null;
     }
 
-    private void validateAttachments(List<AttachmentRequest> attachments) {
+    /**
+     * Decodifica y valida los adjuntos una sola vez; el resultado se reutiliza para guardarlos en GCS
+     * y para todos los correos del envío.
+     */
+    private List<PreparedAttachment> prepareAttachments(List<AttachmentRequest> attachments) {
+        List<PreparedAttachment> prepared = new ArrayList<>();
         for (AttachmentRequest att : attachments) {
             if (att.base64() == null || att.base64().isBlank()) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "El adjunto no contiene datos");
             }
-            byte[] data;
+            PreparedAttachment p;
             try {
-                data = java.util.Base64.getDecoder().decode(att.base64());
+                p = PreparedAttachment.fromRequest(att);
             } catch (IllegalArgumentException ex) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Adjunto inválido (base64)");
             }
-            if (data.length > MAX_ATTACHMENT_BYTES) {
+            if (p.size() > MAX_ATTACHMENT_BYTES) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Adjunto excede el límite de 10MB: " + att.fileName());
             }
+            prepared.add(p);
         }
+        return prepared;
     }
 
-    public int processScheduled() {
+    /**
+     * Reclama los programados vencidos por tramos: cada mensaje pasa de SCHEDULED a DISPATCHING en
+     * la misma transacción que crea su trabajo en el outbox, y el envío corre en los workers, no en
+     * la request. Si se agota el presupuesto de tiempo se devuelve un token para continuar.
+     */
+    public ScheduledRunResponse processScheduled(String continuation) {
+        long deadline = System.currentTimeMillis() + scheduledTimeBudgetMs;
+        int processed = 0;
         try {
             Instant now = Instant.now();
-            var query = firestore.collectionGroup("messages")
+            var due = firestore.collectionGroup("messages")
                     .whereEqualTo("status", MessageStatus.SCHEDULED)
                     .whereLessThanOrEqualTo("scheduledAt", com.google.cloud.Timestamp.ofTimeSecondsAndNanos(now.getEpochSecond(), now.getNano()))
-                    .get()
-                    .get();
-            List<QueryDocumentSnapshot> docs = query.getDocuments();
-            int processed = 0;
-            for (QueryDocumentSnapshot doc : docs) {
-                MessageDocument msg = doc.toObject(MessageDocument.class);
-                if (msg == null) continue;
-                msg.setId(doc.getId());
-                List<AttachmentRequest> attReqs = buildAttachmentsFromMetadata(msg.getAttachments());
-                String schoolLogo = null;
-                String schoolName = null;
-                try {
-                    if (msg.getSchoolId() != null && !msg.getSchoolId().isBlank()) {
-                        var school = schoolService.getById(msg.getSchoolId());
-                        schoolLogo = school != null ? school.getLogoUrl() : null;
-                        schoolName = school != null ? school.getName() : null;
+                    .orderBy("scheduledAt")
+                    .limit(scheduledChunkSize);
+            com.google.cloud.firestore.DocumentSnapshot cursor = decodeContinuation(continuation);
+            while (true) {
+                var page = cursor != null ? due.startAfter(cursor) : due;
+                List<QueryDocumentSnapshot> docs = page.get().get().getDocuments();
+                List<ApiFuture<ClaimedSchedule>> claims = new ArrayList<>();
+                for (QueryDocumentSnapshot doc : docs) {
+                    claims.add(claimScheduled(doc.getReference()));
+                }
+                for (ApiFuture<ClaimedSchedule> claim : claims) {
+                    ClaimedSchedule claimed;
+                    try {
+                        claimed = claim.get();
+                    } catch (ExecutionException ex) {
+                        org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                                .warn("No se pudo reclamar mensaje programado: {}", ex.getMessage());
+                        continue;
                     }
-                } catch (Exception ignore) {}
-                deliverNow(msg, attReqs, msg.getChannels(), schoolLogo, schoolName, msg.getSchoolId());
-                processed++;
+                    // null: otra instancia lo reclamó primero o ya no está programado
+                    if (claimed == null) continue;
+                    processed++;
+                    startClaimed(claimed);
+                }
+                if (docs.size() < scheduledChunkSize) {
+                    return new ScheduledRunResponse(processed, null);
+                }
+                cursor = docs.get(docs.size() - 1);
+                if (System.currentTimeMillis() >= deadline) {
+                    return new ScheduledRunResponse(processed, encodeContinuation(cursor));
+                }
             }
-            return processed;
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -768,7 +1357,70 @@ public class MessageService {
         }
     }
 
-    private List<AttachmentRequest> buildAttachmentsFromMetadata(List<AttachmentMetadata> metadataList) {
+    /**
+     * Reclama y despacha un programado puntual (ruta tenants/{id}/messages/{msgId}). El futuro
+     * resuelve false si ya no estaba SCHEDULED.
+     */
+    public ApiFuture<Boolean> dispatchScheduled(String messagePath) {
+        return com.google.api.core.ApiFutures.transform(
+                claimScheduled(firestore.document(messagePath)),
+                claimed -> {
+                    if (claimed == null) return false;
+                    startClaimed(claimed);
+                    return true;
+                },
+                Runnable::run
+        );
+    }
+
+    private void startClaimed(ClaimedSchedule claimed) {
+        try {
+            deliveryExecutor.execute(() -> runDeliveryJob(claimed.job(), claimed.msg(), null, null));
+        } catch (RejectedExecutionException ex) {
+            // el trabajo ya está en el outbox: el poller lo toma cuando haya hilos libres
+            deliveryJobStore.release(claimed.job(), deliveryWorkerId);
+        }
+    }
+
+    private record ClaimedSchedule(MessageDocument msg, DeliveryJobDocument job) {}
+
+    private ApiFuture<ClaimedSchedule> claimScheduled(DocumentReference ref) {
+        return firestore.runTransaction(tx -> {
+            var snap = tx.get(ref).get();
+            MessageDocument msg = snap.exists() ? snap.toObject(MessageDocument.class) : null;
+            if (msg == null || msg.getStatus() != MessageStatus.SCHEDULED) return null;
+            msg.setId(snap.getId());
+            msg.setStatus(MessageStatus.DISPATCHING);
+            tx.update(ref, "status", MessageStatus.DISPATCHING.name());
+            // el tenant sale de la ruta (tenants/{id}/messages/{msgId}), no del campo schoolId
+            String tenant = ref.getParent().getParent().getId();
+            DeliveryJobDocument job = deliveryJobStore.enqueueClaimed(tx, msg.getId(), tenant, deliveryWorkerId, deliveryLease);
+            return new ClaimedSchedule(msg, job);
+        });
+    }
+
+    private String encodeContinuation(com.google.cloud.firestore.DocumentSnapshot cursor) {
+        return java.util.Base64.getUrlEncoder().withoutPadding()
+                .encodeToString(cursor.getReference().getPath().getBytes(java.nio.charset.StandardCharsets.UTF_8));
+    }
+
+    private com.google.cloud.firestore.DocumentSnapshot decodeContinuation(String continuation) throws InterruptedException, ExecutionException {
+        if (continuation == null || continuation.isBlank()) return null;
+        String path;
+        try {
+            path = new String(java.util.Base64.getUrlDecoder().decode(continuation), java.nio.charset.StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Token de continuación inválido");
+        }
+        if (!path.startsWith("tenants/") || !path.contains("/messages/")) {
+            throw new ResponseStatusException(org.springframework.http.HttpStatus.BAD_REQUEST, "Token de continuación inválido");
+        }
+        var snap = firestore.document(path).get().get();
+        // si el cursor ya no existe se parte desde el inicio; los reclamados ya no califican
+        return snap.exists() ? snap : null;
+    }
+
+    private List<PreparedAttachment> buildAttachmentsFromMetadata(List<AttachmentMetadata> metadataList) {
         if (metadataList == null || metadataList.isEmpty() || attachmentsBucket == null || attachmentsBucket.isBlank()) {
             return List.of();
         }
@@ -776,14 +1428,10 @@ public class MessageService {
                 .map(meta -> {
                     if (meta.getObjectPath() == null) return null;
                     try {
-                        var blob = storage.get(com.google.cloud.storage.BlobId.of(attachmentsBucket, meta.getObjectPath()));
-                        if (blob == null) return null;
-                        byte[] data = blob.getContent();
-                        String base64 = java.util.Base64.getEncoder().encodeToString(data);
-                        return new AttachmentRequest(
+                        return new PreparedAttachment(
                                 meta.getFileName(),
                                 meta.getMimeType(),
-                                base64,
+                                readAttachment(meta),
                                 meta.getInline(),
                                 meta.getCid()
                         );
@@ -797,12 +1445,44 @@ public class MessageService {
                 .toList();
     }
 
-    private void deliverNow(MessageDocument msg, List<AttachmentRequest> attachments, List<String> channels, String schoolLogo, String schoolName, String schoolId) {
+    /**
+     * Lee el objeto por bloques directo a un buffer del tamaño guardado en la metadata, sin la
+     * consulta previa de metadata ni las copias intermedias de {@code Blob.getContent()}.
+     */
+    private byte[] readAttachment(AttachmentMetadata meta) throws java.io.IOException {
+        var blobId = com.google.cloud.storage.BlobId.of(attachmentsBucket, meta.getObjectPath());
+        long expected = meta.getSizeBytes() != null ? meta.getSizeBytes() : -1;
+        try (com.google.cloud.ReadChannel reader = storage.reader(blobId)) {
+            reader.setChunkSize(256 * 1024);
+            if (expected < 0 || expected > MAX_ATTACHMENT_BYTES) {
+                return java.nio.channels.Channels.newInputStream(reader).readAllBytes();
+            }
+            java.nio.ByteBuffer buffer = java.nio.ByteBuffer.allocate((int) expected);
+            while (buffer.hasRemaining()) {
+                if (reader.read(buffer) < 0) break;
+            }
+            if (buffer.hasRemaining()) {
+                return java.util.Arrays.copyOf(buffer.array(), buffer.position());
+            }
+            return buffer.array();
+        }
+    }
+
+    /**
+     * {@code leaseLost} se revisa antes de cada lote y antes del push: si otra instancia pudo tomar
+     * el trabajo se deja de enviar y no se cierra el mensaje (los lotes ya enviados quedaron guardados).
+     */
+    private void deliverNow(MessageDocument msg, List<PreparedAttachment> attachments, List<String> channels, String schoolLogo, String schoolName, String schoolId, java.util.function.BooleanSupplier leaseLost) {
         boolean mailOk = true;
         boolean appOk = true;
+        // destinatarios con fallo pasajero del proveedor: el trabajo se reintenta en vez de cerrarse
+        int retryEmails = 0;
+        boolean abandoned = false;
         MessageStatus emailStatus = null;
         MessageStatus appStatus = null;
         Map<String, MessageStatus> perRecipientEmail = msg.getEmailStatuses() != null ? new HashMap<>(msg.getEmailStatuses()) : new HashMap<>();
+        // solo lo que cambia en este envío se escribe al final, por ruta de campo
+        MessageStatusUpdate finalUpdate = new MessageStatusUpdate();
 
         String textBody = msg.getContent();
         String subject = (schoolName != null && !schoolName.isBlank()
@@ -819,31 +1499,54 @@ public class MessageService {
                     org.slf4j.LoggerFactory.getLogger(MessageService.class)
                             .warn("No se encontraron correos válidos en recipients");
                 }
+                // el HTML se arma una sola vez; destinatario y pixel de tracking van como sustituciones del proveedor
+                CompiledTemplate htmlTemplate = CompiledTemplate.compile(appendTrackingPixel(buildHtmlBody(
+                        msg.getContent(),
+                        msg.getSenderName(),
+                        msg.getSenderEmail(),
+                        msg.getReason(),
+                        attachments,
+                        schoolLogo,
+                        schoolName,
+                        EmailService.RECIPIENT_SLOT
+                ), EmailService.TRACKING_SLOT), EmailService.RECIPIENT_SLOT, EmailService.TRACKING_SLOT);
+                List<EmailService.BulkRecipient> pending = new ArrayList<>();
                 for (String to : emails) {
-                    // usa el correo como "nombre" del destinatario para el chip Para
-                    String htmlBody = buildHtmlBody(
-                            msg.getContent(),
-                            msg.getSenderName(),
-                            msg.getSenderEmail(),
-                            msg.getReason(),
-                            attachments,
-                            schoolLogo,
-                            schoolName,
-                            to
-                    );
-                    String htmlWithTracking = appendTrackingPixel(htmlBody, msg.getId(), to, schoolId);
-                    boolean sent = emailService.sendMessageEmail(
-                            to,
-                            subject,
-                            htmlWithTracking,
-                            textBody,
-                            attachments
-                    );
                     String key = to == null ? "" : to.trim().toLowerCase();
-                    if (!key.isBlank()) {
-                        perRecipientEmail.put(key, sent ? MessageStatus.SENT : MessageStatus.FAILED);
+                    MessageStatus previous = perRecipientEmail.get(key);
+                    if (previous == MessageStatus.SENT || previous == MessageStatus.READ) {
+                        // ya enviado en un intento anterior (recuperación desde el outbox)
+                        continue;
                     }
-                    mailOk = mailOk && sent;
+                    String trackingUrl = buildTrackingUrl(msg.getId(), to, schoolId);
+                    pending.add(new EmailService.BulkRecipient(to, Map.of(
+                            // usa el correo como "nombre" del destinatario para el chip Para
+                            EmailService.RECIPIENT_SLOT, recipientLine(to),
+                            EmailService.TRACKING_SLOT, trackingUrl == null ? "" : trackingUrl
+                    )));
+                }
+                for (int i = 0; i < pending.size(); i += EMAIL_BATCH_SIZE) {
+                    if (leaseLost.getAsBoolean()) {
+                        abandoned = true;
+                        break;
+                    }
+                    List<EmailService.BulkRecipient> batch = pending.subList(i, Math.min(i + EMAIL_BATCH_SIZE, pending.size()));
+                    Map<String, EmailService.BulkOutcome> results = emailService.sendBulkMessageEmail(batch, subject, htmlTemplate, textBody, attachments);
+                    Map<String, MessageStatus> batchStatuses = new HashMap<>();
+                    for (EmailService.BulkRecipient r : batch) {
+                        EmailService.BulkOutcome outcome = results.get(r.email());
+                        boolean sent = outcome == EmailService.BulkOutcome.SENT;
+                        if (outcome == EmailService.BulkOutcome.RETRY) {
+                            retryEmails++;
+                        }
+                        String key = r.email().trim().toLowerCase();
+                        if (!key.isBlank()) {
+                            batchStatuses.put(key, sent ? MessageStatus.SENT : MessageStatus.FAILED);
+                        }
+                        mailOk = mailOk && sent;
+                    }
+                    perRecipientEmail.putAll(batchStatuses);
+                    checkpointEmailStatuses(msg.getId(), schoolId, batchStatuses);
                 }
                 msg.setEmailStatuses(perRecipientEmail);
             } else {
@@ -857,6 +1560,7 @@ public class MessageService {
                                 String key = r.trim().toLowerCase();
                                 if (!key.isBlank()) {
                                     perRecipientEmail.put(key, MessageStatus.FAILED);
+                                    finalUpdate.recipient("emailStatuses", key, MessageStatus.FAILED);
                                 }
                             }
                         }
@@ -875,24 +1579,52 @@ public class MessageService {
         }
 
         try {
-            if (channels.contains("app")) {
-                List<String> studentRecipients = studentRecipientEmails(msg.getRecipients());
+            abandoned = abandoned || leaseLost.getAsBoolean();
+            if (channels.contains("app") && !abandoned) {
+                List<String> studentRecipients = studentRecipientEmails(msg.getRecipients(), recipientRoster(schoolId, msg.getYear()));
                 if (!studentRecipients.isEmpty()) {
                     appStatus = MessageStatus.PENDING;
                 }
-                List<String> tokens = studentRecipients.isEmpty()
-                        ? List.of()
-                        : deviceTokenService.tokensForRecipients(studentRecipients, schoolId);
-                if (!tokens.isEmpty()) {
-                    sendPushNotifications(tokens, subject, msg.getReason(), msg.getId(), schoolId);
-                    if (msg.getAppStatuses() != null && !msg.getAppStatuses().isEmpty()) {
-                        Map<String, MessageStatus> updated = new HashMap<>(msg.getAppStatuses());
-                        for (String key : updated.keySet()) {
-                            updated.put(key, MessageStatus.SENT);
-                        }
-                        msg.setAppStatuses(updated);
+                Map<String, MessageStatus> perRecipientApp = msg.getAppStatuses() != null ? new HashMap<>(msg.getAppStatuses()) : new HashMap<>();
+                boolean topicPush = msg.getPushTopics() != null && !msg.getPushTopics().isEmpty() && pushNotificationService.isEnabled();
+                if (topicPush && msg.getPushTopicsSentAt() == null) {
+                    // un solo envío a los topics de los grupos; appStatuses se completa con las lecturas
+                    appOk = pushNotificationService.sendToTopics(msg.getPushTopics(), subject, msg.getReason(), msg.getId(), schoolId);
+                    if (appOk) {
+                        msg.setPushTopicsSentAt(Instant.now());
+                        // se persiste de inmediato para no repetir el push si el trabajo se reintenta
+                        tenantMessages(schoolId).document(msg.getId()).update("pushTopicsSentAt", msg.getPushTopicsSentAt()).get();
                     }
                 }
+                // en una recuperación desde el outbox no se repite el push a quienes ya lo recibieron
+                List<String> pushTargets = studentRecipients.stream()
+                        .filter(r -> {
+                            MessageStatus previous = perRecipientApp.get(r.trim().toLowerCase());
+                            return previous != MessageStatus.SENT && previous != MessageStatus.READ;
+                        })
+                        .toList();
+                Map<String, List<String>> tokensByRecipient = topicPush || pushTargets.isEmpty() || !pushNotificationService.isEnabled()
+                        ? Map.of()
+                        : deviceTokenService.tokensByRecipient(pushTargets, schoolId);
+                if (!tokensByRecipient.isEmpty()) {
+                    List<String> tokens = tokensByRecipient.values().stream().flatMap(List::stream).distinct().toList();
+                    Map<String, PushNotificationService.PushOutcome> pushResults = pushNotificationService.send(tokens, subject, msg.getReason(), msg.getId(), schoolId);
+                    // SENT si llegó a algún dispositivo; quienes no tienen dispositivo quedan PENDING hasta abrir la app
+                    for (Map.Entry<String, List<String>> entry : tokensByRecipient.entrySet()) {
+                        boolean sent = entry.getValue().stream().anyMatch(t -> pushResults.get(t) == PushNotificationService.PushOutcome.SENT);
+                        MessageStatus pushStatus = sent ? MessageStatus.SENT : MessageStatus.FAILED;
+                        perRecipientApp.put(entry.getKey(), pushStatus);
+                        finalUpdate.recipient("appStatuses", entry.getKey(), pushStatus);
+                    }
+                    List<String> deadTokens = pushResults.entrySet().stream()
+                            .filter(e -> e.getValue() == PushNotificationService.PushOutcome.INVALID_TOKEN)
+                            .map(Map.Entry::getKey)
+                            .toList();
+                    if (!deadTokens.isEmpty()) {
+                        deviceTokenService.deleteTokens(deadTokens);
+                    }
+                    msg.setAppStatuses(perRecipientApp);
+                }
             }
         } catch (Exception ex) {
             appOk = false;
@@ -900,28 +1632,63 @@ public class MessageService {
             org.slf4j.LoggerFactory.getLogger(MessageService.class)
                     .error("Error enviando push de mensaje {}: {}", msg.getId(), ex.getMessage());
         } finally {
-            MessageStatus status;
-            if (channels.contains("email")) {
-                status = mailOk ? MessageStatus.SENT : MessageStatus.FAILED;
-            } else if (channels.contains("app")) {
-                status = appOk ? MessageStatus.SENT : MessageStatus.FAILED;
-            } else {
-                status = MessageStatus.SENT;
+            // con fallos pasajeros el mensaje sigue abierto: solo se guardan los push de este intento
+            if (retryEmails == 0 && !abandoned) {
+                MessageStatus status;
+                if (channels.contains("email")) {
+                    status = mailOk ? MessageStatus.SENT : MessageStatus.FAILED;
+                } else if (channels.contains("app")) {
+                    status = appOk ? MessageStatus.SENT : MessageStatus.FAILED;
+                } else {
+                    status = MessageStatus.SENT;
+                }
+                msg.setStatus(status);
+                msg.setEmailStatus(emailStatus);
+                msg.setAppStatus(appStatus);
+                msg.setScheduledAt(null);
+                finalUpdate.set("status", status)
+                        .set("emailStatus", emailStatus)
+                        .set("appStatus", appStatus)
+                        .set("scheduledAt", null);
             }
-            msg.setStatus(status);
-            msg.setEmailStatus(emailStatus);
-            msg.setAppStatus(appStatus);
-            msg.setScheduledAt(null);
 
-            try {
-                tenantMessages(schoolId).document(msg.getId()).set(msg).get();
-            } catch (InterruptedException | ExecutionException e) {
-                if (e instanceof InterruptedException) {
-                    Thread.currentThread().interrupt();
+            if (!abandoned && !finalUpdate.isEmpty()) {
+                try {
+                    finalUpdate.applyTo(tenantMessages(schoolId).document(msg.getId())).get();
+                } catch (InterruptedException | ExecutionException e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    throw new RuntimeException("Error actualizando mensaje enviado", e);
                 }
-                throw new RuntimeException("Error actualizando mensaje enviado", e);
             }
         }
+        if (abandoned) {
+            // el trabajo ya puede ser de otra instancia: no se cierra el mensaje ni el trabajo
+            throw new IllegalStateException("Se perdió el lease del envío " + msg.getId());
+        }
+        if (retryEmails > 0) {
+            // runDeliveryJob lo registra como intento fallido y el outbox lo retoma con backoff
+            throw new IllegalStateException(retryEmails + " correos con fallo pasajero del proveedor; se reintenta el envío");
+        }
+    }
+
+    /**
+     * Persiste el avance por destinatario para que una recuperación no reenvíe a quienes ya recibieron.
+     * Solo se escriben las entradas del lote, así no se pisa un READ registrado mientras tanto.
+     */
+    private void checkpointEmailStatuses(String messageId, String schoolId, Map<String, MessageStatus> statuses) {
+        if (statuses.isEmpty()) return;
+        try {
+            new MessageStatusUpdate().recipients("emailStatuses", statuses)
+                    .applyTo(tenantMessages(schoolId).document(messageId)).get();
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                    .warn("No se pudo guardar avance de envío {}: {}", messageId, e.getMessage());
+        }
     }
 
     private Instant parseScheduledAt(String value) {
@@ -954,65 +1721,89 @@ public class MessageService {
         return false;
     }
 
-    private Map<String, String> resolveRecipientNames(List<String> recipients) {
+    private Map<String, String> resolveRecipientNames(List<String> recipients, RecipientRoster.Snapshot roster) {
         Map<String, String> result = new HashMap<>();
         if (recipients == null || recipients.isEmpty()) return result;
+        List<String> unknown = new ArrayList<>();
         for (String raw : recipients) {
             if (raw == null) continue;
             String email = raw.trim().toLowerCase();
             if (email.isBlank() || result.containsKey(email)) continue;
-            String name = null;
-            try {
-                var userOpt = userService.findByEmail(email);
-                if (userOpt.isPresent()) {
-                    name = userOpt.get().getName();
-                }
-            } catch (Exception e) {
-                org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                        .warn("No se pudo resolver nombre de usuario para {}: {}", email, e.getMessage());
+            if (roster == null || !roster.knows(email)) {
+                unknown.add(email);
+                continue;
             }
+            String name = roster.nameOf(email);
+            if (name != null && !name.isBlank()) {
+                result.put(email, name);
+            }
+        }
+        if (!unknown.isEmpty()) {
+            result.putAll(lookupRecipientNames(unknown));
+        }
+        return result;
+    }
 
-            if (name == null || name.isBlank()) {
-                try {
-                    List<StudentDocument> students = studentService.findAllByEmail(email);
-                    for (StudentDocument s : students) {
-                        if (s == null) continue;
-                        String studentName = String.join(" ", java.util.Arrays.asList(
-                                safe(s.getFirstName()),
-                                safe(s.getLastNameFather()),
-                                safe(s.getLastNameMother())
-                        )).trim();
-                        if (s.getEmail() != null && s.getEmail().equalsIgnoreCase(email)) {
-                            name = studentName.isBlank() ? null : studentName;
-                            break;
-                        }
-                        if (s.getGuardians() != null) {
-                            for (GuardianContact g : s.getGuardians()) {
-                                if (g == null) continue;
-                                String ge = g.getEmail() == null ? "" : g.getEmail().trim().toLowerCase();
-                                if (!ge.isBlank() && ge.equals(email)) {
-                                    if (g.getName() != null && !g.getName().isBlank()) {
-                                        name = g.getName();
-                                    } else if (!studentName.isBlank()) {
-                                        name = "Apoderado de " + studentName;
-                                    }
-                                    break;
-                                }
-                            }
+    /**
+     * Nombres de correos que no están en la foto del colegio: usuario, alumno o apoderado en
+     * cualquier colegio, con las consultas de todos los correos agrupadas en lotes.
+     */
+    private Map<String, String> lookupRecipientNames(List<String> emails) {
+        Map<String, String> result = new HashMap<>();
+        try {
+            userService.findByEmails(emails).forEach((email, user) -> {
+                if (user.getName() != null && !user.getName().isBlank()) {
+                    result.put(email, user.getName());
+                }
+            });
+        } catch (Exception e) {
+            org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                    .warn("No se pudo resolver nombre de {} usuarios: {}", emails.size(), e.getMessage());
+        }
+
+        List<String> pending = emails.stream().filter(e -> !result.containsKey(e)).toList();
+        if (pending.isEmpty()) return result;
+        try {
+            studentService.findAllByEmails(pending).forEach((email, students) -> {
+                String name = nameFromStudents(email, students);
+                if (name != null && !name.isBlank()) {
+                    result.put(email, name);
+                }
+            });
+        } catch (Exception e) {
+            org.slf4j.LoggerFactory.getLogger(MessageService.class)
+                    .warn("No se pudo resolver nombre de {} estudiantes/apoderados: {}", pending.size(), e.getMessage());
+        }
+        return result;
+    }
+
+    private String nameFromStudents(String email, List<StudentDocument> students) {
+        for (StudentDocument s : students) {
+            if (s == null) continue;
+            String studentName = String.join(" ", java.util.Arrays.asList(
+                    safe(s.getFirstName()),
+                    safe(s.getLastNameFather()),
+                    safe(s.getLastNameMother())
+            )).trim();
+            if (s.getEmail() != null && s.getEmail().equalsIgnoreCase(email)) {
+                return studentName.isBlank() ? null : studentName;
+            }
+            if (s.getGuardians() != null) {
+                for (GuardianContact g : s.getGuardians()) {
+                    if (g == null) continue;
+                    String ge = g.getEmail() == null ? "" : g.getEmail().trim().toLowerCase();
+                    if (!ge.isBlank() && ge.equals(email)) {
+                        if (g.getName() != null && !g.getName().isBlank()) {
+                            return g.getName();
+                        } else if (!studentName.isBlank()) {
+                            return "Apoderado de " + studentName;
                         }
-                        if (name != null && !name.isBlank()) break;
+                        break;
                     }
-                } catch (Exception e) {
-                    org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                            .warn("No se pudo resolver nombre de estudiante/apoderado para {}: {}", email, e.getMessage());
                 }
             }
-
-            if (name != null && !name.isBlank()) {
-                result.put(email, name);
-            }
         }
-        return result;
+        return null;
     }
 
     private List<RecipientDetail> buildRecipientDetails(List<String> recipients, Map<String, String> names) {
@@ -1030,18 +1821,27 @@ public class MessageService {
     /**
      * Filtra los correos que corresponden a estudiantes o apoderados (guardians) para uso de App.
      */
-    private List<String> studentRecipientEmails(List<String> recipients) {
+    private List<String> studentRecipientEmails(List<String> recipients, RecipientRoster.Snapshot roster) {
         if (recipients == null || recipients.isEmpty()) return List.of();
         List<String> result = new ArrayList<>();
+        List<String> unknown = new ArrayList<>();
         for (String r : recipients) {
             if (r == null || r.isBlank()) continue;
-            try {
-                List<StudentDocument> matches = studentService.findAllByEmail(r.toLowerCase());
-                if (matches != null && !matches.isEmpty()) {
+            if (roster != null && roster.knows(r)) {
+                if (roster.isAppEligible(r)) {
                     result.add(r.trim().toLowerCase());
                 }
-            } catch (Exception ignore) {
-                // si falla la consulta, no agregamos el correo
+            } else {
+                unknown.add(r.trim().toLowerCase());
+            }
+        }
+        if (!unknown.isEmpty()) {
+            // si falla la consulta, findAllByEmails devuelve vacío y no agregamos esos correos
+            java.util.Set<String> linked = studentService.findAllByEmails(unknown).keySet();
+            for (String r : unknown) {
+                if (linked.contains(r)) {
+                    result.add(r);
+                }
             }
         }
         return result;
@@ -1057,7 +1857,7 @@ public class MessageService {
         List<RecipientDetail> recipientDetails = msg.getRecipientsDetails();
         Map<String, MessageStatus> emailStatuses = msg.getEmailStatuses();
         if ((recipientNames == null || recipientNames.isEmpty()) && msg.getRecipients() != null) {
-            recipientNames = resolveRecipientNames(msg.getRecipients());
+            recipientNames = resolveRecipientNames(msg.getRecipients(), recipientRoster(msg.getSchoolId(), msg.getYear()));
         }
         if ((recipientDetails == null || recipientDetails.isEmpty()) && msg.getRecipients() != null) {
             recipientDetails = buildRecipientDetails(msg.getRecipients(), recipientNames != null ? recipientNames : Map.of());
@@ -1081,8 +1881,8 @@ public class MessageService {
                 msg.getSenderEmail(),
                 msg.getRecipients(),
                 msg.getChannels(),
-                msg.getEmailStatus(),
-                msg.getAppStatus(),
+                aggregateStatus(msg.getEmailStatus(), msg.getEmailReadCount(), msg.getRecipientCount(), "email", msg.getChannels()),
+                aggregateStatus(msg.getAppStatus(), msg.getAppReadCount(), msg.getRecipientCount(), "app", msg.getChannels()),
                 msg.getAppReadBy(),
                 msg.getAppStatuses(),
                 emailStatuses,
@@ -1102,13 +1902,24 @@ public class MessageService {
         );
     }
     
-    private List<AttachmentMetadata> storeAttachments(String messageId, String schoolId, String year, List<AttachmentRequest> attachments) {
+    /**
+     * Las lecturas ya no reescriben el estado agregado: es READ cuando el contador de lecturas
+     * alcanza la cantidad de destinatarios.
+     */
+    private MessageStatus aggregateStatus(MessageStatus stored, Long readCount, Integer recipientCount, String channel, List<String> channels) {
+        if (channels == null || !channels.contains(channel) || readCount == null || recipientCount == null || recipientCount <= 0) {
+            return stored;
+        }
+        return readCount >= recipientCount ? MessageStatus.READ : stored;
+    }
+
+    private List<AttachmentMetadata> storeAttachments(String messageId, String schoolId, String year, List<PreparedAttachment> attachments) {
         if (attachments == null || attachments.isEmpty() || attachmentsBucket == null || attachmentsBucket.isBlank()) {
             return List.of();
         }
         return attachments.stream().map(att -> {
-            if (att.base64() == null || att.fileName() == null) return null;
-            byte[] data = java.util.Base64.getDecoder().decode(att.base64());
+            if (att.fileName() == null) return null;
+            byte[] data = att.data();
             String cleanName = att.fileName().replaceAll("[^a-zA-Z0-9._-]", "_");
             String key = String.format("messages/%s/%s/%s", schoolId != null ? schoolId : "global", messageId, cleanName);
             BlobInfo blobInfo = BlobInfo.newBuilder(attachmentsBucket, key)
@@ -1190,8 +2001,9 @@ public class MessageService {
                 }
             } else if (hasAllowedGroups) {
                 // Compatibilidad con grupos antiguos que guardan solo correos.
+                Map<String, StudentDocument> selected = studentService.findByIds(normalizedStudentIds);
                 for (String studentId : normalizedStudentIds) {
-                    StudentDocument student = studentService.findById(studentId).orElse(null);
+                    StudentDocument student = selected.get(studentId);
                     if (student == null || !isStudentMatchedByEmails(student, allowedEmails)) {
                         throw new ResponseStatusException(org.springframework.http.HttpStatus.FORBIDDEN, "No puedes enviar a alumnos fuera de tus grupos permitidos");
                     }
@@ -1201,7 +2013,17 @@ public class MessageService {
         java.util.Set<String> selectedStudentEmails = normalizedStudentIds.isEmpty()
                 ? java.util.Collections.emptySet()
                 : expandStudentAudienceEmails(normalizedStudentIds);
-        java.util.Map<String, Boolean> studentAllowedCache = new java.util.HashMap<>();
+        // alumnos/apoderados de los correos que no son usuarios, en una sola pasada
+        Map<String, List<StudentDocument>> studentsByEmail = Map.of();
+        if (hasAllowedGroups && selectedStudentEmails.isEmpty()) {
+            List<String> candidates = normalized.stream()
+                    .filter(email -> !roles.containsKey(email) && !allowedEmails.contains(email))
+                    .distinct()
+                    .toList();
+            if (!candidates.isEmpty()) {
+                studentsByEmail = studentService.findAllByEmails(candidates);
+            }
+        }
         for (String email : normalized) {
             UserRole role = roles.get(email);
             if (role == null) {
@@ -1217,8 +2039,7 @@ public class MessageService {
                 if (allowedEmails.contains(email)) {
                     continue;
                 }
-                boolean allowedStudent = studentAllowedCache.computeIfAbsent(email, key -> isStudentAllowedByGroups(key, allowedEmails, allowedStudentIds));
-                if (allowedStudent) {
+                if (isStudentAllowedByGroups(studentsByEmail.getOrDefault(email, List.of()), allowedEmails, allowedStudentIds)) {
                     continue;
                 }
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.FORBIDDEN, "Solo puedes enviar directo a usuarios de la plataforma o alumnos de tus grupos permitidos");
@@ -1230,35 +2051,30 @@ public class MessageService {
         }
     }
 
-    private boolean isStudentAllowedByGroups(String email, java.util.Set<String> allowedEmails, java.util.Set<String> allowedStudentIds) {
-        if (email == null || email.isBlank()) return false;
+    private boolean isStudentAllowedByGroups(List<StudentDocument> students, java.util.Set<String> allowedEmails, java.util.Set<String> allowedStudentIds) {
+        if (students.isEmpty()) return false;
         if ((allowedEmails == null || allowedEmails.isEmpty()) && (allowedStudentIds == null || allowedStudentIds.isEmpty())) return false;
-        try {
-            List<StudentDocument> students = studentService.findAllByEmail(email);
-            for (StudentDocument s : students) {
-                if (s == null) continue;
-                if (allowedStudentIds != null && !allowedStudentIds.isEmpty()) {
-                    if (s.getId() != null && allowedStudentIds.contains(s.getId().trim())) {
-                        return true;
-                    }
-                    continue;
+        for (StudentDocument s : students) {
+            if (s == null) continue;
+            if (allowedStudentIds != null && !allowedStudentIds.isEmpty()) {
+                if (s.getId() != null && allowedStudentIds.contains(s.getId().trim())) {
+                    return true;
                 }
-                List<String> guardianEmails = s.getGuardianEmails();
-                if (guardianEmails != null) {
-                    for (String ge : guardianEmails) {
-                        if (ge != null && allowedEmails.contains(ge.trim().toLowerCase())) return true;
-                    }
+                continue;
+            }
+            List<String> guardianEmails = s.getGuardianEmails();
+            if (guardianEmails != null) {
+                for (String ge : guardianEmails) {
+                    if (ge != null && allowedEmails.contains(ge.trim().toLowerCase())) return true;
                 }
-                if (s.getGuardians() != null) {
-                    for (GuardianContact g : s.getGuardians()) {
-                        if (g == null || g.getEmail() == null) continue;
-                        String ge = g.getEmail().trim().toLowerCase();
-                        if (!ge.isBlank() && allowedEmails.contains(ge)) return true;
-                    }
+            }
+            if (s.getGuardians() != null) {
+                for (GuardianContact g : s.getGuardians()) {
+                    if (g == null || g.getEmail() == null) continue;
+                    String ge = g.getEmail().trim().toLowerCase();
+                    if (!ge.isBlank() && allowedEmails.contains(ge)) return true;
                 }
             }
-        } catch (Exception ignore) {
-            // si falla la consulta, no autorizamos
         }
         return false;
     }
@@ -1286,10 +2102,7 @@ public class MessageService {
     private java.util.Set<String> expandStudentAudienceEmails(List<String> studentIds) {
         java.util.Set<String> allowed = new java.util.HashSet<>();
         if (studentIds == null || studentIds.isEmpty()) return allowed;
-        for (String id : studentIds) {
-            if (id == null || id.isBlank()) continue;
-            StudentDocument student = studentService.findById(id).orElse(null);
-            if (student == null) continue;
+        for (StudentDocument student : studentService.findByIds(studentIds).values()) {
             if (student.getEmail() != null && !student.getEmail().isBlank()) {
                 allowed.add(student.getEmail().trim().toLowerCase());
             }
@@ -1314,14 +2127,9 @@ public class MessageService {
     private Map<String, UserRole> fetchUserRoles(List<String> emails) {
         Map<String, UserRole> result = new HashMap<>();
         try {
-            // Firestore whereIn supports up to 10; procesar en lotes
-            int batchSize = 10;
-            for (int i = 0; i < emails.size(); i += batchSize) {
-                List<String> batch = emails.subList(i, Math.min(i + batchSize, emails.size()));
-                ApiFuture<QuerySnapshot> query = firestore.collectionGroup("users")
-                        .whereIn("email", batch)
-                        .get();
-                List<QueryDocumentSnapshot> docs = query.get().getDocuments();
+            // lotes whereIn lanzados en paralelo
+            var found = BatchLoader.whereIn(firestore.collectionGroup("users"), "email").loadAll(emails);
+            for (List<QueryDocumentSnapshot> docs : found.values()) {
                 for (QueryDocumentSnapshot doc : docs) {
                     UserDocument u = doc.toObject(UserDocument.class);
                     if (u != null && u.getEmail() != null && u.getRole() != null) {
@@ -1338,136 +2146,6 @@ public class MessageService {
         }
     }
 
-    private void sendPushNotifications(List<String> tokens, String title, String body, String messageId, String schoolId) {
-        if (fcmCredentials != null) {
-            sendPushV1(tokens, title, body, messageId, schoolId);
-        } else if (fcmServerKey != null && !fcmServerKey.isBlank()) {
-            sendPushLegacy(tokens, title, body, messageId, schoolId);
-        }
-    }
-
-    private void sendPushLegacy(List<String> tokens, String title, String body, String messageId, String schoolId) {
-        try {
-            java.net.URL url = new java.net.URL("https://fcm.googleapis.com/fcm/send");
-            java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-            conn.setRequestMethod("POST");
-            conn.setRequestProperty("Authorization", "key=" + fcmServerKey);
-            conn.setRequestProperty("Content-Type", "application/json; UTF-8");
-            conn.setDoOutput(true);
-            String payload = """
-                    {
-                      "registration_ids": %s,
-                      "notification": {
-                        "title": "%s",
-                        "body": "%s"
-                      },
-                      "data": {
-                        "messageId": "%s",
-                        "schoolId": "%s"
-                      }
-                    }
-                    """.formatted(
-                    new com.fasterxml.jackson.databind.ObjectMapper().writeValueAsString(tokens),
-                    title.replace("\"", "'"),
-                    body != null ? body.replace("\"", "'") : "",
-                    messageId,
-                    schoolId != null ? schoolId : "global"
-            );
-            try (java.io.OutputStream os = conn.getOutputStream()) {
-                byte[] input = payload.getBytes(java.nio.charset.StandardCharsets.UTF_8);
-                os.write(input, 0, input.length);
-            }
-            conn.getResponseCode(); // dispara la llamada
-        } catch (Exception e) {
-            org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                    .warn("No se pudo enviar push FCM (legacy): {}", e.getMessage());
-        }
-    }
-
-    private void sendPushV1(List<String> tokens, String title, String body, String messageId, String schoolId) {
-        try {
-            if (fcmCredentials == null) return;
-            String project = resolveFcmProjectId();
-            if (project == null || project.isBlank()) {
-                org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                        .warn("No se pudo resolver projectId para FCM v1");
-                return;
-            }
-            String urlBase = "https://fcm.googleapis.com/v1/projects/" + project + "/messages:send";
-            String bearer = getAccessToken();
-            for (String token : tokens) {
-                if (token == null || token.isBlank()) continue;
-                java.net.URL url = new java.net.URL(urlBase);
-                java.net.HttpURLConnection conn = (java.net.HttpURLConnection) url.openConnection();
-                conn.setRequestMethod("POST");
-                conn.setRequestProperty("Authorization", "Bearer " + bearer);
-                conn.setRequestProperty("Content-Type", "application/json; UTF-8");
-                conn.setDoOutput(true);
-                String payload = """
-                        {
-                          "message": {
-                            "token": "%s",
-                            "notification": {
-                              "title": "%s",
-                              "body": "%s"
-                            },
-                            "data": {
-                              "messageId": "%s",
-                              "schoolId": "%s"
-                            }
-                          }
-                        }
-                        """.formatted(
-                        token,
-                        title.replace("\"", "'"),
-                        body != null ? body.replace("\"", "'") : "",
-                        messageId,
-                        schoolId != null ? schoolId : "global"
-                );
-                try (java.io.OutputStream os = conn.getOutputStream()) {
-                    byte[] input = payload.getBytes(StandardCharsets.UTF_8);
-                    os.write(input, 0, input.length);
-                }
-                conn.getResponseCode();
-            }
-        } catch (Exception e) {
-            org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                    .warn("No se pudo enviar push FCM v1: {}", e.getMessage());
-        }
-    }
-
-    private GoogleCredentials parseCredentials(String json) {
-        try {
-            if (json == null || json.isBlank()) return null;
-            GoogleCredentials creds = GoogleCredentials.fromStream(
-                    new java.io.ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))
-            ).createScoped(List.of("https://www.googleapis.com/auth/cloud-platform"));
-            creds.refreshIfExpired();
-            return creds;
-        } catch (Exception e) {
-            org.slf4j.LoggerFactory.getLogger(MessageService.class)
-                    .warn("No se pudieron leer credenciales FCM v1: {}", e.getMessage());
-            return null;
-        }
-    }
-
-    private String resolveFcmProjectId() {
-        if (fcmProjectId != null && !fcmProjectId.isBlank()) return fcmProjectId;
-        if (fcmCredentials instanceof ServiceAccountCredentials sac && sac.getProjectId() != null) {
-            return sac.getProjectId();
-        }
-        if (firestore != null && firestore.getOptions() != null) {
-            return firestore.getOptions().getProjectId();
-        }
-        return null;
-    }
-
-    private String getAccessToken() throws java.io.IOException {
-        if (fcmCredentials == null) return null;
-        fcmCredentials.refreshIfExpired();
-        return fcmCredentials.getAccessToken().getTokenValue();
-    }
-
     public void markAsRead(String messageId, String readerEmail) {
         try {
             if (readerEmail == null || readerEmail.isBlank()) {
@@ -1477,37 +2155,27 @@ public class MessageService {
             if (ref == null) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Mensaje no encontrado");
             }
-            var snapshot = ref.get().get();
-            MessageDocument msg = snapshot.toObject(MessageDocument.class);
-            if (msg == null) {
-                throw new ResponseStatusException(org.springframework.http.HttpStatus.INTERNAL_SERVER_ERROR, "Mensaje inválido");
-            }
-            if (msg.getRecipients() == null || !msg.getRecipients().contains(readerEmail)) {
+            com.google.cloud.firestore.FieldPath statusPath = MessageStatusUpdate.recipientPath("appStatuses", readerEmail);
+            // se valida que sea destinatario y se lee solo su entrada de estado, no el documento
+            com.google.cloud.firestore.Query probe = ref.getParent()
+                    .whereEqualTo(com.google.cloud.firestore.FieldPath.documentId(), ref.getId())
+                    .whereArrayContains("recipients", readerEmail)
+                    .select(statusPath);
+            Boolean isRecipient = firestore.runTransaction(tx -> {
+                List<QueryDocumentSnapshot> docs = tx.get(probe).get().getDocuments();
+                if (docs.isEmpty()) return false;
+                if (MessageStatus.READ.name().equals(docs.get(0).get(statusPath))) return true;
+                inboxStore.markRead(tx, ref, readerEmail);
+                new MessageStatusUpdate()
+                        .recipient("appStatuses", readerEmail, MessageStatus.READ)
+                        .arrayUnion("appReadBy", readerEmail)
+                        .increment("appReadCount", 1)
+                        .applyTo(tx, ref);
+                return true;
+            }).get();
+            if (!Boolean.TRUE.equals(isRecipient)) {
                 throw new ResponseStatusException(org.springframework.http.HttpStatus.FORBIDDEN, "No eres destinatario de este mensaje");
             }
-
-            List<String> readBy = msg.getAppReadBy() != null ? new ArrayList<>(msg.getAppReadBy()) : new ArrayList<>();
-            if (!readBy.contains(readerEmail)) {
-                readBy.add(readerEmail);
-            }
-            msg.setAppReadBy(readBy);
-
-            Map<String, MessageStatus> perRecipient = msg.getAppStatuses() != null ? new HashMap<>(msg.getAppStatuses()) : new HashMap<>();
-            perRecipient.put(readerEmail.toLowerCase(), MessageStatus.READ);
-            msg.setAppStatuses(perRecipient);
-
-            // Si todos los destinatarios que tienen canal app ya leyeron, marcar appStatus como READ
-            boolean allRead = false;
-            if (msg.getRecipients() != null && !msg.getRecipients().isEmpty()) {
-                long appRecipients = msg.getRecipients().size();
-                long readCount = readBy.size();
-                allRead = readCount >= appRecipients;
-            }
-            if (msg.getChannels() != null && msg.getChannels().contains("app")) {
-                msg.setAppStatus(allRead ? MessageStatus.READ : MessageStatus.PENDING);
-            }
-
-            ref.set(msg).get();
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -1516,58 +2184,31 @@ public class MessageService {
         }
     }
 
-    public void markEmailOpened(String messageId, String recipientEmail, String schoolIdHint) {
+    /**
+     * Registra aperturas de correo ya agrupadas por mensaje (ver {@link EmailOpenBuffer}). Se lee
+     * solo {@code emailStatuses.<correo>} de cada destinatario y el contador sube una vez por cada uno
+     * que pasa a READ.
+     */
+    public void markEmailOpened(String messageId, String schoolIdHint, java.util.Collection<String> recipients) {
         try {
-            if (recipientEmail == null || recipientEmail.isBlank()) {
-                return;
-            }
-            String normalizedRecipient = recipientEmail.trim().toLowerCase();
-            if (shouldSkipTrackUpdate(messageId, normalizedRecipient)) {
-                return;
-            }
-            DocumentReference ref = null;
-            var snapshot = (com.google.cloud.firestore.DocumentSnapshot) null;
-            if (schoolIdHint != null && !schoolIdHint.isBlank()) {
-                ref = tenantMessages(schoolIdHint).document(messageId);
-                snapshot = ref.get().get();
-                if (!snapshot.exists()) {
-                    ref = null;
-                    snapshot = null;
-                }
-            }
-            if (ref == null) {
-                ref = findMessageRef(messageId, schoolIdHint);
-                if (ref == null && schoolIdHint != null && !schoolIdHint.isBlank()) {
-                    ref = findMessageRef(messageId, null);
-                }
-                if (ref == null) {
-                    return;
-                }
-                snapshot = ref.get().get();
-            }
-            MessageDocument msg = snapshot.toObject(MessageDocument.class);
-            if (msg == null) {
+            Set<String> normalized = recipients.stream()
+                    .filter(r -> r != null && !r.isBlank())
+                    .map(r -> r.trim().toLowerCase())
+                    .collect(Collectors.toSet());
+            if (messageId == null || messageId.isBlank() || normalized.isEmpty()) {
                 return;
             }
-            Map<String, MessageStatus> perRecipient = msg.getEmailStatuses() != null
-                    ? new HashMap<>(msg.getEmailStatuses())
-                    : new HashMap<>();
-            if (perRecipient.get(normalizedRecipient) == MessageStatus.READ) {
+            if (schoolIdHint != null && !schoolIdHint.isBlank()
+                    && recordEmailOpens(tenantMessages(schoolIdHint).document(messageId), normalized)) {
                 return;
             }
-            perRecipient.put(normalizedRecipient, MessageStatus.READ);
-            msg.setEmailStatuses(perRecipient);
-
-            boolean allRead = false;
-            if (msg.getRecipients() != null && !msg.getRecipients().isEmpty()) {
-                long recipientCount = msg.getRecipients().size();
-                long readCount = perRecipient.values().stream().filter(v -> v == MessageStatus.READ).count();
-                allRead = readCount >= recipientCount;
+            DocumentReference ref = findMessageRef(messageId, schoolIdHint);
+            if (ref == null && schoolIdHint != null && !schoolIdHint.isBlank()) {
+                ref = findMessageRef(messageId, null);
             }
-            if (msg.getChannels() != null && msg.getChannels().contains("email")) {
-                msg.setEmailStatus(allRead ? MessageStatus.READ : msg.getEmailStatus());
+            if (ref != null) {
+                recordEmailOpens(ref, normalized);
             }
-            ref.set(msg).get();
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -1576,13 +2217,42 @@ public class MessageService {
         }
     }
 
-    private String buildHtmlBody(String content, String senderName, String senderEmail, String reason, List<AttachmentRequest> attachments, String logoUrl, String schoolName, String recipientName) {
-        List<AttachmentRequest> attList = attachments == null ? java.util.Collections.emptyList() : attachments;
+    /**
+     * Devuelve false si el documento no existe en esa ruta.
+     */
+    private boolean recordEmailOpens(DocumentReference ref, Set<String> recipients) throws InterruptedException, ExecutionException {
+        Map<String, com.google.cloud.firestore.FieldPath> paths = new HashMap<>();
+        for (String recipient : recipients) {
+            paths.put(recipient, MessageStatusUpdate.recipientPath("emailStatuses", recipient));
+        }
+        com.google.cloud.firestore.Query probe = ref.getParent()
+                .whereEqualTo(com.google.cloud.firestore.FieldPath.documentId(), ref.getId())
+                .select(paths.values().toArray(new com.google.cloud.firestore.FieldPath[0]));
+        return firestore.runTransaction(tx -> {
+            List<QueryDocumentSnapshot> docs = tx.get(probe).get().getDocuments();
+            if (docs.isEmpty()) return false;
+            QueryDocumentSnapshot current = docs.get(0);
+            MessageStatusUpdate update = new MessageStatusUpdate();
+            int opened = 0;
+            for (Map.Entry<String, com.google.cloud.firestore.FieldPath> entry : paths.entrySet()) {
+                if (MessageStatus.READ.name().equals(current.get(entry.getValue()))) continue;
+                update.recipient("emailStatuses", entry.getKey(), MessageStatus.READ);
+                opened++;
+            }
+            if (opened > 0) {
+                update.increment("emailReadCount", opened).applyTo(tx, ref);
+            }
+            return true;
+        }).get();
+    }
+
+    private String buildHtmlBody(String content, String senderName, String senderEmail, String reason, List<PreparedAttachment> attachments, String logoUrl, String schoolName, String recipientLine) {
+        List<PreparedAttachment> attList = attachments == null ? java.util.Collections.emptyList() : attachments;
         String htmlContent = renderContentHtml(content);
         final String notiflowBadge = "https://www.notiflow.cl/Naranjo_Degradado.png";
 
         // Adjunta una imagen inline si existe
-        AttachmentRequest inlineImg = attList.stream()
+        PreparedAttachment inlineImg = attList.stream()
                 .filter(a -> Boolean.TRUE.equals(a.inline()) && a.cid() != null && a.mimeType() != null && a.mimeType().startsWith("image/"))
                 .findFirst()
                 .orElse(null);
@@ -1596,9 +2266,6 @@ public class MessageService {
         String headerText = (reason != null && !reason.isBlank()) ? reason : "Mensaje";
         String senderLine = (senderName != null && !senderName.isBlank()) ? senderName : "Usuario";
         String schoolLine = (schoolName != null && !schoolName.isBlank()) ? schoolName : "Notiflow";
-        String recipientEmail = (recipientName != null && !recipientName.isBlank()) ? recipientName : "";
-        String recipientLabel = formatRecipient(recipientEmail);
-        String recipientLine = recipientLabel.isBlank() ? (recipientEmail.isBlank() ? "Destinatario" : recipientEmail) : recipientLabel + " · " + recipientEmail;
 
         String template = """
                 <div style="margin:0; padding:0; background:#f5f7fb; width:100%; font-family:'Inter','Helvetica Neue',Arial,sans-serif;">
@@ -1693,13 +2360,18 @@ public class MessageService {
                 .replace("{FOOTER_BADGE}", nullSafe(notiflowBadge));
     }
 
+    private String recipientLine(String recipientName) {
+        String recipientEmail = (recipientName != null && !recipientName.isBlank()) ? recipientName : "";
+        String recipientLabel = formatRecipient(recipientEmail);
+        return recipientLabel.isBlank() ? (recipientEmail.isBlank() ? "Destinatario" : recipientEmail) : recipientLabel + " · " + recipientEmail;
+    }
+
     private String nullSafe(String value) {
         return value == null ? "" : value;
     }
 
-    private String appendTrackingPixel(String html, String messageId, String recipient, String schoolId) {
+    private String appendTrackingPixel(String html, String url) {
         String base = html == null ? "" : html;
-        String url = buildTrackingUrl(messageId, recipient, schoolId);
         if (url == null || url.isBlank()) return base;
         return base + "<img src=\"" + url + "\" alt=\"\" style=\"width:1px;height:1px;display:block;opacity:0;\" />";
     }
@@ -1716,22 +2388,6 @@ public class MessageService {
         return url;
     }
 
-    private boolean shouldSkipTrackUpdate(String messageId, String normalizedRecipient) {
-        if (messageId == null || messageId.isBlank() || normalizedRecipient == null || normalizedRecipient.isBlank()) {
-            return true;
-        }
-        long now = System.currentTimeMillis();
-        String key = messageId + "|" + normalizedRecipient;
-        Long prev = trackDedupCache.put(key, now);
-        if (trackDedupCache.size() > TRACK_DEDUP_MAX_ENTRIES) {
-            trackDedupCache.entrySet().removeIf(e -> now - e.getValue() > TRACK_DEDUP_WINDOW_MS);
-            if (trackDedupCache.size() > TRACK_DEDUP_MAX_ENTRIES) {
-                trackDedupCache.clear();
-            }
-        }
-        return prev != null && (now - prev) < TRACK_DEDUP_WINDOW_MS;
-    }
-
     private String renderContentHtml(String content) {
         String safeContent = content == null ? "" : content;
         String escaped = safeContent
@@ -1740,7 +2396,7 @@ public class MessageService {
                 .replace(">", "&gt;")
                 .replace("\n", "<br/>");
         // Bold with **text**
-        String withBold = escaped.replaceAll("\\*\\*(.+?)\\*\\*", "<strong>$1</strong>");
+        String withBold = BOLD_PATTERN.matcher(escaped).replaceAll("<strong>$1</strong>");
         return linkify(withBold);
     }
 
@@ -1760,13 +2416,12 @@ public class MessageService {
 
     private String linkify(String html) {
         if (html == null || html.isBlank()) return "";
-        java.util.regex.Pattern pattern = java.util.regex.Pattern.compile("(https?://[^\\s<]+)", java.util.regex.Pattern.CASE_INSENSITIVE);
-        java.util.regex.Matcher matcher = pattern.matcher(html);
+        java.util.regex.Matcher matcher = LINK_PATTERN.matcher(html);
         StringBuffer sb = new StringBuffer();
         while (matcher.find()) {
             String url = matcher.group(1);
             String anchor = "<a href=\"" + url + "\" target=\"_blank\" rel=\"noopener noreferrer\" style=\"color:#0ea5e9;\">" + url + "</a>";
-            matcher.appendReplacement(sb, anchor);
+            matcher.appendReplacement(sb, java.util.regex.Matcher.quoteReplacement(anchor));
         }
         matcher.appendTail(sb);
         return sb.toString();
@@ -0,0 +1,93 @@
+package com.notiflow.service;
+
+import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.FieldValue;
+import com.google.cloud.firestore.Transaction;
+import com.google.cloud.firestore.WriteResult;
+import com.notiflow.model.MessageStatus;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Cambios de estado de un mensaje escritos con {@code update()} por ruta de campo. Solo viajan los
+ * campos tocados (p.ej. {@code emailStatuses.<correo>}), nunca el documento completo, así dos
+ * escrituras sobre destinatarios distintos no se pisan.
+ */
+final class MessageStatusUpdate {
+
+    private final Map<FieldPath, Object> fields = new LinkedHashMap<>();
+
+    MessageStatusUpdate set(String field, Object value) {
+        fields.put(FieldPath.of(field), value);
+        return this;
+    }
+
+    /**
+     * Estado de un destinatario dentro de un mapa ({@code emailStatuses}/{@code appStatuses}). Se usa
+     * FieldPath porque el correo trae puntos que una ruta en texto tomaría como separadores.
+     */
+    MessageStatusUpdate recipient(String mapField, String recipient, MessageStatus status) {
+        if (recipient == null || recipient.isBlank()) return this;
+        fields.put(recipientPath(mapField, recipient), status);
+        return this;
+    }
+
+    MessageStatusUpdate recipients(String mapField, Map<String, MessageStatus> statuses) {
+        if (statuses != null) {
+            statuses.forEach((recipient, status) -> recipient(mapField, recipient, status));
+        }
+        return this;
+    }
+
+    MessageStatusUpdate increment(String field, long delta) {
+        fields.put(FieldPath.of(field), FieldValue.increment(delta));
+        return this;
+    }
+
+    MessageStatusUpdate arrayUnion(String field, Object... values) {
+        fields.put(FieldPath.of(field), FieldValue.arrayUnion(values));
+        return this;
+    }
+
+    boolean isEmpty() {
+        return fields.isEmpty();
+    }
+
+    ApiFuture<WriteResult> applyTo(DocumentReference ref) {
+        Object[] rest = rest();
+        FieldPath first = fields.keySet().iterator().next();
+        return ref.update(first, fields.get(first), rest);
+    }
+
+    void applyTo(Transaction tx, DocumentReference ref) {
+        Object[] rest = rest();
+        FieldPath first = fields.keySet().iterator().next();
+        tx.update(ref, first, fields.get(first), rest);
+    }
+
+    static FieldPath recipientPath(String mapField, String recipient) {
+        return FieldPath.of(mapField, recipient.trim().toLowerCase());
+    }
+
+    private Object[] rest() {
+        if (fields.isEmpty()) {
+            throw new IllegalStateException("Actualización de estado vacía");
+        }
+        List<Object> pairs = new ArrayList<>();
+        boolean skipFirst = true;
+        for (Map.Entry<FieldPath, Object> entry : fields.entrySet()) {
+            if (skipFirst) {
+                skipFirst = false;
+                continue;
+            }
+            pairs.add(entry.getKey());
+            pairs.add(entry.getValue());
+        }
+        return pairs.toArray();
+    }
+}
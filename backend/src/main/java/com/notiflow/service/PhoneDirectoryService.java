@@ -3,6 +3,7 @@ package com.notiflow.service;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.AggregateQuery;
 import com.google.cloud.firestore.AggregateQuerySnapshot;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
@@ -12,7 +13,8 @@ import com.notiflow.dto.PhoneDirectoryItemDto;
 import com.notiflow.dto.PhoneDirectoryListResponse;
 import com.notiflow.model.StudentDocument;
 import com.notiflow.util.CurrentUser;
-import com.notiflow.util.SearchUtils;
+import com.notiflow.util.PageCursor;
+import com.notiflow.util.SearchQuery;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
@@ -33,15 +35,18 @@ public class PhoneDirectoryService {
     private final Firestore firestore;
     private final TeacherPermissionService teacherPermissionService;
     private final GroupService groupService;
+    private final RosterIndex rosterIndex;
 
     public PhoneDirectoryService(
             Firestore firestore,
             TeacherPermissionService teacherPermissionService,
-            GroupService groupService
+            GroupService groupService,
+            RosterIndex rosterIndex
     ) {
         this.firestore = firestore;
         this.teacherPermissionService = teacherPermissionService;
         this.groupService = groupService;
+        this.rosterIndex = rosterIndex;
     }
 
     public PhoneDirectoryListResponse list(
@@ -50,7 +55,8 @@ public class PhoneDirectoryService {
             String year,
             String query,
             int page,
-            int pageSize
+            int pageSize,
+            String cursorToken
     ) {
         if (user == null) {
             throw new ResponseStatusException(HttpStatus.UNAUTHORIZED);
@@ -103,32 +109,45 @@ public class PhoneDirectoryService {
         if (isTeacher) {
             List<String> allowedGroupIds = teacherPermissionService.getAllowedGroups(targetSchool, user.email());
             if (allowedGroupIds == null || allowedGroupIds.isEmpty()) {
-                return new PhoneDirectoryListResponse(List.of(), 0, safePage, safeSize, false);
+                return new PhoneDirectoryListResponse(List.of(), 0, safePage, safeSize, false, null);
             }
             teacherAudience = resolveTeacherAudience(targetSchool, allowedGroupIds);
             if (teacherAudience.studentIds().isEmpty() && teacherAudience.emails().isEmpty()) {
-                return new PhoneDirectoryListResponse(List.of(), 0, safePage, safeSize, false);
+                return new PhoneDirectoryListResponse(List.of(), 0, safePage, safeSize, false, null);
             }
         }
 
         boolean inMemoryMode = isTeacher || hasSearch;
         if (inMemoryMode) {
             try {
-                ApiFuture<QuerySnapshot> fut = base.limit(MAX_SEARCH_SCAN).get();
-                List<QueryDocumentSnapshot> docs = fut.get().getDocuments();
+                // un colegio se resuelve con la nómina en memoria (ya filtrada por la búsqueda);
+                // todos los colegios siguen con la lectura acotada
+                List<StudentDocument> candidates;
+                boolean reachedLimit = false;
+                boolean preMatched = !allSchools;
+                if (preMatched) {
+                    candidates = rosterIndex.search(targetSchool, year, normalizedQuery);
+                } else {
+                    ApiFuture<QuerySnapshot> fut = base.limit(MAX_SEARCH_SCAN).get();
+                    List<QueryDocumentSnapshot> docs = fut.get().getDocuments();
+                    reachedLimit = docs.size() == MAX_SEARCH_SCAN;
+                    candidates = new ArrayList<>(docs.size());
+                    for (QueryDocumentSnapshot doc : docs) {
+                        StudentDocument student = doc.toObject(StudentDocument.class);
+                        if (student == null) continue;
+                        student.setId(doc.getId());
+                        candidates.add(student);
+                    }
+                }
+                SearchQuery searchQuery = SearchQuery.of(normalizedQuery);
                 List<PhoneDirectoryItemDto> filtered = new ArrayList<>();
-                boolean reachedLimit = docs.size() == MAX_SEARCH_SCAN;
-                for (QueryDocumentSnapshot doc : docs) {
-                    StudentDocument student = doc.toObject(StudentDocument.class);
-                    if (student == null) continue;
-                    student.setId(doc.getId());
-
+                for (StudentDocument student : candidates) {
                     if (isTeacher && !isTeacherAllowedStudent(student, teacherAudience)) {
                         continue;
                     }
 
                     PhoneDirectoryItemDto item = toDirectoryItem(student);
-                    if (hasSearch && !matchesQuery(item, normalizedQuery)) {
+                    if (hasSearch && !preMatched && !matchesQuery(item, searchQuery)) {
                         continue;
                     }
                     filtered.add(item);
@@ -139,7 +158,7 @@ public class PhoneDirectoryService {
                 List<PhoneDirectoryItemDto> pageItems = filtered.subList(from, to);
                 boolean hasMore = reachedLimit || to < filtered.size();
                 long total = filtered.size() + (reachedLimit ? 1 : 0);
-                return new PhoneDirectoryListResponse(pageItems, total, safePage, safeSize, hasMore);
+                return new PhoneDirectoryListResponse(pageItems, total, safePage, safeSize, hasMore, null);
             } catch (InterruptedException | ExecutionException e) {
                 if (e instanceof InterruptedException) {
                     Thread.currentThread().interrupt();
@@ -149,12 +168,18 @@ public class PhoneDirectoryService {
         }
 
         try {
-            long total = count(base);
-            ApiFuture<QuerySnapshot> fut = base
-                    .offset((safePage - 1) * safeSize)
-                    .limit(safeSize)
-                    .get();
-            List<QueryDocumentSnapshot> docs = fut.get().getDocuments();
+            Query sorted = base.orderBy(FieldPath.documentId());
+            PageCursor cursor = PageCursor.decode(cursorToken, "students");
+            long total = cursor != null ? -1 : count(base);
+            Query pageQuery = cursor != null
+                    ? cursor.applyTo(sorted, firestore)
+                    : sorted.offset((safePage - 1) * safeSize);
+            List<QueryDocumentSnapshot> docs = pageQuery.limit(safeSize + 1).get().get().getDocuments();
+            boolean hasMore = docs.size() > safeSize;
+            if (hasMore) {
+                docs = docs.subList(0, safeSize);
+            }
+            String nextCursor = hasMore ? PageCursor.of(docs.get(docs.size() - 1), null) : null;
             List<PhoneDirectoryItemDto> items = new ArrayList<>();
             for (QueryDocumentSnapshot doc : docs) {
                 StudentDocument student = doc.toObject(StudentDocument.class);
@@ -162,8 +187,7 @@ public class PhoneDirectoryService {
                 student.setId(doc.getId());
                 items.add(toDirectoryItem(student));
             }
-            boolean hasMore = (long) safePage * safeSize < total;
-            return new PhoneDirectoryListResponse(items, total, safePage, safeSize, hasMore);
+            return new PhoneDirectoryListResponse(items, total, safePage, safeSize, hasMore, nextCursor);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -282,7 +306,7 @@ public class PhoneDirectoryService {
         );
     }
 
-    private boolean matchesQuery(PhoneDirectoryItemDto item, String query) {
+    private boolean matchesQuery(PhoneDirectoryItemDto item, SearchQuery query) {
         String guardiansName = item.guardians() == null
                 ? ""
                 : item.guardians().stream()
@@ -293,8 +317,7 @@ public class PhoneDirectoryService {
                 : item.guardians().stream()
                 .map(g -> safe(g.getPhone()))
                 .collect(Collectors.joining(" "));
-        return SearchUtils.matchesQuery(
-                query,
+        return query.matches(
                 item.studentName(),
                 item.course(),
                 item.run(),
@@ -0,0 +1,112 @@
+package com.notiflow.service;
+
+import com.notiflow.dto.AttachmentRequest;
+import com.sendgrid.helpers.mail.objects.Attachments;
+import jakarta.activation.DataHandler;
+import jakarta.mail.MessagingException;
+import jakarta.mail.Part;
+import jakarta.mail.internet.MimeBodyPart;
+import jakarta.mail.internet.PreencodedMimeBodyPart;
+import jakarta.mail.util.ByteArrayDataSource;
+
+import java.util.Base64;
+
+/**
+ * Adjunto de un mensaje decodificado una sola vez. Las representaciones para cada proveedor
+ * (parte MIME en base64 y entrada de SendGrid) se calculan a la primera necesidad y se
+ * comparten entre todos los destinatarios del envío.
+ */
+public final class PreparedAttachment {
+
+    private final String fileName;
+    private final String mimeType;
+    private final byte[] data;
+    private final Boolean inline;
+    private final String cid;
+    private volatile byte[] mimeEncoded;
+    private volatile Attachments sendGridAttachment;
+
+    public PreparedAttachment(String fileName, String mimeType, byte[] data, Boolean inline, String cid) {
+        this.fileName = fileName;
+        this.mimeType = mimeType != null ? mimeType : "application/octet-stream";
+        this.data = data != null ? data : new byte[0];
+        this.inline = inline;
+        this.cid = cid;
+    }
+
+    /**
+     * Decodifica el base64 de la request. Lanza IllegalArgumentException si no es base64 válido.
+     */
+    public static PreparedAttachment fromRequest(AttachmentRequest request) {
+        byte[] data = Base64.getDecoder().decode(request.base64());
+        return new PreparedAttachment(request.fileName(), request.mimeType(), data, request.inline(), request.cid());
+    }
+
+    public String fileName() {
+        return fileName;
+    }
+
+    public String mimeType() {
+        return mimeType;
+    }
+
+    public byte[] data() {
+        return data;
+    }
+
+    public long size() {
+        return data.length;
+    }
+
+    public Boolean inline() {
+        return inline;
+    }
+
+    public String cid() {
+        return cid;
+    }
+
+    /**
+     * Parte MIME nueva por mensaje (un MimeBodyPart solo puede tener un padre), pero apoyada en los
+     * mismos bytes ya codificados, así no se vuelve a codificar el archivo por destinatario.
+     */
+    MimeBodyPart toMimePart() throws MessagingException {
+        byte[] encoded = mimeEncoded;
+        if (encoded == null) {
+            encoded = Base64.getMimeEncoder().encode(data);
+            mimeEncoded = encoded;
+        }
+        MimeBodyPart part = new PreencodedMimeBodyPart("base64");
+        part.setDataHandler(new DataHandler(new ByteArrayDataSource(encoded, mimeType)));
+        part.setHeader("Content-Type", mimeType);
+        part.setFileName(fileName);
+        if (Boolean.TRUE.equals(inline)) {
+            part.setDisposition(Part.INLINE);
+            if (cid != null) {
+                part.setHeader("Content-ID", "<" + cid + ">");
+            }
+        } else {
+            part.setDisposition(Part.ATTACHMENT);
+        }
+        return part;
+    }
+
+    Attachments toSendGrid() {
+        Attachments cached = sendGridAttachment;
+        if (cached != null) return cached;
+        Attachments att = new Attachments();
+        att.setContent(Base64.getEncoder().encodeToString(data));
+        att.setType(mimeType);
+        att.setFilename(fileName);
+        if (Boolean.TRUE.equals(inline)) {
+            att.setDisposition("inline");
+            if (cid != null) {
+                att.setContentId(cid);
+            }
+        } else {
+            att.setDisposition("attachment");
+        }
+        sendGridAttachment = att;
+        return att;
+    }
+}
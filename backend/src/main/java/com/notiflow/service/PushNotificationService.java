@@ -0,0 +1,416 @@
+package com.notiflow.service;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectWriter;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.auth.oauth2.AccessToken;
+import com.google.auth.oauth2.GoogleCredentials;
+import com.google.auth.oauth2.ServiceAccountCredentials;
+import com.google.cloud.firestore.Firestore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Envío de push FCM. Usa un único HttpClient HTTP/2 (las requests v1 se multiplexan sobre la misma
+ * conexión) con un máximo de requests en vuelo, y cachea el access token de la cuenta de servicio.
+ */
+@Service
+public class PushNotificationService {
+
+    private static final Logger log = LoggerFactory.getLogger(PushNotificationService.class);
+    private static final ObjectMapper JSON = new ObjectMapper();
+    private static final ObjectWriter JSON_WRITER = JSON.writer();
+    private static final String LEGACY_URL = "https://fcm.googleapis.com/fcm/send";
+    private static final String IID_URL = "https://iid.googleapis.com/iid/v1:";
+    // una condición FCM admite hasta 5 topics
+    public static final int MAX_CONDITION_TOPICS = 5;
+    // registration_ids admite hasta 1000 tokens por request
+    private static final int LEGACY_MAX_TOKENS = 1000;
+    // se renueva el token un poco antes de que expire
+    private static final Duration TOKEN_REFRESH_MARGIN = Duration.ofMinutes(5);
+    // vigencia supuesta para tokens sin expiración (los de Google duran una hora)
+    private static final Duration TOKEN_DEFAULT_LIFETIME = Duration.ofMinutes(50);
+
+    /**
+     * Resultado por token. INVALID_TOKEN indica que FCM ya no reconoce el dispositivo y el token se puede borrar.
+     */
+    public enum PushOutcome {
+        SENT,
+        FAILED,
+        INVALID_TOKEN
+    }
+
+    // errores v1 que significan token muerto (la app se desinstaló o el token es de otro proyecto)
+    private static final java.util.Set<String> V1_DEAD_TOKEN_ERRORS = java.util.Set.of("UNREGISTERED", "SENDER_ID_MISMATCH");
+    private static final java.util.Set<String> LEGACY_DEAD_TOKEN_ERRORS = java.util.Set.of("NotRegistered", "InvalidRegistration", "MismatchSenderId");
+
+    private final Firestore firestore;
+    private final String serverKey;
+    private final String projectId;
+    private final GoogleCredentials credentials;
+    private final HttpClient httpClient;
+    private final int maxInFlight;
+    private final Object tokenLock = new Object();
+    private volatile String cachedAccessToken;
+    private volatile Instant cachedAccessTokenExpiresAt;
+
+    public PushNotificationService(
+            Firestore firestore,
+            @Value("${app.fcm.server-key:}") String serverKey,
+            @Value("${app.fcm.credentials-json:}") String credentialsJson,
+            @Value("${app.fcm.project-id:}") String projectId,
+            @Value("${app.fcm.max-in-flight:64}") int maxInFlight
+    ) {
+        this.firestore = firestore;
+        this.serverKey = serverKey;
+        this.projectId = projectId;
+        this.credentials = parseCredentials(credentialsJson);
+        this.maxInFlight = Math.max(1, maxInFlight);
+        this.httpClient = HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_2)
+                .connectTimeout(Duration.ofSeconds(10))
+                .build();
+    }
+
+    public boolean isEnabled() {
+        return credentials != null || (serverKey != null && !serverKey.isBlank());
+    }
+
+    /**
+     * Envía la notificación a cada token y devuelve el resultado por token.
+     */
+    public Map<String, PushOutcome> send(Collection<String> tokens, String title, String body, String messageId, String schoolId) {
+        List<String> targets = tokens == null ? List.of() : tokens.stream()
+                .filter(t -> t != null && !t.isBlank())
+                .distinct()
+                .toList();
+        if (targets.isEmpty()) return Map.of();
+        if (credentials != null) {
+            return sendV1(targets, title, body, messageId, schoolId);
+        }
+        if (serverKey != null && !serverKey.isBlank()) {
+            return sendLegacy(targets, title, body, messageId, schoolId);
+        }
+        return Map.of();
+    }
+
+    /**
+     * Un solo envío a todos los dispositivos suscritos a alguno de los topics (condición OR,
+     * así un dispositivo en varios grupos recibe una sola notificación).
+     */
+    public boolean sendToTopics(List<String> topics, String title, String body, String messageId, String schoolId) {
+        if (topics == null || topics.isEmpty() || topics.size() > MAX_CONDITION_TOPICS || !isEnabled()) return false;
+        String condition = topics.size() == 1
+                ? null
+                : String.join(" || ", topics.stream().map(t -> "'" + t + "' in topics").toList());
+        try {
+            HttpRequest.Builder builder;
+            ObjectNode root = JSON.createObjectNode();
+            if (credentials != null) {
+                String project = resolveProjectId();
+                String bearer = getAccessToken();
+                if (project == null || project.isBlank() || bearer == null) return false;
+                ObjectNode message = root.putObject("message");
+                if (condition == null) {
+                    message.put("topic", topics.get(0));
+                } else {
+                    message.put("condition", condition);
+                }
+                message.set("notification", notification(title, body));
+                message.set("data", data(messageId, schoolId));
+                builder = HttpRequest.newBuilder(URI.create("https://fcm.googleapis.com/v1/projects/" + project + "/messages:send"))
+                        .header("Authorization", "Bearer " + bearer);
+            } else {
+                if (condition == null) {
+                    root.put("to", "/topics/" + topics.get(0));
+                } else {
+                    root.put("condition", condition);
+                }
+                root.set("notification", notification(title, body));
+                root.set("data", data(messageId, schoolId));
+                builder = HttpRequest.newBuilder(URI.create(LEGACY_URL))
+                        .header("Authorization", "key=" + serverKey);
+            }
+            HttpResponse<String> response = httpClient.send(builder
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Content-Type", "application/json; charset=UTF-8")
+                    .POST(HttpRequest.BodyPublishers.ofString(JSON_WRITER.writeValueAsString(root), StandardCharsets.UTF_8))
+                    .build(), HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() >= 200 && response.statusCode() < 300) {
+                return true;
+            }
+            log.warn("FCM rechazó envío a topics {}: {} {}", topics, response.statusCode(), response.body());
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            log.warn("No se pudo enviar push a topics {}: {}", topics, e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * Suscribe (o desuscribe) tokens a un topic vía la API de Instance ID, en lotes de 1000.
+     * Devuelve false si algún lote falló.
+     */
+    public boolean updateTopicSubscription(String topic, Collection<String> tokens, boolean subscribe) {
+        List<String> targets = tokens == null ? List.of() : tokens.stream()
+                .filter(t -> t != null && !t.isBlank())
+                .distinct()
+                .toList();
+        if (topic == null || topic.isBlank() || targets.isEmpty()) return true;
+        if (!isEnabled()) return false;
+        boolean ok = true;
+        for (int i = 0; i < targets.size(); i += LEGACY_MAX_TOKENS) {
+            List<String> chunk = targets.subList(i, Math.min(i + LEGACY_MAX_TOKENS, targets.size()));
+            try {
+                ObjectNode root = JSON.createObjectNode();
+                root.put("to", "/topics/" + topic);
+                ArrayNode ids = root.putArray("registration_tokens");
+                chunk.forEach(ids::add);
+                HttpRequest.Builder builder = HttpRequest.newBuilder(URI.create(IID_URL + (subscribe ? "batchAdd" : "batchRemove")))
+                        .timeout(Duration.ofSeconds(30))
+                        .header("Content-Type", "application/json; charset=UTF-8");
+                if (credentials != null) {
+                    builder.header("Authorization", "Bearer " + getAccessToken())
+                            .header("access_token_auth", "true");
+                } else {
+                    builder.header("Authorization", "key=" + serverKey);
+                }
+                HttpResponse<String> response = httpClient.send(builder
+                        .POST(HttpRequest.BodyPublishers.ofString(JSON_WRITER.writeValueAsString(root), StandardCharsets.UTF_8))
+                        .build(), HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                    log.warn("IID {} {} error {}: {}", subscribe ? "batchAdd" : "batchRemove", topic, response.statusCode(), response.body());
+                    ok = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } catch (Exception e) {
+                log.warn("No se pudo actualizar suscripción al topic {}: {}", topic, e.getMessage());
+                ok = false;
+            }
+        }
+        return ok;
+    }
+
+    private Map<String, PushOutcome> sendV1(List<String> tokens, String title, String body, String messageId, String schoolId) {
+        Map<String, PushOutcome> results = new ConcurrentHashMap<>();
+        String project = resolveProjectId();
+        String bearer;
+        try {
+            bearer = getAccessToken();
+        } catch (Exception e) {
+            log.warn("No se pudo obtener access token FCM v1: {}", e.getMessage());
+            bearer = null;
+        }
+        if (project == null || project.isBlank() || bearer == null) {
+            log.warn("FCM v1 sin projectId o credenciales válidas; no se envían push");
+            tokens.forEach(t -> results.put(t, PushOutcome.FAILED));
+            return results;
+        }
+        URI uri = URI.create("https://fcm.googleapis.com/v1/projects/" + project + "/messages:send");
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        List<CompletableFuture<Void>> pending = new ArrayList<>(tokens.size());
+        for (String token : tokens) {
+            String payload;
+            try {
+                payload = JSON_WRITER.writeValueAsString(v1Payload(token, title, body, messageId, schoolId));
+            } catch (Exception e) {
+                results.put(token, PushOutcome.FAILED);
+                continue;
+            }
+            HttpRequest request = HttpRequest.newBuilder(uri)
+                    .timeout(Duration.ofSeconds(30))
+                    .header("Authorization", "Bearer " + bearer)
+                    .header("Content-Type", "application/json; charset=UTF-8")
+                    .POST(HttpRequest.BodyPublishers.ofString(payload, StandardCharsets.UTF_8))
+                    .build();
+            try {
+                inFlight.acquire();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+            pending.add(httpClient.sendAsync(request, HttpResponse.BodyHandlers.ofString())
+                    .handle((response, error) -> {
+                        inFlight.release();
+                        PushOutcome outcome = error != null ? PushOutcome.FAILED : v1Outcome(response);
+                        if (outcome != PushOutcome.SENT) {
+                            log.debug("FCM v1 rechazó token ({}): {}", outcome, error != null ? error.getMessage() : response.statusCode() + " " + response.body());
+                        }
+                        results.put(token, outcome);
+                        return null;
+                    }));
+        }
+        CompletableFuture.allOf(pending.toArray(new CompletableFuture[0])).join();
+        tokens.forEach(t -> results.putIfAbsent(t, PushOutcome.FAILED));
+        return results;
+    }
+
+    private PushOutcome v1Outcome(HttpResponse<String> response) {
+        int status = response.statusCode();
+        if (status >= 200 && status < 300) return PushOutcome.SENT;
+        if (status != 400 && status != 403 && status != 404) return PushOutcome.FAILED;
+        try {
+            JsonNode error = JSON.readTree(response.body()).path("error");
+            for (JsonNode detail : error.path("details")) {
+                String code = detail.path("errorCode").asText("");
+                if (V1_DEAD_TOKEN_ERRORS.contains(code)) return PushOutcome.INVALID_TOKEN;
+            }
+            // INVALID_ARGUMENT también cubre payloads mal formados; solo cuenta si apunta al token
+            if ("INVALID_ARGUMENT".equals(error.path("status").asText())
+                    && error.path("message").asText("").toLowerCase().contains("registration token")) {
+                return PushOutcome.INVALID_TOKEN;
+            }
+        } catch (Exception ignore) {
+            // respuesta sin JSON: se trata como falla transitoria
+        }
+        return PushOutcome.FAILED;
+    }
+
+    private Map<String, PushOutcome> sendLegacy(List<String> tokens, String title, String body, String messageId, String schoolId) {
+        Map<String, PushOutcome> results = new LinkedHashMap<>();
+        for (int i = 0; i < tokens.size(); i += LEGACY_MAX_TOKENS) {
+            List<String> chunk = tokens.subList(i, Math.min(i + LEGACY_MAX_TOKENS, tokens.size()));
+            try {
+                ObjectNode root = JSON.createObjectNode();
+                ArrayNode ids = root.putArray("registration_ids");
+                chunk.forEach(ids::add);
+                root.set("notification", notification(title, body));
+                root.set("data", data(messageId, schoolId));
+                HttpRequest request = HttpRequest.newBuilder(URI.create(LEGACY_URL))
+                        .timeout(Duration.ofSeconds(30))
+                        .header("Authorization", "key=" + serverKey)
+                        .header("Content-Type", "application/json; charset=UTF-8")
+                        .POST(HttpRequest.BodyPublishers.ofString(JSON_WRITER.writeValueAsString(root), StandardCharsets.UTF_8))
+                        .build();
+                HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+                if (response.statusCode() < 200 || response.statusCode() >= 300) {
+                    log.warn("FCM legacy error {}: {}", response.statusCode(), response.body());
+                    chunk.forEach(t -> results.put(t, PushOutcome.FAILED));
+                    continue;
+                }
+                // results viene en el mismo orden que registration_ids
+                JsonNode perToken = JSON.readTree(response.body()).path("results");
+                for (int j = 0; j < chunk.size(); j++) {
+                    JsonNode r = perToken.path(j);
+                    PushOutcome outcome;
+                    if (r.isMissingNode()) {
+                        outcome = PushOutcome.FAILED;
+                    } else if (!r.has("error")) {
+                        outcome = PushOutcome.SENT;
+                    } else {
+                        outcome = LEGACY_DEAD_TOKEN_ERRORS.contains(r.path("error").asText()) ? PushOutcome.INVALID_TOKEN : PushOutcome.FAILED;
+                    }
+                    results.put(chunk.get(j), outcome);
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                chunk.forEach(t -> results.put(t, PushOutcome.FAILED));
+                break;
+            } catch (Exception e) {
+                log.warn("No se pudo enviar push FCM (legacy): {}", e.getMessage());
+                chunk.forEach(t -> results.put(t, PushOutcome.FAILED));
+            }
+        }
+        tokens.forEach(t -> results.putIfAbsent(t, PushOutcome.FAILED));
+        return results;
+    }
+
+    private ObjectNode v1Payload(String token, String title, String body, String messageId, String schoolId) {
+        ObjectNode root = JSON.createObjectNode();
+        ObjectNode message = root.putObject("message");
+        message.put("token", token);
+        message.set("notification", notification(title, body));
+        message.set("data", data(messageId, schoolId));
+        return root;
+    }
+
+    private ObjectNode notification(String title, String body) {
+        ObjectNode notification = JSON.createObjectNode();
+        notification.put("title", title != null ? title : "");
+        notification.put("body", body != null ? body : "");
+        return notification;
+    }
+
+    private ObjectNode data(String messageId, String schoolId) {
+        ObjectNode data = JSON.createObjectNode();
+        data.put("messageId", messageId != null ? messageId : "");
+        data.put("schoolId", schoolId != null && !schoolId.isBlank() ? schoolId : "global");
+        return data;
+    }
+
+    private GoogleCredentials parseCredentials(String json) {
+        try {
+            if (json == null || json.isBlank()) return null;
+            GoogleCredentials creds = GoogleCredentials.fromStream(
+                    new java.io.ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8))
+            ).createScoped(List.of("https://www.googleapis.com/auth/cloud-platform"));
+            creds.refreshIfExpired();
+            return creds;
+        } catch (Exception e) {
+            log.warn("No se pudieron leer credenciales FCM v1: {}", e.getMessage());
+            return null;
+        }
+    }
+
+    private String resolveProjectId() {
+        if (projectId != null && !projectId.isBlank()) return projectId;
+        if (credentials instanceof ServiceAccountCredentials sac && sac.getProjectId() != null) {
+            return sac.getProjectId();
+        }
+        if (firestore != null && firestore.getOptions() != null) {
+            return firestore.getOptions().getProjectId();
+        }
+        return null;
+    }
+
+    /**
+     * Access token cacheado hasta poco antes de su expiración; solo un hilo lo renueva.
+     */
+    private String getAccessToken() throws java.io.IOException {
+        if (credentials == null) return null;
+        String token = cachedAccessToken;
+        Instant expiresAt = cachedAccessTokenExpiresAt;
+        if (token != null && expiresAt != null && Instant.now().plus(TOKEN_REFRESH_MARGIN).isBefore(expiresAt)) {
+            return token;
+        }
+        synchronized (tokenLock) {
+            if (cachedAccessToken != null && cachedAccessTokenExpiresAt != null
+                    && Instant.now().plus(TOKEN_REFRESH_MARGIN).isBefore(cachedAccessTokenExpiresAt)) {
+                return cachedAccessToken;
+            }
+            credentials.refreshIfExpired();
+            AccessToken accessToken = credentials.getAccessToken();
+            if (accessToken == null) return null;
+            cachedAccessTokenExpiresAt = accessToken.getExpirationTime() != null
+                    ? accessToken.getExpirationTime().toInstant()
+                    : Instant.now().plus(TOKEN_DEFAULT_LIFETIME);
+            cachedAccessToken = accessToken.getTokenValue();
+            return cachedAccessToken;
+        }
+    }
+}
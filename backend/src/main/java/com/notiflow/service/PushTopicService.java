@@ -0,0 +1,246 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.DocumentReference;
+import com.notiflow.model.DeviceToken;
+import com.notiflow.model.StudentDocument;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.stereotype.Service;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Mantiene un topic FCM por grupo (tenants/{schoolId}/groups/{groupId}) con los dispositivos de sus
+ * miembros, para que un envío a grupos completos sea una sola llamada a FCM.
+ * Las suscripciones se actualizan en segundo plano, en orden, desde un único hilo.
+ */
+@Service
+public class PushTopicService {
+
+    private static final Logger log = LoggerFactory.getLogger(PushTopicService.class);
+    private final PushNotificationService pushNotificationService;
+    private final DeviceTokenService deviceTokenService;
+    private final StudentService studentService;
+    private final GroupService groupService;
+    // topics con sync completo en cola, para no encolarlo de nuevo en cada ensureDefaultGroups
+    private final Set<String> fullSyncs = ConcurrentHashMap.newKeySet();
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread t = new Thread(runnable, "push-topics");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PushTopicService(
+            PushNotificationService pushNotificationService,
+            @Lazy DeviceTokenService deviceTokenService,
+            StudentService studentService,
+            @Lazy GroupService groupService
+    ) {
+        this.pushNotificationService = pushNotificationService;
+        this.deviceTokenService = deviceTokenService;
+        this.studentService = studentService;
+        this.groupService = groupService;
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdown();
+        try {
+            executor.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public static String topicFor(String schoolId, String groupId) {
+        return ("g-" + tenant(schoolId) + "-" + groupId).replaceAll("[^A-Za-z0-9\\-_.~]", "_");
+    }
+
+    private static String tenant(String schoolId) {
+        return schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+    }
+
+    /**
+     * Sincroniza el topic después de guardar un grupo. Si el grupo aún no tiene topic se suscriben
+     * todos los miembros y recién ahí se marca {@code pushTopic}; si ya lo tiene, solo la diferencia.
+     */
+    public void onGroupSaved(DocumentReference ref, String schoolId, String groupId, String currentTopic, List<String> previousMembers, List<String> members) {
+        if (!pushNotificationService.isEnabled() || ref == null || groupId == null) return;
+        Set<String> previous = previousMembers == null ? Set.of() : new HashSet<>(previousMembers);
+        Set<String> current = members == null ? Set.of() : new HashSet<>(members);
+        String topic = topicFor(schoolId, groupId);
+        if (topic.equals(currentTopic) && previous.equals(current)) return;
+        boolean fullSync = !topic.equals(currentTopic);
+        if (fullSync && !fullSyncs.add(topic)) return;
+        executor.execute(() -> {
+            try {
+                if (fullSync) {
+                    // se leen los miembros vigentes al momento del sync, no los de la escritura que lo encoló
+                    Set<String> latest = groupService.findById(groupId, schoolId)
+                            .map(g -> g.getMemberIds() == null ? Set.<String>of() : new HashSet<>(g.getMemberIds()))
+                            .orElse(current);
+                    if (updateMembers(topic, schoolId, memberEmails(latest), true)) {
+                        ref.update("pushTopic", topic).get();
+                    }
+                    return;
+                }
+                Set<String> added = new HashSet<>(current);
+                added.removeAll(previous);
+                Set<String> removed = new HashSet<>(previous);
+                removed.removeAll(current);
+                boolean ok = updateMembers(topic, schoolId, memberEmails(added), true);
+                if (!removed.isEmpty()) {
+                    // un apoderado puede seguir en el grupo por otro estudiante
+                    Set<String> removedEmails = memberEmails(removed);
+                    removedEmails.removeAll(memberEmails(current));
+                    ok = updateMembers(topic, schoolId, removedEmails, false) && ok;
+                }
+                if (!ok) {
+                    // el topic quedó desalineado: se vuelve a envío por token hasta el próximo sync completo
+                    ref.update("pushTopic", null).get();
+                }
+            } catch (Exception e) {
+                if (e instanceof InterruptedException) {
+                    Thread.currentThread().interrupt();
+                }
+                log.warn("No se pudo sincronizar topic del grupo {}: {}", groupId, e.getMessage());
+            } finally {
+                if (fullSync) {
+                    fullSyncs.remove(topic);
+                }
+            }
+        });
+    }
+
+    /**
+     * Ajusta los topics de los grupos del estudiante cuando cambian su correo o sus apoderados
+     * ({@code previous} null si es nuevo, {@code current} null si se borró). Se llama después de
+     * guardar: quien dejó de estar vinculado se desuscribe de los grupos a los que ya no pertenece
+     * por otro estudiante o por su correo, y quien se agregó se suscribe.
+     */
+    public void onStudentChanged(String studentId, StudentDocument previous, StudentDocument current) {
+        if (!pushNotificationService.isEnabled() || studentId == null || studentId.isBlank()) return;
+        String beforeSchool = previous == null ? null : tenant(previous.getSchoolId());
+        String afterSchool = current == null ? null : tenant(current.getSchoolId());
+        Set<String> before = studentEmails(previous);
+        Set<String> after = studentEmails(current);
+        Set<String> removed = new HashSet<>(before);
+        Set<String> added = new HashSet<>(after);
+        if (beforeSchool != null && beforeSchool.equals(afterSchool)) {
+            removed.removeAll(after);
+            added.removeAll(before);
+        }
+        if (removed.isEmpty() && added.isEmpty()) return;
+        executor.execute(() -> {
+            try {
+                if (beforeSchool != null && !removed.isEmpty()) {
+                    Set<String> groups = groupService.findGroupsForMembers(Set.of(studentId), beforeSchool);
+                    for (String email : removed) {
+                        Set<String> stillIn = topicsForEmail(email, beforeSchool);
+                        for (String groupId : groups) {
+                            String topic = topicFor(beforeSchool, groupId);
+                            if (!stillIn.contains(topic)) {
+                                updateMembers(topic, beforeSchool, Set.of(email), false);
+                            }
+                        }
+                    }
+                }
+                if (afterSchool != null && !added.isEmpty()) {
+                    for (String groupId : groupService.findGroupsForMembers(Set.of(studentId), afterSchool)) {
+                        updateMembers(topicFor(afterSchool, groupId), afterSchool, added, true);
+                    }
+                }
+            } catch (Exception e) {
+                log.warn("No se pudieron actualizar topics del estudiante {}: {}", studentId, e.getMessage());
+            }
+        });
+    }
+
+    public void onTokenRegistered(String email, String token, String schoolId) {
+        if (!pushNotificationService.isEnabled() || token == null || token.isBlank()) return;
+        executor.execute(() -> {
+            for (String topic : topicsForEmail(email, schoolId)) {
+                pushNotificationService.updateTopicSubscription(topic, List.of(token), true);
+            }
+        });
+    }
+
+    public void onTokensRemoved(List<DeviceToken> removed) {
+        if (!pushNotificationService.isEnabled() || removed == null || removed.isEmpty()) return;
+        executor.execute(() -> {
+            for (DeviceToken dt : removed) {
+                if (dt == null || dt.getToken() == null) continue;
+                for (String topic : topicsForEmail(dt.getEmail(), dt.getSchoolId())) {
+                    pushNotificationService.updateTopicSubscription(topic, List.of(dt.getToken()), false);
+                }
+            }
+        });
+    }
+
+    private Set<String> topicsForEmail(String email, String schoolId) {
+        Set<String> topics = new LinkedHashSet<>();
+        if (email == null || email.isBlank()) return topics;
+        String normalized = email.trim().toLowerCase();
+        Set<String> keys = new LinkedHashSet<>();
+        keys.add(normalized);
+        for (StudentDocument s : studentService.findAllByEmail(normalized)) {
+            if (s == null || s.getId() == null) continue;
+            if (schoolId != null && !schoolId.isBlank() && s.getSchoolId() != null && !schoolId.equals(s.getSchoolId())) continue;
+            keys.add(s.getId());
+        }
+        groupService.findGroupsForMembers(keys, schoolId).forEach(gid -> topics.add(topicFor(schoolId, gid)));
+        return topics;
+    }
+
+    private boolean updateMembers(String topic, String schoolId, Set<String> emails, boolean subscribe) {
+        if (emails.isEmpty()) return true;
+        List<String> tokens = deviceTokenService.tokensByRecipient(new ArrayList<>(emails), schoolId).values().stream()
+                .flatMap(List::stream)
+                .distinct()
+                .toList();
+        return pushNotificationService.updateTopicSubscription(topic, tokens, subscribe);
+    }
+
+    /**
+     * Miembros de grupo a correos: los correos se usan tal cual y los ids de estudiante se
+     * expanden al correo del estudiante y de sus apoderados, leyendo todos los estudiantes juntos.
+     */
+    private Set<String> memberEmails(Set<String> members) {
+        Set<String> emails = new HashSet<>();
+        Set<String> studentIds = new HashSet<>();
+        for (String member : members) {
+            if (member == null || member.isBlank()) continue;
+            String value = member.trim();
+            if (value.contains("@")) {
+                emails.add(value.toLowerCase());
+            } else {
+                studentIds.add(value);
+            }
+        }
+        if (!studentIds.isEmpty()) {
+            studentService.findByIds(studentIds).values().forEach(student -> emails.addAll(studentEmails(student)));
+        }
+        return emails;
+    }
+
+    // correo propio del estudiante y de sus apoderados
+    private static Set<String> studentEmails(StudentDocument student) {
+        Set<String> emails = new HashSet<>();
+        if (student == null) return emails;
+        if (student.getEmail() != null && !student.getEmail().isBlank()) {
+            emails.add(student.getEmail().trim().toLowerCase());
+        }
+        emails.addAll(StudentService.guardianEmails(student));
+        return emails;
+    }
+}
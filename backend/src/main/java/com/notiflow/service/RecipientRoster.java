@@ -0,0 +1,247 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.notiflow.dto.GuardianContact;
+import com.notiflow.model.StudentDocument;
+import com.notiflow.model.UserDocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Foto por colegio y año de alumnos, apoderados y usuarios para resolver la audiencia de un mensaje
+ * sin consultas por destinatario: correos de cada alumno, nombre a mostrar y si el correo puede
+ * recibir por App. Los alumnos salen de {@link RosterIndex} (ya mantenida con las escrituras); los
+ * usuarios del colegio se leen una vez y se descartan al escribir un usuario. La foto se recalcula
+ * en memoria cuando cambia la versión de cualquiera de las dos fuentes.
+ */
+@Service
+public class RecipientRoster {
+
+    private static final Logger log = LoggerFactory.getLogger(RecipientRoster.class);
+    private static final AtomicLong USER_VERSIONS = new AtomicLong();
+
+    private record SnapshotKey(String schoolId, String year) {}
+
+    private record UserSet(long version, long loadedAt, List<UserDocument> users) {}
+
+    private final Firestore firestore;
+    private final RosterIndex rosterIndex;
+    private final long ttlMs;
+    private final Map<String, UserSet> usersBySchool = new ConcurrentHashMap<>();
+    private final Map<SnapshotKey, Snapshot> snapshots = new ConcurrentHashMap<>();
+
+    public RecipientRoster(
+            Firestore firestore,
+            RosterIndex rosterIndex,
+            @Value("${app.roster.ttl-minutes:10}") long ttlMinutes
+    ) {
+        this.firestore = firestore;
+        this.rosterIndex = rosterIndex;
+        this.ttlMs = Duration.ofMinutes(Math.max(1, ttlMinutes)).toMillis();
+    }
+
+    public Snapshot snapshot(String schoolId, String year) throws InterruptedException, ExecutionException {
+        String tenant = tenant(schoolId);
+        String safeYear = year == null ? "" : year.trim();
+        UserSet users = users(tenant);
+        SnapshotKey key = new SnapshotKey(tenant, safeYear);
+        Snapshot current = snapshots.get(key);
+        if (current != null && current.usersVersion == users.version()
+                && current.studentsVersion == rosterIndex.version(tenant, safeYear)) {
+            return current;
+        }
+        RosterIndex.Snapshot students = rosterIndex.snapshot(tenant, safeYear);
+        Snapshot built = new Snapshot(students, users);
+        snapshots.put(key, built);
+        log.debug("Foto de destinatarios {} / {}: {} alumnos, {} usuarios", tenant, safeYear, students.students().size(), users.users().size());
+        return built;
+    }
+
+    /**
+     * Descarta los usuarios del colegio; la próxima foto los vuelve a leer.
+     */
+    public void invalidateUsers(String schoolId) {
+        String tenant = tenant(schoolId);
+        usersBySchool.remove(tenant);
+        snapshots.keySet().removeIf(key -> key.schoolId().equals(tenant));
+    }
+
+    private UserSet users(String tenant) throws InterruptedException, ExecutionException {
+        UserSet cached = usersBySchool.get(tenant);
+        if (cached != null && System.currentTimeMillis() - cached.loadedAt() < ttlMs) {
+            return cached;
+        }
+        List<UserDocument> users = new ArrayList<>();
+        for (QueryDocumentSnapshot doc : firestore.collection("tenants").document(tenant).collection("users").get().get().getDocuments()) {
+            UserDocument u = doc.toObject(UserDocument.class);
+            if (u == null) continue;
+            u.setId(doc.getId());
+            users.add(u);
+        }
+        UserSet loaded = new UserSet(USER_VERSIONS.incrementAndGet(), System.currentTimeMillis(), users);
+        usersBySchool.put(tenant, loaded);
+        return loaded;
+    }
+
+    private static String tenant(String schoolId) {
+        return schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+    }
+
+    private static String email(String value) {
+        if (value == null) return null;
+        String trimmed = value.trim().toLowerCase();
+        return trimmed.isEmpty() ? null : trimmed;
+    }
+
+    private static String trimmed(String value) {
+        return value == null ? "" : value.trim();
+    }
+
+    /**
+     * Inmutable. Un correo que no aparece en la foto ({@link #knows} en false) puede ser de otro
+     * colegio o año: el llamador decide si lo consulta aparte.
+     */
+    public static final class Snapshot {
+        private final long studentsVersion;
+        private final long usersVersion;
+        private final Map<String, List<String>> recipientsByStudent;
+        private final Map<String, String> names;
+        private final Set<String> known;
+        private final Set<String> appEligible;
+        private final Set<String> studentEmails;
+        private final Set<String> guardianEmails;
+        private final Set<String> staffEmails;
+
+        private Snapshot(RosterIndex.Snapshot students, UserSet users) {
+            this.studentsVersion = students.version();
+            this.usersVersion = users.version();
+            Map<String, List<String>> recipients = new HashMap<>();
+            Map<String, String> studentNames = new HashMap<>();
+            Map<String, String> guardianNames = new HashMap<>();
+            Set<String> knownEmails = new HashSet<>();
+            Set<String> eligible = new HashSet<>();
+            Set<String> ownEmails = new HashSet<>();
+            Set<String> guardians = new HashSet<>();
+            Set<String> staff = new HashSet<>();
+            for (StudentDocument s : students.students()) {
+                String studentName = String.join(" ", trimmed(s.getFirstName()), trimmed(s.getLastNameFather()), trimmed(s.getLastNameMother())).trim();
+                LinkedHashSet<String> emails = new LinkedHashSet<>();
+                String own = email(s.getEmail());
+                if (own != null) {
+                    emails.add(own);
+                    eligible.add(own);
+                    ownEmails.add(own);
+                    if (!studentName.isBlank()) studentNames.putIfAbsent(own, studentName);
+                }
+                if (s.getGuardianEmails() != null) {
+                    for (String g : s.getGuardianEmails()) {
+                        String ge = email(g);
+                        if (ge == null) continue;
+                        emails.add(ge);
+                        eligible.add(ge);
+                        guardians.add(ge);
+                    }
+                }
+                if (s.getGuardians() != null) {
+                    for (GuardianContact g : s.getGuardians()) {
+                        if (g == null) continue;
+                        String ge = email(g.getEmail());
+                        if (ge == null) continue;
+                        emails.add(ge);
+                        guardians.add(ge);
+                        if (g.getName() != null && !g.getName().isBlank()) {
+                            guardianNames.putIfAbsent(ge, g.getName());
+                        } else if (!studentName.isBlank()) {
+                            guardianNames.putIfAbsent(ge, "Apoderado de " + studentName);
+                        }
+                    }
+                }
+                knownEmails.addAll(emails);
+                if (s.getId() != null && !s.getId().isBlank()) {
+                    recipients.put(s.getId().trim(), List.copyOf(emails));
+                }
+            }
+            // mismo orden que la resolución por consultas: usuario, alumno, apoderado
+            Map<String, String> resolved = new HashMap<>(guardianNames);
+            resolved.putAll(studentNames);
+            for (UserDocument u : users.users()) {
+                String ue = email(u.getEmail());
+                if (ue == null) continue;
+                knownEmails.add(ue);
+                staff.add(ue);
+                if (u.getName() != null && !u.getName().isBlank()) {
+                    resolved.put(ue, u.getName());
+                }
+            }
+            this.recipientsByStudent = Collections.unmodifiableMap(recipients);
+            this.names = Collections.unmodifiableMap(resolved);
+            this.known = Collections.unmodifiableSet(knownEmails);
+            this.appEligible = Collections.unmodifiableSet(eligible);
+            this.studentEmails = Collections.unmodifiableSet(ownEmails);
+            this.guardianEmails = Collections.unmodifiableSet(guardians);
+            this.staffEmails = Collections.unmodifiableSet(staff);
+        }
+
+        /**
+         * Correos del alumno y sus apoderados, o null si el alumno no está en la foto.
+         */
+        public List<String> recipientsOf(String studentId) {
+            return studentId == null ? null : recipientsByStudent.get(studentId.trim());
+        }
+
+        public boolean knows(String email) {
+            String key = email(email);
+            return key != null && known.contains(key);
+        }
+
+        public String nameOf(String email) {
+            String key = email(email);
+            return key == null ? null : names.get(key);
+        }
+
+        /**
+         * Alumnos y apoderados (correo propio o en guardianEmails) pueden recibir por App.
+         */
+        public boolean isAppEligible(String email) {
+            String key = email(email);
+            return key != null && appEligible.contains(key);
+        }
+
+        /**
+         * Correo propio de algún alumno del colegio y año.
+         */
+        public boolean isStudent(String email) {
+            String key = email(email);
+            return key != null && studentEmails.contains(key);
+        }
+
+        public boolean isGuardian(String email) {
+            String key = email(email);
+            return key != null && guardianEmails.contains(key);
+        }
+
+        /**
+         * Usuario interno del colegio.
+         */
+        public boolean isStaff(String email) {
+            String key = email(email);
+            return key != null && staffEmails.contains(key);
+        }
+    }
+}
@@ -0,0 +1,386 @@
+package com.notiflow.service;
+
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.notiflow.dto.GuardianContact;
+import com.notiflow.model.StudentDocument;
+import com.notiflow.util.PrefixTrie;
+import com.notiflow.util.SearchUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Nómina de alumnos en memoria por colegio y año, para búsquedas tipo typeahead sin leer Firestore.
+ * Se carga la primera vez que se consulta y se mantiene con las escrituras de alumnos; cada
+ * {@code app.roster.ttl-minutes} se recarga completa para recoger cambios hechos en otras instancias.
+ * Cada término de la búsqueda debe ser prefijo de alguna palabra del alumno (nombres, apoderados,
+ * correos, teléfonos, RUN, curso, comuna, dirección); el RUN, correos y teléfonos también se indexan
+ * sin puntos ni guiones, así "12.345" encuentra "12345678-9".
+ */
+@Service
+public class RosterIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(RosterIndex.class);
+    // campos más largos que esto (direcciones) no se indexan compactados completos
+    private static final int MAX_COMPACT_FIELD = 32;
+
+    private record RosterKey(String schoolId, String year) {}
+
+    private record Entry(StudentDocument student, Set<String> keys) {}
+
+    /**
+     * Foto de la nómina: la versión cambia con cada carga o escritura aplicada, así quien deriva
+     * estructuras de la lista sabe cuándo recalcularlas.
+     */
+    public record Snapshot(long version, List<StudentDocument> students) {}
+
+    // global para que una nómina descartada y vuelta a cargar nunca repita versión
+    private static final AtomicLong VERSIONS = new AtomicLong();
+
+    private final Firestore firestore;
+    private final long ttlMs;
+    private final int maxRosters;
+    private final Map<RosterKey, Roster> rosters = new ConcurrentHashMap<>();
+
+    public RosterIndex(
+            Firestore firestore,
+            @Value("${app.roster.ttl-minutes:10}") long ttlMinutes,
+            @Value("${app.roster.max-rosters:200}") int maxRosters
+    ) {
+        this.firestore = firestore;
+        this.ttlMs = Duration.ofMinutes(Math.max(1, ttlMinutes)).toMillis();
+        this.maxRosters = Math.max(1, maxRosters);
+    }
+
+    /**
+     * Alumnos del colegio (y año, si viene) que calzan con la búsqueda, en orden estable. Con la
+     * búsqueda vacía devuelve la nómina completa. Los documentos devueltos son compartidos: no modificar.
+     */
+    public List<StudentDocument> search(String schoolId, String year, String query) throws InterruptedException, ExecutionException {
+        RosterKey key = new RosterKey(tenant(schoolId), year == null ? "" : year.trim());
+        Roster roster = rosters.computeIfAbsent(key, Roster::new);
+        if (rosters.size() > maxRosters) {
+            evictLeastRecent();
+        }
+        return roster.search(queryTerms(query));
+    }
+
+    public Snapshot snapshot(String schoolId, String year) throws InterruptedException, ExecutionException {
+        return roster(schoolId, year).snapshot();
+    }
+
+    /**
+     * Versión actual sin copiar la lista, para validar algo derivado de un {@link Snapshot} anterior.
+     */
+    public long version(String schoolId, String year) throws InterruptedException, ExecutionException {
+        return roster(schoolId, year).version();
+    }
+
+    private Roster roster(String schoolId, String year) {
+        RosterKey key = new RosterKey(tenant(schoolId), year == null ? "" : year.trim());
+        Roster roster = rosters.computeIfAbsent(key, Roster::new);
+        if (rosters.size() > maxRosters) {
+            evictLeastRecent();
+        }
+        return roster;
+    }
+
+    public void onStudentSaved(StudentDocument student) {
+        if (student == null || student.getId() == null || student.getId().isBlank()) return;
+        String tenant = tenant(student.getSchoolId());
+        rosters.forEach((key, roster) -> {
+            if (!key.schoolId().equals(tenant)) return;
+            if (key.year().isEmpty() || key.year().equals(student.getYear())) {
+                roster.upsert(student);
+            } else {
+                // cambió de año
+                roster.remove(student.getId());
+            }
+        });
+    }
+
+    public void onStudentDeleted(String schoolId, String studentId) {
+        if (studentId == null || studentId.isBlank()) return;
+        String tenant = tenant(schoolId);
+        rosters.forEach((key, roster) -> {
+            if (key.schoolId().equals(tenant)) {
+                roster.remove(studentId);
+            }
+        });
+    }
+
+    /**
+     * Descarta las nóminas del colegio; se recargan en la próxima búsqueda. Para cargas masivas,
+     * donde aplicar fila por fila no conviene.
+     */
+    public void invalidate(String schoolId) {
+        String tenant = tenant(schoolId);
+        rosters.keySet().removeIf(key -> key.schoolId().equals(tenant));
+    }
+
+    private void evictLeastRecent() {
+        rosters.entrySet().stream()
+                .min(Comparator.comparingLong(e -> e.getValue().lastAccess))
+                .ifPresent(e -> rosters.remove(e.getKey(), e.getValue()));
+    }
+
+    private static String tenant(String schoolId) {
+        return schoolId == null || schoolId.isBlank() ? "global" : schoolId;
+    }
+
+    private static List<String> queryTerms(String query) {
+        String normalized = SearchUtils.normalize(query);
+        if (normalized.isEmpty()) return List.of();
+        List<String> terms = new ArrayList<>();
+        for (String chunk : normalized.split(" ")) {
+            String term = compact(chunk);
+            if (!term.isEmpty()) {
+                terms.add(term);
+            }
+        }
+        return terms;
+    }
+
+    private static Set<String> keysFor(StudentDocument s) {
+        Set<String> keys = new LinkedHashSet<>();
+        addKeys(keys, s.getFirstName());
+        addKeys(keys, s.getLastNameFather());
+        addKeys(keys, s.getLastNameMother());
+        addKeys(keys, s.getGuardianFirstName());
+        addKeys(keys, s.getGuardianLastName());
+        addKeys(keys, s.getEmail());
+        addKeys(keys, s.getPhone());
+        addKeys(keys, s.getRun());
+        addKeys(keys, s.getCourse());
+        addKeys(keys, s.getCommune());
+        addKeys(keys, s.getAddress());
+        if (s.getGuardians() != null) {
+            for (GuardianContact g : s.getGuardians()) {
+                if (g == null) continue;
+                addKeys(keys, g.getName());
+                addKeys(keys, g.getEmail());
+                addKeys(keys, g.getPhone());
+            }
+        }
+        if (s.getGuardianEmails() != null) {
+            for (String email : s.getGuardianEmails()) {
+                addKeys(keys, email);
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Palabras del campo (separadas por cualquier signo) más cada bloque y el campo completo sin
+     * signos, para que RUN, correos y teléfonos calcen escritos con o sin puntos, guiones o espacios.
+     */
+    private static void addKeys(Set<String> keys, String value) {
+        String normalized = SearchUtils.normalize(value);
+        if (normalized.isEmpty()) return;
+        for (String chunk : normalized.split(" ")) {
+            StringBuilder word = new StringBuilder();
+            for (int i = 0; i < chunk.length(); i++) {
+                char c = chunk.charAt(i);
+                if (Character.isLetterOrDigit(c)) {
+                    word.append(c);
+                } else if (word.length() > 0) {
+                    keys.add(word.toString());
+                    word.setLength(0);
+                }
+            }
+            if (word.length() > 0) {
+                keys.add(word.toString());
+            }
+            String compactChunk = compact(chunk);
+            if (!compactChunk.isEmpty()) {
+                keys.add(compactChunk);
+            }
+        }
+        String whole = compact(normalized);
+        if (!whole.isEmpty() && whole.length() <= MAX_COMPACT_FIELD) {
+            keys.add(whole);
+        }
+    }
+
+    private static String compact(String value) {
+        StringBuilder sb = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private final class Roster {
+        private final RosterKey key;
+        // cargas y escrituras toman el lock de escritura; una escritura que llega durante la carga
+        // espera y se aplica encima, así no se pierde aunque la lectura haya sido anterior
+        private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        private final List<Entry> slots = new ArrayList<>();
+        private final Map<String, Integer> slotById = new HashMap<>();
+        private PrefixTrie trie = new PrefixTrie();
+        private long version;
+        private volatile long loadedAt = -1;
+        private volatile long lastAccess = System.currentTimeMillis();
+
+        Roster(RosterKey key) {
+            this.key = key;
+        }
+
+        List<StudentDocument> search(List<String> terms) throws InterruptedException, ExecutionException {
+            lastAccess = System.currentTimeMillis();
+            ensureFresh();
+            lock.readLock().lock();
+            try {
+                List<StudentDocument> result = new ArrayList<>();
+                if (terms.isEmpty()) {
+                    for (Entry entry : slots) {
+                        if (entry != null) result.add(entry.student());
+                    }
+                    return result;
+                }
+                BitSet matches = null;
+                for (String term : terms) {
+                    BitSet hits = new BitSet(slots.size());
+                    trie.collect(term, hits);
+                    if (matches == null) {
+                        matches = hits;
+                    } else {
+                        matches.and(hits);
+                    }
+                    if (matches.isEmpty()) return result;
+                }
+                for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+                    Entry entry = slots.get(i);
+                    if (entry != null) result.add(entry.student());
+                }
+                return result;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        Snapshot snapshot() throws InterruptedException, ExecutionException {
+            lastAccess = System.currentTimeMillis();
+            ensureFresh();
+            lock.readLock().lock();
+            try {
+                List<StudentDocument> students = new ArrayList<>(slotById.size());
+                for (Entry entry : slots) {
+                    if (entry != null) students.add(entry.student());
+                }
+                return new Snapshot(version, students);
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        long version() throws InterruptedException, ExecutionException {
+            lastAccess = System.currentTimeMillis();
+            ensureFresh();
+            lock.readLock().lock();
+            try {
+                return version;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+
+        void upsert(StudentDocument student) {
+            lock.writeLock().lock();
+            try {
+                // sin cargar no hay nada que mantener: la carga leerá el dato nuevo
+                if (loadedAt < 0) return;
+                put(student);
+                version = VERSIONS.incrementAndGet();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        void remove(String studentId) {
+            lock.writeLock().lock();
+            try {
+                Integer slot = slotById.remove(studentId);
+                if (slot == null) return;
+                Entry old = slots.get(slot);
+                if (old != null) {
+                    for (String k : old.keys()) {
+                        trie.remove(k, slot);
+                    }
+                }
+                slots.set(slot, null);
+                version = VERSIONS.incrementAndGet();
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void ensureFresh() throws InterruptedException, ExecutionException {
+            if (loadedAt >= 0 && System.currentTimeMillis() - loadedAt < ttlMs) return;
+            lock.writeLock().lock();
+            try {
+                if (loadedAt >= 0 && System.currentTimeMillis() - loadedAt < ttlMs) return;
+                Query query = firestore.collection("tenants").document(key.schoolId()).collection("students");
+                if (!key.year().isEmpty()) {
+                    query = query.whereEqualTo("year", key.year());
+                }
+                List<QueryDocumentSnapshot> docs = query.get().get().getDocuments();
+                slots.clear();
+                slotById.clear();
+                trie = new PrefixTrie();
+                for (QueryDocumentSnapshot doc : docs) {
+                    StudentDocument s = doc.toObject(StudentDocument.class);
+                    if (s == null) continue;
+                    s.setId(doc.getId());
+                    put(s);
+                }
+                version = VERSIONS.incrementAndGet();
+                loadedAt = System.currentTimeMillis();
+                log.debug("Nómina {} / {} cargada: {} alumnos", key.schoolId(), key.year().isEmpty() ? "*" : key.year(), slotById.size());
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+
+        private void put(StudentDocument student) {
+            Entry entry = new Entry(student, keysFor(student));
+            Integer slot = slotById.get(student.getId());
+            if (slot != null) {
+                Entry old = slots.get(slot);
+                if (old != null) {
+                    for (String k : old.keys()) {
+                        trie.remove(k, slot);
+                    }
+                }
+                slots.set(slot, entry);
+            } else {
+                slot = slots.size();
+                slots.add(entry);
+                slotById.put(student.getId(), slot);
+            }
+            for (String k : entry.keys()) {
+                trie.add(k, slot);
+            }
+        }
+    }
+}
@@ -0,0 +1,242 @@
+package com.notiflow.service;
+
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QuerySnapshot;
+import com.notiflow.model.MessageStatus;
+import com.notiflow.util.TimingWheel;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Despacha los mensajes programados a su hora sin depender del cron. Una sola instancia (la que
+ * tiene el lease en schedulerLeases/scheduledMessages) escucha los SCHEDULED que vencen dentro del
+ * horizonte y los carga en una rueda de tiempo con tick de 1s; el listener solo entrega cambios,
+ * así que no se vuelve a consultar toda la colección. POST /messages/process-scheduled sigue
+ * disponible como respaldo: ambos caminos reclaman el mensaje con la misma transacción.
+ */
+@Service
+public class ScheduledMessageDispatcher {
+
+    private static final Logger log = LoggerFactory.getLogger(ScheduledMessageDispatcher.class);
+    private static final long TICK_MS = 1000;
+    private static final long RETRY_MS = 5000;
+    private final Firestore firestore;
+    private final MessageService messageService;
+    private final boolean enabled;
+    private final Duration lease;
+    private final Duration horizon;
+    private final String instanceId = UUID.randomUUID().toString();
+    // todo el estado de abajo se toca solo desde este hilo
+    private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread t = new Thread(runnable, "scheduled-dispatcher");
+        t.setDaemon(true);
+        return t;
+    });
+    private final TimingWheel<String> wheel = new TimingWheel<>(TICK_MS, 64, System.currentTimeMillis());
+    private boolean leader;
+    private ListenerRegistration listener;
+    private Instant listenerUntil;
+
+    public ScheduledMessageDispatcher(
+            Firestore firestore,
+            MessageService messageService,
+            @Value("${app.scheduler.enabled:true}") boolean enabled,
+            @Value("${app.scheduler.lease-seconds:30}") long leaseSeconds,
+            @Value("${app.scheduler.horizon-minutes:10}") long horizonMinutes
+    ) {
+        this.firestore = firestore;
+        this.messageService = messageService;
+        this.enabled = enabled;
+        this.lease = Duration.ofSeconds(Math.max(10, leaseSeconds));
+        this.horizon = Duration.ofMinutes(Math.max(1, horizonMinutes));
+    }
+
+    @PostConstruct
+    void start() {
+        if (!enabled) return;
+        executor.scheduleAtFixedRate(this::tick, TICK_MS, TICK_MS, TimeUnit.MILLISECONDS);
+        executor.scheduleWithFixedDelay(this::renewLeadership, 0, lease.toMillis() / 3, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    void stop() {
+        if (!enabled) return;
+        try {
+            executor.submit(() -> {
+                if (leader) {
+                    stepDown();
+                    releaseLease();
+                }
+            }).get(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("No se pudo liberar el lease del scheduler: {}", e.getMessage());
+        }
+        executor.shutdownNow();
+    }
+
+    boolean isLeader() {
+        return leader;
+    }
+
+    private void tick() {
+        if (!leader) return;
+        for (String path : wheel.advance(System.currentTimeMillis())) {
+            ApiFutures.addCallback(messageService.dispatchScheduled(path), new ApiFutureCallback<>() {
+                @Override
+                public void onFailure(Throwable t) {
+                    log.warn("No se pudo despachar programado {}: {}", path, t.getMessage());
+                    // sigue SCHEDULED y el listener no volverá a avisar: se reintenta desde la rueda
+                    executor.execute(() -> {
+                        if (leader && !wheel.contains(path)) {
+                            wheel.schedule(path, System.currentTimeMillis() + RETRY_MS);
+                        }
+                    });
+                }
+
+                @Override
+                public void onSuccess(Boolean claimed) {
+                    // false: otra instancia o el cron ya lo tomó
+                }
+            }, Runnable::run);
+        }
+    }
+
+    void renewLeadership() {
+        boolean acquired = tryAcquireLease();
+        if (acquired && !leader) {
+            log.info("Instancia {} toma el scheduler de mensajes programados", instanceId);
+            // la rueda no avanzó mientras no era líder: se lleva a la hora actual antes de cargarla
+            wheel.advance(System.currentTimeMillis());
+            leader = true;
+        } else if (!acquired && leader) {
+            log.info("Instancia {} pierde el lease del scheduler", instanceId);
+            stepDown();
+            return;
+        }
+        if (leader && (listener == null || !Instant.now().plus(horizon.dividedBy(2)).isBefore(listenerUntil))) {
+            listen();
+        }
+    }
+
+    /**
+     * Escucha los SCHEDULED con scheduledAt hasta ahora + horizonte. Al correr el horizonte se
+     * reemplaza el listener; su primera entrega vuelve a traer los ya cargados, que solo se reprograman.
+     */
+    private void listen() {
+        if (listener != null) {
+            listener.remove();
+        }
+        Instant until = Instant.now().plus(horizon);
+        listenerUntil = until;
+        listener = firestore.collectionGroup("messages")
+                .whereEqualTo("status", MessageStatus.SCHEDULED)
+                .whereLessThanOrEqualTo("scheduledAt", Timestamp.ofTimeSecondsAndNanos(until.getEpochSecond(), until.getNano()))
+                .addSnapshotListener(executor, (snapshot, error) -> {
+                    if (error != null) {
+                        log.warn("Listener de programados falló: {}", error.getMessage());
+                        // se vuelve a abrir en la próxima renovación del lease
+                        listener = null;
+                        return;
+                    }
+                    if (leader && snapshot != null) {
+                        apply(snapshot);
+                    }
+                });
+    }
+
+    private void apply(QuerySnapshot snapshot) {
+        for (DocumentChange change : snapshot.getDocumentChanges()) {
+            DocumentSnapshot doc = change.getDocument();
+            String path = doc.getReference().getPath();
+            if (change.getType() == DocumentChange.Type.REMOVED) {
+                // reclamado, borrado o reprogramado fuera del horizonte
+                wheel.cancel(path);
+                continue;
+            }
+            Timestamp scheduledAt = doc.getTimestamp("scheduledAt");
+            if (scheduledAt == null) continue;
+            wheel.schedule(path, scheduledAt.toDate().getTime());
+        }
+    }
+
+    private void stepDown() {
+        leader = false;
+        if (listener != null) {
+            listener.remove();
+            listener = null;
+        }
+        wheel.clear();
+    }
+
+    private boolean tryAcquireLease() {
+        DocumentReference ref = leaseRef();
+        try {
+            Boolean acquired = firestore.runTransaction(tx -> {
+                DocumentSnapshot snap = tx.get(ref).get();
+                Instant now = Instant.now();
+                String owner = snap.exists() ? snap.getString("owner") : null;
+                Timestamp expiresAt = snap.exists() ? snap.getTimestamp("expiresAt") : null;
+                boolean free = owner == null || instanceId.equals(owner)
+                        || expiresAt == null || !expiresAt.toDate().toInstant().isAfter(now);
+                if (!free) return false;
+                Instant until = now.plus(lease);
+                tx.set(ref, Map.of(
+                        "owner", instanceId,
+                        "expiresAt", Timestamp.ofTimeSecondsAndNanos(until.getEpochSecond(), until.getNano()),
+                        "updatedAt", Timestamp.ofTimeSecondsAndNanos(now.getEpochSecond(), now.getNano())
+                ));
+                return true;
+            }).get();
+            return Boolean.TRUE.equals(acquired);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        } catch (Exception e) {
+            // sin Firestore no se puede asegurar exclusividad: mejor no despachar
+            log.warn("No se pudo renovar lease del scheduler: {}", e.getMessage());
+            return false;
+        }
+    }
+
+    private void releaseLease() {
+        DocumentReference ref = leaseRef();
+        try {
+            firestore.runTransaction(tx -> {
+                DocumentSnapshot snap = tx.get(ref).get();
+                if (snap.exists() && instanceId.equals(snap.getString("owner"))) {
+                    tx.delete(ref);
+                }
+                return null;
+            }).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (Exception e) {
+            log.warn("No se pudo liberar lease del scheduler: {}", e.getMessage());
+        }
+    }
+
+    private DocumentReference leaseRef() {
+        return firestore.collection("schedulerLeases").document("scheduledMessages");
+    }
+}
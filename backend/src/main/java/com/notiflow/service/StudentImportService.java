@@ -30,11 +30,21 @@ public class StudentImportService {
 
     private static final Logger log = LoggerFactory.getLogger(StudentImportService.class);
     private final Firestore firestore;
+    private final EntityLocator entityLocator;
+    private final RosterIndex rosterIndex;
+    private final GroupService groupService;
+    private final GroupMemberStore groupMemberStore;
+    private final PushTopicService pushTopicService;
 
     private static final Pattern NON_ALNUM = Pattern.compile("[^0-9A-Za-z]");
 
-    public StudentImportService(Firestore firestore) {
+    public StudentImportService(Firestore firestore, EntityLocator entityLocator, RosterIndex rosterIndex, GroupService groupService, GroupMemberStore groupMemberStore, PushTopicService pushTopicService) {
         this.firestore = firestore;
+        this.entityLocator = entityLocator;
+        this.rosterIndex = rosterIndex;
+        this.groupService = groupService;
+        this.groupMemberStore = groupMemberStore;
+        this.pushTopicService = pushTopicService;
     }
 
     public ImportResult importCsv(MultipartFile file, String schoolId) {
@@ -87,6 +97,11 @@ public class StudentImportService {
         } catch (Exception e) {
             log.error("Error importando CSV", e);
             errors.add("Error general: " + e.getMessage());
+        } finally {
+            // aunque falle a medias, las filas ya escritas deben verse en la búsqueda
+            rosterIndex.invalidate(targetSchool);
+            // una importación toca demasiados alumnos para aplicarlos uno a uno a los grupos de sistema
+            groupService.markSystemGroupsDirty(targetSchool);
         }
 
         return new ImportResult(processed, created, updated, errors.size() > 50 ? errors.subList(0, 50) : errors);
@@ -185,6 +200,7 @@ public class StudentImportService {
     }
 
     private boolean upsertStudent(StudentDocument s) throws ExecutionException, InterruptedException {
+        s.setSearchText(StudentService.searchText(s));
         DocumentReference ref = tenantStudents(s.getSchoolId()).document(s.getId());
         ApiFuture<DocumentSnapshot> snapFut = ref.get();
         DocumentSnapshot snap = snapFut.get();
@@ -194,9 +210,12 @@ public class StudentImportService {
                 s.setCreatedAt(existing.getCreatedAt());
             }
             ref.set(s).get();
+            // apoderados cambiados en el CSV: sus dispositivos dejan los topics de los grupos del alumno
+            pushTopicService.onStudentChanged(s.getId(), existing, s);
             return true;
         } else {
             ref.set(s).get();
+            entityLocator.remember(ref);
             return false;
         }
     }
@@ -218,11 +237,14 @@ public class StudentImportService {
             g.setId(id);
             g.setName(name);
             g.setDescription(name);
-            g.setMemberIds(members);
             g.setSchoolId(schoolId);
             g.setYear(year);
-            if (g.getCreatedAt() == null) g.setCreatedAt(Instant.now());
-            ref.set(g).get();
+            boolean isNew = g.getCreatedAt() == null;
+            if (isNew) g.setCreatedAt(Instant.now());
+            groupMemberStore.write(ref, g, members);
+            if (isNew) {
+                entityLocator.remember(ref);
+            }
         } catch (Exception e) {
             log.warn("No se pudo crear/actualizar grupo {}: {}", name, e.getMessage());
         }
@@ -3,6 +3,7 @@ package com.notiflow.service;
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.AggregateQuery;
 import com.google.cloud.firestore.AggregateQuerySnapshot;
+import com.google.cloud.firestore.FieldPath;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.Query;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
@@ -12,7 +13,11 @@ import com.notiflow.dto.StudentListResponse;
 import com.notiflow.dto.StudentRequest;
 import com.notiflow.dto.GuardianContact;
 import com.notiflow.model.StudentDocument;
+import com.notiflow.util.BatchLoader;
+import com.notiflow.util.PageCursor;
+import com.notiflow.util.SearchQuery;
 import com.notiflow.util.SearchUtils;
+import org.springframework.context.annotation.Lazy;
 import org.springframework.http.HttpStatus;
 import org.springframework.stereotype.Service;
 import org.springframework.web.server.ResponseStatusException;
@@ -21,7 +26,12 @@ import org.slf4j.LoggerFactory;
 
 import java.util.ArrayList;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.stream.Collectors;
@@ -30,11 +40,19 @@ import java.util.stream.Collectors;
 public class StudentService {
 
     private final Firestore firestore;
+    private final EntityLocator entityLocator;
+    private final RosterIndex rosterIndex;
+    private final GroupService groupService;
+    private final PushTopicService pushTopicService;
     private static final int MAX_SEARCH_SCAN = 5000;
     private static final Logger log = LoggerFactory.getLogger(StudentService.class);
 
-    public StudentService(Firestore firestore) {
+    public StudentService(Firestore firestore, EntityLocator entityLocator, RosterIndex rosterIndex, @Lazy GroupService groupService, @Lazy PushTopicService pushTopicService) {
         this.firestore = firestore;
+        this.entityLocator = entityLocator;
+        this.rosterIndex = rosterIndex;
+        this.groupService = groupService;
+        this.pushTopicService = pushTopicService;
     }
 
     public StudentDto create(StudentRequest request, String schoolId) {
@@ -54,6 +72,7 @@ public class StudentService {
             s.setEmail(normalizeEmail(defaultValue(request.email(), "")));
             s.setPhone(defaultValue(request.phone(), ""));
             applyGuardians(s, request, null);
+            s.setSearchText(searchText(s));
             s.setUpdatedAt(Instant.now());
             s.setCreatedAt(Instant.now());
 
@@ -65,13 +84,15 @@ public class StudentService {
 
             var ref = tenantStudents(schoolId).document(id);
             var snap = ref.get().get();
-            if (snap.exists()) {
-                StudentDocument existing = snap.toObject(StudentDocument.class);
-                if (existing != null && existing.getCreatedAt() != null) {
-                    s.setCreatedAt(existing.getCreatedAt());
-                }
+            StudentDocument existing = snap.exists() ? snap.toObject(StudentDocument.class) : null;
+            if (existing != null && existing.getCreatedAt() != null) {
+                s.setCreatedAt(existing.getCreatedAt());
             }
             ref.set(s).get();
+            entityLocator.remember(ref);
+            rosterIndex.onStudentSaved(s);
+            groupService.onStudentChanged(existing, s);
+            pushTopicService.onStudentChanged(id, existing, s);
             return toDto(s);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
@@ -81,39 +102,34 @@ public class StudentService {
         }
     }
 
-    public StudentListResponse list(String schoolId, String year, String query, int page, int size) {
+    public StudentListResponse list(String schoolId, String year, String query, int page, int size, String cursor) {
+        if (query != null && !query.isBlank()) {
+            return searchRoster(schoolId, year, query, page, size);
+        }
         Query q = tenantStudents(schoolId);
         if (year != null && !year.isBlank()) {
             q = q.whereEqualTo("year", year);
         }
-        return fetch(q, query, page, size);
+        return fetch(q, query, page, size, cursor);
     }
 
-    public StudentListResponse listAll(String year, String query, int page, int size) {
+    public StudentListResponse listAll(String year, String query, int page, int size, String cursor) {
         Query q = firestore.collectionGroup("students");
         if (year != null && !year.isBlank()) {
             q = q.whereEqualTo("year", year);
         }
-        return fetch(q, query, page, size);
+        return fetch(q, query, page, size, cursor);
     }
 
     public StudentDto update(String id, StudentRequest request, String requesterSchoolId, boolean isGlobalAdmin) {
         try {
             validateRequiredFields(request);
-            var currentRef = firestore.collectionGroup("students")
-                    .whereEqualTo("id", id)
-                    .limit(1)
-                    .get()
-                    .get()
-                    .getDocuments()
-                    .stream()
-                    .findFirst()
-                    .map(QueryDocumentSnapshot::getReference)
-                    .orElse(null);
-            if (currentRef == null) {
+            var currentSnap = entityLocator.find("students", id).orElse(null);
+            if (currentSnap == null) {
                 throw new IllegalArgumentException("Estudiante no encontrado");
             }
-            StudentDocument existing = currentRef.get().get().toObject(StudentDocument.class);
+            var currentRef = currentSnap.getReference();
+            StudentDocument existing = currentSnap.toObject(StudentDocument.class);
             if (existing == null) {
                 throw new IllegalArgumentException("Estudiante inválido");
             }
@@ -141,16 +157,23 @@ public class StudentService {
             s.setEmail(normalizeEmail(defaultValue(request.email(), existing.getEmail())));
             s.setPhone(defaultValue(request.phone(), existing.getPhone()));
             applyGuardians(s, request, existing);
+            s.setSearchText(searchText(s));
             s.setCreatedAt(existing.getCreatedAt() != null ? existing.getCreatedAt() : Instant.now());
             s.setUpdatedAt(Instant.now());
 
             // Si cambia de tenant, mover el documento
             if (existing.getSchoolId() != null && !existing.getSchoolId().equalsIgnoreCase(targetSchoolId)) {
-                tenantStudents(targetSchoolId).document(s.getId()).set(s).get();
+                var movedRef = tenantStudents(targetSchoolId).document(s.getId());
+                movedRef.set(s).get();
                 currentRef.delete().get();
+                entityLocator.remember("students", id, movedRef);
+                rosterIndex.onStudentDeleted(existing.getSchoolId(), id);
             } else {
                 tenantStudents(targetSchoolId).document(s.getId()).set(s).get();
             }
+            rosterIndex.onStudentSaved(s);
+            groupService.onStudentChanged(existing, s);
+            pushTopicService.onStudentChanged(id, existing, s);
             return toDto(s);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
@@ -187,13 +210,8 @@ public class StudentService {
     public java.util.Optional<StudentDto> getById(String id) {
         if (id == null || id.isBlank()) return java.util.Optional.empty();
         try {
-            QuerySnapshot snap = firestore.collectionGroup("students")
-                    .whereEqualTo("id", id)
-                    .limit(1)
-                    .get()
-                    .get();
-            if (snap.isEmpty()) return java.util.Optional.empty();
-            QueryDocumentSnapshot doc = snap.getDocuments().get(0);
+            var doc = entityLocator.find("students", id).orElse(null);
+            if (doc == null) return java.util.Optional.empty();
             StudentDocument s = doc.toObject(StudentDocument.class);
             if (s == null) return java.util.Optional.empty();
             s.setId(doc.getId());
@@ -212,15 +230,10 @@ public class StudentService {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "ID requerido");
         }
         try {
-            QuerySnapshot snap = firestore.collectionGroup("students")
-                    .whereEqualTo("id", id)
-                    .limit(1)
-                    .get()
-                    .get();
-            if (snap.isEmpty()) {
+            var doc = entityLocator.find("students", id).orElse(null);
+            if (doc == null) {
                 throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Estudiante no encontrado");
             }
-            QueryDocumentSnapshot doc = snap.getDocuments().get(0);
             StudentDocument s = doc.toObject(StudentDocument.class);
             if (s == null) {
                 throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Estudiante inválido");
@@ -230,6 +243,10 @@ public class StudentService {
                 throw new ResponseStatusException(HttpStatus.FORBIDDEN, "No puedes eliminar estudiantes de otro colegio");
             }
             doc.getReference().delete().get();
+            entityLocator.forget("students", id);
+            rosterIndex.onStudentDeleted(s.getSchoolId(), id);
+            groupService.onStudentChanged(s, null);
+            pushTopicService.onStudentChanged(id, s, null);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -299,7 +316,7 @@ public class StudentService {
         );
     }
 
-    private StudentListResponse fetch(Query baseQuery, String query, int page, int size) {
+    private StudentListResponse fetch(Query baseQuery, String query, int page, int size, String cursorToken) {
         int safePage = Math.max(1, page);
         int safeSize = Math.min(Math.max(1, size), 200);
         String normalizedQuery = query == null ? "" : query.trim().toLowerCase();
@@ -307,6 +324,7 @@ public class StudentService {
 
         try {
             if (hasSearch) {
+                SearchQuery searchQuery = SearchQuery.of(normalizedQuery);
                 ApiFuture<QuerySnapshot> fut = baseQuery.limit(MAX_SEARCH_SCAN).get();
                 List<QueryDocumentSnapshot> docs = fut.get().getDocuments();
                 List<StudentDto> filtered = new ArrayList<>();
@@ -315,7 +333,7 @@ public class StudentService {
                     StudentDocument s = doc.toObject(StudentDocument.class);
                     if (s == null) continue;
                     s.setId(doc.getId());
-                    if (matchesQuery(s, normalizedQuery)) {
+                    if (matchesQuery(s, searchQuery)) {
                         filtered.add(toDto(s));
                     }
                 }
@@ -324,14 +342,21 @@ public class StudentService {
                 List<StudentDto> pageItems = filtered.subList(from, to);
                 boolean hasMore = reachedLimit || to < filtered.size();
                 long total = filtered.size() + (reachedLimit ? 1 : 0);
-                return new StudentListResponse(pageItems, total, safePage, safeSize, hasMore);
+                return new StudentListResponse(pageItems, total, safePage, safeSize, hasMore, null);
             } else {
-                long total = count(baseQuery);
-                ApiFuture<QuerySnapshot> fut = baseQuery
-                        .offset((safePage - 1) * safeSize)
-                        .limit(safeSize)
-                        .get();
-                List<QueryDocumentSnapshot> docs = fut.get().getDocuments();
+                // orden por ruta del documento: es el mismo orden implícito de antes, pero explícito para el cursor
+                Query sorted = baseQuery.orderBy(FieldPath.documentId());
+                PageCursor cursor = PageCursor.decode(cursorToken, "students");
+                long total = cursor != null ? -1 : count(baseQuery);
+                Query pageQuery = cursor != null
+                        ? cursor.applyTo(sorted, firestore)
+                        : sorted.offset((safePage - 1) * safeSize);
+                List<QueryDocumentSnapshot> docs = pageQuery.limit(safeSize + 1).get().get().getDocuments();
+                boolean hasMore = docs.size() > safeSize;
+                if (hasMore) {
+                    docs = docs.subList(0, safeSize);
+                }
+                String nextCursor = hasMore ? PageCursor.of(docs.get(docs.size() - 1), null) : null;
                 List<StudentDto> result = new ArrayList<>();
                 for (QueryDocumentSnapshot doc : docs) {
                     StudentDocument s = doc.toObject(StudentDocument.class);
@@ -339,8 +364,7 @@ public class StudentService {
                     s.setId(doc.getId());
                     result.add(toDto(s));
                 }
-                boolean hasMore = (long) safePage * safeSize < total;
-                return new StudentListResponse(result, total, safePage, safeSize, hasMore);
+                return new StudentListResponse(result, total, safePage, safeSize, hasMore, nextCursor);
             }
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
@@ -350,29 +374,64 @@ public class StudentService {
         }
     }
 
-    private boolean matchesQuery(StudentDocument s, String q) {
-        String fullName = String.join(" ",
-                s.getFirstName() == null ? "" : s.getFirstName(),
-                s.getLastNameFather() == null ? "" : s.getLastNameFather(),
-                s.getLastNameMother() == null ? "" : s.getLastNameMother()
-        );
-        String email = s.getEmail() == null ? "" : s.getEmail();
-        String course = s.getCourse() == null ? "" : s.getCourse();
-        String run = s.getRun() == null ? "" : s.getRun();
-        String commune = s.getCommune() == null ? "" : s.getCommune();
-        String address = s.getAddress() == null ? "" : s.getAddress();
-        String guardianName = String.join(" ",
-                s.getGuardianFirstName() == null ? "" : s.getGuardianFirstName(),
-                s.getGuardianLastName() == null ? "" : s.getGuardianLastName()
-        );
-        String guardiansConcat = "";
-        if (s.getGuardians() != null) {
-            guardiansConcat = s.getGuardians().stream()
-                    .map(g -> (g.getName() == null ? "" : g.getName()) + " " + (g.getEmail() == null ? "" : g.getEmail()))
-                    .collect(Collectors.joining(" "));
+    /**
+     * Búsqueda dentro de un colegio contra la nómina en memoria: el total es exacto y solo se arma
+     * el DTO de la página pedida. Sin cursor: la página sale del arreglo de coincidencias.
+     */
+    private StudentListResponse searchRoster(String schoolId, String year, String query, int page, int size) {
+        int safePage = Math.max(1, page);
+        int safeSize = Math.min(Math.max(1, size), 200);
+        try {
+            List<StudentDocument> matches = rosterIndex.search(schoolId, year, query);
+            int from = (int) Math.min((long) (safePage - 1) * safeSize, matches.size());
+            int to = Math.min(from + safeSize, matches.size());
+            List<StudentDto> pageItems = new ArrayList<>(to - from);
+            for (StudentDocument s : matches.subList(from, to)) {
+                pageItems.add(toDto(s));
+            }
+            return new StudentListResponse(pageItems, matches.size(), safePage, safeSize, to < matches.size(), null);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("Error listando estudiantes", e);
         }
+    }
 
-        return SearchUtils.matchesQuery(q, fullName, guardianName, guardiansConcat, email, course, run, commune, address);
+    private boolean matchesQuery(StudentDocument s, SearchQuery q) {
+        if (s.getSearchText() != null) {
+            return q.matchesNormalized(s.getSearchText());
+        }
+        return q.matches(searchFields(s));
+    }
+
+    /**
+     * Texto normalizado que se guarda en el alumno para no normalizar sus campos en cada búsqueda.
+     */
+    static String searchText(StudentDocument s) {
+        return SearchUtils.searchText(searchFields(s));
+    }
+
+    private static String[] searchFields(StudentDocument s) {
+        List<String> fields = new ArrayList<>(12);
+        fields.add(s.getFirstName());
+        fields.add(s.getLastNameFather());
+        fields.add(s.getLastNameMother());
+        fields.add(s.getGuardianFirstName());
+        fields.add(s.getGuardianLastName());
+        if (s.getGuardians() != null) {
+            for (GuardianContact g : s.getGuardians()) {
+                if (g == null) continue;
+                fields.add(g.getName());
+                fields.add(g.getEmail());
+            }
+        }
+        fields.add(s.getEmail());
+        fields.add(s.getCourse());
+        fields.add(s.getRun());
+        fields.add(s.getCommune());
+        fields.add(s.getAddress());
+        return fields.toArray(new String[0]);
     }
 
     private long count(Query q) throws ExecutionException, InterruptedException {
@@ -428,6 +487,56 @@ public class StudentService {
         }
     }
 
+    /**
+     * {@link #findAllByEmail} para varios correos: las consultas salen en lotes de 30 y en paralelo.
+     * Los correos sin alumnos no aparecen en el mapa.
+     */
+    public Map<String, List<StudentDocument>> findAllByEmails(Collection<String> emails) {
+        Set<String> normalized = new LinkedHashSet<>();
+        for (String email : emails) {
+            if (email != null && !email.isBlank()) normalized.add(email.trim().toLowerCase());
+        }
+        if (normalized.isEmpty()) return Map.of();
+        try {
+            BatchLoader<String, List<QueryDocumentSnapshot>> byEmail = BatchLoader.whereIn(firestore.collectionGroup("students"), "email");
+            BatchLoader<String, List<QueryDocumentSnapshot>> byGuardian = BatchLoader.arrayContains(firestore.collectionGroup("students"), "guardianEmails");
+            Map<String, ApiFuture<List<QueryDocumentSnapshot>>> own = new HashMap<>();
+            Map<String, ApiFuture<List<QueryDocumentSnapshot>>> guardian = new HashMap<>();
+            for (String email : normalized) {
+                own.put(email, byEmail.load(email));
+                guardian.put(email, byGuardian.load(email));
+            }
+            byEmail.dispatch();
+            byGuardian.dispatch();
+            Map<String, List<StudentDocument>> result = new HashMap<>();
+            for (String email : normalized) {
+                // mismo orden que findAllByEmail: primero por correo propio, luego como apoderado
+                Set<String> seenIds = new java.util.HashSet<>();
+                List<StudentDocument> students = new ArrayList<>();
+                for (List<QueryDocumentSnapshot> docs : java.util.Arrays.asList(own.get(email).get(), guardian.get(email).get())) {
+                    if (docs == null) continue;
+                    for (QueryDocumentSnapshot doc : docs) {
+                        StudentDocument s = doc.toObject(StudentDocument.class);
+                        if (s != null && seenIds.add(doc.getId())) {
+                            s.setId(doc.getId());
+                            students.add(s);
+                        }
+                    }
+                }
+                if (!students.isEmpty()) {
+                    result.put(email, students);
+                }
+            }
+            return result;
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("Error consultando estudiantes por {} correos: {}", normalized.size(), e.getMessage());
+            return Map.of();
+        }
+    }
+
     public java.util.Optional<StudentDocument> findByEmail(String email) {
         if (email == null || email.isBlank()) return java.util.Optional.empty();
         String normalized = email.trim().toLowerCase();
@@ -439,13 +548,8 @@ public class StudentService {
     public java.util.Optional<StudentDocument> findById(String id) {
         if (id == null || id.isBlank()) return java.util.Optional.empty();
         try {
-            QuerySnapshot snap = firestore.collectionGroup("students")
-                    .whereEqualTo("id", id)
-                    .limit(1)
-                    .get()
-                    .get();
-            if (snap.isEmpty()) return java.util.Optional.empty();
-            QueryDocumentSnapshot doc = snap.getDocuments().get(0);
+            var doc = entityLocator.find("students", id).orElse(null);
+            if (doc == null) return java.util.Optional.empty();
             StudentDocument s = doc.toObject(StudentDocument.class);
             if (s == null) return java.util.Optional.empty();
             s.setId(doc.getId());
@@ -459,6 +563,28 @@ public class StudentService {
         }
     }
 
+    /**
+     * {@link #findById} para varios ids en una sola pasada; los que no existen no aparecen en el mapa.
+     */
+    public Map<String, StudentDocument> findByIds(Collection<String> ids) {
+        try {
+            Map<String, StudentDocument> result = new HashMap<>();
+            for (Map.Entry<String, com.google.cloud.firestore.DocumentSnapshot> entry : entityLocator.findAll("students", ids).entrySet()) {
+                StudentDocument s = entry.getValue().toObject(StudentDocument.class);
+                if (s == null) continue;
+                s.setId(entry.getValue().getId());
+                result.put(entry.getKey(), s);
+            }
+            return result;
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            log.warn("Error consultando {} estudiantes por id: {}", ids.size(), e.getMessage());
+            return Map.of();
+        }
+    }
+
     private String defaultValue(String value, String fallback) {
         return value == null ? fallback : value.trim();
     }
@@ -475,29 +601,13 @@ public class StudentService {
                 q = q.whereEqualTo("year", year);
             }
             List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
-            List<String> emails = new ArrayList<>();
+            Set<String> emails = new LinkedHashSet<>();
             for (QueryDocumentSnapshot doc : docs) {
                 StudentDocument s = doc.toObject(StudentDocument.class);
                 if (s == null) continue;
-                List<String> guardianEmails = s.getGuardianEmails() == null ? java.util.Collections.emptyList() : s.getGuardianEmails();
-                guardianEmails.stream()
-                        .filter(e -> e != null && !e.isBlank())
-                        .map(String::trim)
-                        .map(String::toLowerCase)
-                        .forEach(emails::add);
-                if (s.getGuardians() != null) {
-                    for (com.notiflow.dto.GuardianContact g : s.getGuardians()) {
-                        if (g != null && g.getEmail() != null && !g.getEmail().isBlank()) {
-                            emails.add(g.getEmail().trim().toLowerCase());
-                        }
-                    }
-                }
+                emails.addAll(guardianEmails(s));
             }
-            return emails.stream()
-                    .filter(e -> e != null && !e.isBlank())
-                    .map(String::toLowerCase)
-                    .distinct()
-                    .toList();
+            return List.copyOf(emails);
         } catch (InterruptedException | ExecutionException e) {
             if (e instanceof InterruptedException) {
                 Thread.currentThread().interrupt();
@@ -506,6 +616,43 @@ public class StudentService {
         }
     }
 
+    /**
+     * Correos de apoderados del alumno (guardianEmails y guardians), en minúscula y sin repetir.
+     */
+    static Set<String> guardianEmails(StudentDocument s) {
+        Set<String> emails = new LinkedHashSet<>();
+        if (s.getGuardianEmails() != null) {
+            for (String e : s.getGuardianEmails()) {
+                if (e != null && !e.isBlank()) {
+                    emails.add(e.trim().toLowerCase());
+                }
+            }
+        }
+        if (s.getGuardians() != null) {
+            for (GuardianContact g : s.getGuardians()) {
+                if (g != null && g.getEmail() != null && !g.getEmail().isBlank()) {
+                    emails.add(g.getEmail().trim().toLowerCase());
+                }
+            }
+        }
+        return emails;
+    }
+
+    public long countBySchoolAndYear(String schoolId, String year) {
+        try {
+            Query q = tenantStudents(schoolId);
+            if (year != null && !year.isBlank()) {
+                q = q.whereEqualTo("year", year);
+            }
+            return count(q);
+        } catch (InterruptedException | ExecutionException e) {
+            if (e instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            throw new RuntimeException("Error contando estudiantes", e);
+        }
+    }
+
     private void applyGuardians(StudentDocument s, StudentRequest request, StudentDocument existing) {
         List<GuardianContact> guardians = request.guardians();
         List<GuardianContact> result = new ArrayList<>();
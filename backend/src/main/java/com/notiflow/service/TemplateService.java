@@ -2,6 +2,7 @@ package com.notiflow.service;
 
 import com.google.api.core.ApiFuture;
 import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.QueryDocumentSnapshot;
 import com.google.cloud.firestore.QuerySnapshot;
@@ -20,9 +21,11 @@ import java.util.stream.Collectors;
 public class TemplateService {
 
     private final Firestore firestore;
+    private final EntityLocator entityLocator;
 
-    public TemplateService(Firestore firestore) {
+    public TemplateService(Firestore firestore, EntityLocator entityLocator) {
         this.firestore = firestore;
+        this.entityLocator = entityLocator;
     }
 
     public List<TemplateDto> listByOwner(String ownerEmail, String schoolId) {
@@ -60,6 +63,7 @@ public class TemplateService {
             doc.setUpdatedAt(now);
             DocumentReference ref = tenantTemplates(doc.getSchoolId()).document(doc.getId());
             ref.set(doc).get();
+            entityLocator.remember(ref);
             return new TemplateDto(doc.getId(), doc.getName(), doc.getContent(), doc.getCreatedAt(), doc.getUpdatedAt());
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -69,11 +73,12 @@ public class TemplateService {
 
     public TemplateDto update(String id, TemplateRequest request, String ownerEmail, String schoolId) {
         try {
-            DocumentReference ref = findTemplateRef(id, ownerEmail, schoolId);
-            if (ref == null) {
+            DocumentSnapshot snap = findTemplate(id, ownerEmail, schoolId);
+            if (snap == null) {
                 throw new org.springframework.web.server.ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Plantilla no encontrada");
             }
-            TemplateDocument existing = ref.get().get().toObject(TemplateDocument.class);
+            DocumentReference ref = snap.getReference();
+            TemplateDocument existing = snap.toObject(TemplateDocument.class);
             if (existing == null) {
                 throw new org.springframework.web.server.ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Plantilla no encontrada");
             }
@@ -90,28 +95,28 @@ public class TemplateService {
 
     public void delete(String id, String ownerEmail, String schoolId) {
         try {
-            DocumentReference ref = findTemplateRef(id, ownerEmail, schoolId);
-            if (ref == null) {
+            DocumentSnapshot snap = findTemplate(id, ownerEmail, schoolId);
+            if (snap == null) {
                 throw new org.springframework.web.server.ResponseStatusException(org.springframework.http.HttpStatus.NOT_FOUND, "Plantilla no encontrada");
             }
-            ref.delete().get();
+            snap.getReference().delete().get();
+            entityLocator.forget("templates", id);
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
             throw new RuntimeException("Error eliminando plantilla", e);
         }
     }
 
-    private DocumentReference findTemplateRef(String id, String ownerEmail, String schoolId) throws ExecutionException, InterruptedException {
-        com.google.cloud.firestore.Query q = firestore.collectionGroup("templates")
-                .whereEqualTo("id", id)
-                .whereEqualTo("ownerEmail", ownerEmail.toLowerCase())
-                .limit(1);
-        if (schoolId != null && !schoolId.isBlank()) {
-            q = q.whereEqualTo("schoolId", schoolId);
-        }
-        List<QueryDocumentSnapshot> docs = q.get().get().getDocuments();
-        if (docs.isEmpty()) return null;
-        return docs.get(0).getReference();
+    /**
+     * Ubica la plantilla por id y valida dueño y colegio sobre el documento leído; una plantilla
+     * ajena se trata igual que una inexistente.
+     */
+    private DocumentSnapshot findTemplate(String id, String ownerEmail, String schoolId) throws ExecutionException, InterruptedException {
+        DocumentSnapshot snap = entityLocator.find("templates", id).orElse(null);
+        if (snap == null) return null;
+        if (!ownerEmail.toLowerCase().equals(snap.getString("ownerEmail"))) return null;
+        if (schoolId != null && !schoolId.isBlank() && !schoolId.equals(snap.getString("schoolId"))) return null;
+        return snap;
     }
 
     private com.google.cloud.firestore.CollectionReference tenantTemplates(String tenantId) {
@@ -11,11 +11,15 @@ import com.notiflow.dto.UserUpdateRequest;
 import com.notiflow.model.UserDocument;
 import com.notiflow.model.UserRole;
 import com.notiflow.service.PasswordResetService.PasswordResetResult;
+import com.notiflow.util.BatchLoader;
 import org.springframework.context.annotation.Lazy;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
@@ -28,12 +32,18 @@ public class UserService {
     private final PasswordEncoder passwordEncoder;
     private final PasswordResetService passwordResetService;
     private final EmailService emailService;
+    private final EntityLocator entityLocator;
+    private final RecipientRoster recipientRoster;
+    private final GroupService groupService;
 
-    public UserService(Firestore firestore, PasswordEncoder passwordEncoder, @Lazy PasswordResetService passwordResetService, EmailService emailService) {
+    public UserService(Firestore firestore, PasswordEncoder passwordEncoder, @Lazy PasswordResetService passwordResetService, EmailService emailService, EntityLocator entityLocator, RecipientRoster recipientRoster, @Lazy GroupService groupService) {
         this.firestore = firestore;
         this.passwordEncoder = passwordEncoder;
         this.passwordResetService = passwordResetService;
         this.emailService = emailService;
+        this.entityLocator = entityLocator;
+        this.recipientRoster = recipientRoster;
+        this.groupService = groupService;
     }
 
     public Optional<UserDocument> findByEmail(String email) {
@@ -57,6 +67,34 @@ public class UserService {
         }
     }
 
+    /**
+     * {@link #findByEmail} para varios correos: lotes whereIn de 30 lanzados en paralelo.
+     * Los correos sin usuario no aparecen en el mapa.
+     */
+    public Map<String, UserDocument> findByEmails(Collection<String> emails) {
+        try {
+            List<String> normalized = emails.stream()
+                    .filter(e -> e != null && !e.isBlank())
+                    .map(e -> e.trim().toLowerCase())
+                    .distinct()
+                    .toList();
+            Map<String, UserDocument> result = new HashMap<>();
+            if (normalized.isEmpty()) return result;
+            var found = BatchLoader.whereIn(firestore.collectionGroup("users"), "email").loadAll(normalized);
+            for (Map.Entry<String, List<QueryDocumentSnapshot>> entry : found.entrySet()) {
+                QueryDocumentSnapshot doc = entry.getValue().get(0);
+                UserDocument user = doc.toObject(UserDocument.class);
+                if (user == null) continue;
+                user.setId(doc.getId());
+                result.put(entry.getKey(), user);
+            }
+            return result;
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error consultando usuarios", e);
+        }
+    }
+
     public UserDocument upsert(UserDocument user) {
         try {
             String docId = user.getId() != null ? user.getId() : UUID.randomUUID().toString();
@@ -64,6 +102,8 @@ public class UserService {
             String tenant = user.getSchoolId() == null || user.getSchoolId().isBlank() ? "global" : user.getSchoolId();
             DocumentReference ref = tenantUsers(tenant).document(docId);
             ref.set(user).get();
+            entityLocator.remember(ref);
+            recipientRoster.invalidateUsers(tenant);
             return user;
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -73,17 +113,12 @@ public class UserService {
 
     public void deleteById(String id) {
         try {
-            QueryDocumentSnapshot snap = firestore.collectionGroup("users")
-                    .whereEqualTo("id", id)
-                    .limit(1)
-                    .get()
-                    .get()
-                    .getDocuments()
-                    .stream()
-                    .findFirst()
-                    .orElse(null);
+            var snap = entityLocator.find("users", id).orElse(null);
             if (snap != null) {
                 snap.getReference().delete().get();
+                entityLocator.forget("users", id);
+                recipientRoster.invalidateUsers(snap.getString("schoolId"));
+                groupService.onUserChanged(snap.toObject(UserDocument.class), null);
             }
         } catch (InterruptedException | ExecutionException e) {
             Thread.currentThread().interrupt();
@@ -141,6 +176,7 @@ public class UserService {
         doc.setSchoolName(request.schoolName());
         doc.setRut(request.rut());
         UserDocument saved = upsert(doc);
+        groupService.onUserChanged(null, saved);
         // Enviar correo de bienvenida con link de reseteo
         try {
             if (emailService.isEnabled()) {
@@ -164,20 +200,15 @@ public class UserService {
 
     public UserDto update(String id, UserUpdateRequest request) {
         try {
-            QueryDocumentSnapshot snap = firestore.collectionGroup("users")
-                    .whereEqualTo("id", id)
-                    .limit(1)
-                    .get()
-                    .get()
-                    .getDocuments()
-                    .stream()
-                    .findFirst()
+            var snap = entityLocator.find("users", id)
                     .orElseThrow(() -> new RuntimeException("Usuario no encontrado"));
             UserDocument doc = snap.toObject(UserDocument.class);
             if (doc == null) {
                 throw new RuntimeException("Usuario no encontrado");
             }
             doc.setId(id);
+            UserDocument previous = snap.toObject(UserDocument.class);
+            String previousSchool = doc.getSchoolId();
             doc.setName(request.name());
             doc.setEmail(request.email().toLowerCase());
             doc.setRole(request.role());
@@ -185,6 +216,10 @@ public class UserService {
             doc.setSchoolName(request.schoolName());
             doc.setRut(request.rut());
             upsert(doc);
+            if (previousSchool != null && !previousSchool.equals(doc.getSchoolId())) {
+                recipientRoster.invalidateUsers(previousSchool);
+            }
+            groupService.onUserChanged(previous, doc);
             return new UserDto(
                     doc.getId(),
                     doc.getName(),
@@ -205,6 +240,18 @@ public class UserService {
         return firestore.collection("tenants").document(safeTenant).collection("users");
     }
 
+    public long countBySchool(String schoolId) {
+        try {
+            com.google.cloud.firestore.Query q = (schoolId == null || schoolId.isBlank())
+                    ? firestore.collectionGroup("users")
+                    : firestore.collectionGroup("users").whereEqualTo("schoolId", schoolId);
+            return q.count().get().get().getCount();
+        } catch (InterruptedException | ExecutionException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Error contando usuarios", e);
+        }
+    }
+
     public List<String> collectEmailsBySchool(String schoolId) {
         try {
             com.google.cloud.firestore.Query q = (schoolId == null || schoolId.isBlank())
@@ -0,0 +1,178 @@
+package com.notiflow.util;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutureCallback;
+import com.google.api.core.ApiFutures;
+import com.google.api.core.SettableApiFuture;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.function.Function;
+
+/**
+ * Cargador por lotes al estilo DataLoader: las claves pedidas con {@link #load} se acumulan sin
+ * consultar y {@link #dispatch} las deduplica, las parte en lotes de {@code maxBatch} y lanza todos
+ * los lotes a la vez en vez de uno tras otro. Cada clave se consulta una sola vez por instancia, así
+ * que se crea uno por operación y no se comparte entre requests.
+ */
+public final class BatchLoader<K, V> {
+
+    // límite de valores de Firestore para in / array-contains-any
+    public static final int MAX_IN_VALUES = 30;
+    private static final int MAX_GET_ALL = 100;
+
+    private final int maxBatch;
+    private final Function<List<K>, ApiFuture<Map<K, V>>> fetch;
+    private final Map<K, SettableApiFuture<V>> futures = new HashMap<>();
+    private final List<K> pending = new ArrayList<>();
+
+    /**
+     * {@code fetch} recibe un lote de claves distintas y resuelve el valor de cada una; las claves
+     * ausentes del mapa resuelven null.
+     */
+    public BatchLoader(int maxBatch, Function<List<K>, ApiFuture<Map<K, V>>> fetch) {
+        this.maxBatch = Math.max(1, maxBatch);
+        this.fetch = fetch;
+    }
+
+    /**
+     * Documentos cuyo {@code field} es igual a la clave (whereIn sobre {@code base}).
+     */
+    public static BatchLoader<String, List<QueryDocumentSnapshot>> whereIn(Query base, String field) {
+        return new BatchLoader<>(MAX_IN_VALUES, keys -> ApiFutures.transform(
+                base.whereIn(field, new ArrayList<>(keys)).get(),
+                snap -> {
+                    Map<String, List<QueryDocumentSnapshot>> byKey = new HashMap<>();
+                    for (QueryDocumentSnapshot doc : snap.getDocuments()) {
+                        String value = doc.getString(field);
+                        if (value != null) {
+                            byKey.computeIfAbsent(value, k -> new ArrayList<>()).add(doc);
+                        }
+                    }
+                    return byKey;
+                },
+                Runnable::run));
+    }
+
+    /**
+     * Documentos cuyo arreglo {@code field} contiene la clave (whereArrayContainsAny sobre {@code base}).
+     */
+    public static BatchLoader<String, List<QueryDocumentSnapshot>> arrayContains(Query base, String field) {
+        return new BatchLoader<>(MAX_IN_VALUES, keys -> ApiFutures.transform(
+                base.whereArrayContainsAny(field, new ArrayList<>(keys)).get(),
+                snap -> {
+                    Map<String, List<QueryDocumentSnapshot>> byKey = new HashMap<>();
+                    for (QueryDocumentSnapshot doc : snap.getDocuments()) {
+                        Object values = doc.get(field);
+                        if (!(values instanceof List<?> list)) continue;
+                        for (String key : keys) {
+                            if (list.contains(key)) {
+                                byKey.computeIfAbsent(key, k -> new ArrayList<>()).add(doc);
+                            }
+                        }
+                    }
+                    return byKey;
+                },
+                Runnable::run));
+    }
+
+    /**
+     * Documentos por ruta con un solo getAll por lote; los que no existen resuelven null.
+     */
+    public static BatchLoader<String, DocumentSnapshot> documents(Firestore firestore) {
+        return new BatchLoader<>(MAX_GET_ALL, paths -> {
+            DocumentReference[] refs = paths.stream().map(firestore::document).toArray(DocumentReference[]::new);
+            return ApiFutures.transform(firestore.getAll(refs), snaps -> {
+                Map<String, DocumentSnapshot> byPath = new HashMap<>();
+                for (DocumentSnapshot snap : snaps) {
+                    if (snap.exists()) {
+                        byPath.put(snap.getReference().getPath(), snap);
+                    }
+                }
+                return byPath;
+            }, Runnable::run);
+        });
+    }
+
+    public synchronized ApiFuture<V> load(K key) {
+        SettableApiFuture<V> future = futures.get(key);
+        if (future == null) {
+            future = SettableApiFuture.create();
+            futures.put(key, future);
+            pending.add(key);
+        }
+        return future;
+    }
+
+    /**
+     * Lanza todas las claves pendientes; no espera las respuestas.
+     */
+    public void dispatch() {
+        List<K> keys;
+        List<SettableApiFuture<V>> targets = new ArrayList<>();
+        synchronized (this) {
+            if (pending.isEmpty()) return;
+            keys = new ArrayList<>(pending);
+            pending.clear();
+            for (K key : keys) {
+                targets.add(futures.get(key));
+            }
+        }
+        for (int i = 0; i < keys.size(); i += maxBatch) {
+            int end = Math.min(i + maxBatch, keys.size());
+            List<K> chunk = keys.subList(i, end);
+            List<SettableApiFuture<V>> chunkTargets = targets.subList(i, end);
+            ApiFuture<Map<K, V>> result;
+            try {
+                result = fetch.apply(chunk);
+            } catch (RuntimeException e) {
+                chunkTargets.forEach(f -> f.setException(e));
+                continue;
+            }
+            ApiFutures.addCallback(result, new ApiFutureCallback<>() {
+                @Override
+                public void onFailure(Throwable t) {
+                    chunkTargets.forEach(f -> f.setException(t));
+                }
+
+                @Override
+                public void onSuccess(Map<K, V> values) {
+                    for (int j = 0; j < chunk.size(); j++) {
+                        chunkTargets.get(j).set(values == null ? null : values.get(chunk.get(j)));
+                    }
+                }
+            }, Runnable::run);
+        }
+    }
+
+    /**
+     * Pide todas las claves, despacha y espera. Las claves sin valor no aparecen en el resultado.
+     */
+    public Map<K, V> loadAll(Collection<K> keys) throws InterruptedException, ExecutionException {
+        Map<K, ApiFuture<V>> requested = new LinkedHashMap<>();
+        for (K key : keys) {
+            if (key != null && !requested.containsKey(key)) {
+                requested.put(key, load(key));
+            }
+        }
+        dispatch();
+        Map<K, V> result = new LinkedHashMap<>();
+        for (Map.Entry<K, ApiFuture<V>> entry : requested.entrySet()) {
+            V value = entry.getValue().get();
+            if (value != null) {
+                result.put(entry.getKey(), value);
+            }
+        }
+        return result;
+    }
+}
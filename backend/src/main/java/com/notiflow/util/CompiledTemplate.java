@@ -0,0 +1,78 @@
+package com.notiflow.util;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * HTML armado una vez por mensaje con marcadores por destinatario. Los proveedores masivos reciben
+ * {@link #source()} y sustituyen los marcadores por su cuenta; {@link #render(Map)} los reemplaza
+ * localmente para los envíos uno a uno (SES con adjuntos) partiendo del texto ya cortado en tramos,
+ * sin volver a buscar los marcadores en todo el HTML por cada destinatario.
+ */
+public final class CompiledTemplate {
+
+    private final String source;
+    // segments.length == slots.length + 1; el marcador i va entre segments[i] y segments[i + 1]
+    private final String[] segments;
+    private final String[] slots;
+    private final int fixedLength;
+
+    private CompiledTemplate(String source, String[] segments, String[] slots) {
+        this.source = source;
+        this.segments = segments;
+        this.slots = slots;
+        int total = 0;
+        for (String segment : segments) {
+            total += segment.length();
+        }
+        this.fixedLength = total;
+    }
+
+    public static CompiledTemplate compile(String source, String... slotNames) {
+        String text = source == null ? "" : source;
+        List<String> segments = new ArrayList<>();
+        List<String> slots = new ArrayList<>();
+        int pos = 0;
+        while (true) {
+            int next = -1;
+            String found = null;
+            for (String slot : slotNames) {
+                if (slot == null || slot.isEmpty()) continue;
+                int idx = text.indexOf(slot, pos);
+                if (idx >= 0 && (next < 0 || idx < next)) {
+                    next = idx;
+                    found = slot;
+                }
+            }
+            if (found == null) break;
+            segments.add(text.substring(pos, next));
+            slots.add(found);
+            pos = next + found.length();
+        }
+        segments.add(text.substring(pos));
+        return new CompiledTemplate(text, segments.toArray(new String[0]), slots.toArray(new String[0]));
+    }
+
+    /**
+     * Texto original con los marcadores intactos (para proveedores que sustituyen por su cuenta).
+     */
+    public String source() {
+        return source;
+    }
+
+    /**
+     * HTML de un destinatario; un marcador sin valor queda vacío.
+     */
+    public String render(Map<String, String> values) {
+        StringBuilder out = new StringBuilder(fixedLength + slots.length * 64);
+        for (int i = 0; i < segments.length; i++) {
+            out.append(segments[i]);
+            if (i < slots.length) {
+                String value = values == null ? null : values.get(slots[i]);
+                if (value != null) out.append(value);
+            }
+        }
+        return out.toString();
+    }
+}
@@ -0,0 +1,74 @@
+package com.notiflow.util;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+/**
+ * Cursor opaco para paginar con startAfter en vez de offset: el valor del campo de orden (si hay)
+ * más la ruta del documento, que desempata. Firestore cobra cada documento saltado por offset, con
+ * el cursor la lectura cuesta solo el tamaño de la página.
+ * La consulta debe ordenar por el campo y luego por {@link FieldPath#documentId()} en la misma dirección.
+ */
+public record PageCursor(Timestamp sortValue, String path) {
+
+    private static final String VERSION = "v1";
+
+    /**
+     * Cursor que apunta a {@code doc}. Con {@code sortField} null solo se usa la ruta.
+     */
+    public static String of(DocumentSnapshot doc, String sortField) {
+        if (doc == null) return null;
+        String sort = "";
+        if (sortField != null) {
+            Timestamp value = doc.getTimestamp(sortField);
+            if (value == null) return null;
+            sort = String.valueOf(value.getSeconds() * 1_000_000L + value.getNanos() / 1_000);
+        }
+        String raw = VERSION + "|" + sort + "|" + doc.getReference().getPath();
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * null si no viene cursor. Solo acepta rutas tenants/{colegio}/.../{collection}/{id}.
+     */
+    public static PageCursor decode(String token, String collection) {
+        if (token == null || token.isBlank()) return null;
+        try {
+            String raw = new String(Base64.getUrlDecoder().decode(token.trim()), StandardCharsets.UTF_8);
+            String[] parts = raw.split("\\|", 3);
+            if (parts.length != 3 || !VERSION.equals(parts[0])) {
+                throw new IllegalArgumentException("versión");
+            }
+            String path = parts[2];
+            String[] segments = path.split("/", -1);
+            if (!path.startsWith("tenants/") || segments.length < 4 || segments.length % 2 != 0
+                    || !collection.equals(segments[segments.length - 2])) {
+                throw new IllegalArgumentException("ruta");
+            }
+            for (String segment : segments) {
+                // Firestore no acepta ids vacíos, "." ni ".."; sin esto el error saldría al consultar
+                if (segment.isEmpty() || segment.equals(".") || segment.equals("..")) {
+                    throw new IllegalArgumentException("ruta");
+                }
+            }
+            Timestamp sortValue = parts[1].isEmpty() ? null : Timestamp.ofTimeMicroseconds(Long.parseLong(parts[1]));
+            return new PageCursor(sortValue, path);
+        } catch (IllegalArgumentException ex) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Cursor inválido");
+        }
+    }
+
+    public Query applyTo(Query sorted, Firestore firestore) {
+        return sortValue != null
+                ? sorted.startAfter(sortValue, firestore.document(path))
+                : sorted.startAfter(firestore.document(path));
+    }
+}
@@ -0,0 +1,108 @@
+package com.notiflow.util;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Trie de caracteres que asocia palabras a ids enteros. {@link #collect} marca en un BitSet los ids
+ * de todas las palabras que empiezan con un prefijo, recorriendo solo ese subárbol.
+ * No es thread-safe: el llamador sincroniza.
+ */
+public final class PrefixTrie {
+
+    private static final char[] NO_KEYS = new char[0];
+    private static final Node[] NO_CHILDREN = new Node[0];
+    private static final int[] NO_IDS = new int[0];
+
+    private final Node root = new Node();
+
+    public void add(String word, int id) {
+        if (word == null || word.isEmpty()) return;
+        Node node = root;
+        for (int i = 0; i < word.length(); i++) {
+            node = node.childOrCreate(word.charAt(i));
+        }
+        node.addId(id);
+    }
+
+    public void remove(String word, int id) {
+        if (word == null || word.isEmpty()) return;
+        Node node = find(word);
+        if (node != null) {
+            node.removeId(id);
+        }
+    }
+
+    public void collect(String prefix, BitSet into) {
+        Node node = find(prefix);
+        if (node != null) {
+            collect(node, into);
+        }
+    }
+
+    private Node find(String prefix) {
+        Node node = root;
+        for (int i = 0; i < prefix.length() && node != null; i++) {
+            node = node.child(prefix.charAt(i));
+        }
+        return node;
+    }
+
+    private static void collect(Node node, BitSet into) {
+        for (int i = 0; i < node.idCount; i++) {
+            into.set(node.ids[i]);
+        }
+        for (int i = 0; i < node.keys.length; i++) {
+            collect(node.children[i], into);
+        }
+    }
+
+    private static final class Node {
+        // hijos ordenados por carácter, búsqueda binaria
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        private int[] ids = NO_IDS;
+        private int idCount;
+
+        Node child(char c) {
+            int idx = Arrays.binarySearch(keys, c);
+            return idx >= 0 ? children[idx] : null;
+        }
+
+        Node childOrCreate(char c) {
+            int idx = Arrays.binarySearch(keys, c);
+            if (idx >= 0) return children[idx];
+            int at = -idx - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, at);
+            System.arraycopy(children, 0, newChildren, 0, at);
+            newKeys[at] = c;
+            newChildren[at] = new Node();
+            System.arraycopy(keys, at, newKeys, at + 1, keys.length - at);
+            System.arraycopy(children, at, newChildren, at + 1, children.length - at);
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[at];
+        }
+
+        void addId(int id) {
+            for (int i = 0; i < idCount; i++) {
+                if (ids[i] == id) return;
+            }
+            if (idCount == ids.length) {
+                ids = Arrays.copyOf(ids, Math.max(2, idCount * 2));
+            }
+            ids[idCount++] = id;
+        }
+
+        void removeId(int id) {
+            for (int i = 0; i < idCount; i++) {
+                if (ids[i] == id) {
+                    ids[i] = ids[--idCount];
+                    return;
+                }
+            }
+        }
+    }
+}
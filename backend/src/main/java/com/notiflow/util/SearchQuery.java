@@ -0,0 +1,114 @@
+package com.notiflow.util;
+
+import java.util.Arrays;
+
+/**
+ * Búsqueda compilada: los términos se normalizan una sola vez y cada documento se revisa campo por
+ * campo, plegando tildes y mayúsculas carácter a carácter sin armar strings intermedios. Un
+ * documento calza si cada término aparece dentro de alguno de sus campos (mismo criterio que
+ * {@link SearchUtils#matchesQuery}). Inmutable, se puede compartir entre hilos.
+ */
+public final class SearchQuery {
+
+    private static final SearchQuery EMPTY = new SearchQuery(new String[0]);
+
+    private final String[] terms;
+    private final char[][] termChars;
+    // tabla de fallos KMP por término, para recorrer cada campo una sola vez por término
+    private final int[][] failures;
+
+    private SearchQuery(String[] terms) {
+        this.terms = terms;
+        this.termChars = new char[terms.length][];
+        this.failures = new int[terms.length][];
+        for (int i = 0; i < terms.length; i++) {
+            termChars[i] = terms[i].toCharArray();
+            failures[i] = failure(termChars[i]);
+        }
+    }
+
+    public static SearchQuery of(String query) {
+        String normalized = SearchUtils.normalize(query);
+        if (normalized.isEmpty()) return EMPTY;
+        String[] parts = normalized.split(" ");
+        int count = 0;
+        for (String part : parts) {
+            if (!part.isEmpty()) parts[count++] = part;
+        }
+        return new SearchQuery(Arrays.copyOf(parts, count));
+    }
+
+    public boolean isEmpty() {
+        return terms.length == 0;
+    }
+
+    /**
+     * Compara contra los campos tal como vienen del documento (sin normalizar).
+     */
+    public boolean matches(String... fields) {
+        if (terms.length == 0) return true;
+        for (int t = 0; t < terms.length; t++) {
+            boolean found = false;
+            for (String field : fields) {
+                if (field != null && contains(field, termChars[t], failures[t])) {
+                    found = true;
+                    break;
+                }
+            }
+            if (!found) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Compara contra un texto ya normalizado con {@link SearchUtils#searchText}: basta un indexOf por término.
+     */
+    public boolean matchesNormalized(String searchText) {
+        if (terms.length == 0) return true;
+        if (searchText == null || searchText.isEmpty()) return false;
+        for (String term : terms) {
+            if (searchText.indexOf(term) < 0) return false;
+        }
+        return true;
+    }
+
+    private static boolean contains(String field, char[] term, int[] failure) {
+        int matched = 0;
+        for (int i = 0; i < field.length(); i++) {
+            char c = field.charAt(i);
+            char folded = SearchUtils.foldChar(c);
+            if (folded == SearchUtils.FOLD_SKIP) continue;
+            if (folded == SearchUtils.FOLD_EXPAND) {
+                String expansion = SearchUtils.foldExpansion(c);
+                for (int j = 0; j < expansion.length(); j++) {
+                    matched = step(term, failure, matched, expansion.charAt(j));
+                    if (matched == term.length) return true;
+                }
+                continue;
+            }
+            matched = step(term, failure, matched, folded);
+            if (matched == term.length) return true;
+        }
+        return false;
+    }
+
+    private static int step(char[] term, int[] failure, int matched, char c) {
+        while (matched > 0 && term[matched] != c) {
+            matched = failure[matched - 1];
+        }
+        return term[matched] == c ? matched + 1 : matched;
+    }
+
+    private static int[] failure(char[] term) {
+        int[] failure = new int[term.length];
+        int k = 0;
+        for (int i = 1; i < term.length; i++) {
+            while (k > 0 && term[i] != term[k]) {
+                k = failure[k - 1];
+            }
+            if (term[i] == term[k]) k++;
+            failure[i] = k;
+        }
+        return failure;
+    }
+}
@@ -1,40 +1,136 @@
 package com.notiflow.util;
 
 import java.text.Normalizer;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Locale;
-import java.util.Objects;
-import java.util.stream.Collectors;
+import java.util.Set;
+import java.util.regex.Pattern;
 
 public final class SearchUtils {
 
+    public static final int MIN_PREFIX = 2;
+    public static final int MAX_PREFIX = 12;
+    private static final Pattern WORD_SPLIT = Pattern.compile("[^\\p{L}\\p{N}]+");
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+    private static final Pattern SPACES = Pattern.compile("\\s+");
+
+    // plegado carácter a carácter (NFD sin marcas, minúsculas) precalculado para latín, griego y
+    // cirílico; más allá solo minúsculas y se omiten las marcas combinantes
+    static final char FOLD_SKIP = '\uFFFF';
+    static final char FOLD_EXPAND = '\uFFFE';
+    private static final int FOLD_TABLE_SIZE = 0x1F00;
+    private static final char[] FOLD = new char[FOLD_TABLE_SIZE];
+    private static final String[] FOLD_EXPANSIONS = new String[FOLD_TABLE_SIZE];
+
+    static {
+        for (int c = 0; c < FOLD_TABLE_SIZE; c++) {
+            String folded = fold(String.valueOf((char) c));
+            if (folded.isEmpty()) {
+                FOLD[c] = FOLD_SKIP;
+            } else if (folded.length() == 1) {
+                FOLD[c] = folded.charAt(0);
+            } else {
+                FOLD[c] = FOLD_EXPAND;
+                FOLD_EXPANSIONS[c] = folded;
+            }
+        }
+    }
+
     private SearchUtils() {
     }
 
+    /**
+     * Atajo para una sola comparación; en ciclos conviene compilar una vez con {@link SearchQuery#of}.
+     */
     public static boolean matchesQuery(String query, String... fields) {
-        String normalizedQuery = normalize(query);
-        if (normalizedQuery.isBlank()) {
-            return true;
-        }
-        String haystack = normalize(Arrays.stream(fields)
-                .filter(Objects::nonNull)
-                .collect(Collectors.joining(" ")));
-        if (haystack.isBlank()) {
-            return false;
-        }
-        return Arrays.stream(normalizedQuery.split(" "))
-                .filter(term -> !term.isBlank())
-                .allMatch(haystack::contains);
+        return SearchQuery.of(query).matches(fields);
     }
 
     public static String normalize(String value) {
         if (value == null) {
             return "";
         }
-        String normalized = Normalizer.normalize(value, Normalizer.Form.NFD)
-                .replaceAll("\\p{M}+", "")
-                .toLowerCase(Locale.ROOT)
-                .trim();
-        return normalized.replaceAll("\\s+", " ");
+        return SPACES.matcher(fold(value).trim()).replaceAll(" ");
+    }
+
+    /**
+     * Texto de búsqueda para guardar en el documento: los campos normalizados separados por espacio,
+     * para compararlo luego con {@link SearchQuery#matchesNormalized}.
+     */
+    public static String searchText(String... fields) {
+        StringBuilder sb = new StringBuilder();
+        for (String field : fields) {
+            String normalized = normalize(field);
+            if (normalized.isEmpty()) continue;
+            if (sb.length() > 0) sb.append(' ');
+            sb.append(normalized);
+        }
+        return sb.toString();
+    }
+
+    static char foldChar(char c) {
+        if (c < FOLD_TABLE_SIZE) return FOLD[c];
+        int type = Character.getType(c);
+        if (type == Character.NON_SPACING_MARK || type == Character.ENCLOSING_MARK || type == Character.COMBINING_SPACING_MARK) {
+            return FOLD_SKIP;
+        }
+        char lower = Character.toLowerCase(c);
+        return lower == FOLD_EXPAND ? FOLD_SKIP : lower;
+    }
+
+    static String foldExpansion(char c) {
+        return FOLD_EXPANSIONS[c];
+    }
+
+    private static String fold(String value) {
+        String decomposed = Normalizer.normalize(value, Normalizer.Form.NFD);
+        return MARKS.matcher(decomposed).replaceAll("").toLowerCase(Locale.ROOT);
+    }
+
+    /**
+     * Tokens para un índice de búsqueda: cada palabra normalizada aporta sus prefijos de
+     * {@link #MIN_PREFIX} a {@link #MAX_PREFIX} caracteres. Los campos se recorren en orden y se
+     * corta al llegar a {@code maxTokens}, así que los primeros campos tienen prioridad.
+     */
+    public static List<String> indexTokens(int maxTokens, String... fields) {
+        Set<String> tokens = new LinkedHashSet<>();
+        for (String field : fields) {
+            for (String word : words(field)) {
+                int limit = Math.min(word.length(), MAX_PREFIX);
+                for (int len = MIN_PREFIX; len <= limit; len++) {
+                    if (tokens.size() >= maxTokens) {
+                        return new ArrayList<>(tokens);
+                    }
+                    tokens.add(word.substring(0, len));
+                }
+            }
+        }
+        return new ArrayList<>(tokens);
+    }
+
+    /**
+     * Término de la búsqueda que conviene consultar en el índice: la palabra más larga (la más
+     * selectiva), recortada a {@link #MAX_PREFIX}. null si ninguna alcanza {@link #MIN_PREFIX}.
+     */
+    public static String indexTerm(String query) {
+        String best = null;
+        for (String word : words(query)) {
+            if (word.length() >= MIN_PREFIX && (best == null || word.length() > best.length())) {
+                best = word;
+            }
+        }
+        if (best == null) return null;
+        return best.length() > MAX_PREFIX ? best.substring(0, MAX_PREFIX) : best;
+    }
+
+    private static List<String> words(String value) {
+        String normalized = normalize(value);
+        if (normalized.isEmpty()) return List.of();
+        return Arrays.stream(WORD_SPLIT.split(normalized))
+                .filter(word -> word.length() >= MIN_PREFIX)
+                .toList();
     }
 }
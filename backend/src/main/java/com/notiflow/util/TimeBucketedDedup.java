@@ -0,0 +1,168 @@
+package com.notiflow.util;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Dedup por ventana de tiempo con memoria fija. Cada clave se reduce a un hash de 64 bits y se
+ * guarda en el bucket de tiempo actual; la ventana son los últimos {@code buckets} buckets y al rotar
+ * se descarta un bucket completo, sin recorrer entradas sueltas. Si un bucket se llena, las claves
+ * nuevas se dejan pasar (se cuentan como overflow) en vez de crecer.
+ * Está dividido en segmentos con lock propio para no serializar todas las requests.
+ */
+public final class TimeBucketedDedup {
+
+    private static final int SEGMENTS = 16;
+    private static final long EMPTY = 0L;
+
+    private final long bucketMs;
+    private final Segment[] segments = new Segment[SEGMENTS];
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder overflows = new LongAdder();
+
+    public TimeBucketedDedup(Duration window, int buckets, int maxEntries) {
+        if (buckets < 2 || maxEntries < buckets * SEGMENTS) {
+            throw new IllegalArgumentException("buckets >= 2 y maxEntries >= buckets * " + SEGMENTS);
+        }
+        this.bucketMs = Math.max(1, window.toMillis() / buckets);
+        int perBucket = maxEntries / (buckets * SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment(buckets, perBucket);
+        }
+    }
+
+    /**
+     * true si {@code (a, b)} no se vio dentro de la ventana; en ese caso queda registrado.
+     */
+    public boolean firstSeen(String a, String b, long nowMs) {
+        long key = hash(a, b);
+        Segment segment = segments[(int) (key >>> 32) & (SEGMENTS - 1)];
+        int result = segment.offer(key, Math.floorDiv(nowMs, bucketMs));
+        if (result == Segment.SEEN) {
+            hits.increment();
+            return false;
+        }
+        if (result == Segment.FULL) {
+            overflows.increment();
+        } else {
+            misses.increment();
+        }
+        return true;
+    }
+
+    public long hits() {
+        return hits.sum();
+    }
+
+    public long misses() {
+        return misses.sum();
+    }
+
+    public long overflows() {
+        return overflows.sum();
+    }
+
+    public long size() {
+        long total = 0;
+        for (Segment segment : segments) {
+            total += segment.size();
+        }
+        return total;
+    }
+
+    /**
+     * FNV-1a sobre ambos textos (sin concatenarlos) con mezcla final de murmur3; nunca devuelve 0.
+     */
+    static long hash(String a, String b) {
+        long h = 0xcbf29ce484222325L;
+        h = fnv(h, a);
+        h = (h ^ 0x1F) * 0x100000001b3L;
+        h = fnv(h, b);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h == EMPTY ? 1L : h;
+    }
+
+    private static long fnv(long h, String value) {
+        if (value == null) return h;
+        for (int i = 0; i < value.length(); i++) {
+            h = (h ^ value.charAt(i)) * 0x100000001b3L;
+        }
+        return h;
+    }
+
+    private static final class Segment {
+        static final int NEW = 0;
+        static final int SEEN = 1;
+        static final int FULL = 2;
+
+        // tablas hash abiertas (sondeo lineal) por bucket; epochs[i] es el bucket de tiempo que contiene
+        private final long[][] tables;
+        private final long[] epochs;
+        private final int[] sizes;
+        private final int mask;
+        private final int maxPerBucket;
+
+        Segment(int buckets, int maxPerBucket) {
+            // siempre queda al menos una ranura vacía, si no contains() no termina con la tabla llena
+            int needed = maxPerBucket + Math.max(1, maxPerBucket / 3);
+            int capacity = Integer.highestOneBit(needed - 1) << 1;
+            this.tables = new long[buckets][capacity];
+            this.epochs = new long[buckets];
+            Arrays.fill(epochs, Long.MIN_VALUE);
+            this.sizes = new int[buckets];
+            this.mask = capacity - 1;
+            this.maxPerBucket = maxPerBucket;
+        }
+
+        synchronized int offer(long key, long epoch) {
+            int buckets = tables.length;
+            int current = (int) Math.floorMod(epoch, (long) buckets);
+            if (epochs[current] != epoch) {
+                // el bucket quedó fuera de la ventana: se descarta completo
+                Arrays.fill(tables[current], EMPTY);
+                sizes[current] = 0;
+                epochs[current] = epoch;
+            }
+            for (int i = 0; i < buckets; i++) {
+                if (epochs[i] > epoch - buckets && epochs[i] <= epoch && contains(tables[i], key)) {
+                    return SEEN;
+                }
+            }
+            if (sizes[current] >= maxPerBucket) {
+                return FULL;
+            }
+            long[] table = tables[current];
+            int idx = (int) key & mask;
+            while (table[idx] != EMPTY) {
+                idx = (idx + 1) & mask;
+            }
+            table[idx] = key;
+            sizes[current]++;
+            return NEW;
+        }
+
+        synchronized long size() {
+            long total = 0;
+            for (int size : sizes) {
+                total += size;
+            }
+            return total;
+        }
+
+        private boolean contains(long[] table, long key) {
+            int idx = (int) key & mask;
+            while (true) {
+                long value = table[idx];
+                if (value == EMPTY) return false;
+                if (value == key) return true;
+                idx = (idx + 1) & mask;
+            }
+        }
+    }
+}
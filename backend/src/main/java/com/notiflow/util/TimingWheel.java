@@ -0,0 +1,159 @@
+package com.notiflow.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Rueda de tiempo jerárquica: el nivel 0 tiene una ranura por tick y cada nivel superior cubre
+ * {@code wheelSize} veces el anterior. Programar y cancelar es O(1) y cada tick solo toca su ranura;
+ * al completar una vuelta, la ranura del nivel superior baja sus entradas al nivel inferior.
+ * No es thread-safe: se usa desde un único hilo.
+ */
+public final class TimingWheel<K> {
+
+    private static final class Entry<K> {
+        final K key;
+        final long dueTick;
+        boolean cancelled;
+
+        Entry(K key, long dueTick) {
+            this.key = key;
+            this.dueTick = dueTick;
+        }
+    }
+
+    private final long tickMs;
+    private final int wheelSize;
+    // levels.get(i)[slot]; el nivel i avanza una ranura cada wheelSize^i ticks
+    private final List<List<Entry<K>>[]> levels = new ArrayList<>();
+    private final List<Long> levelSpans = new ArrayList<>();
+    private final Map<K, Entry<K>> entries = new HashMap<>();
+    private final List<K> ready = new ArrayList<>();
+    private long currentTick;
+
+    public TimingWheel(long tickMs, int wheelSize, long startMs) {
+        if (tickMs <= 0 || wheelSize < 2) {
+            throw new IllegalArgumentException("tickMs > 0 y wheelSize >= 2");
+        }
+        this.tickMs = tickMs;
+        this.wheelSize = wheelSize;
+        this.currentTick = startMs / tickMs;
+        addLevel();
+    }
+
+    /**
+     * Programa (o reprograma) {@code key}. Si ya venció se entrega en el próximo {@link #advance}.
+     */
+    public void schedule(K key, long dueMs) {
+        cancel(key);
+        Entry<K> entry = new Entry<>(key, Math.floorDiv(dueMs, tickMs));
+        entries.put(key, entry);
+        place(entry);
+    }
+
+    public void cancel(K key) {
+        Entry<K> previous = entries.remove(key);
+        if (previous != null) {
+            previous.cancelled = true;
+        } else {
+            // vencida al programarla: espera en ready al próximo advance
+            ready.remove(key);
+        }
+    }
+
+    public boolean contains(K key) {
+        return entries.containsKey(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public void clear() {
+        entries.values().forEach(e -> e.cancelled = true);
+        entries.clear();
+        ready.clear();
+        clearSlots();
+    }
+
+    /**
+     * Avanza hasta {@code nowMs} y devuelve las claves vencidas, en orden de vencimiento por tick.
+     */
+    public List<K> advance(long nowMs) {
+        long target = Math.floorDiv(nowMs, tickMs);
+        if (entries.isEmpty() && currentTick < target) {
+            // sin nada programado (p.ej. tras un tiempo sin usarla) se salta directo al tick actual;
+            // en las ranuras solo pueden quedar entradas canceladas
+            clearSlots();
+            currentTick = target;
+        }
+        while (currentTick < target) {
+            currentTick++;
+            // primero bajan los niveles superiores, así sus entradas de este tick llegan al nivel 0
+            for (int level = levels.size() - 1; level > 0; level--) {
+                long span = levelSpans.get(level);
+                if (currentTick % span == 0) {
+                    List<Entry<K>> slot = levels.get(level)[(int) ((currentTick / span) % wheelSize)];
+                    List<Entry<K>> moving = new ArrayList<>(slot);
+                    slot.clear();
+                    for (Entry<K> entry : moving) {
+                        if (!entry.cancelled) place(entry);
+                    }
+                }
+            }
+            List<Entry<K>> slot = levels.get(0)[(int) (currentTick % wheelSize)];
+            for (Entry<K> entry : slot) {
+                if (!entry.cancelled) collect(entry);
+            }
+            slot.clear();
+        }
+        List<K> due = new ArrayList<>(ready);
+        ready.clear();
+        return due;
+    }
+
+    private void place(Entry<K> entry) {
+        if (entry.dueTick <= currentTick) {
+            collect(entry);
+            return;
+        }
+        int level = 0;
+        while (true) {
+            if (level == levels.size()) {
+                addLevel();
+            }
+            long span = levelSpans.get(level);
+            if (entry.dueTick / span - currentTick / span < wheelSize) {
+                levels.get(level)[(int) ((entry.dueTick / span) % wheelSize)].add(entry);
+                return;
+            }
+            level++;
+        }
+    }
+
+    private void collect(Entry<K> entry) {
+        entries.remove(entry.key, entry);
+        ready.add(entry.key);
+    }
+
+    private void clearSlots() {
+        for (List<Entry<K>>[] slots : levels) {
+            for (List<Entry<K>> slot : slots) {
+                slot.clear();
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void addLevel() {
+        List<Entry<K>>[] slots = new List[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            slots[i] = new ArrayList<>();
+        }
+        long span = levelSpans.isEmpty() ? 1 : Math.multiplyExact(levelSpans.get(levelSpans.size() - 1), (long) wheelSize);
+        levels.add(slots);
+        levelSpans.add(span);
+    }
+}
@@ -0,0 +1,107 @@
+package com.notiflow.service;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.notiflow.dto.AudienceQuery;
+import com.notiflow.model.GroupDocument;
+import com.notiflow.model.StudentDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class AudienceIndexTest {
+
+    private final Firestore firestore = mock(Firestore.class, Answers.RETURNS_DEEP_STUBS);
+    private final GroupMemberStore groupMemberStore = mock(GroupMemberStore.class);
+    private final RecipientRoster recipientRoster = mock(RecipientRoster.class);
+    private final RecipientRoster.Snapshot roster = mock(RecipientRoster.Snapshot.class);
+    private final StudentService studentService = mock(StudentService.class);
+    private final DeviceTokenService deviceTokenService = mock(DeviceTokenService.class);
+    private final AudienceIndex audienceIndex =
+            new AudienceIndex(firestore, groupMemberStore, recipientRoster, studentService, deviceTokenService, 10);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(recipientRoster.snapshot("school-1", "2025")).thenReturn(roster);
+        when(roster.recipientsOf(anyString())).thenReturn(null);
+    }
+
+    private void groupsInFirestore(DocumentSnapshot... docs) {
+        when(firestore.getAll(any(DocumentReference[].class))).thenReturn(ApiFutures.immediateFuture(List.of(docs)));
+    }
+
+    private static DocumentSnapshot group(String id, String year) {
+        GroupDocument g = new GroupDocument();
+        g.setYear(year);
+        DocumentReference ref = mock(DocumentReference.class);
+        when(ref.getPath()).thenReturn("tenants/school-1/groups/" + id);
+        DocumentSnapshot doc = mock(DocumentSnapshot.class);
+        when(doc.exists()).thenReturn(true);
+        when(doc.getId()).thenReturn(id);
+        when(doc.getReference()).thenReturn(ref);
+        when(doc.toObject(GroupDocument.class)).thenReturn(g);
+        return doc;
+    }
+
+    private static AudienceQuery groups(String... groupIds) {
+        return new AudienceQuery(List.of(groupIds), null, null, List.of("guardians"));
+    }
+
+    @Test
+    void groupFromAnotherYearIsResolvedWithItsStudents() throws Exception {
+        groupsInFirestore(group("g-2024", "2024"));
+        when(groupMemberStore.loadAll(any())).thenReturn(Map.of(
+                "tenants/school-1/groups/g-2024", List.of("s-old", "s-2025")));
+        when(roster.recipientsOf("s-2025")).thenReturn(List.of("pedro@correo.cl"));
+        when(roster.isGuardian("pedro@correo.cl")).thenReturn(true);
+        StudentDocument old = new StudentDocument();
+        old.setId("s-old");
+        old.setEmail("alumno@colegio.cl");
+        old.setGuardianEmails(List.of("Ana@Correo.cl"));
+        when(studentService.findByIds(List.of("s-old"))).thenReturn(Map.of("s-old", old));
+
+        AudienceIndex.Result result = audienceIndex.resolve("school-1", "2025", groups("g-2024"));
+
+        assertEquals(Set.of("ana@correo.cl", "pedro@correo.cl"), Set.copyOf(result.recipients()));
+        assertEquals(Set.of("s-old", "s-2025"), Set.copyOf(result.studentIds()));
+    }
+
+    @Test
+    void groupWithoutYearIsNotUnknown() throws Exception {
+        groupsInFirestore(group("g-talleres", null));
+        when(groupMemberStore.loadAll(any())).thenReturn(Map.of(
+                "tenants/school-1/groups/g-talleres", List.of("profe@colegio.cl")));
+
+        AudienceIndex.Result result = audienceIndex.resolve("school-1", "2025",
+                new AudienceQuery(List.of("g-talleres"), null, null, null));
+
+        assertEquals(List.of("profe@colegio.cl"), result.recipients());
+        verify(studentService, never()).findByIds(any());
+    }
+
+    @Test
+    void missingGroupIsRejected() throws Exception {
+        DocumentSnapshot missing = mock(DocumentSnapshot.class);
+        when(missing.exists()).thenReturn(false);
+        groupsInFirestore(missing);
+
+        assertThrows(ResponseStatusException.class,
+                () -> audienceIndex.resolve("school-1", "2025", groups("g-borrado")));
+    }
+}
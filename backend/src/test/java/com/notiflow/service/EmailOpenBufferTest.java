@@ -0,0 +1,48 @@
+package com.notiflow.service;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.util.Set;
+
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+class EmailOpenBufferTest {
+
+    // el mínimo que acepta el buffer
+    private static final int MAX_PENDING = 100;
+
+    private final MessageService messageService = mock(MessageService.class);
+    private final EmailOpenBuffer buffer = new EmailOpenBuffer(messageService, new SimpleMeterRegistry(), MAX_PENDING, 10_000);
+
+    @Test
+    void repeatedOpenIsWrittenOnce() {
+        buffer.record("m1", " Ana@Colegio.cl ", "school-1");
+        buffer.record("m1", "ana@colegio.cl", "school-1");
+        buffer.flush();
+        buffer.record("m1", "ana@colegio.cl", "school-1");
+        buffer.flush();
+
+        verify(messageService, times(1)).markEmailOpened("m1", "school-1", Set.of("ana@colegio.cl"));
+    }
+
+    @Test
+    void openDroppedByFullBufferIsAcceptedLater() {
+        for (int i = 0; i < MAX_PENDING; i++) {
+            buffer.record("m1", "user" + i + "@colegio.cl", "school-1");
+        }
+        buffer.record("m2", "ana@colegio.cl", "school-1");
+        buffer.flush();
+        verify(messageService, never()).markEmailOpened(eq("m2"), any(), any());
+
+        // el descarte no la dejó marcada como vista: el siguiente píxel sí se registra
+        buffer.record("m2", "ana@colegio.cl", "school-1");
+        buffer.flush();
+        verify(messageService).markEmailOpened("m2", "school-1", Set.of("ana@colegio.cl"));
+    }
+}
@@ -0,0 +1,118 @@
+package com.notiflow.service;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.SetOptions;
+import com.google.cloud.firestore.WriteBatch;
+import com.notiflow.model.MessageDocument;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+import org.mockito.ArgumentCaptor;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+class InboxStoreTest {
+
+    // más alumnos que transformaciones admite un commit de Firestore
+    private static final int STUDENTS = 600;
+
+    private final Firestore firestore = mock(Firestore.class, Answers.RETURNS_DEEP_STUBS);
+    private final RecipientRoster recipientRoster = mock(RecipientRoster.class);
+    private final RecipientRoster.Snapshot roster = mock(RecipientRoster.Snapshot.class);
+    private final WriteBatch batch = mock(WriteBatch.class);
+    private final DocumentReference messageRef = mock(DocumentReference.class, Answers.RETURNS_DEEP_STUBS);
+    private final InboxStore store = new InboxStore(firestore, recipientRoster);
+
+    @BeforeEach
+    void setUp() throws Exception {
+        when(messageRef.getId()).thenReturn("m1");
+        when(messageRef.getParent().getParent().getId()).thenReturn("school-1");
+        when(firestore.batch()).thenReturn(batch);
+        when(batch.commit()).thenReturn(ApiFutures.immediateFuture(List.of()));
+        when(recipientRoster.snapshot("school-1", "2025")).thenReturn(roster);
+    }
+
+    private static MessageDocument message(List<String> recipients, List<String> studentIds) {
+        MessageDocument msg = new MessageDocument();
+        msg.setYear("2025");
+        msg.setRecipients(recipients);
+        msg.setStudentIds(studentIds);
+        return msg;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Map<String, Object>> written(boolean counters) {
+        ArgumentCaptor<Map<String, Object>> captor = ArgumentCaptor.forClass(Map.class);
+        if (counters) {
+            verify(batch, atLeastOnce()).set(any(DocumentReference.class), captor.capture(), any(SetOptions.class));
+        } else {
+            verify(batch, atLeastOnce()).set(any(DocumentReference.class), captor.capture());
+        }
+        Map<String, Map<String, Object>> byRecipient = new HashMap<>();
+        captor.getAllValues().forEach(fields -> byRecipient.put((String) fields.get("recipient"), fields));
+        return byRecipient;
+    }
+
+    @Test
+    void schoolWideSendCountsOnlyEachRecipientsOwnStudents() throws Exception {
+        List<String> recipients = new ArrayList<>();
+        List<String> studentIds = new ArrayList<>();
+        for (int i = 0; i < STUDENTS; i++) {
+            studentIds.add("s" + i);
+            recipients.add("apoderado" + i + "@correo.cl");
+            when(roster.recipientsOf("s" + i)).thenReturn(List.of("apoderado" + i + "@correo.cl"));
+        }
+        // un apoderado con dos hijos en el mismo envío
+        when(roster.recipientsOf("s1")).thenReturn(List.of("apoderado0@correo.cl", "apoderado1@correo.cl"));
+
+        int written = store.fanOut(messageRef, message(recipients, studentIds), false);
+
+        assertEquals(STUDENTS, written);
+        Map<String, Map<String, Object>> entries = written(false);
+        Map<String, Map<String, Object>> counters = written(true);
+        assertEquals(STUDENTS, counters.size());
+        for (Map<String, Object> inbox : counters.values()) {
+            assertEquals(inbox.get("recipient").equals("apoderado0@correo.cl") ? 2 : 1,
+                    ((Map<?, ?>) inbox.get("unreadByStudent")).size());
+        }
+        assertEquals(List.of("s0", "s1"), entries.get("apoderado0@correo.cl").get("students"));
+        assertEquals(List.of("s599"), entries.get("apoderado599@correo.cl").get("students"));
+    }
+
+    @Test
+    void recipientWithoutLinkedStudentsFallsBackToAnyStudent() throws Exception {
+        when(roster.recipientsOf(anyString())).thenReturn(null);
+        when(roster.recipientsOf("s1")).thenReturn(List.of("ana@correo.cl"));
+
+        store.fanOut(messageRef, message(List.of("Ana@Correo.cl", "profe@colegio.cl"), List.of("s1", "s2")), false);
+
+        Map<String, Map<String, Object>> entries = written(false);
+        assertEquals(List.of("s1"), entries.get("ana@correo.cl").get("students"));
+        assertEquals(List.of(InboxStore.ANY_STUDENT), entries.get("profe@colegio.cl").get("students"));
+        assertEquals(Set.of(InboxStore.ANY_STUDENT),
+                ((Map<?, ?>) written(true).get("profe@colegio.cl").get("unreadByStudent")).keySet());
+    }
+
+    @Test
+    void messageWithoutStudentsSkipsTheRoster() throws Exception {
+        store.fanOut(messageRef, message(List.of("ana@correo.cl"), null), false);
+
+        assertEquals(List.of(InboxStore.ANY_STUDENT), written(false).get("ana@correo.cl").get("students"));
+        verify(recipientRoster, never()).snapshot(any(), any());
+    }
+}
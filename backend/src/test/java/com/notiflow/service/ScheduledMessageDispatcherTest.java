@@ -0,0 +1,129 @@
+package com.notiflow.service;
+
+import com.google.api.core.ApiFutures;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Transaction;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Answers;
+
+import java.time.Instant;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+/**
+ * Lease del scheduler entre dos instancias sobre un mismo documento simulado.
+ */
+class ScheduledMessageDispatcherTest {
+
+    // estado del documento schedulerLeases/scheduledMessages
+    private String owner;
+    private Timestamp expiresAt;
+    private Firestore firestore;
+
+    @BeforeEach
+    void setUp() {
+        owner = null;
+        expiresAt = null;
+        firestore = mock(Firestore.class, Answers.RETURNS_DEEP_STUBS);
+        when(firestore.runTransaction(any())).thenAnswer(inv -> {
+            Transaction.Function<?> function = inv.getArgument(0);
+            return ApiFutures.immediateFuture(function.updateCallback(transaction()));
+        });
+    }
+
+    private Transaction transaction() {
+        Transaction tx = mock(Transaction.class);
+        DocumentSnapshot snap = mock(DocumentSnapshot.class);
+        when(snap.exists()).thenReturn(owner != null);
+        when(snap.getString("owner")).thenReturn(owner);
+        when(snap.getTimestamp("expiresAt")).thenReturn(expiresAt);
+        when(tx.get(any(DocumentReference.class))).thenReturn(ApiFutures.immediateFuture(snap));
+        doAnswer(inv -> {
+            Map<String, Object> data = inv.getArgument(1);
+            owner = (String) data.get("owner");
+            expiresAt = (Timestamp) data.get("expiresAt");
+            return tx;
+        }).when(tx).set(any(DocumentReference.class), anyMap());
+        doAnswer(inv -> {
+            owner = null;
+            expiresAt = null;
+            return tx;
+        }).when(tx).delete(any(DocumentReference.class));
+        return tx;
+    }
+
+    private ScheduledMessageDispatcher dispatcher() {
+        return new ScheduledMessageDispatcher(firestore, mock(MessageService.class), true, 30, 10);
+    }
+
+    @Test
+    void onlyOneInstanceHoldsTheLease() {
+        ScheduledMessageDispatcher first = dispatcher();
+        ScheduledMessageDispatcher second = dispatcher();
+
+        first.renewLeadership();
+        second.renewLeadership();
+
+        assertTrue(first.isLeader());
+        assertFalse(second.isLeader());
+    }
+
+    @Test
+    void standbyTakesOverWhenLeaseExpires() {
+        ScheduledMessageDispatcher first = dispatcher();
+        ScheduledMessageDispatcher second = dispatcher();
+        first.renewLeadership();
+        String firstOwner = owner;
+
+        // el líder dejó de renovar (instancia caída o sin red)
+        expiresAt = Timestamp.ofTimeSecondsAndNanos(Instant.now().minusSeconds(1).getEpochSecond(), 0);
+        second.renewLeadership();
+
+        assertTrue(second.isLeader());
+        assertNotEquals(firstOwner, owner);
+
+        // el antiguo líder se entera en su próxima renovación y deja de despachar
+        first.renewLeadership();
+        assertFalse(first.isLeader());
+        assertTrue(second.isLeader());
+    }
+
+    @Test
+    void stopReleasesLeaseForStandby() {
+        ScheduledMessageDispatcher first = dispatcher();
+        ScheduledMessageDispatcher second = dispatcher();
+        first.renewLeadership();
+
+        first.stop();
+        assertNull(owner);
+
+        second.renewLeadership();
+        assertTrue(second.isLeader());
+    }
+
+    @Test
+    void leaderKeepsLeaseOnRenewal() {
+        ScheduledMessageDispatcher first = dispatcher();
+        first.renewLeadership();
+        String leaseOwner = owner;
+
+        first.renewLeadership();
+
+        assertTrue(first.isLeader());
+        assertEquals(leaseOwner, owner);
+    }
+}
@@ -0,0 +1,115 @@
+package com.notiflow.util;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class BatchLoaderTest {
+
+    // lotes pedidos a fetch, en orden
+    private final List<List<String>> batches = new ArrayList<>();
+
+    // resuelve cada clave con su versión en mayúsculas, salvo las que empiezan con "missing"
+    private BatchLoader<String, String> loader(int maxBatch) {
+        return new BatchLoader<>(maxBatch, keys -> {
+            batches.add(List.copyOf(keys));
+            Map<String, String> values = new HashMap<>();
+            for (String key : keys) {
+                if (!key.startsWith("missing")) values.put(key, key.toUpperCase());
+            }
+            return ApiFutures.immediateFuture(values);
+        });
+    }
+
+    @Test
+    void splitsDistinctKeysIntoBatchesOfMaxSize() throws Exception {
+        BatchLoader<String, String> loader = loader(3);
+        List<String> keys = Arrays.asList("a", "b", "c", "d", "b", null, "e", "f", "g", "a");
+
+        Map<String, String> result = loader.loadAll(keys);
+
+        assertEquals(List.of(List.of("a", "b", "c"), List.of("d", "e", "f"), List.of("g")), batches);
+        assertEquals(List.of("a", "b", "c", "d", "e", "f", "g"), new ArrayList<>(result.keySet()));
+        assertEquals("D", result.get("d"));
+    }
+
+    @Test
+    void nothingIsFetchedUntilDispatch() throws Exception {
+        BatchLoader<String, String> loader = loader(10);
+        ApiFuture<String> first = loader.load("x");
+        ApiFuture<String> again = loader.load("x");
+        loader.load("y");
+
+        assertSame(first, again);
+        assertTrue(batches.isEmpty());
+        loader.dispatch();
+        assertEquals(List.of(List.of("x", "y")), batches);
+        assertEquals("X", first.get());
+    }
+
+    @Test
+    void keysAreFetchedOncePerLoader() throws Exception {
+        BatchLoader<String, String> loader = loader(10);
+        loader.loadAll(List.of("a", "b"));
+        loader.loadAll(List.of("b", "c"));
+        loader.dispatch();
+
+        assertEquals(List.of(List.of("a", "b"), List.of("c")), batches);
+    }
+
+    @Test
+    void missingKeysResolveNullAndAreLeftOutOfLoadAll() throws Exception {
+        BatchLoader<String, String> loader = loader(10);
+        ApiFuture<String> missing = loader.load("missing-1");
+
+        Map<String, String> result = loader.loadAll(List.of("a", "missing-1", "missing-2"));
+
+        assertNull(missing.get());
+        assertEquals(Map.of("a", "A"), result);
+    }
+
+    @Test
+    void failedBatchOnlyFailsItsOwnKeys() throws Exception {
+        BatchLoader<String, String> loader = new BatchLoader<>(2, keys -> {
+            if (keys.contains("boom")) {
+                return ApiFutures.immediateFailedFuture(new IllegalStateException("lote caído"));
+            }
+            Map<String, String> values = new HashMap<>();
+            keys.forEach(k -> values.put(k, k));
+            return ApiFutures.immediateFuture(values);
+        });
+        ApiFuture<String> ok = loader.load("a");
+        loader.load("b");
+        ApiFuture<String> failed = loader.load("boom");
+        ApiFuture<String> sameBatch = loader.load("c");
+        loader.dispatch();
+
+        assertEquals("a", ok.get());
+        ExecutionException ex = assertThrows(ExecutionException.class, failed::get);
+        assertTrue(ex.getCause() instanceof IllegalStateException);
+        assertThrows(ExecutionException.class, sameBatch::get);
+    }
+
+    @Test
+    void fetchThrowingSynchronouslyFailsTheBatch() {
+        BatchLoader<String, String> loader = new BatchLoader<>(5, keys -> {
+            throw new IllegalArgumentException("consulta inválida");
+        });
+
+        ExecutionException ex = assertThrows(ExecutionException.class, () -> loader.loadAll(List.of("a")));
+        assertTrue(ex.getCause() instanceof IllegalArgumentException);
+    }
+}
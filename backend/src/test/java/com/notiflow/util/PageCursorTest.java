@@ -0,0 +1,98 @@
+package com.notiflow.util;
+
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ResponseStatusException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+class PageCursorTest {
+
+    private static final String PATH = "tenants/school-1/messages/m1";
+
+    private static String token(String raw) {
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(raw.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void assertRejected(String token, String collection) {
+        ResponseStatusException ex = assertThrows(ResponseStatusException.class, () -> PageCursor.decode(token, collection));
+        assertEquals(HttpStatus.BAD_REQUEST, ex.getStatusCode());
+    }
+
+    @Test
+    void missingTokenMeansFirstPage() {
+        assertNull(PageCursor.decode(null, "messages"));
+        assertNull(PageCursor.decode("  ", "messages"));
+    }
+
+    @Test
+    void decodesSortValueAndPath() {
+        PageCursor cursor = PageCursor.decode(token("v1|1700000000123456|" + PATH), "messages");
+
+        assertEquals(PATH, cursor.path());
+        assertEquals(1_700_000_000L, cursor.sortValue().getSeconds());
+        assertEquals(123_456_000, cursor.sortValue().getNanos());
+    }
+
+    @Test
+    void decodesPathOnlyCursor() {
+        PageCursor cursor = PageCursor.decode(token("v1||tenants/school-1/groups/g1/members/shard-3"), "members");
+
+        assertNull(cursor.sortValue());
+        assertEquals("tenants/school-1/groups/g1/members/shard-3", cursor.path());
+    }
+
+    @Test
+    void roundTripsThroughOf() {
+        DocumentSnapshot doc = mock(DocumentSnapshot.class);
+        DocumentReference ref = mock(DocumentReference.class);
+        when(doc.getReference()).thenReturn(ref);
+        when(ref.getPath()).thenReturn(PATH);
+        when(doc.getTimestamp("createdAt")).thenReturn(Timestamp.ofTimeSecondsAndNanos(1_700_000_000L, 5_000));
+
+        PageCursor cursor = PageCursor.decode(PageCursor.of(doc, "createdAt"), "messages");
+
+        assertEquals(PATH, cursor.path());
+        assertEquals(Timestamp.ofTimeSecondsAndNanos(1_700_000_000L, 5_000), cursor.sortValue());
+    }
+
+    @Test
+    void rejectsMalformedTokens() {
+        assertRejected("no es base64!", "messages");
+        assertRejected(token("v1|" + PATH), "messages");
+        assertRejected(token("v2|1|" + PATH), "messages");
+        assertRejected(token("v1|abc|" + PATH), "messages");
+    }
+
+    @Test
+    void rejectsPathsOutsideTenants() {
+        assertRejected(token("v1|1|users/u1/messages/m1"), "messages");
+        assertRejected(token("v1|1|/tenants/school-1/messages/m1"), "messages");
+        assertRejected(token("v1|1|tenants/school-1"), "messages");
+    }
+
+    @Test
+    void rejectsPathsOfAnotherCollection() {
+        assertRejected(token("v1|1|tenants/school-1/students/s1"), "messages");
+        // ruta de colección, no de documento
+        assertRejected(token("v1|1|tenants/school-1/groups/g1/members"), "members");
+    }
+
+    @Test
+    void rejectsEmptyOrRelativeSegments() {
+        assertRejected(token("v1|1|tenants//messages/m1"), "messages");
+        assertRejected(token("v1|1|tenants/school-1/messages/"), "messages");
+        assertRejected(token("v1|1|tenants/../messages/m1"), "messages");
+        assertRejected(token("v1|1|tenants/school-1/messages/.."), "messages");
+    }
+}
@@ -0,0 +1,122 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class PrefixTrieTest {
+
+    private static BitSet bits(int... ids) {
+        BitSet set = new BitSet();
+        for (int id : ids) {
+            set.set(id);
+        }
+        return set;
+    }
+
+    private static BitSet collect(PrefixTrie trie, String prefix) {
+        BitSet hits = new BitSet();
+        trie.collect(prefix, hits);
+        return hits;
+    }
+
+    private static PrefixTrie roster() {
+        PrefixTrie trie = new PrefixTrie();
+        trie.add("maria", 1);
+        trie.add("mario", 2);
+        trie.add("martina", 3);
+        trie.add("mar", 4);
+        trie.add("omar", 5);
+        trie.add("muñoz", 6);
+        return trie;
+    }
+
+    @Test
+    void collectsEveryWordStartingWithPrefix() {
+        PrefixTrie trie = roster();
+
+        assertEquals(bits(1, 2, 3, 4), collect(trie, "mar"));
+        assertEquals(bits(1, 2), collect(trie, "mari"));
+        assertEquals(bits(3), collect(trie, "martina"));
+        assertEquals(bits(6), collect(trie, "muñ"));
+    }
+
+    @Test
+    void matchesOnlyAtTheStartOfWords() {
+        assertEquals(bits(5), collect(roster(), "om"));
+        assertTrue(collect(roster(), "ar").isEmpty());
+    }
+
+    @Test
+    void unknownOrLongerPrefixFindsNothing() {
+        PrefixTrie trie = roster();
+
+        assertTrue(collect(trie, "x").isEmpty());
+        assertTrue(collect(trie, "martinez").isEmpty());
+    }
+
+    @Test
+    void emptyPrefixCollectsAll() {
+        assertEquals(bits(1, 2, 3, 4, 5, 6), collect(roster(), ""));
+    }
+
+    @Test
+    void collectAddsToExistingBits() {
+        BitSet hits = bits(42);
+        roster().collect("mario", hits);
+
+        assertEquals(bits(2, 42), hits);
+    }
+
+    @Test
+    void sameWordCanHoldSeveralIdsOnce() {
+        PrefixTrie trie = new PrefixTrie();
+        trie.add("ana", 1);
+        trie.add("ana", 2);
+        trie.add("ana", 1);
+        trie.add("ana", 3);
+
+        assertEquals(bits(1, 2, 3), collect(trie, "an"));
+        trie.remove("ana", 1);
+        assertEquals(bits(2, 3), collect(trie, "ana"));
+    }
+
+    @Test
+    void removeDropsOnlyThatWordAndId() {
+        PrefixTrie trie = roster();
+        trie.add("maria", 7);
+
+        trie.remove("maria", 1);
+        trie.remove("mar", 2);
+        trie.remove("mariana", 3);
+
+        assertEquals(bits(2, 3, 4, 7), collect(trie, "mar"));
+        trie.remove("maria", 7);
+        assertEquals(bits(2), collect(trie, "mari"));
+    }
+
+    @Test
+    void childrenInsertedOutOfOrderAreAllFound() {
+        PrefixTrie trie = new PrefixTrie();
+        String[] words = {"zeta", "beta", "alfa", "delta", "gama", "épsilon", "eta"};
+        for (int i = 0; i < words.length; i++) {
+            trie.add(words[i], i);
+        }
+        for (int i = 0; i < words.length; i++) {
+            assertEquals(bits(i), collect(trie, words[i]), words[i]);
+        }
+    }
+
+    @Test
+    void ignoresEmptyWords() {
+        PrefixTrie trie = new PrefixTrie();
+        trie.add("", 1);
+        trie.add(null, 2);
+        trie.remove(null, 2);
+
+        assertTrue(collect(trie, "").isEmpty());
+    }
+}
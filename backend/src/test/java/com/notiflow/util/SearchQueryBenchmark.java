@@ -0,0 +1,145 @@
+package com.notiflow.util;
+
+import com.notiflow.dto.MessageDto;
+import com.notiflow.model.MessageStatus;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.text.Normalizer;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Compara la búsqueda en memoria de mensajes antes y después de {@link SearchQuery}: la versión
+ * original de {@code SearchUtils.matchesQuery} (copiada abajo tal cual) contra la consulta compilada
+ * una vez por request. Cada operación revisa una página de {@link #MESSAGES} mensajes, con los mismos
+ * campos que usa {@code MessageService.matchesQuery}.
+ * <p>
+ * Ejecutar: {@code mvn test-compile} y luego
+ * {@code java -cp target/test-classes:$(mvn -q dependency:build-classpath -Dmdep.outputFile=/dev/stdout) com.notiflow.util.SearchQueryBenchmark}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SearchQueryBenchmark {
+
+    private static final int MESSAGES = 200;
+
+    private static final String[] NAMES = {
+            "José Pérez", "María Ñúñez", "Camila Muñoz", "Ignacio Fernández", "Sofía Rojas", "Matías González"
+    };
+    private static final String[] REASONS = {
+            "Reunión de apoderados", "Suspensión de clases", "Información académica", "Salida pedagógica", "Recordatorio"
+    };
+    private static final String[] SENTENCES = {
+            "Estimados apoderados, les recordamos que el **jueves** habrá reunión en el salón.",
+            "La salida pedagógica al museo se realizará el próximo lunes; traer colación y autorización firmada.",
+            "Por corte de agua se suspenden las clases de la tarde. Más información en https://colegio.cl/avisos",
+            "Se informa que las notas del segundo semestre ya están disponibles en la plataforma.",
+            "Recuerden que el uniforme de educación física es obligatorio a partir de esta semana."
+    };
+
+    @Param({"reunion", "pedagogica lunes", "muñoz", "no-existe"})
+    public String query;
+
+    private List<MessageDto> messages;
+    private SearchQuery compiled;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        messages = new ArrayList<>(MESSAGES);
+        for (int i = 0; i < MESSAGES; i++) {
+            String sender = NAMES[random.nextInt(NAMES.length)];
+            List<String> recipients = new ArrayList<>();
+            int count = 1 + random.nextInt(8);
+            for (int r = 0; r < count; r++) {
+                recipients.add("apoderado" + random.nextInt(5000) + "@colegio.cl");
+            }
+            StringBuilder content = new StringBuilder();
+            int sentences = 1 + random.nextInt(4);
+            for (int s = 0; s < sentences; s++) {
+                content.append(SENTENCES[random.nextInt(SENTENCES.length)]).append(' ');
+            }
+            messages.add(new MessageDto(
+                    "m" + i, content.toString(), sender, sender.toLowerCase(Locale.ROOT).replace(' ', '.') + "@colegio.cl",
+                    recipients, List.of("email", "app"), MessageStatus.SENT, MessageStatus.SENT,
+                    List.of(), Map.of(), Map.of(), Map.of(), List.of(), "school-1", "2026",
+                    List.of(), List.of(), MessageStatus.SENT, null, Instant.now(), List.of(),
+                    REASONS[random.nextInt(REASONS.length)], Boolean.FALSE, Boolean.FALSE));
+        }
+        compiled = SearchQuery.of(query);
+    }
+
+    @Benchmark
+    public void baselineMatchesQuery(Blackhole bh) {
+        for (MessageDto dto : messages) {
+            String recipients = String.join(" ", dto.recipients());
+            bh.consume(baselineMatches(query, dto.content(), dto.senderName(), dto.senderEmail(), dto.reason(), recipients));
+        }
+    }
+
+    @Benchmark
+    public void compiledSearchQuery(Blackhole bh) {
+        for (MessageDto dto : messages) {
+            String recipients = String.join(" ", dto.recipients());
+            bh.consume(compiled.matches(dto.content(), dto.senderName(), dto.senderEmail(), dto.reason(), recipients));
+        }
+    }
+
+    // SearchUtils.matchesQuery / normalize previos a SearchQuery, sin cambios
+    private static boolean baselineMatches(String query, String... fields) {
+        String normalizedQuery = baselineNormalize(query);
+        if (normalizedQuery.isBlank()) {
+            return true;
+        }
+        String haystack = baselineNormalize(Arrays.stream(fields)
+                .filter(Objects::nonNull)
+                .collect(Collectors.joining(" ")));
+        if (haystack.isBlank()) {
+            return false;
+        }
+        return Arrays.stream(normalizedQuery.split(" "))
+                .filter(term -> !term.isBlank())
+                .allMatch(haystack::contains);
+    }
+
+    private static String baselineNormalize(String value) {
+        if (value == null) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(value, Normalizer.Form.NFD)
+                .replaceAll("\\p{M}+", "")
+                .toLowerCase(Locale.ROOT)
+                .trim();
+        return normalized.replaceAll("\\s+", " ");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(SearchQueryBenchmark.class.getSimpleName()).build()).run();
+    }
+}
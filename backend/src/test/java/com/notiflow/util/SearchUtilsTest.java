@@ -0,0 +1,77 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SearchUtilsTest {
+
+    @Test
+    void indexTokensArePrefixesOfEachNormalizedWord() {
+        assertEquals(List.of("ma", "mar", "mari", "maria", "pe", "per", "pere", "perez"),
+                SearchUtils.indexTokens(100, "María Pérez"));
+    }
+
+    @Test
+    void prefixesStopAtMaxLength() {
+        List<String> tokens = SearchUtils.indexTokens(100, "Internacionalización");
+
+        assertEquals(SearchUtils.MAX_PREFIX - SearchUtils.MIN_PREFIX + 1, tokens.size());
+        assertEquals("in", tokens.get(0));
+        assertEquals("internaciona", tokens.get(tokens.size() - 1));
+    }
+
+    @Test
+    void shortWordsAndSeparatorsAreSkipped() {
+        assertEquals(List.of("ab", "cd", "an", "ana", "co", "col", "cole", "coleg", "colegi", "colegio", "cl"),
+                SearchUtils.indexTokens(100, "a ab, cd — ana@colegio.cl"));
+    }
+
+    @Test
+    void tokensAreDeduplicatedAcrossFields() {
+        assertEquals(List.of("an", "ana"), SearchUtils.indexTokens(100, "Ana", null, "ANA", "", "ána"));
+    }
+
+    @Test
+    void earlierFieldsWinWhenTruncated() {
+        assertEquals(List.of("an", "ana", "be"), SearchUtils.indexTokens(3, "Ana", "Beto"));
+        assertEquals(List.of(), SearchUtils.indexTokens(0, "Ana"));
+    }
+
+    @Test
+    void indexesOnlyWordStarts() {
+        List<String> tokens = SearchUtils.indexTokens(100, "Omar");
+
+        assertTrue(tokens.contains("om"));
+        assertFalse(tokens.contains("mar"));
+    }
+
+    @Test
+    void indexTermIsLongestNormalizedWordCappedAtMaxPrefix() {
+        assertEquals("reunion", SearchUtils.indexTerm("la Reunión de"));
+        assertEquals("apoderados", SearchUtils.indexTerm("reunion APODERADOS"));
+        assertEquals("internaciona", SearchUtils.indexTerm("internacionalización"));
+        assertEquals("colegio", SearchUtils.indexTerm("ana@colegio.cl"));
+    }
+
+    @Test
+    void indexTermIsNullWithoutUsableWord() {
+        assertNull(SearchUtils.indexTerm(null));
+        assertNull(SearchUtils.indexTerm("   "));
+        assertNull(SearchUtils.indexTerm("a b - c"));
+    }
+
+    @Test
+    void indexTermOfAWordIsAlwaysAmongItsTokens() {
+        String text = "Reunión de apoderados: información de la salida pedagógica internacionalización";
+        List<String> tokens = SearchUtils.indexTokens(1000, text);
+        for (String query : List.of("reunion", "Apoderados", "PEDAGÓGICA salida", "internacionalizacion", "info", "sa")) {
+            assertTrue(tokens.contains(SearchUtils.indexTerm(query)), query);
+        }
+    }
+}
@@ -0,0 +1,125 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimeBucketedDedupTest {
+
+    private static final long MINUTE = 60_000;
+    private static final int SEGMENTS = 16;
+
+    @Test
+    void repeatedPairInsideWindowIsNotFirstSeen() {
+        TimeBucketedDedup dedup = new TimeBucketedDedup(Duration.ofMinutes(10), 10, 10_000);
+
+        assertTrue(dedup.firstSeen("m1", "ana@colegio.cl", 0));
+        assertFalse(dedup.firstSeen("m1", "ana@colegio.cl", 30_000));
+        assertTrue(dedup.firstSeen("m1", "luis@colegio.cl", 30_000));
+        assertTrue(dedup.firstSeen("m2", "ana@colegio.cl", 30_000));
+
+        assertEquals(1, dedup.hits());
+        assertEquals(3, dedup.misses());
+        assertEquals(3, dedup.size());
+    }
+
+    @Test
+    void fieldBoundaryIsPartOfTheKey() {
+        TimeBucketedDedup dedup = new TimeBucketedDedup(Duration.ofMinutes(10), 10, 10_000);
+
+        assertTrue(dedup.firstSeen("ab", "c", 0));
+        assertTrue(dedup.firstSeen("a", "bc", 0));
+    }
+
+    @Test
+    void entryExpiresOnceItsBucketLeavesTheWindow() {
+        // 10 buckets de un minuto
+        TimeBucketedDedup dedup = new TimeBucketedDedup(Duration.ofMinutes(10), 10, 10_000);
+        assertTrue(dedup.firstSeen("m1", "ana", 5 * MINUTE + 30_000));
+
+        // sigue dentro mientras el bucket del minuto 5 sea uno de los últimos 10
+        assertFalse(dedup.firstSeen("m1", "ana", 9 * MINUTE));
+        assertFalse(dedup.firstSeen("m1", "ana", 14 * MINUTE + 59_999));
+        assertTrue(dedup.firstSeen("m1", "ana", 15 * MINUTE));
+        // y se vuelve a registrar en el bucket nuevo
+        assertFalse(dedup.firstSeen("m1", "ana", 16 * MINUTE));
+    }
+
+    @Test
+    void rotatingIntoReusedBucketDiscardsOldEntries() {
+        TimeBucketedDedup dedup = new TimeBucketedDedup(Duration.ofMinutes(2), 2, 2 * SEGMENTS * 8);
+        assertTrue(dedup.firstSeen("m1", "ana", 0));
+        assertTrue(dedup.firstSeen("m1", "luis", MINUTE));
+
+        // el minuto 2 reutiliza el bucket del minuto 0
+        assertTrue(dedup.firstSeen("m1", "ana", 2 * MINUTE));
+        assertFalse(dedup.firstSeen("m1", "luis", 2 * MINUTE));
+        assertEquals(2, dedup.size());
+    }
+
+    @Test
+    void fullBucketLetsNewKeysThroughWithoutRecordingThem() {
+        // maxEntries == buckets * SEGMENTS: una entrada por bucket y segmento
+        TimeBucketedDedup dedup = new TimeBucketedDedup(Duration.ofMinutes(2), 2, 2 * SEGMENTS);
+        List<String> keys = sameSegment(3);
+
+        assertTrue(dedup.firstSeen("m", keys.get(0), 0));
+        assertTrue(dedup.firstSeen("m", keys.get(1), 0));
+        assertTrue(dedup.firstSeen("m", keys.get(1), 0));
+        assertFalse(dedup.firstSeen("m", keys.get(0), 0));
+
+        assertEquals(2, dedup.overflows());
+        assertEquals(1, dedup.misses());
+        assertEquals(1, dedup.hits());
+        assertEquals(1, dedup.size());
+
+        // en el bucket siguiente hay lugar otra vez
+        assertTrue(dedup.firstSeen("m", keys.get(1), MINUTE));
+        assertFalse(dedup.firstSeen("m", keys.get(1), MINUTE));
+        assertTrue(dedup.firstSeen("m", keys.get(2), MINUTE));
+        assertEquals(3, dedup.overflows());
+    }
+
+    @Test
+    void lookupInFullBucketTerminates() {
+        // dos por bucket: la tabla de sondeo debe conservar una ranura vacía
+        TimeBucketedDedup dedup = new TimeBucketedDedup(Duration.ofMinutes(2), 2, 2 * SEGMENTS * 2);
+        List<String> keys = sameSegment(4);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(1), () -> {
+            assertTrue(dedup.firstSeen("m", keys.get(0), 0));
+            assertTrue(dedup.firstSeen("m", keys.get(1), 0));
+            assertTrue(dedup.firstSeen("m", keys.get(2), 0));
+            assertTrue(dedup.firstSeen("m", keys.get(3), 0));
+            assertFalse(dedup.firstSeen("m", keys.get(1), 0));
+        });
+        assertEquals(2, dedup.overflows());
+    }
+
+    @Test
+    void rejectsConfigurationWithoutRoomPerSegment() {
+        assertThrows(IllegalArgumentException.class, () -> new TimeBucketedDedup(Duration.ofMinutes(10), 1, 10_000));
+        assertThrows(IllegalArgumentException.class, () -> new TimeBucketedDedup(Duration.ofMinutes(10), 10, 10 * SEGMENTS - 1));
+    }
+
+    // destinatarios cuyo hash cae en el mismo segmento que el primero
+    private static List<String> sameSegment(int count) {
+        List<String> keys = new ArrayList<>();
+        int segment = -1;
+        for (int i = 0; keys.size() < count; i++) {
+            String key = "user" + i + "@colegio.cl";
+            int s = (int) (TimeBucketedDedup.hash("m", key) >>> 32) & (SEGMENTS - 1);
+            if (segment < 0) segment = s;
+            if (s == segment) keys.add(key);
+        }
+        return keys;
+    }
+}
@@ -0,0 +1,157 @@
+package com.notiflow.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TimingWheelTest {
+
+    private static final long TICK = 1000;
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    // ruedas de 4 ranuras: con pocos segundos ya hay entradas en varios niveles
+    private static TimingWheel<String> wheel(long startMs) {
+        return new TimingWheel<>(TICK, 4, startMs);
+    }
+
+    @Test
+    void pastDueEntryIsDeliveredOnNextAdvance() {
+        TimingWheel<String> wheel = wheel(10_000);
+        wheel.schedule("late", 4_000);
+
+        assertFalse(wheel.contains("late"));
+        assertEquals(List.of("late"), wheel.advance(10_000));
+        assertEquals(List.of(), wheel.advance(11_000));
+    }
+
+    @Test
+    void entryDueInCurrentTickIsNotDeliveredTwice() {
+        TimingWheel<String> wheel = wheel(10_000);
+        wheel.schedule("now", 10_500);
+
+        assertEquals(List.of("now"), wheel.advance(10_900));
+        assertEquals(List.of(), wheel.advance(20_000));
+    }
+
+    @Test
+    void entriesSeveralLevelsOutFireAtTheirTickInOrder() {
+        TimingWheel<String> wheel = wheel(0);
+        // niveles de 4, 16 y 64 ticks: 100s queda en el cuarto
+        wheel.schedule("far", 100_000);
+        wheel.schedule("mid", 17_000);
+        wheel.schedule("near", 2_000);
+        wheel.schedule("near-too", 2_400);
+
+        assertEquals(List.of(), wheel.advance(1_999));
+        assertEquals(List.of("near", "near-too"), wheel.advance(2_000));
+        assertEquals(List.of(), wheel.advance(16_999));
+        assertEquals(List.of("mid"), wheel.advance(17_000));
+        assertEquals(List.of(), wheel.advance(99_999));
+        assertEquals(List.of("far"), wheel.advance(100_000));
+        assertEquals(0, wheel.size());
+    }
+
+    @Test
+    void singleAdvanceAcrossLevelsReturnsEntriesByDueTick() {
+        TimingWheel<String> wheel = wheel(0);
+        wheel.schedule("c", 300_000);
+        wheel.schedule("a", 3_000);
+        wheel.schedule("b", 70_000);
+
+        assertEquals(List.of("a", "b", "c"), wheel.advance(400_000));
+    }
+
+    @Test
+    void rescheduleReplacesPreviousDueTime() {
+        TimingWheel<String> wheel = wheel(0);
+        wheel.schedule("earlier", 50_000);
+        wheel.schedule("earlier", 3_000);
+        wheel.schedule("later", 3_000);
+        wheel.schedule("later", 50_000);
+
+        assertEquals(1, wheel.advance(3_000).size());
+        assertTrue(wheel.contains("later"));
+        assertFalse(wheel.contains("earlier"));
+        assertEquals(List.of("later"), wheel.advance(60_000));
+    }
+
+    @Test
+    void reschedulingPastDueEntryToFutureDelaysIt() {
+        TimingWheel<String> wheel = wheel(10_000);
+        wheel.schedule("key", 1_000);
+        wheel.schedule("key", 15_000);
+
+        assertEquals(List.of(), wheel.advance(14_999));
+        assertEquals(List.of("key"), wheel.advance(15_000));
+    }
+
+    @Test
+    void cancelledEntriesAreNeverDelivered() {
+        TimingWheel<String> wheel = wheel(0);
+        wheel.schedule("near", 2_000);
+        wheel.schedule("far", 200_000);
+        wheel.cancel("near");
+        wheel.cancel("far");
+
+        assertEquals(0, wheel.size());
+        assertEquals(List.of(), wheel.advance(300_000));
+    }
+
+    @Test
+    void cancellingPastDueEntryBeforeAdvanceDropsIt() {
+        TimingWheel<String> wheel = wheel(10_000);
+        wheel.schedule("late", 1_000);
+        wheel.cancel("late");
+
+        assertEquals(List.of(), wheel.advance(10_000));
+    }
+
+    @Test
+    void clearDropsEverything() {
+        TimingWheel<String> wheel = wheel(0);
+        wheel.schedule("late", -1);
+        wheel.schedule("soon", 2_000);
+        wheel.schedule("far", 500_000);
+        wheel.clear();
+
+        assertEquals(0, wheel.size());
+        assertEquals(List.of(), wheel.advance(1_000_000));
+    }
+
+    @Test
+    void advanceAfterLongIdleGapPlacesNewEntriesFromCurrentTime() {
+        TimingWheel<String> wheel = wheel(0);
+        long now = 30 * DAY;
+
+        assertEquals(List.of(), wheel.advance(now));
+        wheel.schedule("soon", now + 2_000);
+        wheel.schedule("later", now + 90_000);
+
+        assertEquals(List.of(), wheel.advance(now + 1_999));
+        assertEquals(List.of("soon"), wheel.advance(now + 2_000));
+        assertEquals(List.of(), wheel.advance(now + 89_999));
+        assertEquals(List.of("later"), wheel.advance(now + 90_000));
+    }
+
+    @Test
+    void advanceAfterLongIdleGapDeliversPendingEntries() {
+        TimingWheel<String> wheel = wheel(0);
+        wheel.schedule("a", 5_000);
+        wheel.schedule("b", DAY);
+
+        assertEquals(List.of("a", "b"), wheel.advance(3 * DAY));
+        wheel.schedule("c", 3 * DAY + 1_000);
+        assertEquals(List.of("c"), wheel.advance(3 * DAY + 1_000));
+    }
+
+    @Test
+    void rejectsInvalidConfiguration() {
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<String>(0, 4, 0));
+        assertThrows(IllegalArgumentException.class, () -> new TimingWheel<String>(TICK, 1, 0));
+    }
+}